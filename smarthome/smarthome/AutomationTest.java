@@ -1,8 +1,10 @@
 package smarthome;
 
 import smarthome.core.CentralController;
+import smarthome.core.GroupAggregates;
 import smarthome.core.Home;
 import smarthome.core.Room;
+import smarthome.devices.DeviceAttribute;
 import smarthome.devices.Light2;
 import smarthome.devices.MotionSensor;
 import smarthome.devices.SmartDevice;
@@ -10,6 +12,7 @@ import smarthome.devices.Thermostat;
 import smarthome.automation.*;
 import smarthome.exceptions.DeviceNotFoundException;
 import java.time.LocalTime;
+import java.util.List;
 
 public class AutomationTest {
     public static void main(String[] args) {
@@ -95,5 +98,588 @@ public class AutomationTest {
         else
             System.out.println("FAILURE: Thermostat failed to turn on.");
 
+        System.out.println("\n--- Test 3: Edge Triggering, Cooldown and Hysteresis ---");
+        engine.removeRule("Motion Lights");
+        engine.removeRule("Auto Heat");
+        int[] fired = new int[1];
+        Action countFiring = c -> fired[0]++;
+        AutomationRule edgeRule = new AutomationRule("Motion Edge", "Count motion onsets",
+                new SensorCondition("MotionSensor", true), countFiring);
+        edgeRule.setFireMode(FireMode.RISING);
+        edgeRule.evaluateAndExecute(controller, 0); // motion still detected from test 1
+        edgeRule.evaluateAndExecute(controller, 1_000);
+        motion.clearMotion();
+        edgeRule.evaluateAndExecute(controller, 2_000);
+        motion.detectMotion();
+        edgeRule.evaluateAndExecute(controller, 3_000);
+        if (fired[0] == 2)
+            System.out.println("SUCCESS: Rising-edge rule fired once per motion onset.");
+        else
+            System.out.println("FAILURE: Rising-edge rule fired " + fired[0] + " times.");
+
+        fired[0] = 0;
+        AutomationRule cooldownRule = new AutomationRule("Motion Cooldown", "Count with cooldown",
+                new SensorCondition("MotionSensor", true), countFiring);
+        cooldownRule.setCooldownMillis(10_000);
+        cooldownRule.evaluateAndExecute(controller, 0);
+        cooldownRule.evaluateAndExecute(controller, 5_000);
+        cooldownRule.evaluateAndExecute(controller, 10_000);
+        if (fired[0] == 2)
+            System.out.println("SUCCESS: Cooldown suppressed the repeat firing.");
+        else
+            System.out.println("FAILURE: Cooldown rule fired " + fired[0] + " times.");
+
+        Condition hot = new ThresholdCondition("Thermostat", "Temperature", ">", 25.0, 23.0);
+        thermo.setCurrentTemperature(26.0);
+        boolean aboveBand = hot.evaluate(controller);
+        thermo.setCurrentTemperature(24.0);
+        boolean insideBand = hot.evaluate(controller);
+        thermo.setCurrentTemperature(22.5);
+        boolean belowBand = hot.evaluate(controller);
+        if (aboveBand && insideBand && !belowBand)
+            System.out.println("SUCCESS: Hysteresis held the condition inside the band.");
+        else
+            System.out.println("FAILURE: Hysteresis " + aboveBand + "/" + insideBand + "/" + belowBand);
+
+        System.out.println("\n--- Test 4: Compiled Composite Conditions ---");
+        int[] scans = new int[1];
+        Condition expensive = new Condition() {
+            @Override
+            public boolean evaluate(CentralController c) {
+                scans[0]++;
+                return true;
+            }
+        };
+        Condition never = new NotCondition(new GroupStateCondition("Light", true, false));
+        mainLight.turnOn();
+        Condition compiled = RuleCompiler.compile(
+                new AndCondition(expensive, new AndCondition(new NotCondition(new NotCondition(never)))));
+        boolean result = compiled.evaluate(controller);
+        if (!result && scans[0] == 0 && compiled instanceof AndCondition and && and.getChildren().size() == 2)
+            System.out.println("SUCCESS: Cheap condition evaluated first and short-circuited the AND.");
+        else
+            System.out.println("FAILURE: Compiled condition scanned " + scans[0] + " times.");
+
+        try {
+            new DeviceAction("DIM", mainLight.getId(), false);
+            System.out.println("FAILURE: Unknown command accepted.");
+        } catch (IllegalArgumentException e) {
+            System.out.println("SUCCESS: Unknown command rejected when the rule is built.");
+        }
+
+        System.out.println("\n--- Test 5: Parallel Evaluation ---");
+        AutomationEngine parallel = new AutomationEngine(controller);
+        parallel.setParallelism(4);
+        AutomationRule comfort = new AutomationRule("Comfort", "Warm up", c -> true,
+                new DeviceAction("SET_TEMP:28", thermo.getId(), false));
+        comfort.setPriority(1);
+        AutomationRule saver = new AutomationRule("Saver", "Cap the heating", c -> true,
+                new DeviceAction("SET_TEMP:19", thermo.getId(), false));
+        saver.setPriority(5);
+        parallel.addRule(saver);
+        parallel.addRule(comfort);
+        parallel.addRule(new AutomationRule("Lights Off", "Independent device", c -> true,
+                new DeviceAction("OFF", mainLight.getId(), false)));
+        parallel.evaluateRules();
+        parallel.setParallelism(1);
+        if (thermo.getTargetTemperature() == 19.0 && !mainLight.isOn())
+            System.out.println("SUCCESS: Higher-priority action applied last on the shared device.");
+        else
+            System.out.println("FAILURE: Thermostat target is " + thermo.getTargetTemperature());
+
+        // Resizing the pool while ticks run must never pull it from under one
+        parallel.addRule(new AutomationRule("Slow", "Keeps a tick busy", c -> {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }, new DeviceAction("OFF", mainLight.getId(), false)));
+        java.util.concurrent.atomic.AtomicInteger broken = new java.util.concurrent.atomic.AtomicInteger();
+        Thread ticker = new Thread(() -> {
+            for (int i = 0; i < 100; i++) {
+                try {
+                    parallel.evaluateRules();
+                } catch (RuntimeException e) {
+                    broken.incrementAndGet();
+                }
+            }
+        });
+        ticker.start();
+        for (int i = 0; ticker.isAlive(); i++) {
+            parallel.setParallelism(2 + i % 3);
+        }
+        try {
+            ticker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        parallel.close();
+        if (broken.get() == 0 && parallel.getParallelism() == 1)
+            System.out.println("SUCCESS: Parallelism changed between ticks; close released the pool.");
+        else
+            System.out.println("FAILURE: " + broken.get() + " ticks lost their pool, parallelism "
+                    + parallel.getParallelism());
+
+        System.out.println("\n--- Test 6: Rule Cycles and Cascade Limits ---");
+        CentralController den = new CentralController(new Home(2, "Den", 1, "TestCity"));
+        den.addRoom(new Room("Den"));
+        Light2 lamp = new Light2("Den Lamp");
+        smarthome.devices.SmartTV tv = new smarthome.devices.SmartTV("Den TV");
+        try {
+            den.addDeviceToRoom("Den", lamp);
+            den.addDeviceToRoom("Den", tv);
+        } catch (DeviceNotFoundException e) {
+            e.printStackTrace();
+        }
+        AutomationEngine loop = new AutomationEngine(den);
+        loop.setMaxCascadeDepth(3);
+        loop.addRule(new AutomationRule("Lamp When TV Off", "", new GroupStateCondition("SmartTV", false, false),
+                new DeviceAction("ON", lamp.getId(), false)));
+        loop.addRule(new AutomationRule("TV When Lamp On", "", new GroupStateCondition("Light", true, false),
+                new DeviceAction("ON", tv.getId(), false)));
+        loop.addRule(new AutomationRule("Lamp When TV On", "", new GroupStateCondition("SmartTV", true, false),
+                new DeviceAction("OFF", lamp.getId(), false)));
+        loop.addRule(new AutomationRule("TV When Lamp Off", "", new GroupStateCondition("Light", false, false),
+                new DeviceAction("OFF", tv.getId(), false)));
+        if (loop.findCycle("Lamp When TV Off").size() > 2)
+            System.out.println("SUCCESS: Cycle detected when the rules were added.");
+        else
+            System.out.println("FAILURE: No cycle found.");
+
+        loop.evaluateRules();
+        if (!loop.getThrottledRules().isEmpty())
+            System.out.println("SUCCESS: Oscillating rules throttled after " + loop.getMaxCascadeDepth()
+                    + " cascades: " + loop.getThrottledRules());
+        else
+            System.out.println("FAILURE: Oscillating rules were not throttled.");
+
+        System.out.println("\n--- Test 7: Sliding-Window Conditions ---");
+        java.time.Instant t0 = java.time.Instant.parse("2025-01-01T08:00:00Z");
+        WindowedCondition burst = WindowedCondition.motionEventsWithin(3, java.time.Duration.ofSeconds(30));
+        WindowedCondition quiet = WindowedCondition.noMotionFor(java.time.Duration.ofMinutes(10));
+        at(t0, 0, burst, quiet).evaluate(controller); // attach to the controller
+        quiet.evaluate(controller);
+        for (int i = 0; i < 3; i++) {
+            at(t0, i * 5, burst, quiet);
+            motion.detectMotion();
+        }
+        boolean burstSeen = burst.evaluate(controller) && !quiet.evaluate(controller);
+        at(t0, 50, burst, quiet);
+        motion.clearMotion();
+        boolean burstExpired = !burst.evaluate(controller);
+        at(t0, 11 * 60, burst, quiet);
+        if (burstSeen && burstExpired && quiet.evaluate(controller))
+            System.out.println("SUCCESS: Motion burst and quiet period detected over their windows.");
+        else
+            System.out.println("FAILURE: Windowed motion conditions " + burstSeen + "/" + burstExpired);
+
+        WindowedCondition warm = WindowedCondition.averageTemperature(">", 24.0, java.time.Duration.ofMinutes(5));
+        at(t0, 0, warm).evaluate(controller);
+        thermo.setCurrentTemperature(26.0);
+        at(t0, 60, warm);
+        thermo.setCurrentTemperature(25.0);
+        boolean warmAverage = warm.evaluate(controller);
+        at(t0, 7 * 60, warm);
+        boolean stillWarm = warm.evaluate(controller); // only the last value remains in effect
+        thermo.setCurrentTemperature(20.0);
+        if (warmAverage && stillWarm && !warm.evaluate(controller))
+            System.out.println("SUCCESS: Average temperature tracked over the window.");
+        else
+            System.out.println("FAILURE: Windowed average " + warmAverage + "/" + stillWarm);
+
+        System.out.println("\n--- Test 8: Group Aggregate Conditions ---");
+        CentralController office = new CentralController(new Home(3, "Office", 1, "TestCity"));
+        office.addRoom(new Room("Office"));
+        List<Light2> officeLights = new java.util.ArrayList<>();
+        Thermostat east = new Thermostat("East Thermostat");
+        Thermostat west = new Thermostat("West Thermostat");
+        try {
+            for (int i = 0; i < 5; i++) {
+                Light2 l = new Light2("Office Light " + i);
+                office.addDeviceToRoom("Office", l);
+                officeLights.add(l);
+                if (i < 4)
+                    l.turnOn();
+            }
+            office.addDeviceToRoom("Office", east);
+            office.addDeviceToRoom("Office", west);
+        } catch (DeviceNotFoundException e) {
+            e.printStackTrace();
+        }
+        east.setCurrentTemperature(24.0);
+        west.setCurrentTemperature(27.0);
+        Condition mostLightsOn = AggregateCondition.fractionOn(GroupAggregates.Scope.TYPE, "Light", ">", 0.7);
+        Condition officeHot = new AggregateCondition(GroupAggregates.Scope.ROOM, "Office",
+                DeviceAttribute.CURRENT_TEMPERATURE, Aggregate.MAX, ">", 26.0);
+        boolean before = mostLightsOn.evaluate(office) && officeHot.evaluate(office);
+        officeLights.get(0).turnOff();
+        west.setCurrentTemperature(25.0);
+        boolean after = mostLightsOn.evaluate(office) || officeHot.evaluate(office);
+        double avg = office.getGroupAggregates().average(GroupAggregates.Scope.ROOM, "Office",
+                DeviceAttribute.CURRENT_TEMPERATURE);
+        if (before && !after && avg == 24.5)
+            System.out.println("SUCCESS: Group aggregates followed device changes.");
+        else
+            System.out.println("FAILURE: Aggregate conditions " + before + "/" + after + ", average " + avg);
+        west.setCurrentTemperature(25.1);
+        for (int i = 0; i < 10_000; i++) { // large and small values, to make a plain running sum drift
+            east.setCurrentTemperature(i % 2 == 0 ? 1e9 + 0.1 * i : 0.1 * i);
+        }
+        east.setCurrentTemperature(24.0);
+        double sum = office.getGroupAggregates().sum(GroupAggregates.Scope.ROOM, "Office",
+                DeviceAttribute.CURRENT_TEMPERATURE);
+        if (Math.abs(sum - 49.1) < 1e-9)
+            System.out.println("SUCCESS: Group sum did not drift over many updates.");
+        else
+            System.out.println("FAILURE: Group sum drifted to " + sum + ", expected 49.1");
+
+        System.out.println("\n--- Test 9: Cron Schedules and Missed Fires ---");
+        ManualClock clock = new ManualClock(java.time.Instant.parse("2025-01-06T06:59:30Z")); // a Monday
+        AutomationEngine scheduler = new AutomationEngine(den, clock);
+        int[] wakeUps = new int[3];
+        MissedFirePolicy[] policies = { MissedFirePolicy.FIRE_ONCE, MissedFirePolicy.CATCH_UP, MissedFirePolicy.SKIP };
+        for (int i = 0; i < policies.length; i++) {
+            int slot = i;
+            scheduler.addRule(new AutomationRule("Wake Up " + policies[i], "Weekday alarm",
+                    new CronCondition("0 7 * * MON-FRI").withMissedFirePolicy(policies[i]), c -> wakeUps[slot]++));
+        }
+        scheduler.evaluateRules(); // 06:59:30, nothing due
+        clock.advance(java.time.Duration.ofSeconds(40));
+        scheduler.evaluateRules(); // 07:00:10, on time
+        boolean onTime = wakeUps[0] == 1 && wakeUps[1] == 1 && wakeUps[2] == 1
+                && java.time.Instant.parse("2025-01-07T07:00:00Z").equals(scheduler.getNextFireTime());
+        clock.advance(java.time.Duration.ofDays(4).plusMinutes(30)); // paused until Friday 07:30
+        scheduler.evaluateRules();
+        if (onTime && wakeUps[0] == 2 && wakeUps[1] == 5 && wakeUps[2] == 1)
+            System.out.println("SUCCESS: Schedule fired on time and handled missed fires by policy.");
+        else
+            System.out.println("FAILURE: Wake-ups " + java.util.Arrays.toString(wakeUps));
+
+        AutomationEngine nested = new AutomationEngine(den, clock);
+        int[] nestedHits = new int[2];
+        nested.addRule(new AutomationRule("Noon Or Always", "",
+                new OrCondition(new CronCondition("0 12 * * *"), c -> true), c -> nestedHits[0]++));
+        nested.addRule(new AutomationRule("Not Noon", "",
+                new NotCondition(new CronCondition("0 12 * * *")), c -> nestedHits[1]++));
+        // One condition in two engines: scheduled by a Friday one, matched on the clock of a Saturday one
+        CronCondition weekdays = new CronCondition("* * * * MON-FRI");
+        int[] weekdayHits = new int[2];
+        nested.addRule(new AutomationRule("Weekdays", "", weekdays, c -> weekdayHits[0]++));
+        ManualClock saturday = new ManualClock(java.time.Instant.parse("2025-01-11T12:00:00Z"));
+        AutomationEngine weekend = new AutomationEngine(den, saturday);
+        AutomationRule weekdaysOrNever = new AutomationRule("Weekdays Or Never", "",
+                new OrCondition(weekdays, c -> false), c -> weekdayHits[1]++);
+        weekdaysOrNever.setFireMode(FireMode.LEVEL);
+        weekend.addRule(weekdaysOrNever);
+        for (int i = 0; i < 5; i++) {
+            nested.evaluateRules();
+            weekend.evaluateRules();
+            clock.advance(java.time.Duration.ofMinutes(1));
+            saturday.advance(java.time.Duration.ofMinutes(1));
+        }
+        nested.removeRule("Weekdays");
+        if (nestedHits[0] == 5 && nestedHits[1] == 5 && weekdayHits[0] == 4 && weekdayHits[1] == 0)
+            System.out.println("SUCCESS: Only top-level schedules gated their rule; a shared schedule kept "
+                    + "each engine's clock.");
+        else
+            System.out.println("FAILURE: Nested schedules fired " + java.util.Arrays.toString(nestedHits)
+                    + ", shared schedule " + java.util.Arrays.toString(weekdayHits));
+
+        java.time.ZonedDateTime dusk = CronExpression.parse("@sunset-30 * * MON-FRI")
+                .nextAfter(java.time.ZonedDateTime.parse("2025-01-15T12:00:00+01:00"));
+        if (dusk.toLocalTime().equals(LocalTime.of(16, 55)))
+            System.out.println("SUCCESS: Sunset offset computed from the sun table.");
+        else
+            System.out.println("FAILURE: Sunset schedule gave " + dusk);
+
+        System.out.println("\n--- Test 10: Hot-Swapped Rule Sets ---");
+        AutomationEngine swapped = new AutomationEngine(den);
+        int[] hits = new int[2];
+        List<AutomationRule> setA = List.of(
+                new AutomationRule("A1", "Always", c -> true, c -> hits[0]++),
+                new AutomationRule("A2", "Always", c -> true, c -> hits[0]++));
+        List<AutomationRule> setB = List.of(new AutomationRule("B1", "Always", c -> true, c -> hits[1]++));
+        setA.forEach(r -> r.setFireMode(FireMode.LEVEL));
+        setB.forEach(r -> r.setFireMode(FireMode.LEVEL));
+        java.io.PrintStream stdout = System.out;
+        System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+        swapped.replaceRules(setB);
+        Thread uploader = new Thread(() -> {
+            for (int i = 0; i < 2_000; i++) {
+                swapped.replaceRules(i % 2 == 0 ? setA : setB);
+            }
+        });
+        uploader.start();
+        boolean mixed = false;
+        while (uploader.isAlive()) {
+            int a = hits[0];
+            int b = hits[1];
+            swapped.evaluateRules();
+            int da = hits[0] - a;
+            int db = hits[1] - b;
+            mixed |= !(da == 2 && db == 0 || da == 0 && db == 1); // a tick sees one whole set
+        }
+        System.setOut(stdout);
+        if (!mixed && swapped.getRuleSet().getVersion() == 2_001 && swapped.getRuleSet().getRule("B1") != null)
+            System.out.println("SUCCESS: Every tick saw exactly one published rule set.");
+        else
+            System.out.println("FAILURE: Mixed rule sets or wrong version " + swapped.getRuleSet().getVersion());
+
+        try {
+            swapped.patchRules(setA, List.of("No Such Rule"));
+            System.out.println("FAILURE: Patch removing an unknown rule was accepted.");
+        } catch (IllegalArgumentException e) {
+            if (swapped.getRuleSet().getVersion() == 2_001 && swapped.getRuleSet().size() == 1)
+                System.out.println("SUCCESS: Invalid patch rejected without changing the rules.");
+            else
+                System.out.println("FAILURE: Invalid patch changed the rules.");
+        }
+
+        System.out.println("\n--- Test 11: Rule Metrics ---");
+        AutomationEngine measured = new AutomationEngine(den);
+        int[] calls = new int[1];
+        AutomationRule everyOther = new AutomationRule("Every Other", "True on odd calls",
+                c -> ++calls[0] % 2 == 1, c -> {
+                    if (calls[0] == 5)
+                        throw new IllegalStateException("Simulated failure");
+                });
+        everyOther.setFireMode(FireMode.LEVEL);
+        measured.addRule(everyOther);
+        for (int i = 0; i < 16; i++) {
+            measured.evaluateRules();
+        }
+        RuleMetrics metrics = everyOther.getMetrics();
+        if (metrics.getEvaluations() == 16 && metrics.getConditionTrue() == 8 && metrics.getActions() == 7
+                && metrics.getErrors() == 1
+                && metrics.getConditionLatency().getCount() == 16 / RuleMetrics.LATENCY_SAMPLE_INTERVAL)
+            System.out.println("SUCCESS: Evaluations, true conditions, actions and errors counted.");
+        else
+            System.out.println("FAILURE: Metrics " + metrics.getEvaluations() + "/" + metrics.getConditionTrue()
+                    + "/" + metrics.getActions() + "/" + metrics.getErrors());
+
+        smarthome.telemetry.LatencyHistogram histogram = new smarthome.telemetry.LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1_000L);
+        }
+        long p50 = histogram.getPercentile(0.5);
+        long p99 = histogram.getPercentile(0.99);
+        if (p50 >= 50_000 && p50 < 100_000 && p99 >= 99_000 && p99 < 198_000 && histogram.getCount() == 100)
+            System.out.println("SUCCESS: Histogram percentiles within one bucket.");
+        else
+            System.out.println("FAILURE: Histogram p50 " + p50 + ", p99 " + p99);
+
+        System.out.println("\n--- Test 12: Metrics Exposition ---");
+        smarthome.telemetry.MetricsRegistry registry = new smarthome.telemetry.MetricsRegistry();
+        registry.register(measured::collectMetrics);
+        registry.register(new smarthome.telemetry.ControllerMetrics(den));
+        String scrape = registry.scrape();
+        if (scrape.contains("smarthome_rule_evaluations_total 16\n") && scrape.contains("smarthome_rule_errors_total 1\n")
+                && scrape.contains("smarthome_rule_tick_seconds_count 16\n")
+                && scrape.contains("smarthome_rule_tick_seconds_bucket{le=\"+Inf\"} 16\n")
+                && scrape.contains("# TYPE smarthome_devices gauge\n"))
+            System.out.println("SUCCESS: Engine and controller metrics exposed in text format.");
+        else
+            System.out.println("FAILURE: Unexpected scrape:\n" + scrape);
+
+        System.out.println("\n--- Test 13: Flight Recorder Events ---");
+        try (jdk.jfr.Recording recording = new jdk.jfr.Recording()) {
+            recording.enable("smarthome.RuleEvaluation");
+            recording.enable("smarthome.BulkOperation");
+            recording.start();
+            for (int i = 0; i < 4; i++) {
+                measured.evaluateRules();
+            }
+            den.turnOffAllDevices();
+            recording.stop();
+            java.nio.file.Path file = java.nio.file.Files.createTempFile("smarthome", ".jfr");
+            recording.dump(file);
+            RecordingAnalyzer analyzer = new RecordingAnalyzer();
+            analyzer.read(file);
+            java.nio.file.Files.delete(file);
+            List<RecordingAnalyzer.Hotspot> hotRules = analyzer.hotRules(5);
+            if (hotRules.size() == 1 && hotRules.get(0).name.equals("Every Other") && hotRules.get(0).count == 4
+                    && hotRules.get(0).fired == 2)
+                System.out.println("SUCCESS: Rule evaluations recorded and summarized.");
+            else
+                System.out.println("FAILURE: Hot rules " + hotRules.size());
+        } catch (java.io.IOException e) {
+            System.out.println("FAILURE: Recording failed: " + e.getMessage());
+        }
+
+        System.out.println("\n--- Test 14: Rules That Do Not Re-trigger Themselves ---");
+        CentralController study = new CentralController(new Home(5, "Study", 1, "TestCity"));
+        study.addRoom(new Room("Study"));
+        Thermostat studyThermostat = new Thermostat("Study Thermostat");
+        try {
+            study.addDeviceToRoom("Study", studyThermostat);
+        } catch (DeviceNotFoundException e) {
+            e.printStackTrace();
+        }
+        studyThermostat.setCurrentTemperature(28);
+        AutomationEngine cooling = new AutomationEngine(study);
+        AutomationRule cool = new AutomationRule("Cool", "",
+                new ThresholdCondition("Thermostat", "Temperature", ">", 25),
+                new DeviceAction("SET_TEMP:20", studyThermostat.getId(), false));
+        cooling.addRule(cool);
+        boolean throttledAny = false;
+        for (int i = 0; i < 3; i++) {
+            cooling.evaluateRules();
+            throttledAny |= !cooling.getThrottledRules().isEmpty();
+        }
+        // The rule reads the current temperature and writes the target one
+        if (cool.getMetrics().getActions() == 3 && !throttledAny && cooling.findCycle("Cool").isEmpty()
+                && studyThermostat.getTargetTemperature() == 20)
+            System.out.println("SUCCESS: Level rule fired exactly once per tick and formed no cycle.");
+        else
+            System.out.println("FAILURE: Level rule fired " + cool.getMetrics().getActions()
+                    + " times in 3 ticks, throttled " + throttledAny + ", cycle " + cooling.findCycle("Cool"));
+
+        System.out.println("\n--- Test 15: Conditions Attached With Their Rule ---");
+        MotionSensor studyMotion = new MotionSensor("Study Motion");
+        try {
+            study.addDeviceToRoom("Study", studyMotion);
+        } catch (DeviceNotFoundException e) {
+            e.printStackTrace();
+        }
+        studyMotion.turnOn();
+        WindowedCondition busy = WindowedCondition.motionEventsWithin(2, java.time.Duration.ofMinutes(10));
+        AutomationRule busyRule = new AutomationRule("Busy", "", busy,
+                new DeviceAction("SET_TEMP:19", studyThermostat.getId(), false));
+        cooling.addRule(busyRule);
+        for (int i = 0; i < 2; i++) { // before the first tick
+            studyMotion.detectMotion();
+            studyMotion.clearMotion();
+        }
+        boolean seenBeforeTick = busy.evaluate(study);
+        cooling.removeRule("Busy");
+        for (int i = 0; i < 2; i++) { // while the rule is not in the set
+            studyMotion.detectMotion();
+            studyMotion.clearMotion();
+        }
+        cooling.addRule(busyRule);
+        boolean seenWhileRemoved = busy.evaluate(study);
+        cooling.replaceRules(List.of(cool));
+        if (seenBeforeTick && !seenWhileRemoved)
+            System.out.println("SUCCESS: Windowed condition listened exactly while its rule was in the set.");
+        else
+            System.out.println("FAILURE: Windowed condition saw events before its first tick " + seenBeforeTick
+                    + ", while removed " + seenWhileRemoved);
+
+        System.out.println("\n--- Test 16: Rule Bursts Coalesced ---");
+        Light2 studyLamp = new Light2("Study Lamp");
+        try {
+            study.addDeviceToRoom("Study", studyLamp);
+        } catch (DeviceNotFoundException e) {
+            e.printStackTrace();
+        }
+        studyLamp.turnOn();
+        AutomationEngine bursts = new AutomationEngine(study);
+        AutomationRule dim = new AutomationRule("Dim", "", c -> true,
+                new DeviceAction("brightness:30", studyLamp.getId(), false));
+        AutomationRule brighten = new AutomationRule("Brighten", "", c -> true,
+                new DeviceAction("brightness:60", studyLamp.getId(), false));
+        brighten.setPriority(1); // applied after Dim
+        bursts.replaceRules(List.of(dim, brighten));
+        try (smarthome.commands.CommandMailbox mailbox = new smarthome.commands.CommandMailbox(
+                new smarthome.commands.DirectDriver(), java.time.Duration.ofSeconds(10))) {
+            study.setRuleMailbox(mailbox);
+            bursts.evaluateRules();
+            boolean delivered = studyLamp.getBrightness() == 60; // at the end of the wave, not after the window
+            for (int i = 0; i < 2; i++) {
+                bursts.evaluateRules();
+            }
+            if (delivered && studyLamp.getBrightness() == 60 && mailbox.getSubmittedCount() == 6
+                    && mailbox.getDeliveredCount() == 1 && mailbox.getNoOpCount() == 2)
+                System.out.println("SUCCESS: Six rule settings in a burst reached the lamp as one command.");
+            else
+                System.out.println("FAILURE: Rule burst delivered " + mailbox.getDeliveredCount() + " of "
+                        + mailbox.getSubmittedCount() + ", brightness " + studyLamp.getBrightness());
+
+            // Two rules undoing each other's setting: the waves see the mailbox's writes and stop the cycle
+            Condition dark = brightness(studyLamp, false);
+            Condition bright = brightness(studyLamp, true);
+            AutomationEngine seesaw = new AutomationEngine(study);
+            seesaw.addRule(new AutomationRule("Up", "", dark, new DeviceAction("brightness:70", studyLamp.getId(),
+                    false)));
+            seesaw.addRule(new AutomationRule("Down", "", bright, new DeviceAction("brightness:20",
+                    studyLamp.getId(), false)));
+            long deliveredBefore = mailbox.getDeliveredCount();
+            seesaw.evaluateRules();
+            long cascaded = mailbox.getDeliveredCount() - deliveredBefore;
+            if (!seesaw.getThrottledRules().isEmpty() && cascaded == seesaw.getMaxCascadeDepth() + 1)
+                System.out.println("SUCCESS: A cycle of rule settings through the mailbox was cut after "
+                        + cascaded + " waves.");
+            else
+                System.out.println("FAILURE: Mailbox cycle delivered " + cascaded + " settings, throttled "
+                        + seesaw.getThrottledRules());
+        } finally {
+            study.setRuleMailbox(null);
+        }
+    }
+
+    /**
+     * A condition on a light's brightness that declares what it reads, so the
+     * engine re-evaluates it when the brightness changes.
+     */
+    private static Condition brightness(Light2 light, boolean atLeastHalf) {
+        return new Condition() {
+            @Override
+            public boolean evaluate(CentralController controller) {
+                return (light.getBrightness() >= 50) == atLeastHalf;
+            }
+
+            @Override
+            public java.util.Collection<SmartDevice> inputs(CentralController controller) {
+                return List.of(light);
+            }
+
+            @Override
+            public java.util.Set<DeviceAttribute> inputAttributes() {
+                return java.util.EnumSet.of(DeviceAttribute.BRIGHTNESS);
+            }
+        };
+    }
+
+    /**
+     * Moves the clock of windowed conditions to a number of seconds after t0.
+     */
+    private static WindowedCondition at(java.time.Instant t0, long seconds, WindowedCondition... conditions) {
+        java.time.Clock clock = java.time.Clock.fixed(t0.plusSeconds(seconds), java.time.ZoneOffset.UTC);
+        for (WindowedCondition c : conditions) {
+            c.usingClock(clock);
+        }
+        return conditions[0];
+    }
+
+    /**
+     * Clock that only moves when told to, for scheduled rules.
+     */
+    private static class ManualClock extends java.time.Clock {
+        private java.time.Instant now;
+
+        ManualClock(java.time.Instant start) {
+            this.now = start;
+        }
+
+        void advance(java.time.Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public java.time.ZoneId getZone() {
+            return java.time.ZoneOffset.UTC;
+        }
+
+        @Override
+        public java.time.Clock withZone(java.time.ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public java.time.Instant instant() {
+            return now;
+        }
     }
 }
@@ -0,0 +1,110 @@
+package smarthome;
+
+import smarthome.commands.BulkExecutor;
+import smarthome.commands.BulkResult;
+import smarthome.commands.CommandConfig;
+import smarthome.commands.CommandPipeline;
+import smarthome.commands.CommandResult;
+import smarthome.commands.DirectDriver;
+import smarthome.commands.SimulatedLatencyDriver;
+import smarthome.core.CentralController;
+import smarthome.core.Home;
+import smarthome.core.Room;
+import smarthome.devices.DeviceCommand;
+import smarthome.devices.Light2;
+import smarthome.devices.SmartDevice;
+import smarthome.exceptions.DeviceNotFoundException;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares turning every device on one by one with a driver that adds
+ * network-like latency against sending the commands through a
+ * CommandPipeline or a room-by-room BulkExecutor, with some devices not
+ * answering at all.
+ *
+ * Usage: java smarthome.CommandPipelineBenchmark [devices] [maxLatencyMs] [unresponsive] [failureRate]
+ */
+public class CommandPipelineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int deviceCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int maxLatencyMs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int unresponsive = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        double failureRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.05;
+        PrintStream out = System.out;
+
+        out.println("===== COMMAND PIPELINE BENCHMARK =====");
+        out.println(deviceCount + " devices, latency " + maxLatencyMs / 2 + "-" + maxLatencyMs + " ms, "
+                + unresponsive + " unresponsive, failure rate " + failureRate);
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        List<SmartDevice> devices = new ArrayList<>();
+        CentralController controller = buildHome(deviceCount, devices);
+        SimulatedLatencyDriver driver = new SimulatedLatencyDriver(new DirectDriver(),
+                Duration.ofMillis(maxLatencyMs / 2), Duration.ofMillis(maxLatencyMs), failureRate);
+
+        // One by one; unresponsive devices are left out, or the loop would hang on each
+        long start = System.nanoTime();
+        int sequentialFailures = 0;
+        for (SmartDevice device : devices.subList(unresponsive, devices.size())) {
+            try {
+                driver.send(device, DeviceCommand.ON);
+            } catch (java.io.IOException e) {
+                sequentialFailures++;
+            }
+        }
+        double sequentialMillis = (System.nanoTime() - start) / 1e6;
+
+        for (SmartDevice device : devices.subList(0, unresponsive)) {
+            driver.setResponding(device, false);
+        }
+        CommandConfig config = new CommandConfig(16, Duration.ofMillis(maxLatencyMs * 20L), 3,
+                Duration.ofMillis(maxLatencyMs), 3, Duration.ofSeconds(30));
+        List<CommandResult> results;
+        double pipelineMillis;
+        try (CommandPipeline pipeline = new CommandPipeline(driver, config)) {
+            start = System.nanoTime();
+            results = controller.turnOffAllDevicesAsync(pipeline).get();
+            pipelineMillis = (System.nanoTime() - start) / 1e6;
+        }
+        BulkResult bulkResult;
+        double bulkMillis;
+        try (BulkExecutor bulk = new BulkExecutor(10, config.timeout())) {
+            start = System.nanoTime();
+            bulkResult = controller.turnOnAllDevices(bulk, driver, null).get();
+            bulkMillis = (System.nanoTime() - start) / 1e6;
+        }
+        System.setOut(out);
+
+        Map<CommandResult.Status, Integer> outcomes = new EnumMap<>(CommandResult.Status.class);
+        results.forEach(r -> outcomes.merge(r.status(), 1, Integer::sum));
+        out.printf("Sequential: %9.1f ms, %7.0f commands/s, %d failed (unresponsive devices skipped)%n",
+                sequentialMillis, (deviceCount - unresponsive) / (sequentialMillis / 1e3), sequentialFailures);
+        out.printf("Pipeline:   %9.1f ms, %7.0f commands/s, %s%n", pipelineMillis,
+                deviceCount / (pipelineMillis / 1e3), outcomes);
+        out.printf("Bulk:       %9.1f ms, %7.0f commands/s, %d ok, %d failed, slowest device %d ms%n", bulkMillis,
+                deviceCount / (bulkMillis / 1e3), bulkResult.succeeded(), bulkResult.failed(),
+                bulkResult.maxLatency().toMillis());
+    }
+
+    private static CentralController buildHome(int deviceCount, List<SmartDevice> devices)
+            throws DeviceNotFoundException {
+        CentralController controller = new CentralController(new Home(1, "Bench", 20, "Tunis"));
+        for (int r = 0; r < 10; r++) {
+            controller.addRoom(new Room("Room " + r));
+        }
+        for (int i = 0; i < deviceCount; i++) {
+            Light2 light = new Light2("Light " + i);
+            controller.addDeviceToRoom("Room " + (i % 10), light);
+            devices.add(light);
+        }
+        return controller;
+    }
+}
@@ -0,0 +1,110 @@
+package smarthome;
+
+import smarthome.core.Home;
+import smarthome.core.Room;
+import smarthome.devices.Light2;
+import smarthome.devices.MotionSensor;
+import smarthome.devices.SmartDevice;
+import smarthome.devices.Thermostat;
+import smarthome.web.HomeRegistry;
+import smarthome.web.HostedHome;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Hosts many small homes in one HomeRegistry and reports the heap each home
+ * costs, split into the empty home (controller, rule engine, snapshot) and
+ * its devices, then how fast the partitions render their stats.
+ *
+ * Usage: java smarthome.HomeRegistryBenchmark [homes] [partitions] [statsRounds]
+ */
+public class HomeRegistryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int homeCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int partitions = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        PrintStream out = System.out;
+
+        out.println("===== HOME REGISTRY BENCHMARK =====");
+        out.println(homeCount + " homes of 2 rooms and 3 devices, " + partitions + " partitions");
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try (HomeRegistry registry = new HomeRegistry(partitions)) {
+            long baseline = usedHeap();
+            long start = System.nanoTime();
+            List<HostedHome> hosted = new ArrayList<>(homeCount);
+            for (int i = 1; i <= homeCount; i++) {
+                hosted.add(registry.host(new Home(i, "Owner " + i, 2, "Street " + i)));
+            }
+            double hostMillis = (System.nanoTime() - start) / 1e6;
+            long emptyHeap = usedHeap() - baseline;
+
+            start = System.nanoTime();
+            List<CompletableFuture<Object>> pending = new ArrayList<>(homeCount);
+            for (HostedHome home : hosted) {
+                pending.add(registry.submit(home.getId(), h -> {
+                    h.getController().addRoom(new Room("Living Room"));
+                    h.getController().addRoom(new Room("Kitchen"));
+                    try {
+                        h.getController().addDeviceToRoom("Living Room", new Light2("Light"));
+                        h.getController().addDeviceToRoom("Living Room", new Thermostat("Heater"));
+                        h.getController().addDeviceToRoom("Kitchen", new MotionSensor("Sensor"));
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return null;
+                }));
+            }
+            pending.forEach(CompletableFuture::join);
+            double furnishMillis = (System.nanoTime() - start) / 1e6;
+            long fullHeap = usedHeap() - baseline;
+
+            // Each stats round changes one device per home, then renders
+            start = System.nanoTime();
+            long bytes = 0;
+            for (int r = 0; r < rounds; r++) {
+                boolean on = r % 2 == 0;
+                List<CompletableFuture<Integer>> renders = new ArrayList<>(homeCount);
+                for (HostedHome home : hosted) {
+                    renders.add(registry.submit(home.getId(), h -> {
+                        SmartDevice light = h.getController().getDevicesInRoom("Living Room").get(0);
+                        if (on)
+                            light.turnOn();
+                        else
+                            light.turnOff();
+                        h.getEngine().evaluateRules();
+                        return h.getView().render(h.getSnapshots().publish(),
+                                h.getController().getEnergyMeter().getHomeKWh(),
+                                h.getEngine().getRuleSet().getRules()).length();
+                    }));
+                }
+                for (CompletableFuture<Integer> f : renders) {
+                    bytes += f.join();
+                }
+            }
+            double statsMillis = (System.nanoTime() - start) / 1e6;
+            System.setOut(out);
+
+            out.printf("Hosting:   %9.1f ms, %6.0f bytes per empty home%n", hostMillis,
+                    (double) emptyHeap / homeCount);
+            out.printf("Furnished: %9.1f ms, %6.0f bytes per home with its devices%n", furnishMillis,
+                    (double) fullHeap / homeCount);
+            out.printf("Stats:     %9.1f ms, %8.0f renders/s, %.0f bytes per response%n", statsMillis,
+                    rounds * (double) homeCount / (statsMillis / 1e3), (double) bytes / (rounds * homeCount));
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,132 @@
+package smarthome;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Summarizes a Flight Recorder recording made with smarthome.jfc into the
+ * rules and endpoints that took the most time.
+ *
+ * Usage: java smarthome.RecordingAnalyzer recording.jfr [top]
+ */
+public class RecordingAnalyzer {
+
+    /** Count, total and maximum duration of one rule, endpoint or operation. */
+    static class Hotspot {
+        final String name;
+        long count;
+        long totalNanos;
+        long maxNanos;
+        long fired; // rules: evaluations that fired; endpoints: responses with status >= 400
+        long bytes;
+
+        Hotspot(String name) {
+            this.name = name;
+        }
+
+        void add(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+    }
+
+    private final Map<String, Hotspot> rules = new HashMap<>();
+    private final Map<String, Hotspot> endpoints = new HashMap<>();
+    private final Map<String, Hotspot> bulkOperations = new HashMap<>();
+    private long gcPauseNanos;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java smarthome.RecordingAnalyzer recording.jfr [top]");
+            return;
+        }
+        int top = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        analyzer.read(Path.of(args[0]));
+        analyzer.print(System.out, top);
+    }
+
+    /**
+     * Adds the smart home and GC events of a recording to the summary.
+     */
+    void read(Path recording) throws IOException {
+        for (RecordedEvent event : RecordingFile.readAllEvents(recording)) {
+            long nanos = event.getDuration().toNanos();
+            switch (event.getEventType().getName()) {
+                case "smarthome.RuleEvaluation" -> {
+                    Hotspot h = rules.computeIfAbsent(event.getString("rule"), Hotspot::new);
+                    h.add(nanos);
+                    if ("FIRED".equals(event.getString("outcome")))
+                        h.fired++;
+                }
+                case "smarthome.HttpExchange" -> {
+                    String name = event.getString("method") + " " + event.getString("path");
+                    Hotspot h = endpoints.computeIfAbsent(name, Hotspot::new);
+                    h.add(nanos);
+                    h.bytes += event.getLong("bytes");
+                    if (event.getInt("status") >= 400)
+                        h.fired++;
+                }
+                case "smarthome.BulkOperation" -> bulkOperations
+                        .computeIfAbsent(event.getString("operation"), Hotspot::new).add(nanos);
+                case "jdk.GCPhasePause" -> gcPauseNanos += nanos;
+                default -> {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The hot rules, by total time, at most top of them.
+     */
+    List<Hotspot> hotRules(int top) {
+        return hottest(rules, top);
+    }
+
+    /**
+     * @return The hot endpoints, by total time, at most top of them.
+     */
+    List<Hotspot> hotEndpoints(int top) {
+        return hottest(endpoints, top);
+    }
+
+    private static List<Hotspot> hottest(Map<String, Hotspot> hotspots, int top) {
+        List<Hotspot> sorted = new ArrayList<>(hotspots.values());
+        sorted.sort(Comparator.comparingLong((Hotspot h) -> h.totalNanos).reversed());
+        return sorted.subList(0, Math.min(top, sorted.size()));
+    }
+
+    void print(PrintStream out, int top) {
+        out.println("===== HOT RULES (by total evaluation time) =====");
+        out.printf("%-30s %10s %8s %12s %12s%n", "rule", "evals", "fired", "total ms", "max us");
+        for (Hotspot h : hotRules(top)) {
+            out.printf("%-30s %10d %8d %12.3f %12.1f%n", h.name, h.count, h.fired, h.totalNanos / 1e6,
+                    h.maxNanos / 1e3);
+        }
+        out.println("\n===== HOT ENDPOINTS (by total handling time) =====");
+        out.printf("%-30s %10s %8s %12s %12s %12s%n", "endpoint", "requests", "errors", "total ms", "max ms",
+                "KiB sent");
+        for (Hotspot h : hotEndpoints(top)) {
+            out.printf("%-30s %10d %8d %12.3f %12.3f %12.1f%n", h.name, h.count, h.fired, h.totalNanos / 1e6,
+                    h.maxNanos / 1e6, h.bytes / 1024.0);
+        }
+        if (!bulkOperations.isEmpty()) {
+            out.println("\n===== BULK OPERATIONS =====");
+            for (Hotspot h : hottest(bulkOperations, top)) {
+                out.printf("%-30s %10d %12.3f ms total %12.3f ms max%n", h.name, h.count, h.totalNanos / 1e6,
+                        h.maxNanos / 1e6);
+            }
+        }
+        out.printf("%nGC pauses: %.3f ms total%n", gcPauseNanos / 1e6);
+    }
+}
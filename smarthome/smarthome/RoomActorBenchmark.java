@@ -0,0 +1,137 @@
+package smarthome;
+
+import smarthome.core.CentralController;
+import smarthome.core.Home;
+import smarthome.core.Room;
+import smarthome.core.RoomActors;
+import smarthome.devices.DeviceCommand;
+import smarthome.devices.Light2;
+import smarthome.exceptions.DeviceNotFoundException;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures command throughput when producer threads change lights in many
+ * rooms: first locking each room around the change, then sending the changes
+ * to RoomActors with a growing number of partitions.
+ *
+ * Usage: java smarthome.RoomActorBenchmark [rooms] [lightsPerRoom] [producers] [commandsPerProducer]
+ */
+public class RoomActorBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int roomCount = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int lightsPerRoom = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int producers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int commands = args.length > 3 ? Integer.parseInt(args[3]) : 250_000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        PrintStream out = System.out;
+
+        out.println("===== ROOM ACTOR BENCHMARK =====");
+        out.println(roomCount + " rooms x " + lightsPerRoom + " lights, " + producers + " producers x " + commands
+                + " commands, " + cores + " cores");
+
+        // Devices log every change; a stream that drops output without
+        // locking keeps the console out of the measurement
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()) {
+            @Override
+            public void println(String x) {
+            }
+        });
+        List<Light2> lights = new ArrayList<>();
+        CentralController controller = buildHome(roomCount, lightsPerRoom, lights);
+        List<Room> rooms = controller.getHome().getRooms();
+
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            double locked = run(producers, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < commands; i++) {
+                    Light2 light = lights.get(random.nextInt(lights.size()));
+                    Room room = rooms.get(roomIndex(light));
+                    synchronized (room) {
+                        light.setBrightness(1 + random.nextInt(100));
+                    }
+                }
+            });
+            if (round == 1)
+                report(out, "Locked rooms", producers * (long) commands, locked);
+
+            for (int partitions = 1; partitions <= Math.max(8, cores); partitions *= 2) {
+                RoomActors actors = controller.startRoomActors(partitions);
+                double millis = run(producers, () -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < commands; i++) {
+                        Light2 light = lights.get(random.nextInt(lights.size()));
+                        actors.tell(light, new DeviceCommand.SetBrightness(1 + random.nextInt(100)));
+                    }
+                    drain(actors, rooms);
+                });
+                controller.stopRoomActors();
+                if (round == 1)
+                    report(out, "Actors, " + partitions + " partition" + (partitions > 1 ? "s" : ""),
+                            producers * (long) commands, millis);
+            }
+        }
+        System.setOut(out);
+    }
+
+    /** Lights are named "Light r.i" for room r. */
+    private static int roomIndex(Light2 light) {
+        String name = light.getName();
+        return Integer.parseInt(name.substring(name.indexOf(' ') + 1, name.indexOf('.')));
+    }
+
+    /**
+     * Waits until every message sent so far has been applied: partitions
+     * handle messages in order, so an answer from every room is enough.
+     */
+    private static void drain(RoomActors actors, List<Room> rooms) {
+        List<CompletableFuture<Object>> answers = new ArrayList<>();
+        for (Room r : rooms) {
+            answers.add(actors.ask(r.getName(), room -> null));
+        }
+        answers.forEach(CompletableFuture::join);
+    }
+
+    /**
+     * Runs the body on several threads at once.
+     *
+     * @return Wall-clock time until all finished, in milliseconds.
+     */
+    private static double run(int threads, Runnable body) throws InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(body);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    private static void report(PrintStream out, String mode, long commands, double millis) {
+        out.printf("%-22s %9.1f ms, %,12.0f commands/s%n", mode, millis, commands / (millis / 1e3));
+    }
+
+    private static CentralController buildHome(int roomCount, int lightsPerRoom, List<Light2> lights)
+            throws DeviceNotFoundException {
+        CentralController controller = new CentralController(new Home(1, "Bench", roomCount, "Tunis"));
+        for (int r = 0; r < roomCount; r++) {
+            controller.addRoom(new Room("Room " + r));
+            for (int i = 0; i < lightsPerRoom; i++) {
+                Light2 light = new Light2("Light " + r + "." + i);
+                controller.addDeviceToRoom("Room " + r, light);
+                lights.add(light);
+            }
+        }
+        return controller;
+    }
+}
@@ -0,0 +1,134 @@
+package smarthome;
+
+import smarthome.automation.AutomationEngine;
+import smarthome.automation.AutomationRule;
+import smarthome.automation.Condition;
+import smarthome.automation.DeviceAction;
+import smarthome.automation.ThresholdCondition;
+import smarthome.core.CentralController;
+import smarthome.core.ColumnarStateStore;
+import smarthome.core.Home;
+import smarthome.core.Room;
+import smarthome.devices.Thermostat;
+import smarthome.exceptions.DeviceNotFoundException;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how rule evaluation scales from 1 to N threads, and checks that
+ * every thread count leaves the devices in the same state. Also measures what
+ * recording per-rule metrics adds to one evaluation.
+ *
+ * Usage: java smarthome.RuleEvaluationBenchmark [devices] [rules] [rounds] [maxThreads]
+ */
+public class RuleEvaluationBenchmark {
+
+    public static void main(String[] args) throws DeviceNotFoundException {
+        int deviceCount = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int ruleCount = args.length > 1 ? Integer.parseInt(args[1]) : 4_000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maxThreads = args.length > 3 ? Integer.parseInt(args[3]) : cores;
+        PrintStream out = System.out;
+
+        out.println("===== RULE EVALUATION BENCHMARK =====");
+        out.println(deviceCount + " thermostats, " + ruleCount + " rules, " + rounds + " rounds, "
+                + cores + " cores");
+
+        double baseline = 0;
+        double expectedChecksum = Double.NaN;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            List<Thermostat> thermostats = new ArrayList<>();
+            AutomationEngine engine = buildHome(deviceCount, ruleCount, thermostats);
+            engine.setParallelism(threads);
+            engine.evaluateRules(); // warm-up
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                engine.evaluateRules();
+            }
+            double millisPerRound = (System.nanoTime() - start) / 1e6 / rounds;
+            engine.setParallelism(1);
+            System.setOut(out);
+
+            double checksum = 0;
+            for (Thermostat t : thermostats) {
+                checksum += t.getTargetTemperature();
+            }
+            if (threads == 1) {
+                baseline = millisPerRound;
+                expectedChecksum = checksum;
+            }
+            out.printf("%2d threads: %8.2f ms/round, speedup %.2fx, %s%n", threads, millisPerRound,
+                    baseline / millisPerRound, checksum == expectedChecksum ? "same result" : "DIFFERENT RESULT");
+        }
+        out.printf("Metrics overhead: %.1f ns/evaluation%n", metricsOverheadNanos());
+    }
+
+    /**
+     * Times a rule evaluation, which records metrics, against a bare
+     * evaluation of the same condition.
+     */
+    private static double metricsOverheadNanos() {
+        int iterations = 20_000_000;
+        boolean[] flip = new boolean[1];
+        Condition condition = c -> flip[0] = !flip[0];
+        AutomationRule rule = new AutomationRule("Overhead", "Benchmark rule", condition, c -> {
+        });
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < 3; round++) { // the first rounds warm up
+            long start = System.nanoTime();
+            int sink = 0;
+            for (int i = 0; i < iterations; i++) {
+                if (condition.evaluate(null))
+                    sink++;
+            }
+            long bare = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (rule.evaluate(null, i))
+                    sink++;
+            }
+            long measured = System.nanoTime() - start;
+            if (sink == -1)
+                System.out.println(sink); // keeps the loops from being removed
+            best = Math.min(best, (double) (measured - bare) / iterations);
+        }
+        return best;
+    }
+
+    /**
+     * Builds a home where every 20th rule fires each round and rules that fire
+     * on the same thermostat set different temperatures, so the result depends
+     * on the action order.
+     */
+    private static AutomationEngine buildHome(int deviceCount, int ruleCount, List<Thermostat> thermostats)
+            throws DeviceNotFoundException {
+        CentralController controller = new CentralController(new Home(1, "Bench", 20, "Tunis"),
+                new ColumnarStateStore(deviceCount));
+        for (int r = 0; r < 20; r++) {
+            controller.addRoom(new Room("Room " + r));
+        }
+        for (int i = 0; i < deviceCount; i++) {
+            Thermostat t = new Thermostat("Thermostat " + i);
+            controller.addDeviceToRoom("Room " + (i % 20), t);
+            t.setCurrentTemperature(20.0);
+            thermostats.add(t);
+        }
+
+        AutomationEngine engine = new AutomationEngine(controller);
+        for (int i = 0; i < ruleCount; i++) {
+            double threshold = i % 20 == 0 ? 0.0 : 30.0; // the others scan every thermostat
+            Thermostat target = thermostats.get((i / 20) % Math.max(1, deviceCount / 40));
+            AutomationRule rule = new AutomationRule("Rule " + i, "Benchmark rule",
+                    new ThresholdCondition("Thermostat", "Temperature", ">", threshold),
+                    new DeviceAction("SET_TEMP:" + (15 + i % 15), target.getId(), false));
+            rule.setPriority(i % 7);
+            engine.addRule(rule);
+        }
+        return engine;
+    }
+}
@@ -1,13 +1,42 @@
 package smarthome;
 
+import smarthome.commands.BulkExecutor;
+import smarthome.commands.BulkResult;
+import smarthome.commands.CircuitBreaker;
+import smarthome.commands.CommandConfig;
+import smarthome.commands.CommandMailbox;
+import smarthome.commands.CommandPipeline;
+import smarthome.commands.CommandResult;
+import smarthome.commands.DirectDriver;
+import smarthome.commands.SimulatedLatencyDriver;
 import smarthome.core.CentralController;
+import smarthome.core.ColumnarStateStore;
+import smarthome.core.EnergyMeter;
 import smarthome.core.Home;
+import smarthome.core.HomeSnapshot;
+import smarthome.core.OffHeapStateStore;
 import smarthome.core.Room;
+import smarthome.core.RoomActors;
+import smarthome.core.RoomSnapshot;
+import smarthome.core.SnapshotPublisher;
+import smarthome.core.TariffSchedule;
+import smarthome.devices.CommandCodec;
+import smarthome.devices.DeviceCommand;
+import smarthome.devices.DeviceStatus;
 import smarthome.devices.Light2;
 import smarthome.devices.MotionSensor;
 import smarthome.devices.SmartDevice;
 import smarthome.devices.Thermostat;
 import smarthome.exceptions.DeviceNotFoundException;
+import smarthome.telemetry.TelemetryConfig;
+import smarthome.telemetry.TelemetryMetric;
+import smarthome.telemetry.TelemetryPoint;
+import smarthome.telemetry.TelemetryRecorder;
+import smarthome.web.DashboardView;
+import smarthome.web.HomeRegistry;
+import smarthome.web.HostedHome;
+
+import java.util.List;
 
 public class SmartHomeTest {
 
@@ -54,6 +83,746 @@ public class SmartHomeTest {
         controller.turnOffAllDevices();
         controller.listAllDevices();
 
+        // Columnar state store
+        System.out.println("\n===== COLUMNAR STATE STORE =====");
+        ColumnarStateStore store = new ColumnarStateStore();
+        CentralController columnar = new CentralController(new Home(2, "Moi", 2, "Tunis"), store);
+        columnar.addRoom(new Room("Office"));
+        Light2 desk = new Light2("Desk Light", 60);
+        Light2 shelf = new Light2("Shelf Light");
+        try {
+            columnar.addDeviceToRoom("Office", desk);
+            columnar.addDeviceToRoom("Office", shelf);
+        } catch (DeviceNotFoundException e) {
+            System.out.println(e.getMessage());
+        }
+        desk.setBrightness(80);
+        if (store.getBrightness(desk.getStateHandle()) == 80
+                && columnar.countDevicesInState("Light", true) == 1
+                && columnar.countDevicesInState("Light", false) == 1)
+            System.out.println("SUCCESS: Device state is stored in columns.");
+        else
+            System.out.println("FAILURE: Columnar store out of sync with devices.");
+
+        try {
+            columnar.removeDeviceFromRoom("Office", desk);
+        } catch (DeviceNotFoundException e) {
+            System.out.println(e.getMessage());
+        }
+        if (desk.getBrightness() == 80 && desk.isOn() && store.size() == 1)
+            System.out.println("SUCCESS: Removed device kept its state.");
+        else
+            System.out.println("FAILURE: Removed device lost its state.");
+
+        ColumnarStateStore ecoStore = new ColumnarStateStore();
+        CentralController eco = new CentralController(new Home(6, "Moi", 1, "Tunis"), ecoStore);
+        eco.addRoom(new Room("Study"));
+        Light2 spare = new Light2("Spare Light");
+        Light2 reading = new Light2("Reading Lamp", 90);
+        MotionSensor hall = new MotionSensor("Study Sensor", 8);
+        try {
+            eco.addDeviceToRoom("Study", spare);
+            eco.addDeviceToRoom("Study", reading);
+            eco.addDeviceToRoom("Study", hall);
+        } catch (DeviceNotFoundException e) {
+            System.out.println(e.getMessage());
+        }
+        double summed = spare.getEnergyConsumption() + reading.getEnergyConsumption() + hall.getEnergyConsumption();
+        int switchedOn = (reading.isOn() ? 1 : 0) + (hall.isOn() ? 1 : 0);
+        if (Math.abs(eco.getTotalEnergyConsumption() - summed) < 1e-9 && ecoStore.countOn() == switchedOn)
+            System.out.println("SUCCESS: Energy total is scanned from the power column.");
+        else
+            System.out.println("FAILURE: Power column total " + eco.getTotalEnergyConsumption()
+                    + " differs from the devices' " + summed);
+
+        eco.optimizeEnergy();
+        long[] versions = { spare.getVersion(), reading.getVersion(), hall.getVersion() };
+        eco.optimizeEnergy();
+        if (reading.getBrightness() == Light2.ECO_MAX_BRIGHTNESS && hall.getSensitivity() == MotionSensor.ECO_SENSITIVITY
+                && spare.getEnergyMode() == smarthome.devices.EnergyMode.ECO
+                && versions[0] == spare.getVersion() && versions[1] == reading.getVersion()
+                && versions[2] == hall.getVersion()
+                && Math.abs(eco.getTotalEnergyConsumption() - reading.getEnergyConsumption()
+                        - hall.getEnergyConsumption()) < 1e-9)
+            System.out.println("SUCCESS: Energy optimization skips devices already optimized.");
+        else
+            System.out.println("FAILURE: Column-scanned optimization missed or repeated devices.");
+
+        ColumnarStateStore wide = new ColumnarStateStore();
+        double expectedPower = 0;
+        for (int i = 0; i < 40_000; i++) {
+            int handle = wide.allocate("wide-" + i, "Light");
+            wide.setPower(handle, i % 7);
+            wide.setOn(handle, i % 3 == 0);
+            expectedPower += i % 7;
+        }
+        int[] bright = wide.select(h -> wide.isOn(h) && wide.getOwner(h).endsWith("0"));
+        if (wide.totalPower() == expectedPower && wide.countOn() == 13_334 && bright.length == 1334
+                && bright[0] == 0 && bright[1] == 30)
+            System.out.println("SUCCESS: Column scans split large stores across threads.");
+        else
+            System.out.println("FAILURE: Parallel column scans gave " + wide.totalPower() + " W, "
+                    + wide.countOn() + " on, " + bright.length + " selected.");
+
+        // Off-heap state store in a mapped file
+        System.out.println("\n===== OFF-HEAP STATE STORE =====");
+        Thermostat office = new Thermostat("Office Heater");
+        try {
+            java.nio.file.Path stateFile = java.nio.file.Files.createTempFile("smarthome-state", ".bin");
+            stateFile.toFile().deleteOnExit();
+            java.nio.file.Files.delete(stateFile); // let the store create it
+            try (OffHeapStateStore offHeap = OffHeapStateStore.map(stateFile, 4)) {
+                CentralController mapped = new CentralController(new Home(3, "Moi", 1, "Tunis"), offHeap);
+                mapped.addRoom(new Room("Office"));
+                mapped.addDeviceToRoom("Office", office);
+                mapped.addDeviceToRoom("Office", new Thermostat("Spare Heater")); // deleted while down
+                office.setTargetTemperature(25.0);
+            }
+            // A restart: the device is recreated with its ID and takes its record back
+            try (OffHeapStateStore reopened = OffHeapStateStore.map(stateFile, 4)) {
+                CentralController restarted = new CentralController(new Home(3, "Moi", 1, "Tunis"), reopened);
+                restarted.addRoom(new Room("Office"));
+                Thermostat restored = new Thermostat(office.getId(), "Office Heater");
+                restarted.addDeviceToRoom("Office", restored);
+                int freed = reopened.releaseUnclaimed();
+                if (restored.getTargetTemperature() == 25.0 && freed == 1 && reopened.size() == 1)
+                    System.out.println("SUCCESS: Device state survived reopening the state file.");
+                else
+                    System.out.println("FAILURE: Device state was not restored (target "
+                            + restored.getTargetTemperature() + ", freed " + freed + ", records "
+                            + reopened.size() + ").");
+            }
+        } catch (java.io.IOException | DeviceNotFoundException e) {
+            System.out.println("FAILURE: " + e.getMessage());
+        }
+
+        // Telemetry
+        System.out.println("\n===== TELEMETRY =====");
+        TelemetryRecorder recorder = new TelemetryRecorder(columnar);
+        shelf.setBrightness(20);
+        recorder.sample(0);
+        recorder.sample(30_000);
+        shelf.setBrightness(60);
+        recorder.sample(60_000);
+        List<TelemetryPoint> perMinute = recorder.getTelemetry(shelf.getId())
+                .query(TelemetryMetric.BRIGHTNESS, 0, 120_000, 60_000);
+        if (perMinute.size() == 2 && perMinute.get(0).avg() == 20.0 && perMinute.get(1).max() == 60.0)
+            System.out.println("SUCCESS: Telemetry rolled up per minute.");
+        else
+            System.out.println("FAILURE: Unexpected telemetry rollup " + perMinute);
+
+        // Only two minutes are kept per minute, but five minutes of raw samples
+        recorder.setDeviceConfig(shelf.getId(), new TelemetryConfig(100, 2, 24, 7));
+        for (long t = 0; t < 300_000; t += 60_000) {
+            recorder.sample(t);
+        }
+        List<TelemetryPoint> evicted = recorder.getTelemetry(shelf.getId())
+                .query(TelemetryMetric.BRIGHTNESS, 0, 300_000, 60_000);
+        if (evicted.size() == 5 && evicted.get(0).time() == 0)
+            System.out.println("SUCCESS: Telemetry query fell back to raw samples past the rollups.");
+        else
+            System.out.println("FAILURE: Telemetry query lost data the raw samples still had " + evicted);
+
+        // Energy metering
+        System.out.println("\n===== ENERGY METER =====");
+        ManualClock clock = new ManualClock(java.time.Instant.parse("2025-01-01T16:00:00Z"));
+        EnergyMeter meter = new EnergyMeter(clock, new TariffSchedule("STANDARD").addPeriod("PEAK", 17, 21));
+        columnar.addStateListener(meter);
+        shelf.setBrightness(60); // 30 W, unchanged since the telemetry test
+        clock.advance(java.time.Duration.ofHours(2));
+        shelf.turnOff();
+        clock.advance(java.time.Duration.ofHours(1));
+        if (Math.abs(meter.getDeviceKWh(shelf.getId()) - 0.06) < 1e-9
+                && Math.abs(meter.getHomeKWh("PEAK") - 0.03) < 1e-9
+                && Math.abs(meter.getRoomKWh("Office", "STANDARD") - 0.03) < 1e-9)
+            System.out.println("SUCCESS: Energy metered per tariff.");
+        else
+            System.out.println("FAILURE: Unexpected energy " + meter.getDeviceKWh(shelf.getId()) + " kWh");
+
+        // Asynchronous commands
+        System.out.println("\n===== COMMAND PIPELINE =====");
+        SimulatedLatencyDriver driver = new SimulatedLatencyDriver(new DirectDriver(),
+                java.time.Duration.ofMillis(1), java.time.Duration.ofMillis(3), 0);
+        driver.setResponding(thermostat, false);
+        CommandConfig config = new CommandConfig(1, java.time.Duration.ofMillis(100), 2,
+                java.time.Duration.ofMillis(10), 2, java.time.Duration.ofSeconds(30));
+        try (CommandPipeline pipeline = new CommandPipeline(driver, config)) {
+            List<CommandResult> results = controller.turnOffAllDevicesAsync(pipeline).join();
+            long ok = results.stream().filter(CommandResult::isOk).count();
+            CommandResult stuck = pipeline.submit(thermostat, DeviceCommand.ON).join();
+            if (ok == 2 && !light.isOn() && pipeline.getBreakerState(thermostat) == CircuitBreaker.State.OPEN
+                    && stuck.status() == CommandResult.Status.CIRCUIT_OPEN)
+                System.out.println("SUCCESS: Unresponsive device timed out and its circuit opened.");
+            else
+                System.out.println("FAILURE: Unexpected command results " + results + ", then " + stuck);
+
+            pipeline.submit(light, DeviceCommand.ON);
+            pipeline.submit(light, DeviceCommand.OFF);
+            CommandResult overflow = pipeline.submit(light, DeviceCommand.ON).join();
+            if (overflow.status() == CommandResult.Status.REJECTED)
+                System.out.println("SUCCESS: Full device queue rejected the command.");
+            else
+                System.out.println("FAILURE: Expected a rejected command, got " + overflow);
+        }
+        CommandConfig patient = new CommandConfig(1, java.time.Duration.ofMillis(100), 3,
+                java.time.Duration.ofMillis(10), 3, java.time.Duration.ofSeconds(30));
+        java.util.concurrent.CompletableFuture<CommandResult> inFlight;
+        java.util.concurrent.CompletableFuture<CommandResult> queued;
+        try (CommandPipeline pipeline = new CommandPipeline(driver, patient)) {
+            CommandResult invalid = pipeline.submit(light, new DeviceCommand.SetTargetTemp(21)).join();
+            CommandResult toggled = pipeline.submit(thermostat, DeviceCommand.TOGGLE).join();
+            if (invalid.status() == CommandResult.Status.FAILED && invalid.attempts() == 1
+                    && pipeline.getBreakerState(light) == CircuitBreaker.State.CLOSED
+                    && toggled.status() == CommandResult.Status.TIMED_OUT && toggled.attempts() == 1)
+                System.out.println("SUCCESS: Rejected and timed-out toggle commands were not retried.");
+            else
+                System.out.println("FAILURE: Retried a command it should not have: " + invalid + ", " + toggled);
+            inFlight = pipeline.submit(thermostat, DeviceCommand.ON);
+            queued = pipeline.submit(thermostat, DeviceCommand.OFF);
+        }
+        if (inFlight.join().status() == CommandResult.Status.REJECTED
+                && queued.join().status() == CommandResult.Status.REJECTED)
+            System.out.println("SUCCESS: Closing the pipeline rejected its pending commands.");
+        else
+            System.out.println("FAILURE: Pending commands after close: " + inFlight.join() + ", " + queued.join());
+
+        java.util.concurrent.atomic.AtomicInteger sending = new java.util.concurrent.atomic.AtomicInteger();
+        java.util.concurrent.atomic.AtomicInteger overlapped = new java.util.concurrent.atomic.AtomicInteger();
+        java.util.concurrent.atomic.AtomicBoolean stalled = new java.util.concurrent.atomic.AtomicBoolean();
+        smarthome.commands.DeviceDriver stubborn = new smarthome.commands.DeviceDriver() {
+            @Override
+            public void send(SmartDevice device, DeviceCommand command) {
+                if (sending.incrementAndGet() > 1)
+                    overlapped.incrementAndGet();
+                if (stalled.compareAndSet(false, true)) {
+                    long until = System.nanoTime() + 300_000_000L;
+                    while (System.nanoTime() < until) { // ignores the interrupt sent at the timeout
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                }
+                sending.decrementAndGet();
+            }
+
+            @Override
+            public boolean isResponding(SmartDevice device) {
+                return true;
+            }
+        };
+        CommandConfig hasty = new CommandConfig(4, java.time.Duration.ofMillis(50), 2,
+                java.time.Duration.ofMillis(5), 5, java.time.Duration.ofSeconds(30));
+        try (CommandPipeline pipeline = new CommandPipeline(stubborn, hasty)) {
+            java.util.concurrent.CompletableFuture<CommandResult> retried = pipeline.submit(light, DeviceCommand.ON);
+            java.util.concurrent.CompletableFuture<CommandResult> next = pipeline.submit(light, DeviceCommand.OFF);
+            if (retried.join().attempts() == 2 && retried.join().isOk() && next.join().isOk()
+                    && overlapped.get() == 0)
+                System.out.println("SUCCESS: Retry and next command waited for a call that ignored its interrupt.");
+            else
+                System.out.println("FAILURE: " + overlapped.get() + " driver calls overlapped a timed-out one: "
+                        + retried.join() + ", " + next.join());
+        }
+
+        System.out.println("\n===== TYPED COMMANDS =====");
+        try {
+            thermostat.executeCommand("temp:24.5");
+            light.execute(DeviceCommand.parse("setBrightness", "35"));
+            int brightness = ((Light2) light).getBrightness();
+            java.nio.ByteBuffer frames = java.nio.ByteBuffer.allocate(2 * CommandCodec.FRAME_SIZE);
+            CommandCodec.encode(new DeviceCommand.SetMode("cool"), frames);
+            CommandCodec.encode(DeviceCommand.OFF, frames);
+            frames.flip();
+            DeviceCommand decoded = CommandCodec.decode(frames.duplicate());
+            CommandCodec.execute(frames, thermostat);
+            CommandCodec.execute(frames, light);
+            boolean rejected = false;
+            try {
+                light.execute(new DeviceCommand.SetTargetTemp(21));
+            } catch (smarthome.exceptions.InvalidDeviceOperationException e) {
+                rejected = true;
+            }
+            Thermostat heater = (Thermostat) thermostat;
+            if (heater.getTargetTemperature() == 24.5 && brightness == 35 && !light.isOn()
+                    && "COOL".equals(heater.getMode()) && decoded.equals(new DeviceCommand.SetMode("COOL"))
+                    && rejected)
+                System.out.println("SUCCESS: Parsed, encoded and decoded commands applied; unsupported one rejected.");
+            else
+                System.out.println("FAILURE: Unexpected state after typed commands: " + thermostat.getStatus() + ", "
+                        + light.getStatus() + ", decoded " + decoded + ", rejected " + rejected);
+
+            java.nio.ByteBuffer invalid = java.nio.ByteBuffer.allocate(2 * CommandCodec.FRAME_SIZE);
+            invalid.put((byte) DeviceCommand.Kind.SET_TARGET_TEMP.ordinal())
+                    .putLong(Double.doubleToRawLongBits(Double.NaN)).putInt(0);
+            invalid.put((byte) DeviceCommand.Kind.SET_BRIGHTNESS.ordinal()).putLong(150).putInt(0);
+            invalid.flip();
+            int thrown = 0;
+            int lightBefore = ((Light2) light).getBrightness();
+            for (SmartDevice target : List.of(thermostat, light)) {
+                try {
+                    CommandCodec.execute(invalid, target);
+                } catch (IllegalArgumentException e) {
+                    thrown++;
+                }
+            }
+            if (thrown == 2 && heater.getTargetTemperature() == 24.5
+                    && ((Light2) light).getBrightness() == lightBefore)
+                System.out.println("SUCCESS: Out-of-range binary frames rejected by the command rules.");
+            else
+                System.out.println("FAILURE: Invalid frames applied: " + thrown + " rejected, "
+                        + thermostat.getStatus() + ", " + light.getStatus());
+        } catch (smarthome.exceptions.InvalidDeviceOperationException e) {
+            System.out.println("FAILURE: Typed command rejected: " + e.getMessage());
+        }
+
+        System.out.println("\n===== COMMAND MAILBOX =====");
+        try (CommandMailbox mailbox = new CommandMailbox(new DirectDriver(), java.time.Duration.ofSeconds(10))) {
+            light.turnOff();
+            thermostat.turnOn();
+            for (int b = 40; b < 50; b++) {
+                mailbox.offer(light, new DeviceCommand.SetBrightness(b));
+            }
+            mailbox.offer(thermostat, DeviceCommand.OFF);
+            mailbox.offer(thermostat, DeviceCommand.ON); // back to ON: cancels out
+            mailbox.offer(thermostat, new DeviceCommand.SetMode("COOL")); // already COOL: dropped
+            mailbox.flushAll().join();
+            if (((Light2) light).getBrightness() == 49 && light.isOn() && thermostat.isOn()
+                    && mailbox.getSubmittedCount() == 13 && mailbox.getDeliveredCount() == 1
+                    && mailbox.getSupersededCount() == 9 && mailbox.getCancelledCount() == 2
+                    && mailbox.getNoOpCount() == 1 && mailbox.getBatchCount() == 1)
+                System.out.println("SUCCESS: Mailbox coalesced 13 commands into 1 device write.");
+            else
+                System.out.println("FAILURE: Mailbox delivered " + mailbox.getDeliveredCount() + " of "
+                        + mailbox.getSubmittedCount() + " (superseded " + mailbox.getSupersededCount()
+                        + ", cancelled " + mailbox.getCancelledCount() + ", no-ops " + mailbox.getNoOpCount()
+                        + "), light " + light.getStatus());
+        }
+
+        System.out.println("\n===== BULK EXECUTOR =====");
+        try (BulkExecutor bulk = new BulkExecutor(2, java.time.Duration.ofMillis(100))) {
+            java.util.concurrent.atomic.AtomicInteger reported = new java.util.concurrent.atomic.AtomicInteger();
+            BulkResult result = controller.turnOnAllDevices(bulk, driver, (done, total) -> reported.set(done))
+                    .join();
+            BulkResult.DeviceOutcome failure = result.failures().isEmpty() ? null : result.failures().get(0);
+            if (result.succeeded() == result.outcomes().size() - 1 && light.isOn() && failure != null
+                    && failure.deviceId().equals(thermostat.getId())
+                    && reported.get() == result.outcomes().size())
+                System.out.println("SUCCESS: Bulk operation reported " + result.succeeded() + " devices on and "
+                        + failure.deviceId() + " failed: " + failure.error());
+            else
+                System.out.println("FAILURE: Unexpected bulk result " + result + ", progress " + reported.get());
+
+            long[] stubbornEnd = new long[1];
+            long[] nextStart = new long[1];
+            BulkResult held = bulk.execute("hold", List.of(light, thermostat), d -> "one group", d -> {
+                if (d != light) {
+                    nextStart[0] = System.nanoTime();
+                    return;
+                }
+                long until = System.nanoTime() + 300_000_000L;
+                while (System.nanoTime() < until) { // ignores the interrupt sent at the timeout
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                stubbornEnd[0] = System.nanoTime();
+            }, null).join();
+            if (!held.outcomes().get(0).ok() && held.outcomes().get(1).ok() && stubbornEnd[0] != 0
+                    && nextStart[0] >= stubbornEnd[0])
+                System.out.println("SUCCESS: Group waited for a timed-out task that ignored its interrupt.");
+            else
+                System.out.println("FAILURE: Next task of the group overlapped a timed-out one: " + held);
+        }
+
+        System.out.println("\n===== ROOM ACTORS =====");
+        RoomActors actors = controller.startRoomActors(2);
+        try {
+            List<Thread> senders = new java.util.ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Thread sender = new Thread(() -> {
+                    for (int i = 1; i <= 100; i++) {
+                        actors.tell(light, new DeviceCommand.SetBrightness(i));
+                    }
+                });
+                sender.start();
+                senders.add(sender);
+            }
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            controller.turnOffRoomDevices(light.getRoomName()); // queued behind the senders' messages
+            RoomSnapshot room = actors.snapshot(light.getRoomName());
+            RoomSnapshot.DeviceView view = room.devices().stream().filter(d -> d.id().equals(light.getId()))
+                    .findFirst().orElse(null);
+            boolean rejected = actors.ask(light, new DeviceCommand.SetTargetTemp(21)).handle(
+                    (v, e) -> e instanceof smarthome.exceptions.InvalidDeviceOperationException).join();
+            if (view != null && !view.on() && !light.isOn() && room.version() >= 401 && rejected
+                    && actors.getErrorCount(actors.partitionOf(light.getRoomName())) == 1)
+                System.out.println("SUCCESS: Room partition applied " + room.version()
+                        + " messages in order and published the final state.");
+            else
+                System.out.println("FAILURE: Unexpected room snapshot " + room + ", rejected " + rejected);
+
+            actors.ask(light, DeviceCommand.ON).join();
+            actors.ask(light, new DeviceCommand.SetBrightness(80)).join();
+            List<String> changedOn = new java.util.concurrent.CopyOnWriteArrayList<>();
+            smarthome.devices.DeviceStateListener partitionWatch = (device, attribute) -> changedOn
+                    .add(Thread.currentThread().getName());
+            controller.addStateListener(partitionWatch);
+            try (BulkExecutor bulk = new BulkExecutor(2, java.time.Duration.ofSeconds(1))) {
+                controller.optimizeEnergy(bulk, null).join();
+            } finally {
+                controller.removeStateListener(partitionWatch);
+            }
+            if (((Light2) light).getBrightness() <= 40 && !changedOn.isEmpty()
+                    && changedOn.stream().allMatch(name -> name.startsWith("room-partition-")))
+                System.out.println("SUCCESS: Bulk optimization changed devices on their room partitions.");
+            else
+                System.out.println("FAILURE: Bulk optimization wrote from " + changedOn + ", brightness "
+                        + ((Light2) light).getBrightness());
+
+            List<String> addedOn = new java.util.concurrent.CopyOnWriteArrayList<>();
+            smarthome.devices.DeviceStateListener addWatch = new smarthome.devices.DeviceStateListener() {
+                @Override
+                public void onStateChanged(SmartDevice device, smarthome.devices.DeviceAttribute attribute) {
+                }
+
+                @Override
+                public void onDeviceAdded(SmartDevice device) {
+                    addedOn.add(Thread.currentThread().getName());
+                }
+            };
+            controller.addStateListener(addWatch);
+            addedOn.clear(); // the devices already present were reported on this thread
+            Light2 lateLamp = new Light2("Late Lamp");
+            controller.addDeviceToRoom(light.getRoomName(), lateLamp);
+            controller.removeStateListener(addWatch);
+            boolean lateListed;
+            try (SnapshotPublisher partitionSnapshots = SnapshotPublisher.onDemand(controller)) {
+                lateListed = partitionSnapshots.publish().rooms().stream()
+                        .anyMatch(r -> r == actors.snapshot(light.getRoomName())
+                                && r.devices().stream().anyMatch(d -> d.id().equals(lateLamp.getId())));
+            }
+            controller.removeDeviceFromRoom(light.getRoomName(), lateLamp);
+            boolean refused;
+            try (BulkExecutor bulk = new BulkExecutor(2, java.time.Duration.ofSeconds(1))) {
+                controller.turnOffAllDevices(bulk, new DirectDriver(), null);
+                refused = false;
+            } catch (IllegalStateException expected) {
+                refused = true;
+            }
+            if (addedOn.size() == 1 && addedOn.get(0).startsWith("room-partition-") && lateListed && refused
+                    && controller.findDeviceById(lateLamp.getId()) == null)
+                System.out.println("SUCCESS: Devices tracked on their partition, snapshots taken from the "
+                        + "partitions and driver bulk refused.");
+            else
+                System.out.println("FAILURE: Added on " + addedOn + ", listed " + lateListed + ", refused "
+                        + refused);
+        } catch (InterruptedException | DeviceNotFoundException e) {
+            System.out.println("FAILURE: " + e);
+        } finally {
+            controller.stopRoomActors();
+        }
+
+        // Partitions attach devices to a shared columnar store in parallel
+        ColumnarStateStore sharedColumns = new ColumnarStateStore();
+        CentralController paged = new CentralController(new Home(4, "Moi", 8, "Tunis"), sharedColumns);
+        for (int r = 0; r < 8; r++) {
+            paged.addRoom(new Room("Paged " + r));
+        }
+        EnergyMeter pagedMeter = new EnergyMeter();
+        paged.addStateListener(pagedMeter);
+        paged.startRoomActors(4);
+        try {
+            List<Light2> pagedLights = new java.util.concurrent.CopyOnWriteArrayList<>();
+            List<Thread> adders = new java.util.ArrayList<>();
+            for (int r = 0; r < 8; r++) {
+                String roomName = "Paged " + r;
+                Thread adder = new Thread(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        Light2 lamp = new Light2(roomName + " Lamp " + i);
+                        try {
+                            paged.addDeviceToRoom(roomName, lamp);
+                            paged.getRoomActors().ask(lamp, new DeviceCommand.SetBrightness(1 + i % 100)).join();
+                        } catch (DeviceNotFoundException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        pagedLights.add(lamp);
+                    }
+                });
+                adder.start();
+                adders.add(adder);
+            }
+            for (Thread adder : adders) {
+                adder.join();
+            }
+            java.util.Set<Integer> handles = new java.util.HashSet<>();
+            boolean intact = true;
+            for (Light2 lamp : pagedLights) {
+                intact &= handles.add(lamp.getStateHandle()) && lamp.getStateStore() == sharedColumns
+                        && lamp.getBrightness() == 1 + Integer.parseInt(lamp.getName().replaceAll(".* ", "")) % 100;
+            }
+            boolean offHeapRefused;
+            try (OffHeapStateStore direct = OffHeapStateStore.allocateDirect(4)) {
+                new CentralController(new Home(5, "Moi", 1, "Tunis"), direct).startRoomActors(2);
+                offHeapRefused = false;
+            } catch (IllegalStateException expected) {
+                offHeapRefused = true;
+            }
+            if (pagedLights.size() == 1600 && intact && sharedColumns.size() == 1600 && offHeapRefused)
+                System.out.println("SUCCESS: Partitions attached 1600 devices to one columnar store without "
+                        + "sharing a slot or losing a write.");
+            else
+                System.out.println("FAILURE: Columnar store under partitions: " + pagedLights.size()
+                        + " devices, intact " + intact + ", off-heap refused " + offHeapRefused);
+
+            smarthome.core.GroupAggregates groups = paged.getGroupAggregates();
+            double pagedPower = paged.getTotalEnergyConsumption();
+            if (groups.count(smarthome.core.GroupAggregates.Scope.TYPE, "Light") == 1600
+                    && groups.countOn(smarthome.core.GroupAggregates.Scope.ROOM, "Paged 3") == 200
+                    && groups.min(smarthome.core.GroupAggregates.Scope.TYPE, "Light",
+                            smarthome.devices.DeviceAttribute.BRIGHTNESS) == 1
+                    && groups.max(smarthome.core.GroupAggregates.Scope.TYPE, "Light",
+                            smarthome.devices.DeviceAttribute.BRIGHTNESS) == 100
+                    && Math.abs(groups.sum(smarthome.core.GroupAggregates.Scope.TYPE, "Light",
+                            smarthome.devices.DeviceAttribute.POWER) - pagedPower) < 1e-6
+                    && Math.abs(pagedMeter.getHomePower() - pagedPower) < 1e-6
+                    && groups.counts(smarthome.core.GroupAggregates.Scope.ROOM).size() == 8)
+                System.out.println("SUCCESS: Per-room aggregate and meter shards merged to the home's "
+                        + pagedPower + " W.");
+            else
+                System.out.println("FAILURE: Sharded aggregates disagree: aggregates "
+                        + groups.sum(smarthome.core.GroupAggregates.Scope.TYPE, "Light",
+                                smarthome.devices.DeviceAttribute.POWER)
+                        + " W, meter " + pagedMeter.getHomePower() + " W, devices " + pagedPower + " W.");
+        } catch (InterruptedException | java.io.IOException e) {
+            System.out.println("FAILURE: " + e);
+        } finally {
+            paged.stopRoomActors();
+        }
+
+        System.out.println("\n===== DEVICE VERSIONS =====");
+        try {
+            light.turnOn();
+            long seen = light.getVersion();
+            java.util.concurrent.atomic.AtomicInteger winners = new java.util.concurrent.atomic.AtomicInteger();
+            List<Thread> writers = new java.util.ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int brightness = 50 + t; // above what optimizeEnergy leaves a light at
+                Thread writer = new Thread(() -> {
+                    try {
+                        if (light.executeIfVersion(new DeviceCommand.SetBrightness(brightness), seen))
+                            winners.incrementAndGet();
+                    } catch (smarthome.exceptions.InvalidDeviceOperationException e) {
+                        System.out.println("FAILURE: " + e.getMessage());
+                    }
+                });
+                writer.start();
+                writers.add(writer);
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            long afterRace = light.getVersion();
+            controller.optimizeEnergy(); // changes the light behind the next writer's back
+            boolean stale = light.executeIfVersion(new DeviceCommand.SetBrightness(80), afterRace);
+            if (winners.get() == 1 && afterRace > seen && !stale && light.getVersion() > afterRace)
+                System.out.println("SUCCESS: One of 8 racing writers won; a stale version was refused.");
+            else
+                System.out.println("FAILURE: " + winners.get() + " writers won, stale write applied: " + stale);
+
+            // optimizeEnergy writes without a version: a conditional write racing it either lands
+            // first and is dimmed, or is refused; it never overwrites the optimization
+            int overwritten = 0;
+            for (int round = 0; round < 50; round++) {
+                light.execute(new DeviceCommand.SetBrightness(80));
+                long before = light.getVersion();
+                Thread optimizer = new Thread(controller::optimizeEnergy);
+                optimizer.start();
+                light.executeIfVersion(new DeviceCommand.SetBrightness(90), before);
+                optimizer.join();
+                if (((Light2) light).getBrightness() > 40)
+                    overwritten++;
+            }
+            long idle = light.getVersion();
+            boolean unchanged = light.executeIfVersion(
+                    new DeviceCommand.SetBrightness(((Light2) light).getBrightness()), idle);
+            if (overwritten == 0 && unchanged && light.getVersion() == idle)
+                System.out.println("SUCCESS: Conditional writes never overwrote optimizeEnergy; a no-op kept "
+                        + "the version.");
+            else
+                System.out.println("FAILURE: " + overwritten + " optimizations overwritten, no-op version "
+                        + idle + " -> " + light.getVersion());
+
+            // A binary frame racing a conditional write either lands after it or makes it stale
+            java.nio.ByteBuffer dim = java.nio.ByteBuffer.allocate(CommandCodec.FRAME_SIZE);
+            CommandCodec.encode(new DeviceCommand.SetBrightness(20), dim);
+            java.util.concurrent.atomic.AtomicInteger unguarded = new java.util.concurrent.atomic.AtomicInteger();
+            smarthome.devices.DeviceStateListener guard = (device, attribute) -> {
+                if (device == light && !Thread.holdsLock(light))
+                    unguarded.incrementAndGet();
+            };
+            controller.addStateListener(guard);
+            int slipped = 0;
+            for (int round = 0; round < 200; round++) {
+                light.execute(new DeviceCommand.SetBrightness(80));
+                long before = light.getVersion();
+                java.nio.ByteBuffer frame = dim.duplicate().flip();
+                Thread ingest = new Thread(() -> {
+                    try {
+                        CommandCodec.execute(frame, light);
+                    } catch (smarthome.exceptions.InvalidDeviceOperationException e) {
+                        System.out.println("FAILURE: " + e.getMessage());
+                    }
+                });
+                ingest.start();
+                light.executeIfVersion(new DeviceCommand.SetBrightness(90), before);
+                ingest.join();
+                if (((Light2) light).getBrightness() != 20)
+                    slipped++;
+            }
+            controller.removeStateListener(guard);
+            if (slipped == 0 && unguarded.get() == 0)
+                System.out.println("SUCCESS: Binary frames never slipped inside a conditional write.");
+            else
+                System.out.println("FAILURE: " + slipped + " frames were overwritten by a conditional write, "
+                        + unguarded.get() + " changes made outside the device's monitor.");
+        } catch (InterruptedException | smarthome.exceptions.InvalidDeviceOperationException e) {
+            System.out.println("FAILURE: " + e);
+        }
+
+        System.out.println("\n===== HOME SNAPSHOTS =====");
+        try (SnapshotPublisher snapshots = SnapshotPublisher.batched(controller, java.time.Duration.ofMillis(20))) {
+            HomeSnapshot before = snapshots.publish();
+            long rooms = snapshots.getRoomsRebuilt();
+            long devices = snapshots.getDevicesRebuilt();
+            if (thermostat.isOn())
+                thermostat.turnOff();
+            else
+                thermostat.turnOn();
+            HomeSnapshot after = snapshots.publish();
+            RoomSnapshot.DeviceView heater = after.room("Living Room").devices().get(1);
+            boolean shared = after.room("Kitchen") == before.room("Kitchen")
+                    && after.room("Living Room").devices().get(0) == before.room("Living Room").devices().get(0);
+            if (shared && heater.on() == thermostat.isOn() && snapshots.getRoomsRebuilt() - rooms == 1
+                    && snapshots.getDevicesRebuilt() - devices == 1 && snapshots.current() == after)
+                System.out.println("SUCCESS: Changing one device rebuilt one room and one device view.");
+            else
+                System.out.println("FAILURE: Rebuilt " + (snapshots.getRoomsRebuilt() - rooms) + " rooms and "
+                        + (snapshots.getDevicesRebuilt() - devices) + " devices, shared: " + shared);
+
+            DashboardView view = new DashboardView();
+            view.render(snapshots.publish(), 0, List.of());
+            long renderedRooms = view.getRoomsRendered();
+            long renderedDevices = view.getDevicesRendered();
+            int brightness = ((Light2) light).getBrightness() == 40 ? 60 : 40;
+            ((Light2) light).setBrightness(brightness);
+            DashboardView.Response response = view.render(snapshots.publish(), 0, List.of());
+            String fresh = new DashboardView().render(snapshots.current(), 0, List.of()).asString();
+            if (response.asString().equals(fresh) && response.length() == fresh.getBytes().length
+                    && fresh.contains("\"brightness\": " + brightness) && view.getRoomsRendered() - renderedRooms == 1
+                    && view.getDevicesRendered() - renderedDevices == 1)
+                System.out.println("SUCCESS: Stats response re-rendered only the changed device and its room.");
+            else
+                System.out.println("FAILURE: Re-rendered " + (view.getRoomsRendered() - renderedRooms)
+                        + " rooms and " + (view.getDevicesRendered() - renderedDevices) + " devices");
+
+            Light2 quoted = new Light2("Lamp \"A\" \\ 1");
+            HomeSnapshot named = new HomeSnapshot(1, List.of(RoomSnapshot.of("Kid's \"Den\"",
+                    List.of(RoomSnapshot.DeviceView.of(quoted)), 1)), 0);
+            String escaped = new DashboardView().render(named, 0, List.of()).asString();
+            if (escaped.contains("\"name\": \"Kid's \\\"Den\\\"\"")
+                    && escaped.contains("\"name\": \"Lamp \\\"A\\\" \\\\ 1\""))
+                System.out.println("SUCCESS: Room and device names escaped in the stats response.");
+            else
+                System.out.println("FAILURE: Names not escaped: " + escaped);
+        }
+
+        System.out.println("\n===== DEVICE STATUS =====");
+        ((MotionSensor) motionSensor).detectMotion();
+        DeviceStatus heaterStatus = DeviceStatus.of(thermostat);
+        DeviceStatus sensorStatus = DeviceStatus.of(motionSensor);
+        if (heaterStatus.getDouble("targetTemperature") == ((Thermostat) thermostat).getTargetTemperature()
+                && heaterStatus.getBoolean("on") == thermostat.isOn()
+                && sensorStatus.getBoolean("motionDetected")
+                && sensorStatus.getLong("lastMotionTime") == ((MotionSensor) motionSensor).getLastMotionTime()
+                && sensorStatus.getLong("sensitivity") == ((MotionSensor) motionSensor).getSensitivity()
+                && !heaterStatus.has("brightness"))
+            System.out.println("SUCCESS: Typed status fields match the devices: " + heaterStatus);
+        else
+            System.out.println("FAILURE: Unexpected status " + heaterStatus + " / " + sensorStatus);
+
+        System.out.println("\n===== HOME REGISTRY =====");
+        try (HomeRegistry registry = new HomeRegistry(2)) {
+            HostedHome first = registry.host(new Home(101, "Alice", 1, "Sfax"));
+            HostedHome second = registry.host(new Home(102, "Bob", 1, "Sousse"));
+            for (HostedHome hosted : List.of(first, second)) {
+                registry.submit(hosted.getId(), h -> {
+                    h.getController().addRoom(new Room("Office"));
+                    try {
+                        h.getController().addDeviceToRoom("Office", new Light2("Desk Lamp", 50));
+                    } catch (DeviceNotFoundException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return null;
+                }).join();
+            }
+            String firstThread = registry.submit(101, h -> {
+                h.getController().turnOffAllDevices();
+                return Thread.currentThread().getName();
+            }).join();
+            String againThread = registry.submit(101, h -> Thread.currentThread().getName()).join();
+            boolean secondOn = registry
+                    .submit(102, h -> h.getSnapshots().publish().rooms().get(0).devices().get(0).on()).join();
+            boolean firstOn = registry
+                    .submit(101, h -> h.getSnapshots().publish().rooms().get(0).devices().get(0).on()).join();
+            boolean missing = registry.submit(999, h -> true).handle((v, e) -> e != null).join();
+            if (!firstOn && secondOn && firstThread.equals(againThread)
+                    && first.getPartition() != second.getPartition() && first.getBusyNanos() > 0 && missing
+                    && registry.size() == 2)
+                System.out.println("SUCCESS: Hosted homes are isolated and each runs on its own partition.");
+            else
+                System.out.println("FAILURE: first on " + firstOn + ", second on " + secondOn + ", threads "
+                        + firstThread + "/" + againThread + ", missing home rejected " + missing);
+        }
+
+        ManualClock hostedClock = new ManualClock(java.time.Instant.parse("2025-01-06T06:59:30Z"));
+        try (HomeRegistry registry = new HomeRegistry(2, hostedClock)) {
+            HostedHome hosted = registry.host(new Home(103, "Carol", 1, "Tunis"));
+            Light2 porch = registry.submit(103, h -> {
+                h.getController().addRoom(new Room("Porch"));
+                Light2 lamp = new Light2("Porch Lamp", 50);
+                try {
+                    h.getController().addDeviceToRoom("Porch", lamp);
+                    lamp.turnOff();
+                } catch (DeviceNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+                h.getEngine().addRule(new smarthome.automation.AutomationRule("Porch At Seven", "",
+                        new smarthome.automation.CronCondition("0 7 * * *"), c -> c.turnOnAllDevices()));
+                return lamp;
+            }).join();
+            boolean early = registry.submit(103, h -> porch.isOn()).join();
+            hostedClock.advance(java.time.Duration.ofMinutes(1)); // 07:00:30, no request made
+            boolean fired = false;
+            long deadline = System.nanoTime() + 3 * HomeRegistry.TICK_MILLIS * 1_000_000L;
+            while (!fired && System.nanoTime() < deadline) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                fired = porch.isOn();
+            }
+            boolean removed = registry.remove(103) && registry.get(103) == null;
+            if (!early && fired && removed && hosted.getEngine().getNextFireTime() != null)
+                System.out.println("SUCCESS: Partition timer wheel ran a hosted home's schedule without a request.");
+            else
+                System.out.println("FAILURE: early " + early + ", fired " + fired + ", removed " + removed);
+        }
+
         System.out.println("\n===== SMART HOME TEST END =====");
 
         // Start Dashboard Server
@@ -80,4 +849,34 @@ public class SmartHomeTest {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Clock that only moves when told to, for time-dependent checks.
+     */
+    private static class ManualClock extends java.time.Clock {
+        private volatile java.time.Instant now; // read by partition threads
+
+        ManualClock(java.time.Instant start) {
+            this.now = start;
+        }
+
+        void advance(java.time.Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public java.time.ZoneId getZone() {
+            return java.time.ZoneOffset.UTC;
+        }
+
+        @Override
+        public java.time.Clock withZone(java.time.ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public java.time.Instant instant() {
+            return now;
+        }
+    }
 }
@@ -1,6 +1,11 @@
 package smarthome.automation;
 
+import java.util.Collection;
+import java.util.Set;
+
 import smarthome.core.CentralController;
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.SmartDevice;
 
 /**
  * Functional interface for defining actions in automation rules.
@@ -12,4 +17,32 @@ public interface Action {
      * @param controller The central controller providing access to the system.
      */
     void execute(CentralController controller);
+
+    /**
+     * Lists the devices this action writes to. The engine runs actions on
+     * disjoint devices in parallel and orders actions that share a device.
+     * 
+     * @param controller The central controller providing access to the system.
+     * @return The target devices, or null if they are unknown, in which case
+     *         the action runs on its own after all others.
+     */
+    default Collection<SmartDevice> targets(CentralController controller) {
+        return null;
+    }
+
+    /**
+     * Lists the attributes this action may change on its targets.
+     * 
+     * @return The attributes written, or null if they are unknown.
+     */
+    default Set<DeviceAttribute> writtenAttributes() {
+        return null;
+    }
+
+    /**
+     * Called by an engine once the rule is removed or replaced. Releases
+     * anything the action holds on to.
+     */
+    default void close() {
+    }
 }
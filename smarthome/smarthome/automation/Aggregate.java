@@ -0,0 +1,15 @@
+package smarthome.automation;
+
+/**
+ * Aggregates computed over a set of values: the samples of a time window
+ * (WindowedCondition) or the devices of a group (AggregateCondition).
+ */
+public enum Aggregate {
+    /** Number of samples, or of devices in the group. */
+    COUNT,
+    /** Sum of the values, e.g. the number of motion detections. */
+    SUM,
+    AVG,
+    MIN,
+    MAX
+}
@@ -0,0 +1,115 @@
+package smarthome.automation;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.DoublePredicate;
+
+import smarthome.core.CentralController;
+import smarthome.core.GroupAggregates;
+import smarthome.core.GroupAggregates.Scope;
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.SmartDevice;
+
+/**
+ * Condition on an aggregate over a group of devices (a type or a room), e.g.
+ * "more than 80% of lights are on" or "max temperature in the living room is
+ * above 26". Reads the controller's GroupAggregates, so it never scans
+ * devices.
+ */
+public class AggregateCondition implements Condition {
+    private final Scope scope;
+    private final String group;
+    private final Aggregate aggregate; // null for the fraction of devices that are ON
+    private final DeviceAttribute attribute; // null for COUNT and the ON fraction
+    private final DoublePredicate test;
+
+    /**
+     * Creates a condition on a numeric attribute of a group.
+     * 
+     * @param scope     Whether group is a device type or a room name.
+     * @param group     The type or room (case-insensitive).
+     * @param attribute POWER (watts), BRIGHTNESS, TARGET_TEMPERATURE or
+     *                  CURRENT_TEMPERATURE; ignored for COUNT.
+     * @param aggregate The aggregate to compare.
+     * @param operator  One of ">", "<", ">=", "<=", "==".
+     * @param threshold The value the aggregate is compared with.
+     */
+    public AggregateCondition(Scope scope, String group, DeviceAttribute attribute, Aggregate aggregate,
+            String operator, double threshold) {
+        this(scope, group, checked(aggregate, attribute), aggregate == Aggregate.COUNT ? null : attribute,
+                Comparison.parse(operator).against(threshold));
+    }
+
+    private AggregateCondition(Scope scope, String group, Aggregate aggregate, DeviceAttribute attribute,
+            DoublePredicate test) {
+        if (scope == null || group == null)
+            throw new IllegalArgumentException("Scope and group cannot be null");
+        this.scope = scope;
+        this.group = group;
+        this.aggregate = aggregate;
+        this.attribute = attribute;
+        this.test = test;
+    }
+
+    private static Aggregate checked(Aggregate aggregate, DeviceAttribute attribute) {
+        if (aggregate == null)
+            throw new IllegalArgumentException("Aggregate cannot be null");
+        if (aggregate != Aggregate.COUNT && !GroupAggregates.isNumeric(attribute))
+            throw new IllegalArgumentException("Attribute is not numeric: " + attribute);
+        return aggregate;
+    }
+
+    /**
+     * Creates a condition on the fraction of devices of a group that are ON.
+     * 
+     * @param fraction The fraction to compare with, from 0 to 1 (e.g., 0.8).
+     */
+    public static AggregateCondition fractionOn(Scope scope, String group, String operator, double fraction) {
+        return new AggregateCondition(scope, group, null, null, Comparison.parse(operator).against(fraction));
+    }
+
+    @Override
+    public boolean evaluate(CentralController controller) {
+        GroupAggregates aggregates = controller.getGroupAggregates();
+        double value;
+        if (aggregate == null) {
+            int total = aggregates.count(scope, group);
+            if (total == 0)
+                return false;
+            value = (double) aggregates.countOn(scope, group) / total;
+        } else {
+            value = switch (aggregate) {
+                case COUNT -> aggregates.count(scope, group);
+                case SUM -> aggregates.sum(scope, group, attribute);
+                case AVG -> aggregates.average(scope, group, attribute);
+                case MIN -> aggregates.min(scope, group, attribute);
+                case MAX -> aggregates.max(scope, group, attribute);
+            };
+        }
+        return !Double.isNaN(value) && test.test(value);
+    }
+
+    @Override
+    public Collection<SmartDevice> inputs(CentralController controller) {
+        return scope == Scope.TYPE ? controller.getDevicesByType(group) : controller.getDevicesInRoom(group);
+    }
+
+    /**
+     * @return POWER for the ON fraction, nothing for COUNT, and any attribute
+     *         for power draw, which depends on several of them.
+     */
+    @Override
+    public Set<DeviceAttribute> inputAttributes() {
+        if (aggregate == null)
+            return EnumSet.of(DeviceAttribute.POWER);
+        if (aggregate == Aggregate.COUNT)
+            return EnumSet.noneOf(DeviceAttribute.class);
+        return attribute == DeviceAttribute.POWER ? null : EnumSet.of(attribute);
+    }
+
+    @Override
+    public int estimatedCost() {
+        return COST_CONSTANT;
+    }
+}
@@ -1,53 +1,787 @@
 package smarthome.automation;
 
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+import smarthome.commands.CommandMailbox;
 import smarthome.core.CentralController;
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.DeviceStateListener;
+import smarthome.devices.SmartDevice;
+import smarthome.telemetry.LatencyHistogram;
+import smarthome.telemetry.MetricsWriter;
 
 /**
  * Manages and executes automation rules.
+ * 
+ * Each call to evaluateRules is one tick, run in waves: the first wave
+ * evaluates every rule and then applies the actions of those that fired; each
+ * following wave re-evaluates only the rules reading an attribute of a device
+ * that those actions actually changed. A rule whose action writes only what
+ * its own condition does not read therefore fires once per tick. The number of waves and of actions per tick are
+ * bounded so that rules which keep re-triggering each other cannot run forever.
+ * Setting commands that actions leave in the controller's rule mailbox are
+ * delivered at the end of their wave, coalesced, so that the next wave sees
+ * them and they count against the same limits.
+ * 
+ * Rules whose condition is a CronCondition, or has one as a top-level
+ * conjunct, are not part of the waves. Each schedule's next fire time is
+ * precomputed and kept in a timer queue, and the rule is evaluated only when
+ * a tick finds it due. Whether a schedule is due is kept in its timer, not in
+ * the condition, and shown to the condition for the rule's evaluation only.
+ * 
+ * Rules are held in an immutable RuleSet behind an atomic reference. Rule
+ * changes publish a new set and never block a tick; each tick reads the set
+ * once, so it always sees either all or none of a bulk change. Rules
+ * entering the set are attached to the controller and rules leaving it are
+ * closed, so stateful conditions listen exactly while their rule is in use.
  */
-public class AutomationEngine {
-    private Map<String, AutomationRule> rules;
+public class AutomationEngine implements AutoCloseable {
+    public static final int DEFAULT_MAX_CASCADE_DEPTH = 8;
+    public static final int DEFAULT_MAX_ACTIONS_PER_TICK = 1000;
+    public static final long DEFAULT_MISFIRE_THRESHOLD_MILLIS = 60_000;
+
+    private final AtomicReference<RuleSet> rules = new AtomicReference<>(RuleSet.EMPTY);
+    private final Object ruleChanges = new Object(); // serializes publish
     private CentralController controller;
+    private final Clock clock;
+    private ForkJoinPool pool; // null: evaluate on the calling thread; guarded by this, swapped between ticks
+    private int maxCascadeDepth = DEFAULT_MAX_CASCADE_DEPTH;
+    private int maxActionsPerTick = DEFAULT_MAX_ACTIONS_PER_TICK;
+    private List<String> throttledRules = Collections.emptyList(); // during the last tick
+
+    private final Map<String, Integer> changedDevices = new ConcurrentHashMap<>(); // device ID -> attribute bits
+    private final DeviceStateListener changeTracker = (device, attribute) -> changedDevices.merge(device.getId(),
+            bit(attribute), (a, b) -> a | b);
+
+    // Scheduled rules: next fire time of every CronCondition, earliest first
+    private final PriorityQueue<Timer> timers;
+    private final Map<AutomationRule, List<Timer>> timersByRule = new HashMap<>();
+    private RuleSet scheduledRules = RuleSet.EMPTY; // the set the timers were built for
+    private long misfireThresholdMillis = DEFAULT_MISFIRE_THRESHOLD_MILLIS;
+
+    private volatile Dependencies dependencies;
+
+    // Totals across all rules; unlike RuleMetrics they survive rule changes
+    private final LatencyHistogram tickLatency = new LatencyHistogram();
+    private final LongAdder evaluationCount = new LongAdder();
+    private final LongAdder actionCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LongAdder throttledCount = new LongAdder();
 
     public AutomationEngine(CentralController controller) {
-        this.rules = new HashMap<>();
+        this(controller, Clock.systemDefaultZone());
+    }
+
+    /**
+     * Creates an engine.
+     * 
+     * @param controller The controller rules read and act on.
+     * @param clock      Time source for ticks and schedules; its zone decides
+     *                   the local time of cron expressions.
+     */
+    public AutomationEngine(CentralController controller, Clock clock) {
+        if (clock == null)
+            throw new IllegalArgumentException("Clock cannot be null");
         this.controller = controller;
+        this.clock = clock;
+        this.timers = new PriorityQueue<>(Comparator.<Timer>comparingLong(t -> t.at)
+                .thenComparing(t -> t.rule, RuleSet.EXECUTION_ORDER));
+        controller.addStateListener(changeTracker);
     }
 
+    /**
+     * Adds a rule and prints a warning if it closes a cycle, i.e. its action
+     * can re-trigger itself through other rules. Such rules are allowed, but
+     * are cut off at runtime by the cascade limits.
+     * 
+     * @param rule The rule to add.
+     */
     public void addRule(AutomationRule rule) {
-        rules.put(rule.getName(), rule);
+        if (rule == null)
+            throw new IllegalArgumentException("Rule cannot be null");
+        publish(set -> set.with(rule));
         System.out.println("Rule added: " + rule.getName());
+        List<String> cycle = findCycle(rule.getName());
+        if (!cycle.isEmpty())
+            System.out.println("Warning: rule cycle detected: " + String.join(" -> ", cycle));
     }
 
     public void removeRule(AutomationRule rule) {
-        rules.remove(rule.getName());
+        publish(set -> set.without(rule.getName()));
         System.out.println("Rule removed: " + rule.getName());
     }
 
     public void removeRule(String ruleName) {
-        if (rules.remove(ruleName) != null) {
+        RuleSet before = publish(set -> set.without(ruleName)).before();
+        if (before.getRule(ruleName) != null)
             System.out.println("Rule removed: " + ruleName);
+    }
+
+    /**
+     * Replaces all rules at once. Ticks see either the old rules or the new
+     * ones, never a mix.
+     * 
+     * @param newRules The new rules.
+     * @return The version of the published rule set.
+     * @throws IllegalArgumentException If two rules share a name; the rules
+     *                                  are then left unchanged.
+     */
+    public long replaceRules(Collection<AutomationRule> newRules) {
+        RuleSet published = publish(set -> set.replacedBy(newRules)).after();
+        System.out.println("Rules replaced: " + published.size() + " rules, version " + published.getVersion());
+        return published.getVersion();
+    }
+
+    /**
+     * Adds, replaces and removes rules in one atomic change.
+     * 
+     * @param upserts  Rules to add, replacing rules of the same name.
+     * @param removals Names of rules to remove.
+     * @return The version of the published rule set.
+     * @throws IllegalArgumentException If a removed rule does not exist or two
+     *                                  upserted rules share a name; the rules
+     *                                  are then left unchanged.
+     */
+    public long patchRules(Collection<AutomationRule> upserts, Collection<String> removals) {
+        RuleSet published = publish(set -> set.patched(upserts, removals)).after();
+        System.out.println("Rules patched: " + upserts.size() + " upserted, " + removals.size()
+                + " removed, version " + published.getVersion());
+        return published.getVersion();
+    }
+
+    private record Change(RuleSet before, RuleSet after) {
+    }
+
+    /**
+     * Publishes a change to the rule set. Rules it adds are attached before
+     * it is published, so their conditions see every event from then on;
+     * rules it drops, including ones replaced by a rule of the same name, are
+     * closed once it is. Changes are applied one at a time, but never wait for
+     * a tick.
+     */
+    private Change publish(UnaryOperator<RuleSet> update) {
+        synchronized (ruleChanges) {
+            RuleSet before = rules.get();
+            RuleSet after = update.apply(before);
+            for (AutomationRule rule : after.getRules()) {
+                if (before.contains(rule))
+                    continue;
+                rule.attach(controller);
+            }
+            rules.set(after);
+            for (AutomationRule rule : before.getRules()) {
+                if (!after.contains(rule))
+                    rule.close();
+            }
+            return new Change(before, after);
         }
     }
 
     public List<AutomationRule> getRules() {
-        return new ArrayList<>(rules.values());
+        return new ArrayList<>(rules.get().getRules());
+    }
+
+    /**
+     * @return The current rule set; it never changes, later changes publish a
+     *         new one.
+     */
+    public RuleSet getRuleSet() {
+        return rules.get();
+    }
+
+    /**
+     * Sets how many threads evaluate rules. With more than one, the conditions
+     * of a wave are evaluated in parallel, and actions on disjoint devices are
+     * applied in parallel. A tick in progress finishes on the threads it
+     * started with; the old pool is shut down after it.
+     * 
+     * @param parallelism The number of threads, 1 to evaluate on the calling
+     *                    thread.
+     */
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        if (pool != null)
+            pool.shutdown();
+        pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+    }
+
+    public synchronized int getParallelism() {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+
+    /**
+     * Detaches the engine from its controller: stops listening to device
+     * changes, closes the rules and shuts down the evaluation threads, if
+     * any. Waits for a tick in progress. The engine is not to be used
+     * afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        controller.removeStateListener(changeTracker);
+        synchronized (ruleChanges) {
+            rules.get().getRules().forEach(AutomationRule::close);
+        }
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    public int getMaxCascadeDepth() {
+        return maxCascadeDepth;
+    }
+
+    /**
+     * Sets how many waves of re-triggered rules may follow the first one in a
+     * tick.
+     * 
+     * @param maxCascadeDepth The maximum number of extra waves, 0 for none.
+     */
+    public void setMaxCascadeDepth(int maxCascadeDepth) {
+        if (maxCascadeDepth < 0)
+            throw new IllegalArgumentException("Cascade depth cannot be negative");
+        this.maxCascadeDepth = maxCascadeDepth;
+    }
+
+    public int getMaxActionsPerTick() {
+        return maxActionsPerTick;
+    }
+
+    /**
+     * Sets how many actions may run in one tick, across all waves.
+     * 
+     * @param maxActionsPerTick The action budget, at least 1.
+     */
+    public void setMaxActionsPerTick(int maxActionsPerTick) {
+        if (maxActionsPerTick < 1)
+            throw new IllegalArgumentException("Action budget must be at least 1");
+        this.maxActionsPerTick = maxActionsPerTick;
+    }
+
+    public long getMisfireThresholdMillis() {
+        return misfireThresholdMillis;
+    }
+
+    /**
+     * Sets how late a scheduled occurrence may be evaluated and still count
+     * as on time. Later ones are handled by the rule's MissedFirePolicy.
+     * 
+     * @param misfireThresholdMillis The threshold in milliseconds.
+     */
+    public void setMisfireThresholdMillis(long misfireThresholdMillis) {
+        if (misfireThresholdMillis < 0)
+            throw new IllegalArgumentException("Misfire threshold cannot be negative");
+        this.misfireThresholdMillis = misfireThresholdMillis;
+    }
+
+    /**
+     * Gets the time the next scheduled rule is due, so a caller can sleep
+     * until then instead of polling.
+     * 
+     * @return The next fire time, or null if no rule is scheduled.
+     */
+    public synchronized Instant getNextFireTime() {
+        syncTimers(rules.get());
+        Timer next = timers.peek();
+        return next == null ? null : Instant.ofEpochMilli(next.at);
+    }
+
+    /**
+     * @return The names of the rules skipped during the last tick because the
+     *         cascade depth or the action budget ran out.
+     */
+    public List<String> getThrottledRules() {
+        return throttledRules;
     }
 
     /**
-     * Evaluates all active rules and executes actions for those that match.
+     * Evaluates all active rules and executes actions for those that match,
+     * then re-evaluates the rules those actions may have affected. Actions
+     * are applied in ascending priority, then by rule name. Ticks do not
+     * overlap, but rule changes may be published during one; they take effect
+     * from the next tick.
      */
-    public void evaluateRules() {
-        for (AutomationRule rule : rules.values()) {
-            try {
-                rule.evaluateAndExecute(controller);
-            } catch (Exception e) {
-                System.err.println("Error executing rule " + rule.getName() + ": " + e.getMessage());
+    public synchronized void evaluateRules() {
+        long tickStart = System.nanoTime();
+        long now = clock.millis();
+        RuleSet ruleSet = rules.get();
+        Set<AutomationRule> timedRules = ruleSet.getScheduledRules();
+        Dependencies deps = dependencies(ruleSet);
+        syncTimers(ruleSet);
+        List<String> throttled = new ArrayList<>();
+        int budget = fireDueTimers(now, maxActionsPerTick, throttled);
+        List<AutomationRule> wave = new ArrayList<>();
+        for (AutomationRule rule : ruleSet.getRules()) {
+            if (!timedRules.contains(rule))
+                wave.add(rule);
+        }
+
+        for (int depth = 0; !wave.isEmpty(); depth++) {
+            if (depth > maxCascadeDepth || budget == 0) {
+                wave.forEach(rule -> throttled.add(rule.getName()));
+                break;
+            }
+            List<AutomationRule> fired = evaluateAll(wave, now);
+            if (fired.size() > budget) {
+                fired.subList(budget, fired.size()).forEach(rule -> throttled.add(rule.getName()));
+                fired = new ArrayList<>(fired.subList(0, budget));
+            }
+            budget -= fired.size();
+            changedDevices.clear();
+            executeAll(fired);
+            deliverSettings(fired);
+
+            Set<AutomationRule> next = new LinkedHashSet<>();
+            changedDevices.forEach((deviceId, changed) -> {
+                for (AutomationRule reader : deps.readers.getOrDefault(deviceId, Collections.emptyList())) {
+                    if ((deps.reads.get(reader) & changed) != 0)
+                        next.add(reader);
+                }
+            });
+            next.removeAll(timedRules);
+            wave = new ArrayList<>(next);
+            wave.sort(RuleSet.EXECUTION_ORDER);
+        }
+
+        throttledRules = Collections.unmodifiableList(throttled);
+        throttledCount.add(throttled.size());
+        if (!throttled.isEmpty())
+            System.out.println("Warning: rule cascade throttled, skipped " + throttled);
+        tickLatency.record(System.nanoTime() - tickStart);
+    }
+
+    /**
+     * Writes the engine's metrics: tick latency, and evaluations, actions,
+     * errors and throttled rules across all rules.
+     * 
+     * @param writer The exposition being built.
+     */
+    public void collectMetrics(MetricsWriter writer) {
+        writer.family("smarthome_rule_tick_seconds", "histogram", "Duration of a rule evaluation tick.")
+                .histogram("smarthome_rule_tick_seconds", tickLatency);
+        writer.family("smarthome_rule_evaluations_total", "counter", "Rule conditions evaluated.")
+                .sample("smarthome_rule_evaluations_total", evaluationCount.sum());
+        writer.family("smarthome_rule_actions_total", "counter", "Rule actions executed.")
+                .sample("smarthome_rule_actions_total", actionCount.sum());
+        writer.family("smarthome_rule_errors_total", "counter", "Rule conditions or actions that threw.")
+                .sample("smarthome_rule_errors_total", errorCount.sum());
+        writer.family("smarthome_rule_throttled_total", "counter", "Rules skipped by the cascade limits.")
+                .sample("smarthome_rule_throttled_total", throttledCount.sum());
+        writer.family("smarthome_rules", "gauge", "Rules in the current rule set.")
+                .sample("smarthome_rules", rules.get().size());
+    }
+
+    // ===== SCHEDULED RULES =====
+
+    private static final class Timer {
+        final AutomationRule rule;
+        final CronCondition condition;
+        long at; // epoch millis of the next occurrence
+        boolean due; // while the occurrence at this timer is being evaluated
+
+        Timer(AutomationRule rule, CronCondition condition, long at) {
+            this.rule = rule;
+            this.condition = condition;
+            this.at = at;
+        }
+    }
+
+    /**
+     * Brings the timers in line with a newly published rule set: timers of
+     * rules that are gone are dropped, rules that are new get timers, and the
+     * rest keep their next fire times.
+     */
+    private void syncTimers(RuleSet ruleSet) {
+        if (ruleSet == scheduledRules)
+            return;
+        timers.removeIf(t -> !ruleSet.contains(t.rule));
+        timersByRule.keySet().removeIf(rule -> !ruleSet.contains(rule));
+        for (AutomationRule rule : ruleSet.getScheduledRules()) {
+            if (!scheduledRules.contains(rule))
+                schedule(rule);
+        }
+        scheduledRules = ruleSet;
+    }
+
+    private void schedule(AutomationRule rule) {
+        ZonedDateTime now = ZonedDateTime.now(clock);
+        List<Timer> ruleTimers = new ArrayList<>();
+        for (CronCondition schedule : RuleSet.schedulesOf(rule)) {
+            ZonedDateTime next = schedule.getExpression().nextAfter(now);
+            Timer timer = new Timer(rule, schedule, next == null ? Long.MAX_VALUE : next.toInstant().toEpochMilli());
+            ruleTimers.add(timer);
+            if (next != null)
+                timers.add(timer);
+        }
+        timersByRule.put(rule, ruleTimers);
+    }
+
+    /**
+     * Evaluates the scheduled rules that are due, earliest first, and moves
+     * their timers to the next occurrence after now.
+     * 
+     * @return The action budget left.
+     */
+    private int fireDueTimers(long now, int budget, List<String> throttled) {
+        ZonedDateTime nowTime = ZonedDateTime.ofInstant(Instant.ofEpochMilli(now), clock.getZone());
+        while (!timers.isEmpty() && timers.peek().at <= now) {
+            Timer timer = timers.poll();
+            for (long at : occurrencesToFire(timer, now, budget)) {
+                if (budget == 0) {
+                    throttled.add(timer.rule.getName());
+                    break;
+                }
+                boolean fires;
+                timer.due = true;
+                try {
+                    fires = evaluate(timer.rule, at);
+                } finally {
+                    timer.due = false;
+                    timer.rule.resetEdge();
+                }
+                if (fires) {
+                    execute(timer.rule);
+                    deliverSettings(List.of(timer.rule));
+                    budget--;
+                }
+            }
+            ZonedDateTime next = timer.condition.getExpression().nextAfter(nowTime);
+            if (next != null) {
+                timer.at = next.toInstant().toEpochMilli();
+                timers.add(timer);
+            }
+        }
+        return budget;
+    }
+
+    /**
+     * Applies the missed-fire policy to the occurrences from the timer's due
+     * time up to now. Occurrences older than the misfire threshold are missed.
+     */
+    private List<Long> occurrencesToFire(Timer timer, long now, int budget) {
+        long onTimeFrom = now - misfireThresholdMillis;
+        if (timer.at >= onTimeFrom)
+            return List.of(timer.at);
+        CronExpression expression = timer.condition.getExpression();
+        ZonedDateTime onTime = expression.nextAfter(
+                ZonedDateTime.ofInstant(Instant.ofEpochMilli(onTimeFrom - 1), clock.getZone()));
+        Long onTimeAt = onTime != null && onTime.toInstant().toEpochMilli() <= now
+                ? onTime.toInstant().toEpochMilli()
+                : null;
+
+        return switch (timer.condition.getMissedFirePolicy()) {
+            case SKIP -> onTimeAt == null ? List.of() : List.of(onTimeAt);
+            case FIRE_ONCE -> List.of(onTimeAt == null ? timer.at : onTimeAt);
+            case CATCH_UP -> {
+                // One more than the budget, so that running out is reported
+                List<Long> all = new ArrayList<>();
+                ZonedDateTime at = ZonedDateTime.ofInstant(Instant.ofEpochMilli(timer.at), clock.getZone());
+                while (at != null && at.toInstant().toEpochMilli() <= now && all.size() <= budget) {
+                    all.add(at.toInstant().toEpochMilli());
+                    at = expression.nextAfter(at);
+                }
+                yield all;
+            }
+        };
+    }
+
+    private List<AutomationRule> evaluateAll(List<AutomationRule> wave, long now) {
+        boolean[] fires = new boolean[wave.size()];
+        if (pool == null) {
+            for (int i = 0; i < fires.length; i++) {
+                fires[i] = evaluate(wave.get(i), now);
+            }
+        } else {
+            pool.submit(() -> IntStream.range(0, fires.length).parallel()
+                    .forEach(i -> fires[i] = evaluate(wave.get(i), now))).join();
+        }
+        List<AutomationRule> fired = new ArrayList<>();
+        for (int i = 0; i < fires.length; i++) {
+            if (fires[i])
+                fired.add(wave.get(i));
+        }
+        return fired;
+    }
+
+    private void executeAll(List<AutomationRule> fired) {
+        if (pool == null) {
+            fired.forEach(this::execute);
+            return;
+        }
+        List<AutomationRule> unscoped = new ArrayList<>();
+        Collection<List<AutomationRule>> batches = groupByTargets(fired, unscoped);
+
+        // Batches touch disjoint devices; within a batch actions keep their order
+        pool.submit(() -> batches.parallelStream().forEach(batch -> batch.forEach(this::execute))).join();
+        unscoped.forEach(this::execute);
+    }
+
+    /**
+     * Delivers the settings the actions of fired rules left in the rule
+     * mailbox, and waits for them. Within a wave the mailbox still keeps only
+     * the last value of each setting and drops those that change nothing.
+     */
+    private void deliverSettings(List<AutomationRule> fired) {
+        CommandMailbox mailbox = controller.getRuleMailbox();
+        if (mailbox == null || fired.isEmpty())
+            return;
+        List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+        for (AutomationRule rule : fired) {
+            Collection<SmartDevice> targets = rule.getAction().targets(controller);
+            if (targets == null) {
+                deliveries.add(mailbox.flushAll());
+                break;
+            }
+            targets.forEach(device -> deliveries.add(mailbox.flush(device)));
+        }
+        // A failed delivery is counted by the mailbox; the tick goes on
+        CompletableFuture.allOf(deliveries.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+    }
+
+    private boolean evaluate(AutomationRule rule, long now) {
+        evaluationCount.increment();
+        EVALUATION.set(new Evaluation(clock, timersByRule.getOrDefault(rule, List.of())));
+        try {
+            return rule.evaluate(controller, now);
+        } catch (Exception e) {
+            errorCount.increment();
+            System.err.println("Error executing rule " + rule.getName() + ": " + e.getMessage());
+            return false;
+        } finally {
+            EVALUATION.remove();
+        }
+    }
+
+    private static final ThreadLocal<Evaluation> EVALUATION = new ThreadLocal<>();
+
+    /**
+     * What an engine shows the conditions of the rule it is evaluating on the
+     * current thread: its clock, and the timers of the rule's schedules.
+     */
+    record Evaluation(Clock clock, List<Timer> timers) {
+
+        /**
+         * @return null if the schedule does not gate the rule, otherwise
+         *         whether its timer is being fired.
+         */
+        Boolean due(CronCondition schedule) {
+            for (Timer timer : timers) {
+                if (timer.condition == schedule)
+                    return timer.due;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return The evaluation in progress on this thread, or null outside an
+     *         engine's tick.
+     */
+    static Evaluation currentEvaluation() {
+        return EVALUATION.get();
+    }
+
+    private void execute(AutomationRule rule) {
+        actionCount.increment();
+        try {
+            rule.execute(controller);
+        } catch (Exception e) {
+            errorCount.increment();
+            System.err.println("Error executing rule " + rule.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Splits fired rules into batches such that no two batches target the same
+     * device (union-find over the rules, joined through shared device IDs).
+     * 
+     * @param fired    The rules that fired, in execution order.
+     * @param unscoped Receives the rules whose targets are unknown.
+     * @return The batches, each in execution order.
+     */
+    private Collection<List<AutomationRule>> groupByTargets(List<AutomationRule> fired,
+            List<AutomationRule> unscoped) {
+        int[] parent = new int[fired.size()];
+        Map<String, Integer> owner = new HashMap<>(); // device ID -> first rule index
+        for (int i = 0; i < fired.size(); i++) {
+            parent[i] = i;
+            Collection<SmartDevice> targets = fired.get(i).getAction().targets(controller);
+            if (targets == null) {
+                parent[i] = -1;
+                continue;
+            }
+            for (SmartDevice device : targets) {
+                Integer other = owner.putIfAbsent(device.getId(), i);
+                if (other != null)
+                    parent[find(parent, i)] = find(parent, other);
+            }
+        }
+
+        Map<Integer, List<AutomationRule>> batches = new LinkedHashMap<>();
+        for (int i = 0; i < fired.size(); i++) {
+            if (parent[i] == -1)
+                unscoped.add(fired.get(i));
+            else
+                batches.computeIfAbsent(find(parent, i), k -> new ArrayList<>()).add(fired.get(i));
+        }
+        return batches.values();
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    // ===== DEPENDENCY ANALYSIS =====
+
+    /**
+     * Looks for a chain of rules through which a rule's action can re-trigger
+     * the rule itself. Rule A leads to rule B when A's action writes an
+     * attribute B's condition reads, on a device B's condition reads. Rules whose action targets or condition
+     * inputs are unknown are left out of the analysis.
+     * 
+     * @param ruleName The name of the rule.
+     * @return The rule names along the cycle, starting and ending with
+     *         ruleName, or an empty list if there is none.
+     */
+    public List<String> findCycle(String ruleName) {
+        RuleSet ruleSet = rules.get();
+        AutomationRule start = ruleSet.getRule(ruleName);
+        if (start == null)
+            return Collections.emptyList();
+        Map<AutomationRule, List<AutomationRule>> graph = dependencies(ruleSet).graph;
+        List<AutomationRule> path = new ArrayList<>();
+        path.add(start);
+        if (!findPath(graph, start, start, path, new LinkedHashSet<>()))
+            return Collections.emptyList();
+        List<String> names = new ArrayList<>();
+        path.forEach(rule -> names.add(rule.getName()));
+        return names;
+    }
+
+    private boolean findPath(Map<AutomationRule, List<AutomationRule>> graph, AutomationRule from,
+            AutomationRule target, List<AutomationRule> path, Set<AutomationRule> visited) {
+        for (AutomationRule next : graph.getOrDefault(from, Collections.emptyList())) {
+            if (next == target) {
+                path.add(next);
+                return true;
+            }
+            if (visited.add(next)) {
+                path.add(next);
+                if (findPath(graph, next, target, path, visited))
+                    return true;
+                path.remove(path.size() - 1);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The dependency graph of one rule set: rule -> rules whose inputs its
+     * action writes to, device ID -> rules reading it, and rule -> bits of the
+     * attributes its condition reads.
+     */
+    private static final class Dependencies {
+        final RuleSet ruleSet;
+        final long topology;
+        final Map<AutomationRule, List<AutomationRule>> graph;
+        final Map<String, List<AutomationRule>> readers;
+        final Map<AutomationRule, Integer> reads;
+
+        Dependencies(RuleSet ruleSet, long topology, Map<AutomationRule, List<AutomationRule>> graph,
+                Map<String, List<AutomationRule>> readers, Map<AutomationRule, Integer> reads) {
+            this.ruleSet = ruleSet;
+            this.topology = topology;
+            this.graph = graph;
+            this.readers = readers;
+            this.reads = reads;
+        }
+    }
+
+    private static int bit(DeviceAttribute attribute) {
+        return 1 << attribute.ordinal();
+    }
+
+    /**
+     * @return The bits of the attributes, or all bits if they are unknown.
+     */
+    private static int bits(Set<DeviceAttribute> attributes) {
+        if (attributes == null)
+            return -1;
+        int bits = 0;
+        for (DeviceAttribute attribute : attributes) {
+            bits |= bit(attribute);
+        }
+        return bits;
+    }
+
+    /**
+     * Builds (or reuses) the dependency graph of a rule set. It is rebuilt
+     * when a new rule set is published, or devices join or leave the
+     * controller.
+     */
+    private Dependencies dependencies(RuleSet ruleSet) {
+        long topology = controller.getTopologyVersion();
+        Dependencies cached = dependencies;
+        if (cached != null && cached.ruleSet == ruleSet && cached.topology == topology)
+            return cached;
+
+        Map<String, List<AutomationRule>> readers = new HashMap<>();
+        Map<AutomationRule, Integer> reads = new HashMap<>();
+        for (AutomationRule rule : ruleSet.getRules()) {
+            Collection<SmartDevice> inputs = rule.getCondition().inputs(controller);
+            if (inputs == null)
+                continue;
+            reads.put(rule, bits(rule.getCondition().inputAttributes()));
+            for (SmartDevice device : inputs) {
+                readers.computeIfAbsent(device.getId(), k -> new ArrayList<>()).add(rule);
+            }
+        }
+
+        Map<AutomationRule, List<AutomationRule>> graph = new HashMap<>();
+        for (AutomationRule rule : ruleSet.getRules()) {
+            Collection<SmartDevice> targets = rule.getAction().targets(controller);
+            if (targets == null)
+                continue;
+            int writes = bits(rule.getAction().writtenAttributes());
+            Set<AutomationRule> affected = new LinkedHashSet<>();
+            for (SmartDevice device : targets) {
+                for (AutomationRule reader : readers.getOrDefault(device.getId(), Collections.emptyList())) {
+                    if ((reads.get(reader) & writes) != 0)
+                        affected.add(reader);
+                }
+            }
+            if (!affected.isEmpty()) {
+                List<AutomationRule> sorted = new ArrayList<>(affected);
+                sorted.sort(RuleSet.EXECUTION_ORDER);
+                graph.put(rule, sorted);
             }
         }
+        Dependencies built = new Dependencies(ruleSet, topology, graph, readers, reads);
+        dependencies = built;
+        return built;
     }
 }
@@ -12,6 +12,14 @@ public class AutomationRule {
     private Condition condition;
     private Action action;
     private boolean isActive;
+    private int priority;
+    private FireMode fireMode;
+    private long cooldownMillis;
+    private boolean lastConditionState; // condition result of the previous evaluation
+    private long lastFiredAt;
+    private boolean hasFired;
+    private final RuleMetrics metrics = new RuleMetrics();
+    private int untilSample; // evaluations left before the next timed one
 
     /**
      * Creates a new AutomationRule.
@@ -31,25 +39,139 @@ public class AutomationRule {
 
         this.name = name;
         this.description = description;
-        this.condition = condition;
+        this.condition = RuleCompiler.compile(condition);
         this.action = action;
         this.isActive = true;
+        this.fireMode = FireMode.LEVEL;
     }
 
     /**
-     * Checks the condition and executes the action if the condition is true and the
-     * rule is active.
+     * Checks the condition and executes the action if the rule fires and is
+     * active.
      * 
      * @param controller The central controller.
+     * @return true if the action was executed.
      */
-    public void evaluateAndExecute(CentralController controller) {
+    public boolean evaluateAndExecute(CentralController controller) {
+        return evaluateAndExecute(controller, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks the condition and executes the action if the rule fires at the
+     * given time. Whether it fires depends on the fire mode (level or edge)
+     * and on the cooldown since the last firing.
+     * 
+     * @param controller The central controller.
+     * @param nowMillis  The evaluation time (epoch millis).
+     * @return true if the action was executed.
+     */
+    public boolean evaluateAndExecute(CentralController controller, long nowMillis) {
+        if (!evaluate(controller, nowMillis))
+            return false;
+        execute(controller);
+        return true;
+    }
+
+    /**
+     * Checks whether the rule fires at the given time, and records the firing,
+     * without executing the action.
+     * 
+     * @param controller The central controller.
+     * @param nowMillis  The evaluation time (epoch millis).
+     * @return true if the action should be executed.
+     */
+    public boolean evaluate(CentralController controller, long nowMillis) {
         if (!isActive)
-            return;
+            return false;
+
+        RuleEvaluationEvent event = new RuleEvaluationEvent();
+        event.begin();
+        boolean timed = --untilSample <= 0;
+        long start = timed ? System.nanoTime() : 0;
+        boolean current;
+        try {
+            current = condition.evaluate(controller);
+        } catch (RuntimeException e) {
+            metrics.recordError();
+            event.finish(name, RuleEvaluationEvent.ERROR, false, false);
+            throw e;
+        }
+        if (timed) {
+            metrics.recordConditionLatency(System.nanoTime() - start);
+            untilSample = RuleMetrics.LATENCY_SAMPLE_INTERVAL;
+        }
+        metrics.recordEvaluation(current);
+        boolean previous = lastConditionState;
+        lastConditionState = current;
 
-        if (condition.evaluate(controller)) {
-            System.out.println("Rule Triggered: " + name);
+        boolean fires = switch (fireMode) {
+            case LEVEL -> current;
+            case RISING -> current && !previous;
+            case FALLING -> !current && previous;
+        };
+        if (!fires)
+            return event.finish(name, RuleEvaluationEvent.NOT_FIRED, current, false);
+        if (hasFired && nowMillis - lastFiredAt < cooldownMillis)
+            return event.finish(name, RuleEvaluationEvent.COOLDOWN, current, false);
+
+        hasFired = true;
+        lastFiredAt = nowMillis;
+        return event.finish(name, RuleEvaluationEvent.FIRED, current, true);
+    }
+
+    void execute(CentralController controller) {
+        System.out.println("Rule Triggered: " + name);
+        long start = System.nanoTime();
+        try {
             action.execute(controller);
+        } catch (RuntimeException e) {
+            metrics.recordError();
+            throw e;
         }
+        metrics.recordAction(System.nanoTime() - start);
+    }
+
+    /**
+     * Forgets the previous condition result, so that the next evaluation is
+     * an edge again. Used for scheduled rules, where every occurrence is an
+     * edge.
+     */
+    void resetEdge() {
+        lastConditionState = false;
+    }
+
+    /**
+     * Prepares the condition for evaluation with a controller; called when
+     * the rule is added to an engine.
+     */
+    void attach(CentralController controller) {
+        condition.attach(controller);
+    }
+
+    /**
+     * Releases what the condition and action registered; called once the rule
+     * is no longer in the engine's rule set.
+     */
+    void close() {
+        condition.close();
+        action.close();
+    }
+
+    /**
+     * @return The counters and latency histograms of this rule. A rule
+     *         replaced by a new one of the same name starts with fresh
+     *         metrics.
+     */
+    public RuleMetrics getMetrics() {
+        return metrics;
+    }
+
+    Condition getCondition() {
+        return condition;
+    }
+
+    Action getAction() {
+        return action;
     }
 
     public String getName() {
@@ -67,4 +189,50 @@ public class AutomationRule {
     public void setActive(boolean active) {
         isActive = active;
     }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority used to order actions on the same device. Actions run
+     * in ascending priority, so the highest-priority rule is applied last and
+     * its value wins; ties are broken by rule name.
+     * 
+     * @param priority The priority, 0 by default.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public FireMode getFireMode() {
+        return fireMode;
+    }
+
+    /**
+     * Sets when the action runs relative to the condition. Edge modes run the
+     * action once per change instead of on every evaluation.
+     * 
+     * @param fireMode The fire mode.
+     */
+    public void setFireMode(FireMode fireMode) {
+        if (fireMode == null)
+            throw new IllegalArgumentException("Fire mode cannot be null");
+        this.fireMode = fireMode;
+    }
+
+    public long getCooldownMillis() {
+        return cooldownMillis;
+    }
+
+    /**
+     * Sets the minimum time between two executions of the action.
+     * 
+     * @param cooldownMillis The cooldown in milliseconds, 0 for none.
+     */
+    public void setCooldownMillis(long cooldownMillis) {
+        if (cooldownMillis < 0)
+            throw new IllegalArgumentException("Cooldown cannot be negative");
+        this.cooldownMillis = cooldownMillis;
+    }
 }
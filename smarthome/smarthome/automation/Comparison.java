@@ -0,0 +1,72 @@
+package smarthome.automation;
+
+import java.util.function.DoublePredicate;
+
+/**
+ * Comparison operators of threshold conditions, parsed once from their symbol
+ * and bound to a threshold as a specialized predicate.
+ */
+public enum Comparison {
+    GREATER(">"),
+    LESS("<"),
+    GREATER_OR_EQUAL(">="),
+    LESS_OR_EQUAL("<="),
+    EQUAL("==");
+
+    private static final double EPSILON = 0.001;
+
+    private final String symbol;
+
+    Comparison(String symbol) {
+        this.symbol = symbol;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * @return true for operators that hold above a threshold (> and >=).
+     */
+    public boolean isUpward() {
+        return this == GREATER || this == GREATER_OR_EQUAL;
+    }
+
+    /**
+     * @return true for operators that hold below a threshold (< and <=).
+     */
+    public boolean isDownward() {
+        return this == LESS || this == LESS_OR_EQUAL;
+    }
+
+    /**
+     * Binds this operator to a threshold.
+     *
+     * @param threshold The value to compare against.
+     * @return A predicate testing "value OP threshold".
+     */
+    public DoublePredicate against(double threshold) {
+        return switch (this) {
+            case GREATER -> v -> v > threshold;
+            case LESS -> v -> v < threshold;
+            case GREATER_OR_EQUAL -> v -> v >= threshold;
+            case LESS_OR_EQUAL -> v -> v <= threshold;
+            case EQUAL -> v -> Math.abs(v - threshold) < EPSILON;
+        };
+    }
+
+    /**
+     * Parses an operator symbol.
+     *
+     * @param symbol One of ">", "<", ">=", "<=", "==".
+     * @return The matching comparison.
+     * @throws IllegalArgumentException If the symbol is unknown.
+     */
+    public static Comparison parse(String symbol) {
+        for (Comparison c : values()) {
+            if (c.symbol.equals(symbol))
+                return c;
+        }
+        throw new IllegalArgumentException("Unknown operator: " + symbol);
+    }
+}
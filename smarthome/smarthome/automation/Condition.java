@@ -1,11 +1,22 @@
 package smarthome.automation;
 
+import java.util.Collection;
+import java.util.Set;
+
 import smarthome.core.CentralController;
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.SmartDevice;
 
 /**
  * Functional interface for defining conditions in automation rules.
  */
 public interface Condition {
+
+    /** Cost of a condition that reads a clock or a precomputed counter. */
+    int COST_CONSTANT = 1;
+    /** Cost of a condition that looks at every device of a type. */
+    int COST_PER_DEVICE_SCAN = 10;
+
     /**
      * Evaluates the condition based on the current system state.
      * 
@@ -13,4 +24,52 @@ public interface Condition {
      * @return true if the condition is met, false otherwise.
      */
     boolean evaluate(CentralController controller);
+
+    /**
+     * Estimates how expensive evaluate is, relative to the COST_ constants.
+     * Composite conditions evaluate cheaper children first.
+     * 
+     * @return The estimated cost.
+     */
+    default int estimatedCost() {
+        return COST_PER_DEVICE_SCAN;
+    }
+
+    /**
+     * Lists the devices whose state this condition reads, so the engine can
+     * tell which rules an action may re-trigger.
+     * 
+     * @param controller The central controller providing access to the system.
+     * @return The devices read, or null if they are unknown.
+     */
+    default Collection<SmartDevice> inputs(CentralController controller) {
+        return null;
+    }
+
+    /**
+     * Lists the attributes of the input devices this condition reads, so a
+     * change to another attribute of them does not re-trigger the rule.
+     * 
+     * @return The attributes read, or null if any attribute may matter.
+     */
+    default Set<DeviceAttribute> inputAttributes() {
+        return null;
+    }
+
+    /**
+     * Called by an engine when a rule with this condition is added, before it
+     * is first evaluated, so that a condition fed by device events sees every
+     * event from then on.
+     * 
+     * @param controller The controller the rule will be evaluated with.
+     */
+    default void attach(CentralController controller) {
+    }
+
+    /**
+     * Called by an engine once the rule is removed or replaced. Releases what
+     * attach or evaluate registered, such as state listeners.
+     */
+    default void close() {
+    }
 }
@@ -0,0 +1,90 @@
+package smarthome.automation;
+
+import java.time.Clock;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import smarthome.core.CentralController;
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.SmartDevice;
+
+/**
+ * Time condition on a cron-like schedule. When it is the condition of a
+ * rule added to an AutomationEngine, or one of its top-level conjuncts, the
+ * engine precomputes the next fire time and evaluates the rule only when it
+ * is due; the condition is then true for that one evaluation. Otherwise, e.g.
+ * under an OR or a NOT, it is true during every minute the schedule matches
+ * on the clock of the engine evaluating it, or the system clock outside one.
+ *
+ * The condition is immutable: the scheduling state lives in the engine's
+ * timers, so one condition can serve rules in several engines.
+ */
+public class CronCondition implements Condition {
+    private final CronExpression expression;
+    private final MissedFirePolicy missedFirePolicy;
+
+    public CronCondition(String expression) {
+        this(CronExpression.parse(expression));
+    }
+
+    public CronCondition(CronExpression expression) {
+        this(expression, MissedFirePolicy.FIRE_ONCE);
+    }
+
+    private CronCondition(CronExpression expression, MissedFirePolicy missedFirePolicy) {
+        if (expression == null)
+            throw new IllegalArgumentException("Expression cannot be null");
+        this.expression = expression;
+        this.missedFirePolicy = missedFirePolicy;
+    }
+
+    public CronExpression getExpression() {
+        return expression;
+    }
+
+    public MissedFirePolicy getMissedFirePolicy() {
+        return missedFirePolicy;
+    }
+
+    /**
+     * Sets what happens to occurrences missed while the engine was not
+     * evaluating (FIRE_ONCE by default).
+     * 
+     * @param policy The policy.
+     * @return A condition on the same schedule with that policy.
+     */
+    public CronCondition withMissedFirePolicy(MissedFirePolicy policy) {
+        if (policy == null)
+            throw new IllegalArgumentException("Policy cannot be null");
+        return new CronCondition(expression, policy);
+    }
+
+    @Override
+    public boolean evaluate(CentralController controller) {
+        AutomationEngine.Evaluation evaluation = AutomationEngine.currentEvaluation();
+        if (evaluation == null)
+            return expression.matches(ZonedDateTime.now(Clock.systemDefaultZone()));
+        Boolean due = evaluation.due(this);
+        if (due != null)
+            return due;
+        return expression.matches(ZonedDateTime.now(evaluation.clock()));
+    }
+
+    @Override
+    public Collection<SmartDevice> inputs(CentralController controller) {
+        return List.of(); // reads only the clock
+    }
+
+    @Override
+    public Set<DeviceAttribute> inputAttributes() {
+        return EnumSet.noneOf(DeviceAttribute.class);
+    }
+
+    @Override
+    public int estimatedCost() {
+        return COST_CONSTANT;
+    }
+}
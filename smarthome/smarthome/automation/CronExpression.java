@@ -0,0 +1,236 @@
+package smarthome.automation;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+
+/**
+ * A cron-like schedule, parsed once.
+ *
+ * Clock times use five fields: "minute hour day-of-month month day-of-week",
+ * each "*", a value, a range "a-b", a step "a/n" or "a-b/n", or a
+ * comma-separated list of these. Months may be written JAN-DEC
+ * and days of week MON-SUN (or 0-7, where 0 and 7 are Sunday). Unlike classic
+ * cron, day-of-month and day-of-week must both match.
+ *
+ * Sun times replace the first two fields with "@sunrise" or "@sunset" and an
+ * optional offset in minutes, e.g. "@sunset-30 * * MON-FRI" or "@sunrise+15".
+ * Missing trailing fields default to "*".
+ *
+ * Examples: "0 7 * * MON-FRI", "0/15 8-18 * * *", "30 22 * * SAT,SUN".
+ */
+public final class CronExpression {
+
+    private static final String[] MONTHS = { "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP",
+            "OCT", "NOV", "DEC" };
+    private static final String[] DAYS = { "SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT" };
+    private static final int MAX_DAYS_AHEAD = 366 * 5; // covers Feb 29 and day-of-week combinations
+
+    private final String source;
+    private final BitSet minutes = new BitSet(60);
+    private final BitSet hours = new BitSet(24);
+    private final BitSet daysOfMonth = new BitSet(32); // 1-31
+    private final BitSet months = new BitSet(13); // 1-12
+    private final BitSet daysOfWeek = new BitSet(7); // 0 = Sunday
+    private final boolean sunTime; // fires at sunrise or sunset instead of a clock time
+    private final boolean sunrise;
+    private final int sunOffsetMinutes;
+    private final SunTable sunTable;
+
+    private CronExpression(String source, boolean sunTime, boolean sunrise, int sunOffsetMinutes,
+            SunTable sunTable) {
+        this.source = source;
+        this.sunTime = sunTime;
+        this.sunrise = sunrise;
+        this.sunOffsetMinutes = sunOffsetMinutes;
+        this.sunTable = sunTable;
+    }
+
+    /**
+     * Parses an expression, with sun times taken from SunTable.TUNIS.
+     *
+     * @param expression The expression.
+     * @return The parsed expression.
+     * @throws IllegalArgumentException If the expression is invalid or can
+     *                                  never fire.
+     */
+    public static CronExpression parse(String expression) {
+        return parse(expression, SunTable.TUNIS);
+    }
+
+    /**
+     * Parses an expression.
+     *
+     * @param expression The expression.
+     * @param sunTable   The table sunrise and sunset are read from.
+     * @return The parsed expression.
+     * @throws IllegalArgumentException If the expression is invalid or can
+     *                                  never fire.
+     */
+    public static CronExpression parse(String expression, SunTable sunTable) {
+        if (expression == null || expression.isBlank())
+            throw new IllegalArgumentException("Cron expression cannot be empty");
+        String[] fields = expression.trim().split("\\s+");
+        CronExpression cron;
+        int dateField;
+        if (fields[0].startsWith("@")) {
+            String token = fields[0].toLowerCase();
+            boolean rise = token.startsWith("@sunrise");
+            if (!rise && !token.startsWith("@sunset"))
+                throw new IllegalArgumentException("Unknown cron keyword: " + fields[0]);
+            String offset = token.substring(rise ? 8 : 7);
+            int minutes = 0;
+            if (!offset.isEmpty()) {
+                try {
+                    minutes = Integer.parseInt(offset.startsWith("+") ? offset.substring(1) : offset);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid sun offset: " + fields[0]);
+                }
+            }
+            cron = new CronExpression(expression, true, rise, minutes, sunTable);
+            dateField = 1;
+        } else {
+            if (fields.length < 2)
+                throw new IllegalArgumentException("Cron expression needs a minute and an hour");
+            cron = new CronExpression(expression, false, false, 0, sunTable);
+            parseField(fieldOr(fields, 0), 0, 59, null, cron.minutes);
+            parseField(fieldOr(fields, 1), 0, 23, null, cron.hours);
+            dateField = 2;
+        }
+        if (fields.length > dateField + 3)
+            throw new IllegalArgumentException("Too many cron fields: " + expression);
+        parseField(fieldOr(fields, dateField), 1, 31, null, cron.daysOfMonth);
+        parseField(fieldOr(fields, dateField + 1), 1, 12, MONTHS, cron.months);
+        BitSet dow = new BitSet(8);
+        parseField(fieldOr(fields, dateField + 2), 0, 7, DAYS, dow);
+        if (dow.get(7))
+            dow.set(0);
+        cron.daysOfWeek.or(dow.get(0, 7));
+
+        if (cron.nextAfter(ZonedDateTime.now()) == null)
+            throw new IllegalArgumentException("Cron expression never fires: " + expression);
+        return cron;
+    }
+
+    private static String fieldOr(String[] fields, int index) {
+        return index < fields.length ? fields[index] : "*";
+    }
+
+    private static void parseField(String field, int min, int max, String[] names, BitSet bits) {
+        for (String part : field.split(",")) {
+            int step = 1;
+            String range = part;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+                step = parseValue(part.substring(slash + 1), 1, max, null, 0);
+                range = part.substring(0, slash);
+            }
+            int from;
+            int to;
+            if (range.equals("*")) {
+                from = min;
+                to = max;
+            } else if (range.indexOf('-') > 0) {
+                int dash = range.indexOf('-');
+                from = parseValue(range.substring(0, dash), min, max, names, min);
+                to = parseValue(range.substring(dash + 1), min, max, names, min);
+            } else {
+                from = parseValue(range, min, max, names, min);
+                to = slash >= 0 ? max : from;
+            }
+            if (from > to)
+                throw new IllegalArgumentException("Invalid cron range: " + part);
+            for (int v = from; v <= to; v += step) {
+                bits.set(v);
+            }
+        }
+    }
+
+    private static int parseValue(String value, int min, int max, String[] names, int namesBase) {
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equalsIgnoreCase(value))
+                    return i + namesBase;
+            }
+        }
+        try {
+            int v = Integer.parseInt(value);
+            if (v < min || v > max)
+                throw new IllegalArgumentException("Cron value out of range " + min + "-" + max + ": " + value);
+            return v;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cron value: " + value);
+        }
+    }
+
+    // ===== MATCHING =====
+
+    private boolean matchesDate(LocalDate date) {
+        return months.get(date.getMonthValue()) && daysOfMonth.get(date.getDayOfMonth())
+                && daysOfWeek.get(date.getDayOfWeek().getValue() % 7);
+    }
+
+    private LocalTime sunTimeOn(LocalDate date) {
+        LocalTime base = sunrise ? sunTable.sunrise(date) : sunTable.sunset(date);
+        int minute = base.getHour() * 60 + base.getMinute() + sunOffsetMinutes;
+        minute = Math.max(0, Math.min(24 * 60 - 1, minute)); // offsets do not move to another day
+        return LocalTime.of(minute / 60, minute % 60);
+    }
+
+    /**
+     * Checks whether a time falls in a minute this schedule fires in.
+     *
+     * @param time The time to check.
+     * @return true if the schedule fires during that minute.
+     */
+    public boolean matches(ZonedDateTime time) {
+        LocalDate date = time.toLocalDate();
+        if (!matchesDate(date))
+            return false;
+        if (sunTime) {
+            LocalTime at = sunTimeOn(date);
+            return at.getHour() == time.getHour() && at.getMinute() == time.getMinute();
+        }
+        return hours.get(time.getHour()) && minutes.get(time.getMinute());
+    }
+
+    /**
+     * Computes the first time this schedule fires strictly after a given time.
+     *
+     * @param after The reference time; its zone is used for the schedule.
+     * @return The next fire time, or null if there is none in the next five
+     *         years.
+     */
+    public ZonedDateTime nextAfter(ZonedDateTime after) {
+        ZonedDateTime start = after.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+        LocalDate date = start.toLocalDate();
+        for (int d = 0; d <= MAX_DAYS_AHEAD; d++, date = date.plusDays(1)) {
+            if (!matchesDate(date))
+                continue;
+            boolean firstDay = d == 0;
+            if (sunTime) {
+                ZonedDateTime at = ZonedDateTime.of(date, sunTimeOn(date), after.getZone());
+                if (!at.isBefore(start))
+                    return at;
+                continue;
+            }
+            for (int h = hours.nextSetBit(firstDay ? start.getHour() : 0); h >= 0; h = hours.nextSetBit(h + 1)) {
+                boolean firstHour = firstDay && h == start.getHour();
+                int m = minutes.nextSetBit(firstHour ? start.getMinute() : 0);
+                if (m >= 0) {
+                    ZonedDateTime at = ZonedDateTime.of(date, LocalTime.of(h, m), after.getZone());
+                    if (at.isAfter(after))
+                        return at;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -1,52 +1,146 @@
 package smarthome.automation;
 
+import smarthome.commands.CommandMailbox;
 import smarthome.core.CentralController;
+import smarthome.core.RoomActors;
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.DeviceCommand;
 import smarthome.devices.SmartDevice;
-import smarthome.devices.Thermostat;
+import smarthome.exceptions.InvalidDeviceOperationException;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 public class DeviceAction implements Action {
-    private String targetDeviceType; // null for specific ID
-    private String targetDeviceId; // null for all of type
-    private String command; // "ON", "OFF", "SET_TEMP:25"
 
+    private final DeviceSelector targets;
+    private final String command; // "ON", "OFF", "SET_TEMP:25"
+    private final DeviceCommand parsed;
+
+    /**
+     * Creates an action. The command is parsed here, once, rather than on
+     * every execution.
+     * 
+     * @param command "ON", "OFF", "SET_TEMP:<temperature>", or any command
+     *                accepted by DeviceCommand.parse.
+     * @param target  A device ID, or a device type if isType is true.
+     * @param isType  Whether target names a device type.
+     * @throws IllegalArgumentException If the command is unknown or malformed.
+     */
     public DeviceAction(String command, String target, boolean isType) {
+        this(parse(command), command, target, isType);
+    }
+
+    /**
+     * Creates an action from a parsed command.
+     * 
+     * @param command The command.
+     * @param target  A device ID, or a device type if isType is true.
+     * @param isType  Whether target names a device type.
+     */
+    public DeviceAction(DeviceCommand command, String target, boolean isType) {
+        this(command, String.valueOf(command), target, isType);
+    }
+
+    private DeviceAction(DeviceCommand parsed, String command, String target, boolean isType) {
+        if (parsed == null)
+            throw new IllegalArgumentException("Command cannot be null");
+        this.parsed = parsed;
         this.command = command;
-        if (isType) {
-            this.targetDeviceType = target;
-        } else {
-            this.targetDeviceId = target;
+        this.targets = isType ? DeviceSelector.byType(target) : DeviceSelector.byId(target);
+    }
+
+    private static DeviceCommand parse(String command) {
+        if (command == null)
+            throw new IllegalArgumentException("Command cannot be null");
+        if (command.startsWith("SET_TEMP:")) {
+            try {
+                return new DeviceCommand.SetTargetTemp(Double.parseDouble(command.substring("SET_TEMP:".length())));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid temp format: " + command);
+            }
         }
+        return DeviceCommand.parse(command);
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public DeviceCommand getDeviceCommand() {
+        return parsed;
     }
 
     @Override
     public void execute(CentralController controller) {
-        if (targetDeviceId != null) {
-            SmartDevice d = controller.findDeviceById(targetDeviceId);
-            if (d != null)
+        DeviceActionEvent event = new DeviceActionEvent();
+        event.begin();
+        List<SmartDevice> devices = targets.resolve(controller);
+        RoomActors actors = controller.getRoomActors();
+        CommandMailbox mailbox = isSetting(parsed.kind()) ? controller.getRuleMailbox() : null;
+        for (SmartDevice d : devices) {
+            if (actors == null && mailbox == null)
                 executeOnDevice(d);
-        } else if (targetDeviceType != null) {
-            List<SmartDevice> devices = controller.getDevicesByType(targetDeviceType);
-            for (SmartDevice d : devices) {
-                executeOnDevice(d);
-            }
+            else if (!d.supports(parsed.kind()))
+                continue;
+            else if (actors != null)
+                actors.tell(d, parsed); // applied by the room's owner thread
+            else
+                mailbox.offer(d, parsed); // coalesced with the rest of the wave, delivered by the engine
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.command = command;
+            event.targetCount = devices.size();
+            event.commit();
         }
     }
 
+    @Override
+    public Collection<SmartDevice> targets(CentralController controller) {
+        return targets.resolve(controller);
+    }
+
+    /**
+     * @return The attributes the command may change, including side effects
+     *         such as a light switching on when its brightness is set.
+     */
+    @Override
+    public Set<DeviceAttribute> writtenAttributes() {
+        return switch (parsed.kind()) {
+            case TURN_ON -> EnumSet.of(DeviceAttribute.POWER, DeviceAttribute.BRIGHTNESS);
+            case TURN_OFF, TOGGLE -> EnumSet.of(DeviceAttribute.POWER, DeviceAttribute.BRIGHTNESS,
+                    DeviceAttribute.MOTION, DeviceAttribute.ALARM, DeviceAttribute.MEDIA);
+            case SET_BRIGHTNESS -> EnumSet.of(DeviceAttribute.BRIGHTNESS, DeviceAttribute.POWER);
+            case SET_TARGET_TEMP -> EnumSet.of(DeviceAttribute.TARGET_TEMPERATURE);
+            case SET_MODE -> EnumSet.of(DeviceAttribute.MODE);
+            case SET_SENSITIVITY -> EnumSet.of(DeviceAttribute.SENSITIVITY);
+            case SET_VOLUME, SET_CHANNEL -> EnumSet.of(DeviceAttribute.MEDIA);
+            case ARM -> EnumSet.of(DeviceAttribute.ALARM, DeviceAttribute.POWER);
+            case DISARM -> EnumSet.of(DeviceAttribute.ALARM);
+            case SET_ENERGY_MODE -> EnumSet.of(DeviceAttribute.ENERGY_MODE, DeviceAttribute.BRIGHTNESS,
+                    DeviceAttribute.SENSITIVITY, DeviceAttribute.POWER);
+        };
+    }
+
+    private static boolean isSetting(DeviceCommand.Kind kind) {
+        return switch (kind) {
+            case SET_BRIGHTNESS, SET_TARGET_TEMP, SET_MODE, SET_SENSITIVITY, SET_VOLUME, SET_CHANNEL,
+                    SET_ENERGY_MODE -> true;
+            default -> false;
+        };
+    }
+
+    // Devices that do not support the command, e.g. a light targeted by
+    // type with SET_TEMP, are skipped.
     private void executeOnDevice(SmartDevice d) {
-        if (command.equalsIgnoreCase("ON")) {
-            d.turnOn();
-        } else if (command.equalsIgnoreCase("OFF")) {
-            d.turnOff();
-        } else if (command.startsWith("SET_TEMP:")) {
-            if (d instanceof Thermostat) {
-                try {
-                    double t = Double.parseDouble(command.split(":")[1]);
-                    ((Thermostat) d).setTargetTemperature(t);
-                } catch (Exception e) {
-                    System.err.println("Invalid temp format");
-                }
-            }
+        if (!d.supports(parsed.kind()))
+            return;
+        try {
+            d.execute(parsed);
+        } catch (InvalidDeviceOperationException e) {
+            throw new IllegalStateException(e.getMessage(), e);
         }
     }
 }
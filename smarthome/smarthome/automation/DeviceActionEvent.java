@@ -0,0 +1,25 @@
+package smarthome.automation;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one execution of a DeviceAction.
+ */
+@Name("smarthome.DeviceAction")
+@Label("Device Action")
+@Category({ "Smart Home", "Automation" })
+@Description("A device command sent by a rule to its target devices")
+@StackTrace(false)
+final class DeviceActionEvent extends Event {
+
+    @Label("Command")
+    String command;
+
+    @Label("Target Count")
+    int targetCount;
+}
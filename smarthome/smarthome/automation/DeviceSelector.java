@@ -0,0 +1,60 @@
+package smarthome.automation;
+
+import java.util.Collections;
+import java.util.List;
+
+import smarthome.core.CentralController;
+import smarthome.devices.SmartDevice;
+
+/**
+ * Resolves a rule target (one device ID or every device of a type) to device
+ * references, and keeps the result until devices are added to or removed from
+ * the controller.
+ */
+class DeviceSelector {
+
+    private final String deviceId; // null when selecting by type
+    private final String deviceType; // null when selecting by ID
+    private CentralController resolvedFor;
+    private long resolvedAt;
+    private List<SmartDevice> resolved;
+
+    private DeviceSelector(String deviceId, String deviceType) {
+        this.deviceId = deviceId;
+        this.deviceType = deviceType;
+    }
+
+    static DeviceSelector byId(String deviceId) {
+        return new DeviceSelector(deviceId, null);
+    }
+
+    static DeviceSelector byType(String deviceType) {
+        return new DeviceSelector(null, deviceType);
+    }
+
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    String getDeviceType() {
+        return deviceType;
+    }
+
+    /**
+     * @return The selected devices; the list must not be modified.
+     */
+    synchronized List<SmartDevice> resolve(CentralController controller) {
+        long version = controller.getTopologyVersion();
+        if (resolved == null || resolvedFor != controller || resolvedAt != version) {
+            if (deviceId != null) {
+                SmartDevice d = controller.findDeviceById(deviceId);
+                resolved = d == null ? Collections.emptyList() : List.of(d);
+            } else {
+                resolved = List.copyOf(controller.getDevicesByType(deviceType));
+            }
+            resolvedFor = controller;
+            resolvedAt = version;
+        }
+        return resolved;
+    }
+}
@@ -0,0 +1,13 @@
+package smarthome.automation;
+
+/**
+ * When a rule runs its action relative to its condition.
+ */
+public enum FireMode {
+    /** Every evaluation where the condition is true. */
+    LEVEL,
+    /** Once, when the condition turns from false to true. */
+    RISING,
+    /** Once, when the condition turns from true to false. */
+    FALLING
+}
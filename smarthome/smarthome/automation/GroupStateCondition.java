@@ -1,8 +1,11 @@
 package smarthome.automation;
 
 import smarthome.core.CentralController;
+import smarthome.devices.DeviceAttribute;
 import smarthome.devices.SmartDevice;
-import java.util.List;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
 
 public class GroupStateCondition implements Condition {
     private String deviceType;
@@ -17,24 +20,32 @@ public class GroupStateCondition implements Condition {
 
     @Override
     public boolean evaluate(CentralController controller) {
-        List<SmartDevice> devices = controller.getDevicesByType(deviceType);
-        if (devices.isEmpty())
+        int total = controller.countDevicesByType(deviceType);
+        if (total == 0)
             return false;
 
+        int matching = controller.countDevicesInState(deviceType, requiredState);
         if (allMustMatch) {
             // Check if ALL match
-            for (SmartDevice d : devices) {
-                if (d.isOn() != requiredState)
-                    return false;
-            }
-            return true;
+            return matching == total;
         } else {
             // Check if ANY match
-            for (SmartDevice d : devices) {
-                if (d.isOn() == requiredState)
-                    return true;
-            }
-            return false;
+            return matching > 0;
         }
     }
+
+    @Override
+    public Collection<SmartDevice> inputs(CentralController controller) {
+        return controller.getDevicesByType(deviceType);
+    }
+
+    @Override
+    public Set<DeviceAttribute> inputAttributes() {
+        return EnumSet.of(DeviceAttribute.POWER);
+    }
+
+    @Override
+    public int estimatedCost() {
+        return COST_CONSTANT;
+    }
 }
@@ -0,0 +1,14 @@
+package smarthome.automation;
+
+/**
+ * What a scheduled rule does about occurrences that passed while the engine
+ * was not evaluating (e.g. the process was paused or no tick came in time).
+ */
+public enum MissedFirePolicy {
+    /** Fire once for any number of missed occurrences. */
+    FIRE_ONCE,
+    /** Fire once per missed occurrence, oldest first, within the action budget. */
+    CATCH_UP,
+    /** Drop missed occurrences; only fire for occurrences that are on time. */
+    SKIP
+}
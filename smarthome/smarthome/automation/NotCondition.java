@@ -0,0 +1,55 @@
+package smarthome.automation;
+
+import java.util.Collection;
+import java.util.Set;
+
+import smarthome.core.CentralController;
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.SmartDevice;
+
+/**
+ * Negates another condition.
+ */
+public class NotCondition implements Condition {
+    private final Condition child;
+
+    public NotCondition(Condition child) {
+        if (child == null)
+            throw new IllegalArgumentException("Condition cannot be null");
+        this.child = child;
+    }
+
+    public Condition getChild() {
+        return child;
+    }
+
+    @Override
+    public boolean evaluate(CentralController controller) {
+        return !child.evaluate(controller);
+    }
+
+    @Override
+    public Collection<SmartDevice> inputs(CentralController controller) {
+        return child.inputs(controller);
+    }
+
+    @Override
+    public Set<DeviceAttribute> inputAttributes() {
+        return child.inputAttributes();
+    }
+
+    @Override
+    public void attach(CentralController controller) {
+        child.attach(controller);
+    }
+
+    @Override
+    public void close() {
+        child.close();
+    }
+
+    @Override
+    public int estimatedCost() {
+        return child.estimatedCost();
+    }
+}
@@ -0,0 +1,99 @@
+package smarthome.automation;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import smarthome.core.CentralController;
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.SmartDevice;
+
+/**
+ * True when any child condition is true. Children are evaluated in order
+ * and evaluation stops at the first true one, so cheap conditions should
+ * come first (RuleCompiler sorts them by estimated cost).
+ */
+public class OrCondition implements Condition {
+    private final Condition[] children;
+
+    public OrCondition(Condition... children) {
+        if (children.length == 0)
+            throw new IllegalArgumentException("OR needs at least one condition");
+        this.children = children.clone();
+    }
+
+    /**
+     * @return The child conditions, in evaluation order.
+     */
+    public List<Condition> getChildren() {
+        return List.of(children);
+    }
+
+    @Override
+    public boolean evaluate(CentralController controller) {
+        for (Condition child : children) {
+            if (child.evaluate(controller))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The inputs of the children that report them, or null if none
+     *         does.
+     */
+    @Override
+    public Collection<SmartDevice> inputs(CentralController controller) {
+        Set<SmartDevice> inputs = null;
+        for (Condition child : children) {
+            Collection<SmartDevice> childInputs = child.inputs(controller);
+            if (childInputs != null) {
+                if (inputs == null)
+                    inputs = new LinkedHashSet<>();
+                inputs.addAll(childInputs);
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * @return The attributes read by any child, or null if a child does not
+     *         report them.
+     */
+    @Override
+    public Set<DeviceAttribute> inputAttributes() {
+        Set<DeviceAttribute> attributes = EnumSet.noneOf(DeviceAttribute.class);
+        for (Condition child : children) {
+            Set<DeviceAttribute> childAttributes = child.inputAttributes();
+            if (childAttributes == null)
+                return null;
+            attributes.addAll(childAttributes);
+        }
+        return attributes;
+    }
+
+    @Override
+    public void attach(CentralController controller) {
+        for (Condition child : children) {
+            child.attach(controller);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Condition child : children) {
+            child.close();
+        }
+    }
+
+    @Override
+    public int estimatedCost() {
+        int cost = 0;
+        for (Condition child : children) {
+            cost += child.estimatedCost();
+        }
+        return cost;
+    }
+}
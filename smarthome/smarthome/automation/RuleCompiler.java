@@ -0,0 +1,61 @@
+package smarthome.automation;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Rewrites a condition tree into the form that is cheapest to evaluate:
+ * nested ANDs and ORs are flattened, double negations removed, and the
+ * children of every AND/OR sorted by estimated cost so that short-circuiting
+ * skips the expensive ones as often as possible.
+ */
+public final class RuleCompiler {
+
+    private RuleCompiler() {
+    }
+
+    /**
+     * Compiles a condition tree. Leaf conditions are returned unchanged.
+     * 
+     * @param condition The condition to compile.
+     * @return An equivalent condition.
+     */
+    public static Condition compile(Condition condition) {
+        if (condition instanceof NotCondition not) {
+            Condition inner = compile(not.getChild());
+            if (inner instanceof NotCondition doubleNot)
+                return doubleNot.getChild();
+            return new NotCondition(inner);
+        }
+        if (condition instanceof AndCondition and) {
+            List<Condition> flat = new ArrayList<>();
+            for (Condition child : and.getChildren()) {
+                Condition compiled = compile(child);
+                if (compiled instanceof AndCondition nested)
+                    flat.addAll(nested.getChildren());
+                else
+                    flat.add(compiled);
+            }
+            return flat.size() == 1 ? flat.get(0) : new AndCondition(sortByCost(flat));
+        }
+        if (condition instanceof OrCondition or) {
+            List<Condition> flat = new ArrayList<>();
+            for (Condition child : or.getChildren()) {
+                Condition compiled = compile(child);
+                if (compiled instanceof OrCondition nested)
+                    flat.addAll(nested.getChildren());
+                else
+                    flat.add(compiled);
+            }
+            return flat.size() == 1 ? flat.get(0) : new OrCondition(sortByCost(flat));
+        }
+        return condition;
+    }
+
+    private static Condition[] sortByCost(List<Condition> conditions) {
+        // Stable sort: conditions of equal cost keep the order they were written in
+        conditions.sort(Comparator.comparingInt(Condition::estimatedCost));
+        return conditions.toArray(new Condition[0]);
+    }
+}
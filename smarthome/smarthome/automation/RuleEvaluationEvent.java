@@ -0,0 +1,52 @@
+package smarthome.automation;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one evaluation of a rule. Its duration covers the
+ * condition and the fire-mode and cooldown checks, not the action.
+ */
+@Name("smarthome.RuleEvaluation")
+@Label("Rule Evaluation")
+@Category({ "Smart Home", "Automation" })
+@Description("Evaluation of a rule's condition and whether the rule fired")
+@StackTrace(false)
+final class RuleEvaluationEvent extends Event {
+
+    static final String FIRED = "FIRED";
+    static final String NOT_FIRED = "NOT_FIRED";
+    static final String COOLDOWN = "COOLDOWN";
+    static final String ERROR = "ERROR";
+
+    @Label("Rule")
+    String rule;
+
+    @Label("Outcome")
+    @Description("FIRED, NOT_FIRED, COOLDOWN or ERROR")
+    String outcome;
+
+    @Label("Condition True")
+    boolean conditionTrue;
+
+    /**
+     * Ends the event and commits it if it is being recorded. Fields are only
+     * set when it is, so a disabled event costs nothing.
+     *
+     * @return fired, for use in a return statement.
+     */
+    boolean finish(String rule, String outcome, boolean conditionTrue, boolean fired) {
+        end();
+        if (shouldCommit()) {
+            this.rule = rule;
+            this.outcome = outcome;
+            this.conditionTrue = conditionTrue;
+            commit();
+        }
+        return fired;
+    }
+}
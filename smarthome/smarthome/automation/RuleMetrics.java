@@ -0,0 +1,93 @@
+package smarthome.automation;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import smarthome.telemetry.LatencyHistogram;
+
+/**
+ * Execution counters and latency histograms of one rule. Counters are
+ * LongAdders, so rules evaluated in parallel record without contention.
+ *
+ * Counters are exact. Reading the clock costs more than most conditions, so
+ * condition latency is only timed on every LATENCY_SAMPLE_INTERVAL-th
+ * evaluation; action latency is timed on every execution.
+ */
+public final class RuleMetrics {
+
+    public static final int LATENCY_SAMPLE_INTERVAL = 8;
+
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder conditionTrue = new LongAdder();
+    private final LongAdder actions = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram conditionLatency = new LatencyHistogram();
+    private final LatencyHistogram actionLatency = new LatencyHistogram();
+
+    void recordEvaluation(boolean result) {
+        evaluations.increment();
+        if (result)
+            conditionTrue.increment();
+    }
+
+    void recordConditionLatency(long nanos) {
+        conditionLatency.record(nanos);
+    }
+
+    void recordAction(long nanos) {
+        actions.increment();
+        actionLatency.record(nanos);
+    }
+
+    void recordError() {
+        errors.increment();
+    }
+
+    /**
+     * @return How many times the condition was evaluated.
+     */
+    public long getEvaluations() {
+        return evaluations.sum();
+    }
+
+    /**
+     * @return How many evaluations found the condition true, whether or not
+     *         the rule then fired.
+     */
+    public long getConditionTrue() {
+        return conditionTrue.sum();
+    }
+
+    /**
+     * @return How many times the action was executed.
+     */
+    public long getActions() {
+        return actions.sum();
+    }
+
+    /**
+     * @return How many condition evaluations or actions threw.
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return The latency of sampled condition evaluations.
+     */
+    public LatencyHistogram getConditionLatency() {
+        return conditionLatency;
+    }
+
+    public LatencyHistogram getActionLatency() {
+        return actionLatency;
+    }
+
+    /**
+     * @return The mean time spent per evaluation, counting both the condition
+     *         and the actions it led to, in nanoseconds.
+     */
+    public double getMeanCostNanos() {
+        long n = getEvaluations();
+        return n == 0 ? 0 : conditionLatency.getMean() + (double) actionLatency.getSum() / n;
+    }
+}
@@ -0,0 +1,166 @@
+package smarthome.automation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, versioned set of automation rules. The engine publishes a new
+ * RuleSet for every change, so evaluation reads a consistent set without
+ * locking and a bulk upload replaces all rules at once.
+ */
+public final class RuleSet {
+
+    /** Order in which actions are applied: lowest priority first, so the highest wins. */
+    static final Comparator<AutomationRule> EXECUTION_ORDER = Comparator
+            .comparingInt(AutomationRule::getPriority).thenComparing(AutomationRule::getName);
+
+    public static final RuleSet EMPTY = new RuleSet(0, List.of());
+
+    private final long version;
+    private final Map<String, AutomationRule> byName;
+    private final List<AutomationRule> ordered; // in execution order
+    private final Set<AutomationRule> scheduled; // rules with a CronCondition
+
+    private RuleSet(long version, Collection<AutomationRule> rules) {
+        Map<String, AutomationRule> map = new HashMap<>();
+        for (AutomationRule rule : rules) {
+            if (rule == null)
+                throw new IllegalArgumentException("Rule cannot be null");
+            if (map.put(rule.getName(), rule) != null)
+                throw new IllegalArgumentException("Duplicate rule name: " + rule.getName());
+        }
+        List<AutomationRule> sorted = new ArrayList<>(map.values());
+        sorted.sort(EXECUTION_ORDER);
+        Set<AutomationRule> timed = new HashSet<>();
+        for (AutomationRule rule : sorted) {
+            if (!schedulesOf(rule).isEmpty())
+                timed.add(rule);
+        }
+        this.version = version;
+        this.byName = Collections.unmodifiableMap(map);
+        this.ordered = Collections.unmodifiableList(sorted);
+        this.scheduled = Collections.unmodifiableSet(timed);
+    }
+
+    /**
+     * @return The version, incremented by every change.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The rules, in execution order (ascending priority, then name).
+     */
+    public List<AutomationRule> getRules() {
+        return ordered;
+    }
+
+    /**
+     * @return The rule with this name, or null.
+     */
+    public AutomationRule getRule(String name) {
+        return byName.get(name);
+    }
+
+    public int size() {
+        return ordered.size();
+    }
+
+    /**
+     * @return true if this exact rule instance is in the set.
+     */
+    public boolean contains(AutomationRule rule) {
+        return byName.get(rule.getName()) == rule;
+    }
+
+    Set<AutomationRule> getScheduledRules() {
+        return scheduled;
+    }
+
+    // ===== CHANGES =====
+
+    /**
+     * @return A new set with the rule added, replacing any rule of the same
+     *         name.
+     */
+    public RuleSet with(AutomationRule rule) {
+        return patched(List.of(rule), List.of());
+    }
+
+    /**
+     * @return A new set without the named rule, or this set if there is no
+     *         such rule.
+     */
+    public RuleSet without(String name) {
+        if (!byName.containsKey(name))
+            return this;
+        return patched(List.of(), List.of(name));
+    }
+
+    /**
+     * Creates the next version holding exactly the given rules.
+     *
+     * @param rules The new rules.
+     * @return The new set.
+     * @throws IllegalArgumentException If two rules share a name.
+     */
+    public RuleSet replacedBy(Collection<AutomationRule> rules) {
+        return new RuleSet(version + 1, rules);
+    }
+
+    /**
+     * Creates the next version with some rules added or replaced (by name)
+     * and others removed.
+     *
+     * @param upserts  Rules to add, replacing rules of the same name.
+     * @param removals Names of rules to remove.
+     * @return The new set.
+     * @throws IllegalArgumentException If a removed rule does not exist, or
+     *                                  two upserted rules share a name.
+     */
+    public RuleSet patched(Collection<AutomationRule> upserts, Collection<String> removals) {
+        Map<String, AutomationRule> next = new LinkedHashMap<>(byName);
+        for (String name : removals) {
+            if (next.remove(name) == null)
+                throw new IllegalArgumentException("Unknown rule: " + name);
+        }
+        Set<String> upserted = new HashSet<>();
+        for (AutomationRule rule : upserts) {
+            if (rule == null)
+                throw new IllegalArgumentException("Rule cannot be null");
+            if (!upserted.add(rule.getName()))
+                throw new IllegalArgumentException("Duplicate rule name: " + rule.getName());
+            next.put(rule.getName(), rule);
+        }
+        return new RuleSet(version + 1, next.values());
+    }
+
+    /**
+     * Finds the schedules a rule's condition requires: the CronConditions
+     * that are the condition or one of its top-level conjuncts. The rule
+     * cannot be true outside them, so it only needs evaluating when one is
+     * due. Schedules under an OR or a NOT do not gate the rule.
+     */
+    static List<CronCondition> schedulesOf(AutomationRule rule) {
+        List<CronCondition> schedules = new ArrayList<>();
+        collectSchedules(rule.getCondition(), schedules);
+        return schedules;
+    }
+
+    private static void collectSchedules(Condition condition, List<CronCondition> schedules) {
+        if (condition instanceof CronCondition cron) {
+            schedules.add(cron);
+        } else if (condition instanceof AndCondition and) {
+            and.getChildren().forEach(c -> collectSchedules(c, schedules));
+        }
+    }
+}
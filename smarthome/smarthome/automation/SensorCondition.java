@@ -1,25 +1,28 @@
 package smarthome.automation;
 
 import smarthome.core.CentralController;
+import smarthome.devices.DeviceAttribute;
 import smarthome.devices.MotionSensor;
 import smarthome.devices.SmartDevice;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 public class SensorCondition implements Condition {
-    private String sensorType; // e.g., "MotionSensor"
-    private boolean expectedState; // true for detected, false for clear
+    private final DeviceSelector sensors; // e.g., "MotionSensor"
+    private final boolean expectedState; // true for detected, false for clear
 
     public SensorCondition(String sensorType, boolean expectedState) {
-        this.sensorType = sensorType;
+        this.sensors = DeviceSelector.byType(sensorType);
         this.expectedState = expectedState;
     }
 
     @Override
     public boolean evaluate(CentralController controller) {
-        List<SmartDevice> devices = controller.getDevicesByType(sensorType);
+        List<SmartDevice> devices = sensors.resolve(controller);
         for (SmartDevice device : devices) {
-            if (device instanceof MotionSensor) {
-                MotionSensor sensor = (MotionSensor) device;
+            if (device instanceof MotionSensor sensor) {
                 if (sensor.isMotionDetected() == expectedState) {
                     return true; // If ANY sensor matches
                 }
@@ -27,4 +30,19 @@ public class SensorCondition implements Condition {
         }
         return false;
     }
+
+    @Override
+    public Collection<SmartDevice> inputs(CentralController controller) {
+        return sensors.resolve(controller);
+    }
+
+    @Override
+    public Set<DeviceAttribute> inputAttributes() {
+        return EnumSet.of(DeviceAttribute.MOTION);
+    }
+
+    @Override
+    public int estimatedCost() {
+        return COST_PER_DEVICE_SCAN;
+    }
 }
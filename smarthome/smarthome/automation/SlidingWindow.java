@@ -0,0 +1,131 @@
+package smarthome.automation;
+
+/**
+ * Time-ordered samples of one device, kept for a sliding time window, with
+ * count, sum, min and max maintained as samples enter and leave. Min and max
+ * use monotonic deques, so every operation is O(1) amortized.
+ *
+ * The window holds at most a fixed number of samples; when it is full the
+ * oldest sample leaves early. The value of the last sample that left is kept
+ * as the value in effect at the start of the window.
+ */
+final class SlidingWindow {
+
+    private final long[] times; // ring, sample seq % capacity
+    private final double[] values;
+    private long head; // seq of the oldest sample
+    private long tail; // seq of the next sample
+    private double sum;
+    private double carry; // value in effect before the oldest sample, NaN if unknown
+
+    private final MonotonicDeque min;
+    private final MonotonicDeque max;
+
+    SlidingWindow(int capacity, double initialValue) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        this.times = new long[capacity];
+        this.values = new double[capacity];
+        this.carry = initialValue;
+        this.min = new MonotonicDeque(capacity, false);
+        this.max = new MonotonicDeque(capacity, true);
+    }
+
+    /**
+     * Adds a sample. Samples must be added in time order.
+     */
+    void add(long time, double value) {
+        if (size() == times.length)
+            evictOldest();
+        int slot = (int) (tail % times.length);
+        times[slot] = time;
+        values[slot] = value;
+        sum += value;
+        min.push(tail);
+        max.push(tail);
+        tail++;
+    }
+
+    /**
+     * Drops the samples taken before a time.
+     *
+     * @param cutoff The start of the window (epoch millis).
+     */
+    void evictBefore(long cutoff) {
+        while (size() > 0 && times[(int) (head % times.length)] < cutoff) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        double value = values[(int) (head % times.length)];
+        sum -= value;
+        carry = value;
+        min.evict(head);
+        max.evict(head);
+        head++;
+        if (head == tail)
+            sum = 0; // drop accumulated rounding error
+    }
+
+    int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * Computes an aggregate over the window. COUNT and SUM treat samples as
+     * events; AVG, MIN and MAX treat them as levels and also include the
+     * value in effect at the start of the window.
+     *
+     * @return The aggregate, or NaN if there is no value to aggregate.
+     */
+    double aggregate(Aggregate aggregate) {
+        boolean hasCarry = !Double.isNaN(carry);
+        return switch (aggregate) {
+            case COUNT -> size();
+            case SUM -> sum;
+            case AVG -> size() == 0 ? carry : (sum + (hasCarry ? carry : 0)) / (size() + (hasCarry ? 1 : 0));
+            case MIN -> size() == 0 ? carry : hasCarry ? Math.min(min.peek(), carry) : min.peek();
+            case MAX -> size() == 0 ? carry : hasCarry ? Math.max(max.peek(), carry) : max.peek();
+        };
+    }
+
+    /**
+     * Sample seqs whose values are monotonic from head to tail, so the head is
+     * always the minimum (or maximum) of the window.
+     */
+    private final class MonotonicDeque {
+        private final long[] seqs;
+        private final boolean keepsMax;
+        private int first;
+        private int count;
+
+        MonotonicDeque(int capacity, boolean keepsMax) {
+            this.seqs = new long[capacity];
+            this.keepsMax = keepsMax;
+        }
+
+        void push(long seq) {
+            double value = values[(int) (seq % values.length)];
+            while (count > 0) {
+                double last = values[(int) (seqs[(first + count - 1) % seqs.length] % values.length)];
+                if (keepsMax ? last > value : last < value)
+                    break;
+                count--;
+            }
+            seqs[(first + count) % seqs.length] = seq;
+            count++;
+        }
+
+        void evict(long seq) {
+            if (count > 0 && seqs[first] == seq) {
+                first = (first + 1) % seqs.length;
+                count--;
+            }
+        }
+
+        double peek() {
+            return values[(int) (seqs[first] % values.length)];
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package smarthome.automation;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * Local table of sunrise and sunset times, one pair per month (taken on the
+ * 15th), interpolated linearly for the days in between.
+ */
+public final class SunTable {
+
+    /** Approximate times for Tunis, local standard time (UTC+1). */
+    public static final SunTable TUNIS = new SunTable(
+            new LocalTime[] { LocalTime.of(7, 30), LocalTime.of(7, 10), LocalTime.of(6, 35), LocalTime.of(5, 55),
+                    LocalTime.of(5, 25), LocalTime.of(5, 10), LocalTime.of(5, 20), LocalTime.of(5, 45),
+                    LocalTime.of(6, 10), LocalTime.of(6, 35), LocalTime.of(7, 5), LocalTime.of(7, 25) },
+            new LocalTime[] { LocalTime.of(17, 25), LocalTime.of(17, 55), LocalTime.of(18, 20), LocalTime.of(18, 45),
+                    LocalTime.of(19, 10), LocalTime.of(19, 30), LocalTime.of(19, 30), LocalTime.of(19, 5),
+                    LocalTime.of(18, 25), LocalTime.of(17, 45), LocalTime.of(17, 10), LocalTime.of(17, 5) });
+
+    private final int[] sunrise; // minute of day, per month
+    private final int[] sunset;
+
+    /**
+     * Creates a table.
+     * 
+     * @param sunrise Sunrise on the 15th of each month, January first.
+     * @param sunset  Sunset on the 15th of each month, January first.
+     */
+    public SunTable(LocalTime[] sunrise, LocalTime[] sunset) {
+        if (sunrise.length != 12 || sunset.length != 12)
+            throw new IllegalArgumentException("Sun table needs one entry per month");
+        this.sunrise = new int[12];
+        this.sunset = new int[12];
+        for (int m = 0; m < 12; m++) {
+            this.sunrise[m] = sunrise[m].getHour() * 60 + sunrise[m].getMinute();
+            this.sunset[m] = sunset[m].getHour() * 60 + sunset[m].getMinute();
+        }
+    }
+
+    public LocalTime sunrise(LocalDate date) {
+        return LocalTime.ofSecondOfDay(interpolate(sunrise, date) * 60L);
+    }
+
+    public LocalTime sunset(LocalDate date) {
+        return LocalTime.ofSecondOfDay(interpolate(sunset, date) * 60L);
+    }
+
+    private static int interpolate(int[] table, LocalDate date) {
+        LocalDate mid = date.withDayOfMonth(15);
+        LocalDate other = date.isBefore(mid) ? mid.minusMonths(1) : mid.plusMonths(1);
+        int a = table[mid.getMonthValue() - 1];
+        int b = table[other.getMonthValue() - 1];
+        double span = Math.abs(other.toEpochDay() - mid.toEpochDay());
+        double t = Math.abs(date.toEpochDay() - mid.toEpochDay()) / span;
+        return (int) Math.round(a + (b - a) * t);
+    }
+}
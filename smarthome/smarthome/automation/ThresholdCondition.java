@@ -1,52 +1,85 @@
 package smarthome.automation;
 
 import smarthome.core.CentralController;
+import smarthome.devices.DeviceAttribute;
 import smarthome.devices.SmartDevice;
 import smarthome.devices.Thermostat;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.DoublePredicate;
 
 public class ThresholdCondition implements Condition {
-    private String deviceType;
-    private String metric; // "Temperature"
-    private double threshold;
-    private String operator; // ">", "<", ">=", "<=", "=="
+    private final DeviceSelector devices;
+    private final boolean readsTemperature; // metric "Temperature", the only one supported so far
+    private final Comparison comparison;
+    private final DoublePredicate trigger; // value OP threshold
+    private DoublePredicate released; // null when there is no hysteresis
+    private boolean latched; // true while above (or below) the band
 
     public ThresholdCondition(String deviceType, String metric, String operator, double threshold) {
-        this.deviceType = deviceType;
-        this.metric = metric;
-        this.operator = operator;
-        this.threshold = threshold;
+        this.devices = DeviceSelector.byType(deviceType);
+        this.readsTemperature = "Temperature".equalsIgnoreCase(metric);
+        this.comparison = Comparison.parse(operator);
+        this.trigger = comparison.against(threshold);
+    }
+
+    /**
+     * Creates a threshold with a hysteresis band. The condition becomes true
+     * when a value crosses threshold and stays true until every value is back
+     * across releaseThreshold, e.g. "> 25" released below 23.
+     * 
+     * @param releaseThreshold Must be on the other side of threshold from the
+     *                         operator (below it for > and >=, above it for <
+     *                         and <=).
+     */
+    public ThresholdCondition(String deviceType, String metric, String operator, double threshold,
+            double releaseThreshold) {
+        this(deviceType, metric, operator, threshold);
+        if (!comparison.isUpward() && !comparison.isDownward())
+            throw new IllegalArgumentException("Hysteresis needs a >, >=, < or <= operator");
+        if ((comparison.isUpward() && releaseThreshold > threshold)
+                || (comparison.isDownward() && releaseThreshold < threshold))
+            throw new IllegalArgumentException("Release threshold must be inside the band");
+        this.released = comparison.isUpward() ? Comparison.LESS.against(releaseThreshold)
+                : Comparison.GREATER.against(releaseThreshold);
     }
 
     @Override
     public boolean evaluate(CentralController controller) {
-        List<SmartDevice> devices = controller.getDevicesByType(deviceType);
-        for (SmartDevice device : devices) {
-            if (device instanceof Thermostat && metric.equalsIgnoreCase("Temperature")) {
-                Thermostat t = (Thermostat) device;
+        if (!readsTemperature)
+            return false; // Add other device types/metrics here
+        boolean held = false;
+        List<SmartDevice> selected = devices.resolve(controller);
+        for (SmartDevice device : selected) {
+            if (device instanceof Thermostat t) {
                 double val = t.getCurrentTemperature();
-                if (compare(val, threshold, operator))
+                if (trigger.test(val)) {
+                    latched = released != null;
                     return true;
+                }
+                if (latched && !released.test(val))
+                    held = true;
             }
-            // Add other device types/metrics here
         }
-        return false;
+        latched = held;
+        return held;
     }
 
-    private boolean compare(double val, double threshold, String operator) {
-        switch (operator) {
-            case ">":
-                return val > threshold;
-            case "<":
-                return val < threshold;
-            case ">=":
-                return val >= threshold;
-            case "<=":
-                return val <= threshold;
-            case "==":
-                return Math.abs(val - threshold) < 0.001;
-            default:
-                return false;
-        }
+    @Override
+    public Collection<SmartDevice> inputs(CentralController controller) {
+        return devices.resolve(controller);
+    }
+
+    @Override
+    public Set<DeviceAttribute> inputAttributes() {
+        return readsTemperature ? EnumSet.of(DeviceAttribute.CURRENT_TEMPERATURE)
+                : EnumSet.noneOf(DeviceAttribute.class);
+    }
+
+    @Override
+    public int estimatedCost() {
+        return COST_PER_DEVICE_SCAN;
     }
 }
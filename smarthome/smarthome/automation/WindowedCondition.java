@@ -0,0 +1,202 @@
+package smarthome.automation;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.DoublePredicate;
+
+import smarthome.core.CentralController;
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.DeviceStateListener;
+import smarthome.devices.SmartDevice;
+import smarthome.telemetry.TelemetryMetric;
+
+/**
+ * Condition over a sliding time window of device state changes, e.g. "no
+ * motion in 10 minutes", "three motion detections within 30 seconds" or
+ * "average temperature over 5 minutes is above 24".
+ * 
+ * The condition listens to the controller it is attached to (by the engine,
+ * when its rule is added; otherwise the one it is first evaluated with) and
+ * keeps one bounded window of samples per matching device, recorded as the
+ * device reports changes. Closing it, which the engine does when the rule is
+ * removed or replaced, stops listening.
+ */
+public class WindowedCondition implements Condition, DeviceStateListener {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final String deviceType;
+    private final TelemetryMetric metric;
+    private final Aggregate aggregate;
+    private final DoublePredicate test;
+    private final long windowMillis;
+    private final boolean allMustMatch; // true for "ALL", false for "ANY"
+    private Clock clock = Clock.systemUTC();
+    private int capacity = DEFAULT_CAPACITY;
+
+    private final Map<String, SlidingWindow> windows = new HashMap<>(); // device ID -> samples
+    private CentralController attachedTo;
+
+    /**
+     * Creates a windowed condition.
+     * 
+     * @param deviceType   The device type to watch (e.g., "Thermostat").
+     * @param metric       The value sampled on each change.
+     * @param aggregate    The aggregate computed over the window.
+     * @param operator     One of ">", "<", ">=", "<=", "==".
+     * @param threshold    The value the aggregate is compared with.
+     * @param window       The length of the window.
+     * @param allMustMatch true if every device must match, false for any.
+     */
+    public WindowedCondition(String deviceType, TelemetryMetric metric, Aggregate aggregate,
+            String operator, double threshold, Duration window, boolean allMustMatch) {
+        if (metric == null || aggregate == null)
+            throw new IllegalArgumentException("Metric and aggregate are required");
+        if (window == null || window.isNegative() || window.isZero())
+            throw new IllegalArgumentException("Window must be positive");
+        this.deviceType = deviceType;
+        this.metric = metric;
+        this.aggregate = aggregate;
+        this.test = Comparison.parse(operator).against(threshold);
+        this.windowMillis = window.toMillis();
+        this.allMustMatch = allMustMatch;
+    }
+
+    /**
+     * True when no motion sensor has detected motion during the window.
+     */
+    public static WindowedCondition noMotionFor(Duration window) {
+        return new WindowedCondition("MotionSensor", TelemetryMetric.MOTION, Aggregate.MAX, "<", 0.5,
+                window, true);
+    }
+
+    /**
+     * True when a motion sensor has detected motion at least count times
+     * during the window.
+     */
+    public static WindowedCondition motionEventsWithin(int count, Duration window) {
+        return new WindowedCondition("MotionSensor", TelemetryMetric.MOTION, Aggregate.SUM, ">=", count,
+                window, false);
+    }
+
+    /**
+     * True when the average temperature of a thermostat over the window
+     * compares to the threshold.
+     */
+    public static WindowedCondition averageTemperature(String operator, double threshold, Duration window) {
+        return new WindowedCondition("Thermostat", TelemetryMetric.TEMPERATURE, Aggregate.AVG, operator,
+                threshold, window, false);
+    }
+
+    /**
+     * Sets the clock samples are timestamped with (the system clock by
+     * default).
+     */
+    public synchronized WindowedCondition usingClock(Clock clock) {
+        this.clock = clock;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of samples kept per device. It applies to
+     * devices seen after the call.
+     */
+    public synchronized WindowedCondition withCapacity(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = capacity;
+        return this;
+    }
+
+    // ===== DEVICE EVENTS =====
+
+    @Override
+    public synchronized void onDeviceAdded(SmartDevice device) {
+        if (watches(device))
+            windows.put(device.getId(), new SlidingWindow(capacity, metric.read(device)));
+    }
+
+    @Override
+    public synchronized void onDeviceRemoved(SmartDevice device) {
+        windows.remove(device.getId());
+    }
+
+    @Override
+    public synchronized void onStateChanged(SmartDevice device, DeviceAttribute attribute) {
+        if (!samples(attribute) || !watches(device))
+            return;
+        SlidingWindow window = windows.computeIfAbsent(device.getId(),
+                id -> new SlidingWindow(capacity, Double.NaN));
+        window.add(clock.millis(), metric.read(device));
+    }
+
+    private boolean watches(SmartDevice device) {
+        return device.getType().equalsIgnoreCase(deviceType) && metric.appliesTo(device);
+    }
+
+    private boolean samples(DeviceAttribute attribute) {
+        return switch (metric) {
+            case POWER -> attribute == DeviceAttribute.POWER || attribute == DeviceAttribute.BRIGHTNESS
+                    || attribute == DeviceAttribute.ENERGY_MODE;
+            case TEMPERATURE -> attribute == DeviceAttribute.CURRENT_TEMPERATURE;
+            case BRIGHTNESS -> attribute == DeviceAttribute.BRIGHTNESS;
+            case MOTION -> attribute == DeviceAttribute.MOTION;
+        };
+    }
+
+    // ===== EVALUATION =====
+
+    @Override
+    public synchronized void attach(CentralController controller) {
+        if (attachedTo == controller)
+            return;
+        close();
+        attachedTo = controller;
+        controller.addStateListener(this); // replays onDeviceAdded for existing devices
+    }
+
+    @Override
+    public synchronized void close() {
+        if (attachedTo != null)
+            attachedTo.removeStateListener(this);
+        attachedTo = null;
+        windows.clear();
+    }
+
+    @Override
+    public synchronized boolean evaluate(CentralController controller) {
+        attach(controller);
+        if (windows.isEmpty())
+            return false;
+
+        long cutoff = clock.millis() - windowMillis;
+        for (SlidingWindow window : windows.values()) {
+            window.evictBefore(cutoff);
+            boolean matches = test.test(window.aggregate(aggregate));
+            if (matches && !allMustMatch)
+                return true;
+            if (!matches && allMustMatch)
+                return false;
+        }
+        return allMustMatch;
+    }
+
+    @Override
+    public Collection<SmartDevice> inputs(CentralController controller) {
+        return controller.getDevicesByType(deviceType);
+    }
+
+    @Override
+    public Set<DeviceAttribute> inputAttributes() {
+        Set<DeviceAttribute> attributes = EnumSet.noneOf(DeviceAttribute.class);
+        for (DeviceAttribute attribute : DeviceAttribute.values()) {
+            if (samples(attribute))
+                attributes.add(attribute);
+        }
+        return attributes;
+    }
+}
@@ -0,0 +1,182 @@
+package smarthome.commands;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import smarthome.devices.SmartDevice;
+
+/**
+ * Runs an operation on many devices at once. Devices are grouped, by room or
+ * by any other key such as a gateway, and the devices of one group are
+ * handled one after the other while groups run concurrently on virtual
+ * threads. A cap on concurrent groups, shared by every operation of the
+ * executor, keeps a whole-building command from flooding the network.
+ *
+ * A task that times out is interrupted, and the next device of its group
+ * waits until it has really stopped, so that a task ignoring the interrupt
+ * never runs alongside the next one.
+ */
+public class BulkExecutor implements AutoCloseable {
+
+    /** Groups devices by the room they are in. */
+    public static final Function<SmartDevice, String> BY_ROOM = SmartDevice::getRoomName;
+
+    /**
+     * Work done on one device. It may block, e.g. on a DeviceDriver.
+     */
+    @FunctionalInterface
+    public interface DeviceTask {
+        void apply(SmartDevice device) throws Exception;
+    }
+
+    /**
+     * Told after every device, from the thread that handled it.
+     */
+    @FunctionalInterface
+    public interface Progress {
+        void update(int completed, int total);
+    }
+
+    private final ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore groupPermits;
+    private final int parallelism;
+    private final Duration deviceTimeout;
+
+    /**
+     * Creates an executor.
+     *
+     * @param parallelism   How many groups may run at once.
+     * @param deviceTimeout How long the task may take on one device before
+     *                      it is interrupted and counted as failed.
+     */
+    public BulkExecutor(int parallelism, Duration deviceTimeout) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        if (deviceTimeout == null || deviceTimeout.isNegative() || deviceTimeout.isZero())
+            throw new IllegalArgumentException("Device timeout must be positive");
+        this.parallelism = parallelism;
+        this.groupPermits = new Semaphore(parallelism, true);
+        this.deviceTimeout = deviceTimeout;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Runs a task on devices grouped by room.
+     *
+     * @see #execute(String, Collection, Function, DeviceTask, Progress)
+     */
+    public CompletableFuture<BulkResult> execute(String operation, Collection<? extends SmartDevice> devices,
+            DeviceTask task, Progress progress) {
+        return execute(operation, devices, BY_ROOM, task, progress);
+    }
+
+    /**
+     * Runs a task on many devices.
+     *
+     * @param operation Name of the operation, for the result.
+     * @param devices   The devices.
+     * @param groupBy   The group of a device; devices of a group run one
+     *                  after the other.
+     * @param task      The work to do on each device.
+     * @param progress  Told after every device, or null.
+     * @return The outcome of every device, once all are done. It does not
+     *         complete exceptionally; failures are in the outcomes.
+     */
+    public CompletableFuture<BulkResult> execute(String operation, Collection<? extends SmartDevice> devices,
+            Function<SmartDevice, String> groupBy, DeviceTask task, Progress progress) {
+        long start = System.nanoTime();
+        List<SmartDevice> targets = new ArrayList<>(devices);
+        Map<String, List<Integer>> groups = new LinkedHashMap<>(); // group -> indexes into targets
+        for (int i = 0; i < targets.size(); i++) {
+            groups.computeIfAbsent(groupBy.apply(targets.get(i)), k -> new ArrayList<>()).add(i);
+        }
+
+        BulkResult.DeviceOutcome[] outcomes = new BulkResult.DeviceOutcome[targets.size()];
+        AtomicInteger completed = new AtomicInteger();
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        groups.forEach((group, indexes) -> running.add(CompletableFuture.runAsync(() -> {
+            groupPermits.acquireUninterruptibly();
+            try {
+                for (int i : indexes) {
+                    outcomes[i] = runOne(targets.get(i), group, task);
+                    int done = completed.incrementAndGet();
+                    if (progress != null)
+                        progress.update(done, targets.size());
+                }
+            } finally {
+                groupPermits.release();
+            }
+        }, threads)));
+
+        return CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0]))
+                .handle((v, error) -> {
+                    List<BulkResult.DeviceOutcome> list = new ArrayList<>(outcomes.length);
+                    for (int i = 0; i < outcomes.length; i++) {
+                        list.add(outcomes[i] != null ? outcomes[i]
+                                : new BulkResult.DeviceOutcome(targets.get(i).getId(),
+                                        groupBy.apply(targets.get(i)), false, Duration.ZERO, "Not run"));
+                    }
+                    return new BulkResult(operation, list, Duration.ofNanos(System.nanoTime() - start));
+                });
+    }
+
+    private BulkResult.DeviceOutcome runOne(SmartDevice device, String group, DeviceTask task) {
+        long start = System.nanoTime();
+        AtomicBoolean claimed = new AtomicBoolean(); // by the task when it starts, or by a cancel before
+        CompletableFuture<Void> finished = new CompletableFuture<>();
+        Future<?> call = threads.submit(() -> {
+            if (!claimed.compareAndSet(false, true))
+                return null;
+            try {
+                task.apply(device);
+            } finally {
+                finished.complete(null);
+            }
+            return null;
+        });
+        String error = null;
+        try {
+            call.get(deviceTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            call.cancel(true);
+            error = "Timed out after " + deviceTimeout.toMillis() + " ms";
+            if (claimed.compareAndSet(false, true)) // never started, and now never will
+                finished.complete(null);
+            finished.join(); // the interrupt may be ignored: keep the group until the task ends
+        } catch (ExecutionException e) {
+            error = String.valueOf(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            call.cancel(true);
+            Thread.currentThread().interrupt();
+            error = "Interrupted";
+        }
+        return new BulkResult.DeviceOutcome(device.getId(), group, error == null,
+                Duration.ofNanos(System.nanoTime() - start), error);
+    }
+
+    /**
+     * Interrupts running operations and stops accepting new ones.
+     */
+    @Override
+    public void close() {
+        threads.shutdownNow();
+    }
+}
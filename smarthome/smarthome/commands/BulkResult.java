@@ -0,0 +1,69 @@
+package smarthome.commands;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a bulk operation: one entry per device, in the order the
+ * devices were given.
+ *
+ * @param operation The operation name.
+ * @param outcomes  The outcome of every device.
+ * @param elapsed   Time from start to the last device.
+ */
+public record BulkResult(String operation, List<DeviceOutcome> outcomes, Duration elapsed) {
+
+    /**
+     * Outcome of one device.
+     *
+     * @param deviceId The device.
+     * @param group    The group (room or gateway) it was sent with.
+     * @param ok       Whether the task succeeded.
+     * @param latency  Time the task took on the device.
+     * @param error    The error, or null.
+     */
+    public record DeviceOutcome(String deviceId, String group, boolean ok, Duration latency, String error) {
+    }
+
+    public BulkResult {
+        outcomes = List.copyOf(outcomes);
+    }
+
+    public int succeeded() {
+        int n = 0;
+        for (DeviceOutcome o : outcomes) {
+            if (o.ok())
+                n++;
+        }
+        return n;
+    }
+
+    public int failed() {
+        return outcomes.size() - succeeded();
+    }
+
+    /**
+     * @return The outcomes of the devices that failed.
+     */
+    public List<DeviceOutcome> failures() {
+        List<DeviceOutcome> failures = new ArrayList<>();
+        for (DeviceOutcome o : outcomes) {
+            if (!o.ok())
+                failures.add(o);
+        }
+        return failures;
+    }
+
+    /**
+     * @return The longest time a single device took.
+     */
+    public Duration maxLatency() {
+        Duration max = Duration.ZERO;
+        for (DeviceOutcome o : outcomes) {
+            if (o.latency().compareTo(max) > 0)
+                max = o.latency();
+        }
+        return max;
+    }
+}
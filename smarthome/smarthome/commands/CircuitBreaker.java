@@ -0,0 +1,71 @@
+package smarthome.commands;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Per-device circuit breaker. After a number of consecutive failures it opens
+ * and rejects commands. Once the open period is over it asks whether the
+ * device is responding; if so, one probe command is let through (half open),
+ * whose outcome closes or reopens the breaker.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    public CircuitBreaker(int failureThreshold, long openNanos) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+    }
+
+    /**
+     * Asks whether a command may be sent now.
+     *
+     * @param now        The current System.nanoTime().
+     * @param responding Checks whether the device answers; only called when
+     *                   the breaker is ready to probe.
+     * @return true if the command may be sent.
+     */
+    synchronized boolean tryAcquire(long now, BooleanSupplier responding) {
+        return switch (state) {
+            case CLOSED -> true;
+            case HALF_OPEN -> false; // a probe is in flight
+            case OPEN -> {
+                if (now - openedAt < openNanos)
+                    yield false;
+                if (!responding.getAsBoolean()) {
+                    openedAt = now; // still down, wait another period
+                    yield false;
+                }
+                state = State.HALF_OPEN;
+                yield true;
+            }
+        };
+    }
+
+    synchronized void recordSuccess() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    synchronized void recordFailure(long now) {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = now;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
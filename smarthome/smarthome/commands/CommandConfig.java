@@ -0,0 +1,40 @@
+package smarthome.commands;
+
+import java.time.Duration;
+
+/**
+ * Limits and retry policy of a CommandPipeline.
+ *
+ * @param queueCapacity    Commands that may wait per device behind the one
+ *                         being sent; more are rejected.
+ * @param timeout          How long one attempt may take.
+ * @param maxAttempts      Attempts per command, including the first.
+ * @param retryBackoff     Base delay before a retry; it doubles with every
+ *                         attempt and is randomized by up to half (jitter).
+ * @param failureThreshold Consecutive failed attempts that open a device's
+ *                         circuit breaker.
+ * @param openDuration     How long an open breaker rejects commands before a
+ *                         responding device is probed again.
+ */
+public record CommandConfig(int queueCapacity, Duration timeout, int maxAttempts, Duration retryBackoff,
+        int failureThreshold, Duration openDuration) {
+
+    /** 16 queued commands, 2 s timeout, 3 attempts from 100 ms, open for 30 s after 5 failures. */
+    public static final CommandConfig DEFAULT = new CommandConfig(16, Duration.ofSeconds(2), 3,
+            Duration.ofMillis(100), 5, Duration.ofSeconds(30));
+
+    public CommandConfig {
+        if (queueCapacity < 0)
+            throw new IllegalArgumentException("Queue capacity cannot be negative.");
+        if (timeout == null || timeout.isNegative() || timeout.isZero())
+            throw new IllegalArgumentException("Timeout must be positive.");
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("At least one attempt is needed.");
+        if (retryBackoff == null || retryBackoff.isNegative())
+            throw new IllegalArgumentException("Retry backoff cannot be negative.");
+        if (failureThreshold < 1)
+            throw new IllegalArgumentException("Failure threshold must be at least 1.");
+        if (openDuration == null || openDuration.isNegative())
+            throw new IllegalArgumentException("Open duration cannot be negative.");
+    }
+}
@@ -0,0 +1,312 @@
+package smarthome.commands;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import smarthome.devices.DeviceCommand;
+import smarthome.devices.Light2;
+import smarthome.devices.MotionSensor;
+import smarthome.devices.SmartAlarm;
+import smarthome.devices.SmartDevice;
+import smarthome.devices.SmartTV;
+import smarthome.devices.Thermostat;
+import smarthome.telemetry.MetricsRegistry;
+import smarthome.telemetry.MetricsWriter;
+
+/**
+ * Per-device mailbox that coalesces bursts of commands, such as a dragged
+ * brightness slider, before they reach the device.
+ *
+ * Commands to a device are held for a window after the first one arrives,
+ * then delivered as one batch. Within the window only the last write to each
+ * setting is kept, on/off commands that bring the device back to the state it
+ * was in are cancelled, and commands that would not change the device are
+ * dropped at delivery. Batches to one device are delivered in order.
+ */
+public class CommandMailbox implements AutoCloseable, MetricsRegistry.Collector {
+
+    private final DeviceDriver driver;
+    private final long windowNanos;
+    private final ExecutorService workers; // runs the blocking driver calls
+    private final ScheduledExecutorService timers;
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder superseded = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder noOps = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    /** Commands waiting for the window of one device to close. */
+    private static final class Mailbox {
+        final SmartDevice device;
+        // setting -> last command for it, in the order the settings were last written
+        final LinkedHashMap<DeviceCommand.Kind, DeviceCommand> pending = new LinkedHashMap<>(); // guarded by this
+        List<CompletableFuture<Void>> waiters = new ArrayList<>(); // guarded by this
+        boolean wasOn; // power when the first power command of the window arrived
+        boolean scheduled; // guarded by this
+        CompletableFuture<Void> lastDelivery = CompletableFuture.completedFuture(null); // guarded by this
+
+        Mailbox(SmartDevice device) {
+            this.device = device;
+        }
+    }
+
+    /**
+     * Creates a mailbox whose batches are delivered on a cached thread pool.
+     *
+     * @param driver The transport to the devices.
+     * @param window How long commands to a device are held after the first.
+     */
+    public CommandMailbox(DeviceDriver driver, Duration window) {
+        if (driver == null)
+            throw new IllegalArgumentException("Driver cannot be null");
+        if (window == null || window.isNegative() || window.isZero())
+            throw new IllegalArgumentException("Window must be positive");
+        this.driver = driver;
+        this.windowNanos = window.toNanos();
+        this.workers = Executors.newCachedThreadPool(CommandPipeline.daemon("mailbox-worker"));
+        this.timers = Executors.newSingleThreadScheduledExecutor(CommandPipeline.daemon("mailbox-timer"));
+    }
+
+    // ===== SUBMISSION =====
+
+    /**
+     * Queues a command for a device.
+     *
+     * @param device  The device.
+     * @param command The command.
+     * @return Completed once the batch that carries the command, or the
+     *         command that replaced it, has been delivered; completed
+     *         exceptionally if the delivery failed.
+     */
+    public CompletableFuture<Void> offer(SmartDevice device, DeviceCommand command) {
+        if (device == null || command == null)
+            throw new IllegalArgumentException("Device and command cannot be null");
+        submitted.increment();
+        Mailbox box = mailboxes.computeIfAbsent(device.getId(), id -> new Mailbox(device));
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        synchronized (box) {
+            merge(box, command);
+            box.waiters.add(done);
+            if (!box.scheduled) {
+                box.scheduled = true;
+                timers.schedule(() -> flush(box), windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Delivers what is waiting for one device now, without waiting for its
+     * window to close.
+     *
+     * @return Completed once the device has received its batch.
+     */
+    public CompletableFuture<Void> flush(SmartDevice device) {
+        Mailbox box = mailboxes.get(device.getId());
+        return box == null ? CompletableFuture.completedFuture(null) : flush(box);
+    }
+
+    /**
+     * Delivers everything waiting now, without waiting for the windows to
+     * close.
+     *
+     * @return Completed once every device has received its batch.
+     */
+    public CompletableFuture<Void> flushAll() {
+        List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+        for (Mailbox box : mailboxes.values()) {
+            deliveries.add(flush(box));
+        }
+        return CompletableFuture.allOf(deliveries.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // ===== COALESCING =====
+
+    private void merge(Mailbox box, DeviceCommand command) {
+        DeviceCommand.Kind slot = slot(command.kind());
+        DeviceCommand previous = box.pending.remove(slot);
+        if (slot != DeviceCommand.Kind.TURN_ON) {
+            if (previous != null)
+                superseded.increment();
+            box.pending.put(slot, command);
+            return;
+        }
+
+        if (previous == null) {
+            box.wasOn = box.device.isOn();
+            box.pending.put(slot, command);
+            return;
+        }
+        DeviceCommand power = combine(previous, command);
+        if (power == null || power == (box.wasOn ? DeviceCommand.ON : DeviceCommand.OFF)) {
+            cancelled.add(2); // e.g. ON then OFF on a device that was off
+        } else {
+            superseded.increment();
+            box.pending.put(slot, power);
+        }
+    }
+
+    /**
+     * @return The single power command equivalent to previous followed by
+     *         next, or null if they cancel out (two toggles).
+     */
+    private static DeviceCommand combine(DeviceCommand previous, DeviceCommand next) {
+        if (next.kind() != DeviceCommand.Kind.TOGGLE)
+            return next;
+        return switch (previous.kind()) {
+            case TURN_ON -> DeviceCommand.OFF;
+            case TURN_OFF -> DeviceCommand.ON;
+            default -> null;
+        };
+    }
+
+    /**
+     * @return The setting a command writes: on/off and toggle share one, as do
+     *         arm and disarm; every other kind is its own.
+     */
+    private static DeviceCommand.Kind slot(DeviceCommand.Kind kind) {
+        return switch (kind) {
+            case TURN_ON, TURN_OFF, TOGGLE -> DeviceCommand.Kind.TURN_ON;
+            case ARM, DISARM -> DeviceCommand.Kind.ARM;
+            default -> kind;
+        };
+    }
+
+    /**
+     * @return Whether the device is already in the state the command sets.
+     */
+    static boolean isNoOp(SmartDevice device, DeviceCommand command) {
+        return switch (command) {
+            case DeviceCommand.TurnOn c -> device.isOn();
+            case DeviceCommand.TurnOff c -> !device.isOn();
+            case DeviceCommand.Toggle c -> false;
+            case DeviceCommand.SetBrightness c -> device instanceof Light2 l && l.getBrightness() == c.brightness();
+            case DeviceCommand.SetTargetTemp c ->
+                device instanceof Thermostat t && t.getTargetTemperature() == c.celsius();
+            case DeviceCommand.SetMode c -> device instanceof Thermostat t && c.mode().equalsIgnoreCase(t.getMode());
+            case DeviceCommand.SetSensitivity c ->
+                device instanceof MotionSensor m && m.getSensitivity() == c.sensitivity();
+            case DeviceCommand.SetVolume c -> device instanceof SmartTV tv && tv.getVolume() == c.volume()
+                    && !tv.isMuted();
+            case DeviceCommand.SetChannel c -> device instanceof SmartTV tv && tv.getChannel() == c.channel();
+            case DeviceCommand.Arm c -> device instanceof SmartAlarm a && a.isArmed()
+                    && c.mode().equals(a.getAlarmMode());
+            case DeviceCommand.Disarm c -> device instanceof SmartAlarm a && !a.isArmed();
+            case DeviceCommand.SetEnergyMode c -> device.getEnergyMode() == c.mode();
+        };
+    }
+
+    // ===== DELIVERY =====
+
+    /**
+     * Closes the window of a device and queues its batch behind the previous
+     * one.
+     */
+    private CompletableFuture<Void> flush(Mailbox box) {
+        synchronized (box) {
+            box.scheduled = false;
+            if (box.waiters.isEmpty())
+                return box.lastDelivery;
+            List<DeviceCommand> batch = new ArrayList<>(box.pending.values());
+            List<CompletableFuture<Void>> waiters = box.waiters;
+            box.pending.clear();
+            box.waiters = new ArrayList<>();
+            box.lastDelivery = box.lastDelivery.thenRunAsync(() -> deliver(box.device, batch, waiters), workers);
+            return box.lastDelivery;
+        }
+    }
+
+    private void deliver(SmartDevice device, List<DeviceCommand> batch, List<CompletableFuture<Void>> waiters) {
+        for (Iterator<DeviceCommand> it = batch.iterator(); it.hasNext();) {
+            if (isNoOp(device, it.next())) {
+                it.remove();
+                noOps.increment();
+            }
+        }
+        try {
+            if (!batch.isEmpty()) {
+                driver.sendBatch(device, batch);
+                batches.increment();
+                delivered.add(batch.size());
+            }
+            waiters.forEach(w -> w.complete(null));
+        } catch (Exception e) {
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            failed.add(batch.size());
+            waiters.forEach(w -> w.completeExceptionally(e));
+        }
+    }
+
+    // ===== METRICS =====
+
+    /** @return Commands offered. */
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    /** @return Commands sent to devices. */
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    /** @return Commands replaced by a later write to the same setting. */
+    public long getSupersededCount() {
+        return superseded.sum();
+    }
+
+    /** @return Commands cancelled by an opposite on/off command. */
+    public long getCancelledCount() {
+        return cancelled.sum();
+    }
+
+    /** @return Commands dropped because the device was already in that state. */
+    public long getNoOpCount() {
+        return noOps.sum();
+    }
+
+    /** @return Batches sent to devices. */
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    @Override
+    public void collect(MetricsWriter writer) {
+        writer.family("smarthome_mailbox_commands_total", "counter",
+                "Commands offered to the mailbox, by what became of them.");
+        writer.sample("smarthome_mailbox_commands_total", delivered.sum(), "outcome", "delivered");
+        writer.sample("smarthome_mailbox_commands_total", superseded.sum(), "outcome", "superseded");
+        writer.sample("smarthome_mailbox_commands_total", cancelled.sum(), "outcome", "cancelled");
+        writer.sample("smarthome_mailbox_commands_total", noOps.sum(), "outcome", "noop");
+        writer.sample("smarthome_mailbox_commands_total", failed.sum(), "outcome", "failed");
+        writer.family("smarthome_mailbox_submitted_total", "counter", "Commands offered to the mailbox.")
+                .sample("smarthome_mailbox_submitted_total", submitted.sum());
+        writer.family("smarthome_mailbox_batches_total", "counter", "Batches delivered to devices.")
+                .sample("smarthome_mailbox_batches_total", batches.sum());
+    }
+
+    /**
+     * Stops the worker and timer threads. Commands still waiting are not
+     * delivered; call flushAll first to deliver them.
+     */
+    @Override
+    public void close() {
+        timers.shutdownNow();
+        workers.shutdownNow();
+    }
+}
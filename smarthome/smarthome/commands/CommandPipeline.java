@@ -0,0 +1,342 @@
+package smarthome.commands;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import smarthome.devices.DeviceCommand;
+import smarthome.devices.SmartDevice;
+import smarthome.exceptions.InvalidDeviceOperationException;
+
+/**
+ * Sends device commands asynchronously through a DeviceDriver.
+ *
+ * Each device has its own lane: commands to one device are sent one at a
+ * time, in submission order, with a bounded number waiting; commands to
+ * different devices run concurrently, so a slow device only delays itself.
+ * Every attempt has a timeout, and attempts that failed in transit are
+ * retried with exponential backoff and jitter: those that could not reach the
+ * device, and those that timed out unless the command is a TOGGLE, which the
+ * device may already have applied. A driver call that timed out is
+ * interrupted, and neither the retry nor the lane's next command is sent
+ * before it has really returned. A command the device rejected is not
+ * retried and does not count against it; a per-device CircuitBreaker stops
+ * sending to a device that keeps failing in transit.
+ *
+ * Futures never complete exceptionally; failures are reported in the
+ * CommandResult.
+ */
+public class CommandPipeline implements AutoCloseable {
+
+    private final DeviceDriver driver;
+    private final CommandConfig config;
+    private final ExecutorService workers; // runs the blocking driver calls
+    private final ScheduledExecutorService timers; // timeouts and retry delays
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * Creates a pipeline whose driver calls run on a cached thread pool.
+     */
+    public CommandPipeline(DeviceDriver driver, CommandConfig config) {
+        this(driver, config, Executors.newCachedThreadPool(daemon("command-worker")));
+    }
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param driver  The transport to the devices.
+     * @param config  Limits and retry policy.
+     * @param workers Runs the blocking driver calls; shut down by close().
+     */
+    public CommandPipeline(DeviceDriver driver, CommandConfig config, ExecutorService workers) {
+        if (driver == null)
+            throw new IllegalArgumentException("Driver cannot be null");
+        if (config == null)
+            throw new IllegalArgumentException("Config cannot be null");
+        if (workers == null)
+            throw new IllegalArgumentException("Workers cannot be null");
+        this.driver = driver;
+        this.config = config;
+        this.workers = workers;
+        this.timers = Executors.newSingleThreadScheduledExecutor(daemon("command-timer"));
+    }
+
+    static java.util.concurrent.ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /** A submitted command waiting for, or going through, its lane. */
+    private static final class Pending {
+        final DeviceCommand command;
+        final CompletableFuture<CommandResult> result = new CompletableFuture<>();
+        final long submittedAt = System.nanoTime();
+        volatile int attempts; // started so far
+
+        Pending(DeviceCommand command) {
+            this.command = command;
+        }
+    }
+
+    /** The queue and breaker of one device. */
+    private final class Lane {
+        final SmartDevice device;
+        final CircuitBreaker breaker;
+        final ArrayDeque<Pending> queue = new ArrayDeque<>(); // guarded by this
+        boolean busy; // a command is being sent; guarded by this
+        Pending current; // the command being sent; guarded by this
+
+        Lane(SmartDevice device) {
+            this.device = device;
+            this.breaker = new CircuitBreaker(config.failureThreshold(), config.openDuration().toNanos());
+        }
+    }
+
+    // ===== SUBMISSION =====
+
+    /**
+     * Queues a command for a device.
+     *
+     * @param device  The device.
+     * @param command The command.
+     * @return The result, completed once the command has been applied or has
+     *         finally failed.
+     */
+    public CompletableFuture<CommandResult> submit(SmartDevice device, DeviceCommand command) {
+        if (device == null || command == null)
+            throw new IllegalArgumentException("Device and command cannot be null");
+        Lane lane = lanes.computeIfAbsent(device.getId(), id -> new Lane(device));
+        Pending pending = new Pending(command);
+        boolean start;
+        synchronized (lane) {
+            if (closed) {
+                return CompletableFuture.completedFuture(result(lane, pending, CommandResult.Status.REJECTED, 0,
+                        "Pipeline closed"));
+            }
+            if (lane.busy && lane.queue.size() >= config.queueCapacity()) {
+                return CompletableFuture.completedFuture(result(lane, pending, CommandResult.Status.REJECTED, 0,
+                        "Command queue full"));
+            }
+            start = !lane.busy;
+            if (start) {
+                lane.busy = true;
+                lane.current = pending;
+            } else {
+                lane.queue.add(pending);
+            }
+        }
+        if (start)
+            send(lane, pending);
+        return pending.result;
+    }
+
+    /**
+     * Sends the same command to many devices at once.
+     *
+     * @return The results, in the order of the devices, once all are done.
+     */
+    public CompletableFuture<List<CommandResult>> submitAll(Collection<? extends SmartDevice> devices,
+            DeviceCommand command) {
+        List<CompletableFuture<CommandResult>> futures = new ArrayList<>();
+        for (SmartDevice device : devices) {
+            futures.add(submit(device, command));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<CommandResult> results = new ArrayList<>(futures.size());
+            futures.forEach(f -> results.add(f.join()));
+            return results;
+        });
+    }
+
+    /**
+     * @return The breaker state of a device; CLOSED if nothing was sent to
+     *         it yet.
+     */
+    public CircuitBreaker.State getBreakerState(SmartDevice device) {
+        Lane lane = lanes.get(device.getId());
+        return lane == null ? CircuitBreaker.State.CLOSED : lane.breaker.getState();
+    }
+
+    // ===== SENDING =====
+
+    private void send(Lane lane, Pending pending) {
+        if (!lane.breaker.tryAcquire(System.nanoTime(), () -> driver.isResponding(lane.device))) {
+            finish(lane, pending, result(lane, pending, CommandResult.Status.CIRCUIT_OPEN, 0, "Circuit open"));
+            return;
+        }
+        attempt(lane, pending, 1);
+    }
+
+    private void attempt(Lane lane, Pending pending, int attempt) {
+        pending.attempts = attempt;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        AtomicBoolean claimed = new AtomicBoolean(); // by the call when it starts, or by a timeout before
+        CompletableFuture<Void> finished = new CompletableFuture<>(); // the driver call has returned
+        Future<?> task;
+        try {
+            task = workers.submit(() -> {
+                if (!claimed.compareAndSet(false, true))
+                    return;
+                try {
+                    driver.send(lane.device, pending.command);
+                    done.complete(null);
+                } catch (Throwable e) {
+                    done.completeExceptionally(e);
+                } finally {
+                    finished.complete(null);
+                }
+            });
+        } catch (RuntimeException e) { // workers shut down
+            finish(lane, pending, result(lane, pending, CommandResult.Status.FAILED, attempt - 1, e.toString()));
+            return;
+        }
+        ScheduledFuture<?> timeout = timers.schedule(() -> {
+            if (done.completeExceptionally(new TimeoutException("No answer within " + config.timeout()))) {
+                task.cancel(true);
+                if (claimed.compareAndSet(false, true)) // never started, and now never will
+                    finished.complete(null);
+            }
+        }, config.timeout().toNanos(), TimeUnit.NANOSECONDS);
+
+        done.whenComplete((v, error) -> {
+            timeout.cancel(false);
+            if (error == null) {
+                lane.breaker.recordSuccess();
+                finish(lane, pending, result(lane, pending, CommandResult.Status.OK, attempt, null), finished);
+                return;
+            }
+            if (error instanceof InvalidDeviceOperationException) { // the device answered: no
+                lane.breaker.recordSuccess();
+                finish(lane, pending, result(lane, pending, CommandResult.Status.FAILED, attempt,
+                        error.getMessage()), finished);
+                return;
+            }
+            lane.breaker.recordFailure(System.nanoTime());
+            boolean timedOut = error instanceof TimeoutException;
+            if (!closed && attempt < config.maxAttempts() && isTransient(error, pending.command)
+                    && lane.breaker.getState() == CircuitBreaker.State.CLOSED) {
+                finished.thenRun(() -> retry(lane, pending, attempt + 1));
+            } else {
+                finish(lane, pending, result(lane, pending,
+                        timedOut ? CommandResult.Status.TIMED_OUT : CommandResult.Status.FAILED, attempt,
+                        error.getMessage()), finished);
+            }
+        });
+    }
+
+    /**
+     * Schedules the next attempt after the backoff, once the previous call
+     * has returned.
+     */
+    private void retry(Lane lane, Pending pending, int attempt) {
+        try {
+            timers.schedule(() -> attempt(lane, pending, attempt), backoffNanos(attempt - 1), TimeUnit.NANOSECONDS);
+        } catch (RuntimeException e) { // timers shut down
+            finish(lane, pending, result(lane, pending, CommandResult.Status.FAILED, attempt - 1, e.toString()));
+        }
+    }
+
+    /**
+     * Whether an attempt failed in a way a retry can fix without applying the
+     * command twice: the device could not be reached, or it did not answer
+     * in time and applying the command again changes nothing.
+     */
+    private static boolean isTransient(Throwable error, DeviceCommand command) {
+        if (error instanceof IOException)
+            return true;
+        return error instanceof TimeoutException && command.kind() != DeviceCommand.Kind.TOGGLE;
+    }
+
+    /**
+     * Delay before retrying after the given attempt: the base backoff doubled
+     * per attempt, of which a random half is kept so that devices failing
+     * together do not retry together.
+     */
+    private long backoffNanos(int attempt) {
+        long ceiling = config.retryBackoff().toNanos() << Math.min(attempt - 1, 20);
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * Completes a command and starts the next one of the lane, if any.
+     */
+    private void finish(Lane lane, Pending pending, CommandResult result) {
+        pending.result.complete(result);
+        next(lane, pending);
+    }
+
+    /**
+     * Completes a command right away, but starts the next one of the lane
+     * only once the driver call of its last attempt has returned.
+     */
+    private void finish(Lane lane, Pending pending, CommandResult result, CompletableFuture<Void> finished) {
+        pending.result.complete(result);
+        finished.thenRun(() -> next(lane, pending));
+    }
+
+    private void next(Lane lane, Pending pending) {
+        Pending next;
+        synchronized (lane) {
+            if (lane.current != pending) // completed by close()
+                return;
+            next = closed ? null : lane.queue.poll();
+            lane.current = next;
+            if (next == null)
+                lane.busy = false;
+        }
+        if (next != null)
+            send(lane, next);
+    }
+
+    private static CommandResult result(Lane lane, Pending pending, CommandResult.Status status, int attempts,
+            String error) {
+        return new CommandResult(lane.device.getId(), pending.command, status, attempts,
+                Duration.ofNanos(System.nanoTime() - pending.submittedAt), error);
+    }
+
+    /**
+     * Stops the worker and timer threads. Commands still queued are not
+     * sent, and they and the commands being sent complete as REJECTED;
+     * commands submitted afterwards are rejected right away.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        workers.shutdownNow();
+        timers.shutdownNow();
+        for (Lane lane : lanes.values()) {
+            List<Pending> abandoned = new ArrayList<>();
+            synchronized (lane) {
+                if (lane.current != null)
+                    abandoned.add(lane.current);
+                abandoned.addAll(lane.queue);
+                lane.queue.clear();
+                lane.current = null;
+                lane.busy = false;
+            }
+            for (Pending pending : abandoned) {
+                pending.result.complete(result(lane, pending, CommandResult.Status.REJECTED, pending.attempts,
+                        "Pipeline closed"));
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package smarthome.commands;
+
+import java.time.Duration;
+
+import smarthome.devices.DeviceCommand;
+
+/**
+ * Outcome of a command sent through a CommandPipeline.
+ *
+ * @param deviceId The device.
+ * @param command  The command.
+ * @param status   How the command ended.
+ * @param attempts How many times it was sent, 0 if it never was.
+ * @param elapsed  Time from submission to completion.
+ * @param error    The last error, or null.
+ */
+public record CommandResult(String deviceId, DeviceCommand command, Status status, int attempts, Duration elapsed,
+        String error) {
+
+    public enum Status {
+        /** The device applied the command. */
+        OK,
+        /** Every attempt failed; the last one with an error. */
+        FAILED,
+        /** Every attempt failed; the last one timed out. */
+        TIMED_OUT,
+        /** The device's queue was full, or the pipeline was closed. */
+        REJECTED,
+        /** The device's circuit breaker is open. */
+        CIRCUIT_OPEN
+    }
+
+    public boolean isOk() {
+        return status == Status.OK;
+    }
+}
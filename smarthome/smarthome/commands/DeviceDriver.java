@@ -0,0 +1,56 @@
+package smarthome.commands;
+
+import java.io.IOException;
+import java.util.List;
+
+import smarthome.devices.DeviceCommand;
+import smarthome.devices.SmartDevice;
+import smarthome.exceptions.InvalidDeviceOperationException;
+
+/**
+ * Transport that delivers commands to devices. A real driver talks to the
+ * device over the network and may be slow, fail or hang; calls block until
+ * the device has applied the command.
+ */
+public interface DeviceDriver {
+
+    /**
+     * Sends a command and waits for the device to apply it.
+     *
+     * @param device  The device.
+     * @param command The command.
+     * @throws IOException                     If the device could not be
+     *                                         reached.
+     * @throws InvalidDeviceOperationException If the device rejected the
+     *                                         command.
+     * @throws InterruptedException            If the call was abandoned, e.g.
+     *                                         after a timeout.
+     */
+    void send(SmartDevice device, DeviceCommand command)
+            throws IOException, InvalidDeviceOperationException, InterruptedException;
+
+    /**
+     * Sends several commands to one device, in order. Drivers that can put
+     * them in a single message should override this; by default they are
+     * sent one by one.
+     *
+     * @param device   The device.
+     * @param commands The commands.
+     * @throws IOException                     If the device could not be
+     *                                         reached.
+     * @throws InvalidDeviceOperationException If the device rejected a
+     *                                         command.
+     * @throws InterruptedException            If the call was abandoned.
+     */
+    default void sendBatch(SmartDevice device, List<DeviceCommand> commands)
+            throws IOException, InvalidDeviceOperationException, InterruptedException {
+        for (DeviceCommand command : commands) {
+            send(device, command);
+        }
+    }
+
+    /**
+     * @return Whether the device currently answers, e.g. to a ping.
+     */
+    boolean isResponding(SmartDevice device);
+}
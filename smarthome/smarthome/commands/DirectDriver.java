@@ -0,0 +1,22 @@
+package smarthome.commands;
+
+import smarthome.devices.DeviceCommand;
+import smarthome.devices.SmartDevice;
+import smarthome.exceptions.InvalidDeviceOperationException;
+
+/**
+ * Driver for the in-memory devices: commands are applied immediately on the
+ * calling thread.
+ */
+public class DirectDriver implements DeviceDriver {
+
+    @Override
+    public void send(SmartDevice device, DeviceCommand command) throws InvalidDeviceOperationException {
+        device.execute(command);
+    }
+
+    @Override
+    public boolean isResponding(SmartDevice device) {
+        return device.isResponding();
+    }
+}
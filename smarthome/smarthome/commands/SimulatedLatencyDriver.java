@@ -0,0 +1,98 @@
+package smarthome.commands;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import smarthome.devices.DeviceCommand;
+import smarthome.devices.SmartDevice;
+import smarthome.exceptions.InvalidDeviceOperationException;
+
+/**
+ * Stand-in for a network driver: adds a random delay to every command, fails
+ * a fraction of them, and lets devices be marked unresponsive, in which case
+ * commands hang until abandoned. Used to exercise and benchmark the
+ * CommandPipeline locally.
+ */
+public class SimulatedLatencyDriver implements DeviceDriver {
+
+    private static final long HANG_MILLIS = 60_000;
+
+    private final DeviceDriver delegate;
+    private final long minLatencyNanos;
+    private final long maxLatencyNanos;
+    private final double failureRate;
+    private final Set<String> unresponsive = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a driver.
+     *
+     * @param delegate    The driver that finally applies commands.
+     * @param minLatency  The shortest delay.
+     * @param maxLatency  The longest delay; delays are uniform in between.
+     * @param failureRate The fraction of commands that fail, 0 to 1.
+     */
+    public SimulatedLatencyDriver(DeviceDriver delegate, Duration minLatency, Duration maxLatency,
+            double failureRate) {
+        if (delegate == null)
+            throw new IllegalArgumentException("Delegate driver cannot be null");
+        if (minLatency.isNegative() || maxLatency.compareTo(minLatency) < 0)
+            throw new IllegalArgumentException("Invalid latency range");
+        if (failureRate < 0 || failureRate > 1)
+            throw new IllegalArgumentException("Failure rate must be between 0 and 1");
+        this.delegate = delegate;
+        this.minLatencyNanos = minLatency.toNanos();
+        this.maxLatencyNanos = maxLatency.toNanos();
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Makes a device hang on every command and report that it is not
+     * responding, or brings it back.
+     */
+    public void setResponding(SmartDevice device, boolean responding) {
+        if (responding)
+            unresponsive.remove(device.getId());
+        else
+            unresponsive.add(device.getId());
+    }
+
+    @Override
+    public void send(SmartDevice device, DeviceCommand command)
+            throws IOException, InvalidDeviceOperationException, InterruptedException {
+        roundTrip(device, command);
+        delegate.send(device, command);
+    }
+
+    /**
+     * Sends a batch in one round trip: the latency and the chance of failure
+     * are paid once, not per command.
+     */
+    @Override
+    public void sendBatch(SmartDevice device, List<DeviceCommand> commands)
+            throws IOException, InvalidDeviceOperationException, InterruptedException {
+        roundTrip(device, commands);
+        delegate.sendBatch(device, commands);
+    }
+
+    private void roundTrip(SmartDevice device, Object what) throws IOException, InterruptedException {
+        if (unresponsive.contains(device.getId())) {
+            Thread.sleep(HANG_MILLIS);
+            throw new IOException("No answer from " + device.getName());
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long latency = minLatencyNanos == maxLatencyNanos ? minLatencyNanos
+                : random.nextLong(minLatencyNanos, maxLatencyNanos + 1);
+        Thread.sleep(Duration.ofNanos(latency));
+        if (random.nextDouble() < failureRate)
+            throw new IOException("Simulated failure sending " + what + " to " + device.getName());
+    }
+
+    @Override
+    public boolean isResponding(SmartDevice device) {
+        return !unresponsive.contains(device.getId()) && delegate.isResponding(device);
+    }
+}
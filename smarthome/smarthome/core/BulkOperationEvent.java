@@ -0,0 +1,29 @@
+package smarthome.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a controller operation over many devices.
+ */
+@Name("smarthome.BulkOperation")
+@Label("Bulk Operation")
+@Category({ "Smart Home", "Controller" })
+@Description("A controller operation applied to every device of the home or of a room")
+@StackTrace(false)
+final class BulkOperationEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Scope")
+    @Description("The room name, or \"home\"")
+    String scope;
+
+    @Label("Device Count")
+    int deviceCount;
+}
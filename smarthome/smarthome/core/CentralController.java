@@ -1,13 +1,33 @@
 package smarthome.core;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 import java.time.LocalTime;
 
+import smarthome.commands.BulkExecutor;
+import smarthome.commands.BulkResult;
+import smarthome.commands.CommandMailbox;
+import smarthome.commands.CommandPipeline;
+import smarthome.commands.CommandResult;
+import smarthome.commands.DeviceDriver;
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.DeviceCommand;
+import smarthome.devices.DeviceStateListener;
 import smarthome.devices.EnergyConsumer;
+import smarthome.devices.EnergyMode;
 import smarthome.devices.Light2;
+import smarthome.devices.MotionSensor;
 import smarthome.devices.Schedulable;
 import smarthome.devices.SmartDevice;
 import smarthome.devices.Thermostat;
@@ -17,6 +37,15 @@ public class CentralController {
 
     private final Home home;
     private final Map<String, SmartDevice> deviceCache; // Cache for O(1) lookup
+    private final DeviceStateStore stateStore; // null when devices keep their own state
+    private final List<DeviceStateListener> stateListeners;
+    private final DeviceStateListener deviceEvents; // handed to every device, forwards to stateListeners
+    private final EnergyMeter energyMeter;
+    private final GroupAggregates groupAggregates;
+    private final AtomicLong topologyVersion; // bumped whenever a device joins or leaves
+    private final EnumMap<DeviceAttribute, LongAdder> stateChanges; // commands that changed a device
+    private volatile RoomActors roomActors; // non-null in single-writer mode
+    private volatile CommandMailbox ruleMailbox; // null: automation settings applied directly
 
     /**
      * Constructs a CentralController for a specific home.
@@ -24,10 +53,39 @@ public class CentralController {
      * @param home The home to control.
      */
     public CentralController(Home home) {
+        this(home, null);
+    }
+
+    /**
+     * Constructs a CentralController whose devices keep their state in a shared
+     * store (e.g., a ColumnarStateStore for large simulations).
+     * 
+     * @param home       The home to control.
+     * @param stateStore The store devices are moved into, or null to leave
+     *                   devices on their own state.
+     */
+    public CentralController(Home home, DeviceStateStore stateStore) {
         if (home == null)
             throw new IllegalArgumentException("Home cannot be null.");
         this.home = home;
-        this.deviceCache = new HashMap<>();
+        this.deviceCache = new ConcurrentHashMap<>(); // tracked from the partitions in single-writer mode
+        this.stateStore = stateStore;
+        this.stateListeners = new CopyOnWriteArrayList<>();
+        this.topologyVersion = new AtomicLong();
+        this.stateChanges = new EnumMap<>(DeviceAttribute.class);
+        for (DeviceAttribute attribute : DeviceAttribute.values()) {
+            stateChanges.put(attribute, new LongAdder());
+        }
+        this.deviceEvents = (device, attribute) -> {
+            stateChanges.get(attribute).increment();
+            for (DeviceStateListener l : stateListeners) {
+                l.onStateChanged(device, attribute);
+            }
+        };
+        this.energyMeter = new EnergyMeter();
+        stateListeners.add(energyMeter);
+        this.groupAggregates = new GroupAggregates();
+        stateListeners.add(groupAggregates);
         refreshCache();
     }
 
@@ -38,11 +96,34 @@ public class CentralController {
         deviceCache.clear();
         for (Room r : home.getRooms()) {
             for (SmartDevice d : r.getDevices()) {
-                deviceCache.put(d.getId(), d);
+                track(d);
             }
         }
     }
 
+    private void track(SmartDevice device) {
+        if (stateStore != null)
+            device.attachState(stateStore);
+        deviceCache.put(device.getId(), device);
+        topologyVersion.incrementAndGet();
+        device.setStateListener(deviceEvents);
+        for (DeviceStateListener l : stateListeners) {
+            l.onDeviceAdded(device);
+        }
+    }
+
+    private void untrack(SmartDevice device) {
+        if (deviceCache.remove(device.getId()) == null)
+            return;
+        topologyVersion.incrementAndGet();
+        device.setStateListener(null);
+        for (DeviceStateListener l : stateListeners) {
+            l.onDeviceRemoved(device);
+        }
+        if (stateStore != null)
+            device.detachState();
+    }
+
     /**
      * Gets the associated Home instance.
      * 
@@ -52,6 +133,195 @@ public class CentralController {
         return home;
     }
 
+    /**
+     * Gets the shared state store devices are kept in.
+     * 
+     * @return The store, or null if devices keep their own state.
+     */
+    public DeviceStateStore getStateStore() {
+        return stateStore;
+    }
+
+    /**
+     * Gets the meter that integrates device power into kWh.
+     * 
+     * @return The energy meter of this home.
+     */
+    public EnergyMeter getEnergyMeter() {
+        return energyMeter;
+    }
+
+    /**
+     * Gets the per-type and per-room counts and statistics kept up to date
+     * from device events.
+     * 
+     * @return The group aggregates of this home.
+     */
+    public GroupAggregates getGroupAggregates() {
+        return groupAggregates;
+    }
+
+    /**
+     * Gets a counter that changes whenever a device is added or removed, so
+     * callers can cache device lookups until it moves.
+     * 
+     * @return The current topology version.
+     */
+    public long getTopologyVersion() {
+        return topologyVersion.get();
+    }
+
+    /**
+     * Counts the device state changes reported for an attribute, i.e. the
+     * commands that changed a device, since the controller was created.
+     * 
+     * @param attribute The attribute.
+     * @return The number of changes.
+     */
+    public long getStateChangeCount(DeviceAttribute attribute) {
+        return stateChanges.get(attribute).sum();
+    }
+
+    // ===== STATE EVENTS =====
+
+    /**
+     * Registers a listener for state changes of every device in the home. The
+     * listener is told about the devices already present through
+     * onDeviceAdded.
+     * 
+     * @param listener The listener to add.
+     */
+    public void addStateListener(DeviceStateListener listener) {
+        if (listener == null)
+            throw new IllegalArgumentException("Listener cannot be null.");
+        stateListeners.add(listener);
+        for (SmartDevice d : deviceCache.values()) {
+            listener.onDeviceAdded(d);
+        }
+    }
+
+    public void removeStateListener(DeviceStateListener listener) {
+        stateListeners.remove(listener);
+    }
+
+    // ===== SINGLE-WRITER MODE =====
+
+    /**
+     * Switches to single-writer mode: from now on every room, its device list
+     * and its devices are changed only by the thread of the room's partition.
+     * Controller operations, automation actions and the dashboard send it
+     * messages instead of touching the devices.
+     * 
+     * @param partitions Number of partition threads.
+     * @return The partitions.
+     * @throws IllegalStateException If actors already run, or the controller's
+     *                               state store cannot allocate while other
+     *                               partitions write to it.
+     */
+    public synchronized RoomActors startRoomActors(int partitions) {
+        if (roomActors != null)
+            throw new IllegalStateException("Room actors already running.");
+        // Partitions attach and detach devices while the others write theirs
+        if (stateStore != null && !stateStore.supportsConcurrentAllocation())
+            throw new IllegalStateException(
+                    "The state store cannot allocate slots while room partitions write to it.");
+        roomActors = new RoomActors(home, partitions);
+        return roomActors;
+    }
+
+    /**
+     * @return The room partitions, or null when devices are changed directly.
+     */
+    public RoomActors getRoomActors() {
+        return roomActors;
+    }
+
+    /**
+     * Leaves single-writer mode once the messages already sent are applied.
+     */
+    public synchronized void stopRoomActors() {
+        if (roomActors != null) {
+            roomActors.close();
+            roomActors = null;
+        }
+    }
+
+    /**
+     * Runs an action on a room and waits for it: directly, or on the room's
+     * partition in single-writer mode.
+     */
+    private void inRoom(Room room, Consumer<Room> action) {
+        RoomActors actors = roomActors;
+        if (actors == null) {
+            action.accept(room);
+            return;
+        }
+        actors.ask(room.getName(), r -> {
+            action.accept(r);
+            return null;
+        }).join();
+    }
+
+    /**
+     * Runs an action on every room and waits for all; in single-writer mode
+     * the partitions work in parallel.
+     */
+    private void inEveryRoom(Consumer<Room> action) {
+        RoomActors actors = roomActors;
+        if (actors == null) {
+            for (Room r : home.getRooms()) {
+                action.accept(r);
+            }
+            return;
+        }
+        List<CompletableFuture<Object>> pending = new ArrayList<>();
+        for (Room r : home.getRooms()) {
+            pending.add(actors.ask(r.getName(), room -> {
+                action.accept(room);
+                return null;
+            }));
+        }
+        pending.forEach(CompletableFuture::join);
+    }
+
+    /**
+     * Runs an action on a device and waits for it: directly, or on the
+     * partition of the device's room in single-writer mode.
+     */
+    private void onDevice(SmartDevice device, Consumer<SmartDevice> action) {
+        RoomActors actors = roomActors;
+        if (actors == null) {
+            action.accept(device);
+            return;
+        }
+        actors.ask(device.getRoomName(), room -> {
+            action.accept(device);
+            return null;
+        }).join();
+    }
+
+    // ===== AUTOMATION COMMANDS =====
+
+    /**
+     * Sends the setting changes of automation actions, such as brightness or
+     * target temperature, through a mailbox: the rules firing in one wave of
+     * an AutomationEngine tick then reach each device as one batch with the
+     * last value of each setting, delivered before the next wave. Power and
+     * alarm commands are still applied at once.
+     * 
+     * @param mailbox The mailbox, or null to apply settings directly.
+     */
+    public void setRuleMailbox(CommandMailbox mailbox) {
+        this.ruleMailbox = mailbox;
+    }
+
+    /**
+     * @return The mailbox automation settings go through, or null.
+     */
+    public CommandMailbox getRuleMailbox() {
+        return ruleMailbox;
+    }
+
     // ===== ROOM MANAGEMENT =====
     // ===== ROOM MANAGEMENT =====
 
@@ -62,6 +332,7 @@ public class CentralController {
      */
     public void addRoom(Room room) {
         home.addRoom(room);
+        inRoom(room, r -> r.getDevices().forEach(this::track));
     }
 
     /**
@@ -91,11 +362,12 @@ public class CentralController {
      */
     public void addDeviceToRoom(String roomName, SmartDevice device) throws DeviceNotFoundException {
         Room room = findRoomByName(roomName);
-        room.addDevice(device);
-
-        // keep device aware of room (SmartDevice must have setRoomName)
-        device.setRoomName(room.getName());
-        deviceCache.put(device.getId(), device); // Update cache
+        inRoom(room, r -> {
+            r.addDevice(device);
+            // keep device aware of room (SmartDevice must have setRoomName)
+            device.setRoomName(r.getName());
+            track(device); // Update cache
+        });
 
         System.out.println(device.getName() + " added to " + room.getName());
     }
@@ -109,8 +381,10 @@ public class CentralController {
      */
     public void removeDeviceFromRoom(String roomName, SmartDevice device) throws DeviceNotFoundException {
         Room room = findRoomByName(roomName);
-        room.removeDevice(device);
-        deviceCache.remove(device.getId()); // Update cache
+        inRoom(room, r -> {
+            r.removeDevice(device);
+            untrack(device); // Update cache
+        });
     }
 
     // ===== GLOBAL ACTIONS =====
@@ -120,31 +394,157 @@ public class CentralController {
      * Turns off all devices in the home.
      */
     public void turnOffAllDevices() {
-        for (Room r : home.getRooms()) {
+        BulkOperationEvent event = new BulkOperationEvent();
+        event.begin();
+        AtomicInteger count = new AtomicInteger();
+        inEveryRoom(r -> {
             for (SmartDevice d : r.getDevices()) {
-                d.turnOff();
+                write(d, SmartDevice::turnOff);
+                count.incrementAndGet();
             }
-        }
+        });
+        commit(event, "turnOffAll", "home", count.get());
         System.out.println("All devices turned OFF.");
     }
 
     public void turnOnAllDevices() {
-        for (Room r : home.getRooms()) {
+        BulkOperationEvent event = new BulkOperationEvent();
+        event.begin();
+        AtomicInteger count = new AtomicInteger();
+        inEveryRoom(r -> {
             for (SmartDevice d : r.getDevices()) {
-                d.turnOn();
+                write(d, SmartDevice::turnOn);
+                count.incrementAndGet();
             }
-        }
+        });
+        commit(event, "turnOnAll", "home", count.get());
         System.out.println("All devices turned ON.");
     }
 
     public void turnOffRoomDevices(String roomName) throws DeviceNotFoundException {
+        BulkOperationEvent event = new BulkOperationEvent();
+        event.begin();
         Room room = findRoomByName(roomName);
-        for (SmartDevice d : room.getDevices()) {
-            d.turnOff();
-        }
+        inRoom(room, r -> {
+            for (SmartDevice d : r.getDevices()) {
+                write(d, SmartDevice::turnOff);
+            }
+        });
+        commit(event, "turnOffRoom", roomName, room.getDevices().size());
         System.out.println("All devices in " + roomName + " turned OFF.");
     }
 
+    /**
+     * Turns off all devices through a command pipeline, so that slow or
+     * unresponsive devices do not hold up the others.
+     * 
+     * @param pipeline The pipeline commands are sent through.
+     * @return The result of every command, once all have completed.
+     * @throws IllegalStateException If room actors are running.
+     */
+    public CompletableFuture<List<CommandResult>> turnOffAllDevicesAsync(CommandPipeline pipeline) {
+        requireDirectWrites("turnOffAllDevicesAsync");
+        return pipeline.submitAll(allDevices(), DeviceCommand.OFF);
+    }
+
+    /**
+     * Turns on all devices through a command pipeline.
+     * 
+     * @param pipeline The pipeline commands are sent through.
+     * @return The result of every command, once all have completed.
+     * @throws IllegalStateException If room actors are running.
+     */
+    public CompletableFuture<List<CommandResult>> turnOnAllDevicesAsync(CommandPipeline pipeline) {
+        requireDirectWrites("turnOnAllDevicesAsync");
+        return pipeline.submitAll(allDevices(), DeviceCommand.ON);
+    }
+
+    /**
+     * Turns on all devices, room by room in parallel on a bulk executor.
+     * 
+     * @param bulk     The executor running the operation.
+     * @param driver   The transport commands are sent through.
+     * @param progress Told after every device, or null.
+     * @return The outcome of every device, once all are done.
+     * @throws IllegalStateException If room actors are running.
+     */
+    public CompletableFuture<BulkResult> turnOnAllDevices(BulkExecutor bulk, DeviceDriver driver,
+            BulkExecutor.Progress progress) {
+        requireDirectWrites("turnOnAllDevices");
+        return bulk.execute("turnOnAll", allDevices(), d -> driver.send(d, DeviceCommand.ON), progress);
+    }
+
+    /**
+     * Turns off all devices, room by room in parallel on a bulk executor.
+     * 
+     * @param bulk     The executor running the operation.
+     * @param driver   The transport commands are sent through.
+     * @param progress Told after every device, or null.
+     * @return The outcome of every device, once all are done.
+     * @throws IllegalStateException If room actors are running.
+     */
+    public CompletableFuture<BulkResult> turnOffAllDevices(BulkExecutor bulk, DeviceDriver driver,
+            BulkExecutor.Progress progress) {
+        requireDirectWrites("turnOffAllDevices");
+        return bulk.execute("turnOffAll", allDevices(), d -> driver.send(d, DeviceCommand.OFF), progress);
+    }
+
+    /**
+     * Turns off the devices of a room on a bulk executor.
+     * 
+     * @param roomName The room.
+     * @param bulk     The executor running the operation.
+     * @param driver   The transport commands are sent through.
+     * @param progress Told after every device, or null.
+     * @return The outcome of every device, once all are done.
+     * @throws DeviceNotFoundException If the room does not exist.
+     * @throws IllegalStateException If room actors are running.
+     */
+    public CompletableFuture<BulkResult> turnOffRoomDevices(String roomName, BulkExecutor bulk,
+            DeviceDriver driver, BulkExecutor.Progress progress) throws DeviceNotFoundException {
+        requireDirectWrites("turnOffRoomDevices");
+        Room room = findRoomByName(roomName);
+        return bulk.execute("turnOffRoom", room.getDevices(), d -> driver.send(d, DeviceCommand.OFF), progress);
+    }
+
+    /**
+     * Drivers and pipelines apply commands on their own threads, which in
+     * single-writer mode would change devices behind their partition; and a
+     * driver that hangs must not stall a partition either. Refuses them while
+     * room actors run, pointing to the variant that goes through the
+     * partitions.
+     */
+    private void requireDirectWrites(String operation) {
+        if (roomActors != null)
+            throw new IllegalStateException(operation + " sends commands off the room partitions; "
+                    + "use the variant without a driver or pipeline while room actors run.");
+    }
+
+    /**
+     * @return Every device, each room's list read on its partition in
+     *         single-writer mode.
+     */
+    private List<SmartDevice> allDevices() {
+        List<SmartDevice> devices = new ArrayList<>();
+        inEveryRoom(r -> {
+            List<SmartDevice> roomDevices = new ArrayList<>(r.getDevices());
+            synchronized (devices) {
+                devices.addAll(roomDevices);
+            }
+        });
+        return devices;
+    }
+
+    private static void commit(BulkOperationEvent event, String operation, String scope, int deviceCount) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.scope = scope;
+            event.deviceCount = deviceCount;
+            event.commit();
+        }
+    }
+
     // ===== LISTING =====
     /**
      * Lists all devices and their status.
@@ -193,15 +593,57 @@ public class CentralController {
         return result;
     }
 
+    /**
+     * Retrieves all devices in a room.
+     * 
+     * @param roomName The name of the room (case-insensitive).
+     * @return A list of devices in that room.
+     */
+    public List<SmartDevice> getDevicesInRoom(String roomName) {
+        List<SmartDevice> result = new ArrayList<>();
+        for (SmartDevice d : deviceCache.values()) {
+            if (d.getRoomName().equalsIgnoreCase(roomName)) {
+                result.add(d);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counts the devices of a type that are in a given power state, in O(1)
+     * from the group aggregates.
+     * 
+     * @param type The type of device (e.g., "Light").
+     * @param on   true to count devices that are ON, false for OFF.
+     * @return The number of matching devices.
+     */
+    public int countDevicesInState(String type, boolean on) {
+        int onCount = groupAggregates.countOn(GroupAggregates.Scope.TYPE, type);
+        return on ? onCount : groupAggregates.count(GroupAggregates.Scope.TYPE, type) - onCount;
+    }
+
+    /**
+     * Counts the devices of a type, in O(1) from the group aggregates.
+     * 
+     * @param type The type of device (e.g., "Light").
+     * @return The number of devices of that type.
+     */
+    public int countDevicesByType(String type) {
+        return groupAggregates.count(GroupAggregates.Scope.TYPE, type);
+    }
+
     // ===== ENERGY =====
     // ===== ENERGY =====
 
     /**
-     * Calculates the total energy consumption of all devices.
+     * Calculates the total energy consumption of all devices. With a columnar
+     * store this sums its power column instead of asking every device.
      * 
      * @return Total energy in Watts.
      */
     public double getTotalEnergyConsumption() {
+        if (stateStore instanceof ColumnarStateStore columns)
+            return columns.totalPower();
         double total = 0.0;
         for (SmartDevice d : deviceCache.values()) {
             total += d.getEnergyConsumption();
@@ -214,21 +656,94 @@ public class CentralController {
     /**
      * Optimizes energy consumption by adjusting device settings.
      * Sets ECO mode for supported devices and dims lights.
+     * 
+     * With a columnar store only the devices the optimization would change
+     * are visited: a scan of the columns finds them first.
      */
     public void optimizeEnergy() {
-        for (SmartDevice d : deviceCache.values()) {
-
-            // 1) If device supports EnergyConsumer => ECO
-            if (d instanceof EnergyConsumer ec) {
-                ec.setEnergyMode("ECO");
+        BulkOperationEvent event = new BulkOperationEvent();
+        event.begin();
+        int visited;
+        if (stateStore instanceof ColumnarStateStore columns) {
+            Map<String, List<SmartDevice>> byRoom = new HashMap<>();
+            for (int handle : columns.select(ecoCandidate(columns))) {
+                SmartDevice d = deviceCache.get(columns.getOwner(handle));
+                if (d != null)
+                    byRoom.computeIfAbsent(d.getRoomName(), k -> new ArrayList<>()).add(d);
             }
+            visited = byRoom.values().stream().mapToInt(List::size).sum();
+            inRooms(byRoom, d -> write(d, CentralController::optimize));
+        } else {
+            inEveryRoom(r -> r.getDevices().forEach(d -> write(d, CentralController::optimize)));
+            visited = deviceCache.size();
+        }
+        commit(event, "optimizeEnergy", "home", visited);
+        System.out.println("Energy optimization applied.");
+    }
 
-            // 2) If it's a Light2 and ON => dim to 40%
-            if (d instanceof Light2 light && light.isOn()) {
-                light.setBrightness(Math.min(light.getBrightness(), 40));
+    /**
+     * Tells from the columns whether optimize would change a device: it is
+     * not in ECO mode yet, or ECO would still move a light's brightness or
+     * power, or a sensor's sensitivity.
+     */
+    private static IntPredicate ecoCandidate(ColumnarStateStore columns) {
+        int eco = EnergyMode.ECO.ordinal();
+        int light = columns.typeId("Light");
+        int sensor = columns.typeId("MotionSensor");
+        return handle -> {
+            if (columns.getEnergyMode(handle) != eco)
+                return true;
+            int type = columns.getTypeId(handle);
+            if (type == light) {
+                int brightness = columns.getBrightness(handle);
+                return brightness > Light2.ECO_MAX_BRIGHTNESS || (brightness > 0) != columns.isOn(handle);
             }
+            return type == sensor && columns.getSensitivity(handle) != MotionSensor.ECO_SENSITIVITY;
+        };
+    }
+
+    /**
+     * Applies an action to devices grouped by room and waits for all; in
+     * single-writer mode each group runs on its room's partition.
+     */
+    private void inRooms(Map<String, List<SmartDevice>> byRoom, Consumer<SmartDevice> action) {
+        RoomActors actors = roomActors;
+        if (actors == null) {
+            byRoom.values().forEach(devices -> devices.forEach(action));
+            return;
+        }
+        List<CompletableFuture<Object>> pending = new ArrayList<>();
+        byRoom.forEach((room, devices) -> pending.add(actors.ask(room, r -> {
+            devices.forEach(action);
+            return null;
+        })));
+        pending.forEach(CompletableFuture::join);
+    }
+
+    /**
+     * Optimizes energy consumption room by room in parallel on a bulk
+     * executor. In single-writer mode each device is still changed on its
+     * room's partition.
+     * 
+     * @param bulk     The executor running the operation.
+     * @param progress Told after every device, or null.
+     * @return The outcome of every device, once all are done.
+     */
+    public CompletableFuture<BulkResult> optimizeEnergy(BulkExecutor bulk, BulkExecutor.Progress progress) {
+        return bulk.execute("optimizeEnergy", allDevices(),
+                d -> onDevice(d, device -> write(device, CentralController::optimize)), progress);
+    }
+
+    private static void optimize(SmartDevice d) {
+        // 1) If device supports EnergyConsumer => ECO
+        if (d instanceof EnergyConsumer ec) {
+            ec.setEnergyMode("ECO");
+        }
+
+        // 2) If it's a Light2 and ON => dim to 40%
+        if (d instanceof Light2 light && light.isOn()) {
+            light.setBrightness(Math.min(light.getBrightness(), 40));
         }
-        System.out.println("Energy optimization applied.");
     }
 
     /**
@@ -248,11 +763,34 @@ public class CentralController {
                 if (schedule != null && schedule.contains(" at " + currentTimeStr)) {
                     System.out.println("Executing schedule for " + d.getName());
                     if (schedule.toLowerCase().startsWith("on"))
-                        d.turnOn();
+                        switchPower(d, true);
                     else if (schedule.toLowerCase().startsWith("off"))
-                        d.turnOff();
+                        switchPower(d, false);
                 }
             }
         }
     }
+
+    /**
+     * Turns a device on or off, through its room's partition in single-writer
+     * mode, without waiting.
+     */
+    private void switchPower(SmartDevice d, boolean on) {
+        RoomActors actors = roomActors;
+        if (actors != null)
+            actors.tell(d, on ? DeviceCommand.ON : DeviceCommand.OFF);
+        else
+            write(d, on ? SmartDevice::turnOn : SmartDevice::turnOff);
+    }
+
+    /**
+     * Changes a device through its setters under the device's monitor, the
+     * lock its commands run under, so that a conditional command never
+     * interleaves with the change.
+     */
+    private static void write(SmartDevice device, Consumer<SmartDevice> change) {
+        synchronized (device) {
+            change.accept(device);
+        }
+    }
 }
@@ -0,0 +1,341 @@
+package smarthome.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import smarthome.devices.EnergyMode;
+
+/**
+ * Struct-of-arrays device state: one primitive column per attribute, indexed
+ * by handle, so that many devices cost a few arrays instead of one state
+ * object each. On/off and slot use are bitsets.
+ *
+ * The columns are cut into fixed-size pages that never move once allocated:
+ * growing the store only adds pages. Allocation and release take the store's
+ * lock, and may run while other threads write the attributes of other
+ * handles, as room partitions do (the ON bit is set atomically since 64
+ * devices share a word).
+ *
+ * Whole-home questions are answered by scanning the columns rather than the
+ * device objects: the power drawn, the devices on, and the handles matching
+ * a filter. A scan reads the pages in parallel once the store is large, and
+ * sees every write completed before it started.
+ */
+public class ColumnarStateStore implements DeviceStateStore {
+
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int PARALLEL_SCAN_PAGES = 16; // from 16K devices
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /** The columns of PAGE_SIZE consecutive handles. */
+    private static final class Page {
+        final long[] live = new long[PAGE_SIZE >> 6];
+        final long[] on = new long[PAGE_SIZE >> 6];
+        final int[] brightness = new int[PAGE_SIZE];
+        final double[] targetTemperature = new double[PAGE_SIZE];
+        final double[] currentTemperature = new double[PAGE_SIZE];
+        final byte[] sensitivity = new byte[PAGE_SIZE];
+        final byte[] energyMode = new byte[PAGE_SIZE];
+        final double[] power = new double[PAGE_SIZE]; // watts, 0 for free slots
+        final byte[] typeId = new byte[PAGE_SIZE];
+        final String[] owners = new String[PAGE_SIZE]; // device IDs, to map scan results back
+    }
+
+    private volatile Page[] pages; // replaced whole when a page is added
+
+    // Guarded by this
+    private int highWater; // handles below this have been handed out at least once
+    private int[] freeHandles;
+    private int freeCount;
+    private final Map<String, Integer> typeIds = new HashMap<>(); // lower-case type -> id
+
+    public ColumnarStateStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a store sized for an expected number of devices. It grows as
+     * needed.
+     *
+     * @param initialCapacity The number of slots to reserve up front.
+     */
+    public ColumnarStateStore(int initialCapacity) {
+        if (initialCapacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        Page[] initial = new Page[(initialCapacity + PAGE_MASK) >> PAGE_SHIFT];
+        for (int i = 0; i < initial.length; i++) {
+            initial[i] = new Page();
+        }
+        this.pages = initial;
+        this.freeHandles = new int[16];
+    }
+
+    private Page page(int handle) {
+        return pages[handle >>> PAGE_SHIFT];
+    }
+
+    // ===== ALLOCATION =====
+
+    @Override
+    public synchronized int allocate(String deviceId, String type) {
+        int handle;
+        if (freeCount > 0) {
+            handle = freeHandles[--freeCount];
+        } else {
+            if (highWater == pages.length << PAGE_SHIFT)
+                addPage();
+            handle = highWater++;
+        }
+        Page page = page(handle);
+        int slot = handle & PAGE_MASK;
+        setBit(page.live, slot, true);
+        setBit(page.on, slot, false);
+        page.brightness[slot] = 0;
+        page.targetTemperature[slot] = 0;
+        page.currentTemperature[slot] = 0;
+        page.sensitivity[slot] = 0;
+        page.energyMode[slot] = (byte) EnergyMode.NORMAL.ordinal();
+        page.power[slot] = 0;
+        page.typeId[slot] = (byte) typeIdFor(type);
+        page.owners[slot] = deviceId;
+        return handle;
+    }
+
+    private int typeIdFor(String type) {
+        String key = type.toLowerCase(Locale.ROOT);
+        Integer id = typeIds.get(key);
+        if (id == null) {
+            if (typeIds.size() == Byte.MAX_VALUE)
+                throw new IllegalStateException("Too many device types in one store.");
+            id = typeIds.size();
+            typeIds.put(key, id);
+        }
+        return id;
+    }
+
+    @Override
+    public synchronized void release(int handle) {
+        checkHandle(handle);
+        Page page = page(handle);
+        setBit(page.live, handle & PAGE_MASK, false);
+        setBit(page.on, handle & PAGE_MASK, false);
+        page.power[handle & PAGE_MASK] = 0;
+        page.owners[handle & PAGE_MASK] = null;
+        if (freeCount == freeHandles.length)
+            freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+        freeHandles[freeCount++] = handle;
+    }
+
+    /**
+     * Adds one page; the existing pages, and writes to them in flight, stay
+     * where they are.
+     */
+    private void addPage() {
+        Page[] grown = Arrays.copyOf(pages, pages.length + 1);
+        grown[pages.length] = new Page();
+        pages = grown;
+    }
+
+    private void checkHandle(int handle) {
+        if (handle < 0 || handle >= highWater || !getBit(page(handle).live, handle & PAGE_MASK))
+            throw new IllegalArgumentException("Invalid state handle: " + handle);
+    }
+
+    @Override
+    public boolean supportsConcurrentAllocation() {
+        return true;
+    }
+
+    private static boolean getBit(long[] bits, int index) {
+        return (bits[index >> 6] & (1L << index)) != 0;
+    }
+
+    private static void setBit(long[] bits, int index, boolean value) {
+        if (value)
+            WORDS.getAndBitwiseOr(bits, index >> 6, 1L << index);
+        else
+            WORDS.getAndBitwiseAnd(bits, index >> 6, ~(1L << index));
+    }
+
+    // ===== ATTRIBUTES =====
+
+    @Override
+    public boolean isOn(int handle) {
+        return getBit(page(handle).on, handle & PAGE_MASK);
+    }
+
+    @Override
+    public void setOn(int handle, boolean value) {
+        setBit(page(handle).on, handle & PAGE_MASK, value);
+    }
+
+    @Override
+    public int getBrightness(int handle) {
+        return page(handle).brightness[handle & PAGE_MASK];
+    }
+
+    @Override
+    public void setBrightness(int handle, int value) {
+        page(handle).brightness[handle & PAGE_MASK] = value;
+    }
+
+    @Override
+    public double getTargetTemperature(int handle) {
+        return page(handle).targetTemperature[handle & PAGE_MASK];
+    }
+
+    @Override
+    public void setTargetTemperature(int handle, double value) {
+        page(handle).targetTemperature[handle & PAGE_MASK] = value;
+    }
+
+    @Override
+    public double getCurrentTemperature(int handle) {
+        return page(handle).currentTemperature[handle & PAGE_MASK];
+    }
+
+    @Override
+    public void setCurrentTemperature(int handle, double value) {
+        page(handle).currentTemperature[handle & PAGE_MASK] = value;
+    }
+
+    @Override
+    public int getSensitivity(int handle) {
+        return page(handle).sensitivity[handle & PAGE_MASK];
+    }
+
+    @Override
+    public void setSensitivity(int handle, int value) {
+        page(handle).sensitivity[handle & PAGE_MASK] = (byte) value;
+    }
+
+    @Override
+    public int getEnergyMode(int handle) {
+        return page(handle).energyMode[handle & PAGE_MASK];
+    }
+
+    @Override
+    public void setEnergyMode(int handle, int modeOrdinal) {
+        page(handle).energyMode[handle & PAGE_MASK] = (byte) modeOrdinal;
+    }
+
+    @Override
+    public boolean keepsPower() {
+        return true;
+    }
+
+    @Override
+    public void setPower(int handle, double watts) {
+        page(handle).power[handle & PAGE_MASK] = watts;
+    }
+
+    /**
+     * @return The type id of a handle's device, see typeId.
+     */
+    public int getTypeId(int handle) {
+        return page(handle).typeId[handle & PAGE_MASK];
+    }
+
+    /**
+     * @return The ID of the device holding a handle, or null if it is free.
+     */
+    public String getOwner(int handle) {
+        return page(handle).owners[handle & PAGE_MASK];
+    }
+
+    /**
+     * @param type A device type (e.g., "Light"), case-insensitive.
+     * @return Its id in this store, or -1 if no device of that type was ever
+     *         allocated.
+     */
+    public synchronized int typeId(String type) {
+        return typeIds.getOrDefault(type.toLowerCase(Locale.ROOT), -1);
+    }
+
+    // ===== SCANS =====
+
+    private IntStream pageIndexes(Page[] scanned) {
+        IntStream indexes = IntStream.range(0, scanned.length);
+        return scanned.length >= PARALLEL_SCAN_PAGES ? indexes.parallel() : indexes;
+    }
+
+    /**
+     * Sums the power column: what every device in the store draws.
+     *
+     * @return Total power in watts.
+     */
+    public double totalPower() {
+        Page[] scanned = pages;
+        return pageIndexes(scanned).mapToDouble(i -> {
+            double[] power = scanned[i].power;
+            double sum = 0;
+            for (int slot = 0; slot < PAGE_SIZE; slot++) {
+                sum += power[slot];
+            }
+            return sum;
+        }).sum();
+    }
+
+    /**
+     * @return The number of devices switched on, counted 64 at a time from
+     *         the ON bitset.
+     */
+    public int countOn() {
+        Page[] scanned = pages;
+        return pageIndexes(scanned).map(i -> {
+            long[] on = scanned[i].on;
+            long[] live = scanned[i].live;
+            int count = 0;
+            for (int w = 0; w < on.length; w++) {
+                count += Long.bitCount(on[w] & live[w]);
+            }
+            return count;
+        }).sum();
+    }
+
+    /**
+     * Finds the handles in use that pass a filter. The filter reads the
+     * columns through the getters of this store, and runs on several threads
+     * at once for large stores.
+     *
+     * @param filter Tests a handle.
+     * @return The matching handles, in ascending order.
+     */
+    public int[] select(IntPredicate filter) {
+        Page[] scanned = pages;
+        return pageIndexes(scanned).boxed().map(i -> {
+            Page page = scanned[i];
+            int[] matches = new int[16];
+            int count = 0;
+            for (int w = 0; w < page.live.length; w++) {
+                long live = page.live[w];
+                while (live != 0) {
+                    int handle = (i << PAGE_SHIFT) + (w << 6) + Long.numberOfTrailingZeros(live);
+                    live &= live - 1;
+                    if (!filter.test(handle))
+                        continue;
+                    if (count == matches.length)
+                        matches = Arrays.copyOf(matches, count * 2);
+                    matches[count++] = handle;
+                }
+            }
+            return Arrays.copyOf(matches, count);
+        }).flatMapToInt(Arrays::stream).toArray();
+    }
+
+    /**
+     * @return The number of slots in use.
+     */
+    public synchronized int size() {
+        return highWater - freeCount;
+    }
+}
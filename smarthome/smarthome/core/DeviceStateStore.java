@@ -0,0 +1,112 @@
+package smarthome.core;
+
+/**
+ * Storage for the hot attributes of smart devices, addressed by handle.
+ * A SmartDevice is a view over one slot of a store: it reads and writes its
+ * power state, brightness, temperatures, sensitivity and energy mode here
+ * instead of keeping them in its own fields.
+ */
+public interface DeviceStateStore {
+
+    /**
+     * Reserves a slot for a new device.
+     *
+     * @param deviceId The ID of the device the slot belongs to.
+     * @param type     The device type (e.g., "Light"), recorded by stores that
+     *                 persist their records.
+     * @return The handle of the new slot.
+     */
+    int allocate(String deviceId, String type);
+
+    /**
+     * Takes back a slot that already holds the state of a device, e.g. one
+     * restored from a persistent store, for a device recreated with the same
+     * ID.
+     *
+     * @param deviceId The ID of the device.
+     * @return The handle of its slot, or -1 if the store does not track IDs or
+     *         has no slot for this device.
+     * @throws IllegalStateException If a device attached earlier already holds
+     *                               the slot.
+     */
+    default int reattach(String deviceId) {
+        return -1;
+    }
+
+    /**
+     * Frees a slot so its handle can be reused.
+     *
+     * @param handle The handle returned by allocate.
+     */
+    void release(int handle);
+
+    /**
+     * @return Whether slots may be allocated and released while other threads
+     *         write the attributes of other slots, as the room partitions of
+     *         single-writer mode do.
+     */
+    default boolean supportsConcurrentAllocation() {
+        return false;
+    }
+
+    boolean isOn(int handle);
+
+    void setOn(int handle, boolean on);
+
+    int getBrightness(int handle);
+
+    void setBrightness(int handle, int brightness);
+
+    double getTargetTemperature(int handle);
+
+    void setTargetTemperature(int handle, double temperature);
+
+    double getCurrentTemperature(int handle);
+
+    void setCurrentTemperature(int handle, double temperature);
+
+    int getSensitivity(int handle);
+
+    void setSensitivity(int handle, int sensitivity);
+
+    /**
+     * @return The ordinal of the device's EnergyMode.
+     */
+    int getEnergyMode(int handle);
+
+    void setEnergyMode(int handle, int modeOrdinal);
+
+    /**
+     * @return Whether this store keeps a power column that its devices must
+     *         update on every change, for scans that sum it.
+     */
+    default boolean keepsPower() {
+        return false;
+    }
+
+    /**
+     * Records the power a device currently draws; ignored by stores that do
+     * not keep a power column.
+     *
+     * @param handle The handle.
+     * @param watts  The device's energy consumption.
+     */
+    default void setPower(int handle, double watts) {
+    }
+
+    /**
+     * Copies every attribute of one slot into a slot of this store.
+     *
+     * @param handle    The destination handle in this store.
+     * @param source    The store to copy from.
+     * @param srcHandle The handle in the source store.
+     */
+    default void copyFrom(int handle, DeviceStateStore source, int srcHandle) {
+        setOn(handle, source.isOn(srcHandle));
+        setBrightness(handle, source.getBrightness(srcHandle));
+        setTargetTemperature(handle, source.getTargetTemperature(srcHandle));
+        setCurrentTemperature(handle, source.getCurrentTemperature(srcHandle));
+        setSensitivity(handle, source.getSensitivity(srcHandle));
+        setEnergyMode(handle, source.getEnergyMode(srcHandle));
+    }
+}
@@ -0,0 +1,300 @@
+package smarthome.core;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.DeviceStateListener;
+import smarthome.devices.SmartDevice;
+
+/**
+ * Integrates device power over time into kWh, per device, room, type and the
+ * whole home, split by time-of-use tariff.
+ *
+ * Nothing is polled. Every meter keeps its accumulated energy, its current
+ * power and the time of its last update; a state change closes the interval
+ * at the old power and switches to the new one. Queries add the open interval
+ * since the last update, so they are exact and O(1) regardless of the number
+ * of devices.
+ *
+ * The meters are sharded by room, each shard with its own lock, so that room
+ * partitions reporting events at the same time do not wait for each other.
+ * The home and type totals are the sums of the shards' meters, read one shard
+ * at a time, so they cost O(rooms).
+ */
+public class EnergyMeter implements DeviceStateListener {
+
+    private static final long MILLIS_PER_HOUR = 3_600_000L;
+    private static final double MICROWATT_MILLIS_PER_KWH = 1e6 * 1000 * MILLIS_PER_HOUR;
+
+    private final Clock clock;
+    private final ZoneId zone;
+    private final List<String> tariffs;
+    private final int[] tariffByHour;
+
+    private final Map<String, Shard> shards; // lower-case room name -> shard
+    private final Map<String, Shard> shardOf; // device ID -> shard holding its meter
+
+    /**
+     * Creates a meter on the system clock with a single flat tariff.
+     */
+    public EnergyMeter() {
+        this(Clock.systemDefaultZone(), new TariffSchedule("STANDARD"));
+    }
+
+    /**
+     * Creates a meter.
+     *
+     * @param clock   Time source; its zone decides which hour a tariff applies to.
+     * @param tariffs Time-of-use schedule. Later changes to it are not seen.
+     */
+    public EnergyMeter(Clock clock, TariffSchedule tariffs) {
+        if (clock == null || tariffs == null)
+            throw new IllegalArgumentException("Clock and tariffs cannot be null.");
+        this.clock = clock;
+        this.zone = clock.getZone();
+        this.tariffs = tariffs.getBuckets();
+        this.tariffByHour = new int[24];
+        for (int h = 0; h < 24; h++) {
+            tariffByHour[h] = tariffs.bucketAtHour(h);
+        }
+        this.shards = new ConcurrentHashMap<>();
+        this.shardOf = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Running energy total of one scope at one power level. Power is kept in
+     * whole microwatts so group sums stay exact however many deltas they see.
+     */
+    private static class Meter {
+        final double[] energy; // microwatt-millis per tariff bucket
+        long microWatts;
+        long since; // millis of the last update
+
+        Meter(int buckets, long now) {
+            this.energy = new double[buckets];
+            this.since = now;
+        }
+    }
+
+    /** The meters of one room; guarded by itself. */
+    private static class Shard {
+        final Meter room;
+        final Map<String, Meter> types = new HashMap<>(); // lower-case type -> the room's devices of it
+        final Map<String, DeviceMeter> devices = new HashMap<>(); // device ID -> meter
+
+        Shard(int buckets, long now) {
+            this.room = new Meter(buckets, now);
+        }
+    }
+
+    private static class DeviceMeter extends Meter {
+        final Meter room;
+        final Meter type;
+
+        DeviceMeter(int buckets, long now, Meter room, Meter type) {
+            super(buckets, now);
+            this.room = room;
+            this.type = type;
+        }
+    }
+
+    // ===== EVENTS =====
+
+    @Override
+    public void onDeviceAdded(SmartDevice device) {
+        int buckets = tariffs.size();
+        Shard shard = shards.computeIfAbsent(device.getRoomName().toLowerCase(),
+                k -> new Shard(buckets, clock.millis()));
+        if (shardOf.putIfAbsent(device.getId(), shard) != null)
+            return;
+        synchronized (shard) {
+            long now = clock.millis();
+            Meter type = shard.types.computeIfAbsent(device.getType().toLowerCase(), k -> new Meter(buckets, now));
+            DeviceMeter meter = new DeviceMeter(buckets, now, shard.room, type);
+            shard.devices.put(device.getId(), meter);
+            setPower(meter, device.getEnergyConsumption(), now);
+        }
+    }
+
+    @Override
+    public void onDeviceRemoved(SmartDevice device) {
+        Shard shard = shardOf.remove(device.getId());
+        if (shard == null)
+            return;
+        synchronized (shard) {
+            DeviceMeter meter = shard.devices.remove(device.getId());
+            if (meter != null)
+                setPower(meter, 0.0, clock.millis());
+        }
+    }
+
+    @Override
+    public void onStateChanged(SmartDevice device, DeviceAttribute attribute) {
+        Shard shard = shardOf.get(device.getId());
+        if (shard == null)
+            return;
+        synchronized (shard) {
+            DeviceMeter meter = shard.devices.get(device.getId());
+            if (meter != null)
+                setPower(meter, device.getEnergyConsumption(), clock.millis());
+        }
+    }
+
+    private void setPower(DeviceMeter meter, double watts, long now) {
+        long microWatts = Math.round(watts * 1e6);
+        long delta = microWatts - meter.microWatts;
+        if (delta == 0)
+            return;
+        advance(meter, now);
+        advance(meter.room, now);
+        advance(meter.type, now);
+        meter.microWatts = microWatts;
+        meter.room.microWatts += delta;
+        meter.type.microWatts += delta;
+    }
+
+    /**
+     * Closes the interval since the meter's last update at its current power.
+     */
+    private void advance(Meter meter, long now) {
+        addInterval(meter, meter.energy, meter.since, now);
+        meter.since = now;
+    }
+
+    /**
+     * Adds power * (to - from) into the tariff buckets, split at the hour
+     * boundaries the interval crosses.
+     */
+    private void addInterval(Meter meter, double[] into, long from, long to) {
+        if (meter.microWatts == 0)
+            return;
+        long t = from;
+        while (t < to) {
+            long offset = zone.getRules().getOffset(Instant.ofEpochMilli(t)).getTotalSeconds() * 1000L;
+            long local = t + offset;
+            int hour = (int) Math.floorMod(Math.floorDiv(local, MILLIS_PER_HOUR), 24L);
+            long hourEnd = t + (MILLIS_PER_HOUR - Math.floorMod(local, MILLIS_PER_HOUR));
+            long end = Math.min(to, hourEnd);
+            into[tariffByHour[hour]] += (double) meter.microWatts * (end - t);
+            t = end;
+        }
+    }
+
+    // ===== QUERIES =====
+
+    private double read(Meter meter, int tariff) {
+        if (meter == null)
+            return 0.0;
+        long now = clock.millis();
+        double[] open = new double[tariffs.size()];
+        addInterval(meter, open, meter.since, now);
+        double total = 0.0;
+        for (int b = 0; b < open.length; b++) {
+            if (tariff < 0 || tariff == b)
+                total += meter.energy[b] + open[b];
+        }
+        return total / MICROWATT_MILLIS_PER_KWH;
+    }
+
+    private int tariffIndex(String tariff) {
+        int index = tariffs.indexOf(tariff);
+        if (index < 0)
+            throw new IllegalArgumentException("Unknown tariff: " + tariff);
+        return index;
+    }
+
+    public List<String> getTariffs() {
+        return tariffs;
+    }
+
+    /** Reads the room meter of every shard, the whole home. */
+    private double readHome(int tariff) {
+        double total = 0.0;
+        for (Shard shard : shards.values()) {
+            synchronized (shard) {
+                total += read(shard.room, tariff);
+            }
+        }
+        return total;
+    }
+
+    private double readRoom(String roomName, int tariff) {
+        Shard shard = shards.get(roomName.toLowerCase());
+        if (shard == null)
+            return 0.0;
+        synchronized (shard) {
+            return read(shard.room, tariff);
+        }
+    }
+
+    private double readType(String type, int tariff) {
+        String key = type.toLowerCase();
+        double total = 0.0;
+        for (Shard shard : shards.values()) {
+            synchronized (shard) {
+                total += read(shard.types.get(key), tariff);
+            }
+        }
+        return total;
+    }
+
+    private double readDevice(String deviceId, int tariff) {
+        Shard shard = shardOf.get(deviceId);
+        if (shard == null)
+            return 0.0;
+        synchronized (shard) {
+            return read(shard.devices.get(deviceId), tariff);
+        }
+    }
+
+    public double getHomeKWh() {
+        return readHome(-1);
+    }
+
+    public double getHomeKWh(String tariff) {
+        return readHome(tariffIndex(tariff));
+    }
+
+    public double getDeviceKWh(String deviceId) {
+        return readDevice(deviceId, -1);
+    }
+
+    public double getDeviceKWh(String deviceId, String tariff) {
+        return readDevice(deviceId, tariffIndex(tariff));
+    }
+
+    public double getRoomKWh(String roomName) {
+        return readRoom(roomName, -1);
+    }
+
+    public double getRoomKWh(String roomName, String tariff) {
+        return readRoom(roomName, tariffIndex(tariff));
+    }
+
+    public double getTypeKWh(String type) {
+        return readType(type, -1);
+    }
+
+    public double getTypeKWh(String type, String tariff) {
+        return readType(type, tariffIndex(tariff));
+    }
+
+    /**
+     * @return The current power draw of the whole home in watts.
+     */
+    public double getHomePower() {
+        long microWatts = 0;
+        for (Shard shard : shards.values()) {
+            synchronized (shard) {
+                microWatts += shard.room.microWatts;
+            }
+        }
+        return microWatts / 1e6;
+    }
+}
@@ -0,0 +1,390 @@
+package smarthome.core;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.ToDoubleFunction;
+
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.DeviceStateListener;
+import smarthome.devices.Light2;
+import smarthome.devices.SmartDevice;
+import smarthome.devices.Thermostat;
+
+/**
+ * Per-type and per-room device counts and statistics of numeric attributes,
+ * updated from device state events so that group queries never scan devices.
+ *
+ * Counts, sums and averages are O(1), amortized for updates; min and max
+ * are read from a sorted multiset of the group's values, O(log n).
+ *
+ * The state is sharded by room, each shard with its own lock, so that room
+ * partitions reporting events at the same time do not wait for each other.
+ * A room query reads one shard; a type query merges the type's group of
+ * every shard, so it costs O(rooms) and is not one atomic snapshot.
+ */
+public class GroupAggregates implements DeviceStateListener {
+
+    /** How devices are grouped. */
+    public enum Scope {
+        TYPE,
+        ROOM
+    }
+
+    /**
+     * Attributes with a numeric value. POWER is the device's current draw in
+     * watts.
+     */
+    private static final DeviceAttribute[] NUMERIC = {
+            DeviceAttribute.POWER,
+            DeviceAttribute.BRIGHTNESS,
+            DeviceAttribute.TARGET_TEMPERATURE,
+            DeviceAttribute.CURRENT_TEMPERATURE
+    };
+
+    private final Map<String, Shard> shards; // lower-case room name -> shard
+    private final Map<String, Shard> shardOf; // device ID -> shard holding it
+
+    public GroupAggregates() {
+        this.shards = new ConcurrentHashMap<>();
+        this.shardOf = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Statistics of one attribute over a group. The running sum is kept with
+     * compensated (Neumaier) summation and re-summed from the values once
+     * there have been as many updates as values, so rounding errors never
+     * build up however often the values change.
+     */
+    private static class Stat {
+        private static final int MIN_RESUM_INTERVAL = 64;
+
+        double sum;
+        double compensation; // low-order bits lost from sum
+        int count;
+        int updates; // since the last re-sum
+        final TreeMap<Double, Integer> values = new TreeMap<>(); // value -> multiplicity
+
+        void add(double value) {
+            count++;
+            values.merge(value, 1, Integer::sum);
+            accumulate(value);
+            updated();
+        }
+
+        void remove(double value) {
+            count--;
+            values.computeIfPresent(value, (v, n) -> n == 1 ? null : n - 1);
+            if (count == 0) {
+                sum = 0;
+                compensation = 0;
+            } else {
+                accumulate(-value);
+            }
+            updated();
+        }
+
+        double sum() {
+            return sum + compensation;
+        }
+
+        private void accumulate(double value) {
+            double t = sum + value;
+            if (Math.abs(sum) >= Math.abs(value))
+                compensation += (sum - t) + value;
+            else
+                compensation += (value - t) + sum;
+            sum = t;
+        }
+
+        private void updated() {
+            if (++updates < Math.max(count, MIN_RESUM_INTERVAL))
+                return;
+            updates = 0;
+            sum = 0;
+            compensation = 0;
+            values.forEach((value, n) -> {
+                for (int i = 0; i < n; i++) {
+                    accumulate(value);
+                }
+            });
+        }
+    }
+
+    private static class Group {
+        int count;
+        int on;
+        final EnumMap<DeviceAttribute, Stat> stats = new EnumMap<>(DeviceAttribute.class);
+    }
+
+    /** The groups of one room; guarded by itself. */
+    private static class Shard {
+        final Group room = new Group();
+        final Map<String, Group> types = new HashMap<>(); // lower-case type -> the room's devices of it
+        final Map<String, Member> devices = new HashMap<>(); // device ID -> last seen values
+    }
+
+    private static class Member {
+        final Group type;
+        final Group room;
+        boolean on;
+        final double[] values = new double[NUMERIC.length]; // NaN when the device has no such attribute
+
+        Member(Group type, Group room) {
+            this.type = type;
+            this.room = room;
+        }
+    }
+
+    // ===== EVENTS =====
+
+    @Override
+    public void onDeviceAdded(SmartDevice device) {
+        Shard shard = shards.computeIfAbsent(device.getRoomName().toLowerCase(), k -> new Shard());
+        if (shardOf.putIfAbsent(device.getId(), shard) != null)
+            return;
+        synchronized (shard) {
+            add(shard, device);
+        }
+    }
+
+    private static void add(Shard shard, SmartDevice device) {
+        Group type = shard.types.computeIfAbsent(device.getType().toLowerCase(), k -> new Group());
+        Group room = shard.room;
+        Member member = new Member(type, room);
+        shard.devices.put(device.getId(), member);
+
+        member.on = device.isOn();
+        for (Group g : new Group[] { type, room }) {
+            g.count++;
+            if (member.on)
+                g.on++;
+        }
+        for (int i = 0; i < NUMERIC.length; i++) {
+            member.values[i] = numericValue(device, NUMERIC[i]);
+            if (!Double.isNaN(member.values[i])) {
+                stat(type, NUMERIC[i]).add(member.values[i]);
+                stat(room, NUMERIC[i]).add(member.values[i]);
+            }
+        }
+    }
+
+    @Override
+    public void onDeviceRemoved(SmartDevice device) {
+        Shard shard = shardOf.remove(device.getId());
+        if (shard == null)
+            return;
+        synchronized (shard) {
+            Member member = shard.devices.remove(device.getId());
+            if (member != null)
+                remove(member);
+        }
+    }
+
+    private static void remove(Member member) {
+        for (Group g : new Group[] { member.type, member.room }) {
+            g.count--;
+            if (member.on)
+                g.on--;
+        }
+        for (int i = 0; i < NUMERIC.length; i++) {
+            if (!Double.isNaN(member.values[i])) {
+                stat(member.type, NUMERIC[i]).remove(member.values[i]);
+                stat(member.room, NUMERIC[i]).remove(member.values[i]);
+            }
+        }
+    }
+
+    @Override
+    public void onStateChanged(SmartDevice device, DeviceAttribute attribute) {
+        Shard shard = shardOf.get(device.getId());
+        if (shard == null)
+            return;
+        synchronized (shard) {
+            Member member = shard.devices.get(device.getId());
+            if (member != null)
+                update(member, device);
+        }
+    }
+
+    private static void update(Member member, SmartDevice device) {
+        boolean on = device.isOn();
+        if (on != member.on) {
+            int delta = on ? 1 : -1;
+            member.type.on += delta;
+            member.room.on += delta;
+            member.on = on;
+        }
+        // Power depends on several attributes, so every numeric value is re-read
+        for (int i = 0; i < NUMERIC.length; i++) {
+            double value = numericValue(device, NUMERIC[i]);
+            double old = member.values[i];
+            if (Double.isNaN(value) || value == old)
+                continue;
+            stat(member.type, NUMERIC[i]).remove(old);
+            stat(member.room, NUMERIC[i]).remove(old);
+            stat(member.type, NUMERIC[i]).add(value);
+            stat(member.room, NUMERIC[i]).add(value);
+            member.values[i] = value;
+        }
+    }
+
+    private static Stat stat(Group group, DeviceAttribute attribute) {
+        return group.stats.computeIfAbsent(attribute, k -> new Stat());
+    }
+
+    /**
+     * @return true if the attribute can be aggregated (POWER, BRIGHTNESS,
+     *         TARGET_TEMPERATURE or CURRENT_TEMPERATURE).
+     */
+    public static boolean isNumeric(DeviceAttribute attribute) {
+        for (DeviceAttribute a : NUMERIC) {
+            if (a == attribute)
+                return true;
+        }
+        return false;
+    }
+
+    private static double numericValue(SmartDevice device, DeviceAttribute attribute) {
+        return switch (attribute) {
+            case POWER -> device.getEnergyConsumption();
+            case BRIGHTNESS -> device instanceof Light2 l ? l.getBrightness() : Double.NaN;
+            case TARGET_TEMPERATURE -> device instanceof Thermostat t ? t.getTargetTemperature() : Double.NaN;
+            case CURRENT_TEMPERATURE -> device instanceof Thermostat t ? t.getCurrentTemperature() : Double.NaN;
+            default -> throw new IllegalArgumentException("Attribute is not numeric: " + attribute);
+        };
+    }
+
+    // ===== QUERIES =====
+
+    /**
+     * Reads a group in every shard holding part of it and merges the values:
+     * the room's shard for a room, every shard for a type.
+     *
+     * @param read     Reads one shard's group, under the shard's lock.
+     * @param merge    Combines two values read.
+     * @param identity The result when no shard has the group.
+     */
+    private double fold(Scope scope, String name, ToDoubleFunction<Group> read, DoubleBinaryOperator merge,
+            double identity) {
+        String key = name.toLowerCase();
+        Collection<Shard> holding;
+        if (scope == Scope.ROOM) {
+            Shard shard = shards.get(key);
+            holding = shard == null ? List.of() : List.of(shard);
+        } else {
+            holding = shards.values();
+        }
+        double result = identity;
+        for (Shard shard : holding) {
+            synchronized (shard) {
+                Group g = scope == Scope.ROOM ? shard.room : shard.types.get(key);
+                if (g != null)
+                    result = merge.applyAsDouble(result, read.applyAsDouble(g));
+            }
+        }
+        return result;
+    }
+
+    private double foldStat(Scope scope, String name, DeviceAttribute attribute, ToDoubleFunction<Stat> read,
+            DoubleBinaryOperator merge, double identity) {
+        if (!isNumeric(attribute))
+            throw new IllegalArgumentException("Attribute is not numeric: " + attribute);
+        return fold(scope, name, g -> {
+            Stat s = g.stats.get(attribute);
+            return s == null || s.count == 0 ? identity : read.applyAsDouble(s);
+        }, merge, identity);
+    }
+
+    /** min or max ignoring NaN, the value of a group without the attribute. */
+    private static DoubleBinaryOperator extreme(DoubleBinaryOperator pick) {
+        return (a, b) -> Double.isNaN(a) ? b : Double.isNaN(b) ? a : pick.applyAsDouble(a, b);
+    }
+
+    /**
+     * Counts the devices in a group.
+     *
+     * @param scope Whether name is a device type or a room name.
+     * @param name  The type or room (case-insensitive).
+     * @return The number of devices.
+     */
+    public int count(Scope scope, String name) {
+        return (int) fold(scope, name, g -> g.count, Double::sum, 0);
+    }
+
+    /**
+     * Counts the devices in a group that are switched on.
+     *
+     * @param scope Whether name is a device type or a room name.
+     * @param name  The type or room (case-insensitive).
+     * @return The number of devices that are ON.
+     */
+    public int countOn(Scope scope, String name) {
+        return (int) fold(scope, name, g -> g.on, Double::sum, 0);
+    }
+
+    /**
+     * Sums a numeric attribute over the devices of a group that have it.
+     *
+     * @param attribute POWER, BRIGHTNESS, TARGET_TEMPERATURE or
+     *                  CURRENT_TEMPERATURE.
+     * @return The sum, 0 if no device has the attribute.
+     */
+    public double sum(Scope scope, String name, DeviceAttribute attribute) {
+        return foldStat(scope, name, attribute, Stat::sum, Double::sum, 0);
+    }
+
+    /**
+     * @return The average of a numeric attribute over a group, or NaN if no
+     *         device has it.
+     */
+    public double average(Scope scope, String name, DeviceAttribute attribute) {
+        double count = foldStat(scope, name, attribute, s -> s.count, Double::sum, 0);
+        return count == 0 ? Double.NaN : sum(scope, name, attribute) / count;
+    }
+
+    /**
+     * @return The minimum of a numeric attribute over a group, or NaN if no
+     *         device has it.
+     */
+    public double min(Scope scope, String name, DeviceAttribute attribute) {
+        return foldStat(scope, name, attribute, s -> s.values.firstKey(), extreme(Math::min), Double.NaN);
+    }
+
+    /**
+     * @return The maximum of a numeric attribute over a group, or NaN if no
+     *         device has it.
+     */
+    public double max(Scope scope, String name, DeviceAttribute attribute) {
+        return foldStat(scope, name, attribute, s -> s.values.lastKey(), extreme(Math::max), Double.NaN);
+    }
+
+    /**
+     * Lists the groups of a scope with their device counts.
+     *
+     * @param scope Types or rooms.
+     * @return Lower-case group name -> {devices, devices ON}, sorted by name.
+     */
+    public Map<String, int[]> counts(Scope scope) {
+        Map<String, int[]> counts = new TreeMap<>();
+        shards.forEach((room, shard) -> {
+            synchronized (shard) {
+                if (scope == Scope.ROOM) {
+                    counts.put(room, new int[] { shard.room.count, shard.room.on });
+                    return;
+                }
+                shard.types.forEach((type, g) -> {
+                    int[] c = counts.computeIfAbsent(type, k -> new int[2]);
+                    c[0] += g.count;
+                    c[1] += g.on;
+                });
+            }
+        });
+        return counts;
+    }
+}
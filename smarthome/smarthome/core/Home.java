@@ -6,6 +6,7 @@ import smarthome.exceptions.DeviceNotFoundException;
 import smarthome.devices.SmartDevice;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // I can add bulk operations, like turning off all devices for a specific room, or the house.
 
@@ -19,7 +20,7 @@ public class Home{
     private int numOfRooms;
     private String address;
     private String size; // Can use ENUM later
-    static int numOfHomes = 0;
+    private static final AtomicInteger numOfHomes = new AtomicInteger(); // hosted homes are created concurrently
     private List<Room> rooms; // Composition concept.
 
     //think about rooms.
@@ -43,7 +44,7 @@ public class Home{
         this.address = address;
         this.rooms = new ArrayList<>();
 
-        numOfHomes++;
+        numOfHomes.incrementAndGet();
     }
 
     //Rooms management section, room constructor will be instantiated within the SmartHomeTest class.
@@ -159,7 +160,7 @@ public class Home{
         this.address = address;
     }
     public static int getNumOfHomes() {
-        return numOfHomes;
+        return numOfHomes.get();
     }
     public int getHomeId(){
         return homeId;
@@ -0,0 +1,45 @@
+package smarthome.core;
+
+import java.util.List;
+
+/**
+ * Immutable view of the whole home, published by a SnapshotPublisher.
+ * Rooms that did not change since the previous snapshot are the same
+ * RoomSnapshot objects, so holding on to a snapshot costs little.
+ *
+ * @param version     Incremented by each publish.
+ * @param rooms       The rooms, in home order.
+ * @param totalEnergy Power drawn by every device, in watts.
+ */
+public record HomeSnapshot(long version, List<RoomSnapshot> rooms, double totalEnergy) {
+
+    /** The snapshot published before anything was read. */
+    public static final HomeSnapshot EMPTY = new HomeSnapshot(0, List.of(), 0);
+
+    public HomeSnapshot {
+        rooms = List.copyOf(rooms);
+    }
+
+    /**
+     * @param name The room name, case-insensitive.
+     * @return The room, or null if there is no such room.
+     */
+    public RoomSnapshot room(String name) {
+        for (RoomSnapshot r : rooms) {
+            if (r.name().equalsIgnoreCase(name))
+                return r;
+        }
+        return null;
+    }
+
+    /**
+     * @return How many devices the home has.
+     */
+    public int deviceCount() {
+        int count = 0;
+        for (RoomSnapshot r : rooms) {
+            count += r.devices().size();
+        }
+        return count;
+    }
+}
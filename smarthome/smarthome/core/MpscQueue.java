@@ -0,0 +1,58 @@
+package smarthome.core;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free queue for many producers and a single consumer.
+ * Producers swap themselves in as the tail with one atomic exchange and then
+ * link the previous tail to their node; the consumer follows the links from
+ * the head and never contends with producers.
+ *
+ * poll may briefly return null while a producer is between the exchange and
+ * the link; the message becomes visible once the producer finishes offer.
+ */
+final class MpscQueue<E> {
+
+    private static final class Node<E> {
+        E value;
+        volatile Node<E> next;
+    }
+
+    private final AtomicReference<Node<E>> tail;
+    private Node<E> head; // consumer only; its value has already been taken
+
+    MpscQueue() {
+        Node<E> stub = new Node<>();
+        head = stub;
+        tail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Adds a message. Safe from any thread.
+     */
+    void offer(E value) {
+        Node<E> node = new Node<>();
+        node.value = value;
+        tail.getAndSet(node).next = node;
+    }
+
+    /**
+     * @return The oldest message, or null if there is none. Consumer only.
+     */
+    E poll() {
+        Node<E> next = head.next;
+        if (next == null)
+            return null;
+        E value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * @return Whether no message is ready. Consumer only.
+     */
+    boolean isEmpty() {
+        return head.next == null;
+    }
+}
@@ -0,0 +1,437 @@
+package smarthome.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import smarthome.devices.EnergyMode;
+
+/**
+ * Device state kept outside the Java heap, one fixed-size record per handle.
+ * The buffer is either a direct ByteBuffer or a memory-mapped file. A mapped
+ * store survives restarts: reopening the file brings back every record, and a
+ * device recreated with an ID already in the file picks up its stored state
+ * when it is attached instead of overwriting it. Records that no device took
+ * back are freed by releaseUnclaimed().
+ *
+ * Record layout (little-endian, 48 bytes):
+ *
+ * <pre>
+ *  0  flags          byte    bit 0 = in use, bit 1 = ON
+ *  1  type id        byte    index into the header type table
+ *  2  sensitivity    byte
+ *  3  energy mode    byte    EnergyMode ordinal
+ *  4  brightness     int
+ *  8  target temp    double
+ * 16  current temp   double
+ * 24  device id      2 longs UUID bits, 0/0 when the ID is not a UUID
+ * 40  reserved       8 bytes
+ * </pre>
+ *
+ * Not thread-safe for writes: growing remaps the buffer, so no attribute may
+ * be written while a record is allocated.
+ */
+public class OffHeapStateStore implements DeviceStateStore, AutoCloseable {
+
+    private static final int RECORD_SIZE = 48;
+    private static final int HEADER_SIZE = 1024;
+
+    private static final int MAGIC = 0x53484453; // "SHDS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_TYPES = 30;
+    private static final int TYPE_NAME_SIZE = 32;
+
+    // Header offsets
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_CAPACITY = 8;
+    private static final int H_HIGH_WATER = 12;
+    private static final int H_TYPE_COUNT = 16;
+    private static final int H_TYPES = 64;
+
+    // Record field offsets
+    private static final int R_FLAGS = 0;
+    private static final int R_TYPE = 1;
+    private static final int R_SENSITIVITY = 2;
+    private static final int R_ENERGY_MODE = 3;
+    private static final int R_BRIGHTNESS = 4;
+    private static final int R_TARGET = 8;
+    private static final int R_CURRENT = 16;
+    private static final int R_ID_HIGH = 24;
+    private static final int R_ID_LOW = 32;
+
+    private static final byte FLAG_LIVE = 1;
+    private static final byte FLAG_ON = 2;
+
+    private final FileChannel channel; // null for a plain direct buffer
+    private ByteBuffer buffer;
+    private int capacity;
+    private int highWater;
+    private int[] freeHandles;
+    private int freeCount;
+
+    private final List<String> typeNames;
+    private final Map<String, Integer> typeIds; // lower-case type -> id
+    private final Map<UUID, Integer> handlesById;
+    private final BitSet claimed; // records allocated or reattached since the store was opened
+
+    private OffHeapStateStore(FileChannel channel, ByteBuffer buffer, int capacity) {
+        this.channel = channel;
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.capacity = capacity;
+        this.freeHandles = new int[16];
+        this.typeNames = new ArrayList<>();
+        this.typeIds = new HashMap<>();
+        this.handlesById = new HashMap<>();
+        this.claimed = new BitSet();
+    }
+
+    /**
+     * Creates a store in a direct buffer. The state is lost when the process
+     * exits.
+     *
+     * @param initialCapacity The number of records to reserve; grows as needed.
+     * @return A new, empty store.
+     */
+    public static OffHeapStateStore allocateDirect(int initialCapacity) {
+        if (initialCapacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytesFor(initialCapacity));
+        OffHeapStateStore store = new OffHeapStateStore(null, buffer, initialCapacity);
+        store.writeHeader();
+        return store;
+    }
+
+    /**
+     * Opens a store backed by a memory-mapped file, creating the file if it
+     * does not exist. Records already in the file are kept.
+     *
+     * @param file            The backing file.
+     * @param initialCapacity The number of records to reserve for a new file.
+     * @return The opened store.
+     * @throws IOException If the file cannot be opened or is not a state file.
+     */
+    public static OffHeapStateStore map(Path file, int initialCapacity) throws IOException {
+        if (initialCapacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            boolean existing = channel.size() >= HEADER_SIZE;
+            int capacity = initialCapacity;
+            if (existing) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(header, 0);
+                if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != FORMAT_VERSION)
+                    throw new IOException("Not a device state file: " + file);
+                capacity = header.getInt(H_CAPACITY);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytesFor(capacity));
+            OffHeapStateStore store = new OffHeapStateStore(channel, buffer, capacity);
+            if (existing)
+                store.load();
+            else
+                store.writeHeader();
+            return store;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static int bytesFor(int capacity) {
+        long bytes = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        if (bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Capacity too large for one buffer: " + capacity);
+        return (int) bytes;
+    }
+
+    private static int offset(int handle) {
+        return HEADER_SIZE + handle * RECORD_SIZE;
+    }
+
+    private void writeHeader() {
+        buffer.putInt(H_MAGIC, MAGIC);
+        buffer.putInt(H_VERSION, FORMAT_VERSION);
+        buffer.putInt(H_CAPACITY, capacity);
+        buffer.putInt(H_HIGH_WATER, highWater);
+        buffer.putInt(H_TYPE_COUNT, typeNames.size());
+    }
+
+    /**
+     * Rebuilds the in-memory indexes (types, free handles, IDs) from the
+     * records of a reopened file.
+     */
+    private void load() {
+        int typeCount = buffer.getInt(H_TYPE_COUNT);
+        for (int i = 0; i < typeCount; i++) {
+            byte[] name = new byte[TYPE_NAME_SIZE];
+            buffer.get(H_TYPES + i * TYPE_NAME_SIZE, name);
+            int length = 0;
+            while (length < name.length && name[length] != 0)
+                length++;
+            String type = new String(name, 0, length, StandardCharsets.UTF_8);
+            typeIds.put(type.toLowerCase(), typeNames.size());
+            typeNames.add(type);
+        }
+        highWater = buffer.getInt(H_HIGH_WATER);
+        for (int h = highWater - 1; h >= 0; h--) {
+            int base = offset(h);
+            if ((buffer.get(base + R_FLAGS) & FLAG_LIVE) == 0) {
+                pushFree(h);
+                continue;
+            }
+            long high = buffer.getLong(base + R_ID_HIGH);
+            long low = buffer.getLong(base + R_ID_LOW);
+            if (high != 0 || low != 0)
+                handlesById.put(new UUID(high, low), h);
+        }
+    }
+
+    // ===== ALLOCATION =====
+
+    @Override
+    public int allocate(String deviceId, String type) {
+        int handle;
+        if (freeCount > 0) {
+            handle = freeHandles[--freeCount];
+        } else {
+            if (highWater == capacity)
+                grow(capacity * 2);
+            handle = highWater++;
+            buffer.putInt(H_HIGH_WATER, highWater);
+        }
+        int id = typeIdFor(type);
+        int base = offset(handle);
+        buffer.put(base + R_FLAGS, FLAG_LIVE);
+        buffer.put(base + R_TYPE, (byte) id);
+        buffer.put(base + R_SENSITIVITY, (byte) 0);
+        buffer.put(base + R_ENERGY_MODE, (byte) EnergyMode.NORMAL.ordinal());
+        buffer.putInt(base + R_BRIGHTNESS, 0);
+        buffer.putDouble(base + R_TARGET, 0);
+        buffer.putDouble(base + R_CURRENT, 0);
+
+        UUID uuid = parseUuid(deviceId);
+        buffer.putLong(base + R_ID_HIGH, uuid == null ? 0 : uuid.getMostSignificantBits());
+        buffer.putLong(base + R_ID_LOW, uuid == null ? 0 : uuid.getLeastSignificantBits());
+        if (uuid != null)
+            handlesById.put(uuid, handle);
+        claimed.set(handle);
+        return handle;
+    }
+
+    /**
+     * Looks up the record of a device without taking it.
+     *
+     * @param deviceId The ID of the device.
+     * @return The handle of its record, or -1 if there is none.
+     */
+    public int findHandle(String deviceId) {
+        UUID uuid = parseUuid(deviceId);
+        if (uuid == null)
+            return -1;
+        Integer handle = handlesById.get(uuid);
+        return handle == null ? -1 : handle;
+    }
+
+    @Override
+    public int reattach(String deviceId) {
+        int handle = findHandle(deviceId);
+        if (handle < 0)
+            return -1;
+        if (claimed.get(handle))
+            throw new IllegalStateException("Device " + deviceId + " is already attached to this store.");
+        claimed.set(handle);
+        return handle;
+    }
+
+    /**
+     * Frees the records loaded from the file that no device took back since
+     * the store was opened, e.g. devices deleted while the process was down.
+     * Call it once every device that still exists has been attached, or each
+     * restart leaves one stale record per device behind.
+     *
+     * @return The number of records freed.
+     */
+    public int releaseUnclaimed() {
+        int freed = 0;
+        for (int h = 0; h < highWater; h++) {
+            if (!claimed.get(h) && (buffer.get(offset(h) + R_FLAGS) & FLAG_LIVE) != 0) {
+                release(h);
+                freed++;
+            }
+        }
+        return freed;
+    }
+
+    @Override
+    public void release(int handle) {
+        checkHandle(handle);
+        int base = offset(handle);
+        long high = buffer.getLong(base + R_ID_HIGH);
+        long low = buffer.getLong(base + R_ID_LOW);
+        if (high != 0 || low != 0)
+            handlesById.remove(new UUID(high, low));
+        buffer.put(base + R_FLAGS, (byte) 0);
+        claimed.clear(handle);
+        pushFree(handle);
+    }
+
+    private void pushFree(int handle) {
+        if (freeCount == freeHandles.length)
+            freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+        freeHandles[freeCount++] = handle;
+    }
+
+    private static UUID parseUuid(String deviceId) {
+        if (deviceId == null)
+            return null;
+        try {
+            return UUID.fromString(deviceId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private int typeIdFor(String type) {
+        Integer id = typeIds.get(type.toLowerCase());
+        if (id != null)
+            return id;
+        byte[] name = type.getBytes(StandardCharsets.UTF_8);
+        if (typeNames.size() == MAX_TYPES)
+            throw new IllegalStateException("Too many device types in one store.");
+        if (name.length >= TYPE_NAME_SIZE)
+            throw new IllegalArgumentException("Device type name too long: " + type);
+        id = typeNames.size();
+        buffer.put(H_TYPES + id * TYPE_NAME_SIZE, name);
+        typeIds.put(type.toLowerCase(), id);
+        typeNames.add(type);
+        buffer.putInt(H_TYPE_COUNT, typeNames.size());
+        return id;
+    }
+
+    private void grow(int newCapacity) {
+        int bytes = bytesFor(newCapacity);
+        if (channel != null) {
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes).order(ByteOrder.LITTLE_ENDIAN);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot grow state file: " + e.getMessage(), e);
+            }
+        } else {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            bigger.put(0, buffer, 0, bytesFor(capacity));
+            buffer = bigger;
+        }
+        capacity = newCapacity;
+        buffer.putInt(H_CAPACITY, capacity);
+    }
+
+    private void checkHandle(int handle) {
+        if (handle < 0 || handle >= highWater || (buffer.get(offset(handle) + R_FLAGS) & FLAG_LIVE) == 0)
+            throw new IllegalArgumentException("Invalid state handle: " + handle);
+    }
+
+    // ===== ATTRIBUTES =====
+
+    @Override
+    public boolean isOn(int handle) {
+        return (buffer.get(offset(handle) + R_FLAGS) & FLAG_ON) != 0;
+    }
+
+    @Override
+    public void setOn(int handle, boolean on) {
+        int at = offset(handle) + R_FLAGS;
+        byte flags = buffer.get(at);
+        buffer.put(at, (byte) (on ? flags | FLAG_ON : flags & ~FLAG_ON));
+    }
+
+    @Override
+    public int getBrightness(int handle) {
+        return buffer.getInt(offset(handle) + R_BRIGHTNESS);
+    }
+
+    @Override
+    public void setBrightness(int handle, int brightness) {
+        buffer.putInt(offset(handle) + R_BRIGHTNESS, brightness);
+    }
+
+    @Override
+    public double getTargetTemperature(int handle) {
+        return buffer.getDouble(offset(handle) + R_TARGET);
+    }
+
+    @Override
+    public void setTargetTemperature(int handle, double temperature) {
+        buffer.putDouble(offset(handle) + R_TARGET, temperature);
+    }
+
+    @Override
+    public double getCurrentTemperature(int handle) {
+        return buffer.getDouble(offset(handle) + R_CURRENT);
+    }
+
+    @Override
+    public void setCurrentTemperature(int handle, double temperature) {
+        buffer.putDouble(offset(handle) + R_CURRENT, temperature);
+    }
+
+    @Override
+    public int getSensitivity(int handle) {
+        return buffer.get(offset(handle) + R_SENSITIVITY);
+    }
+
+    @Override
+    public void setSensitivity(int handle, int sensitivity) {
+        buffer.put(offset(handle) + R_SENSITIVITY, (byte) sensitivity);
+    }
+
+    @Override
+    public int getEnergyMode(int handle) {
+        return buffer.get(offset(handle) + R_ENERGY_MODE);
+    }
+
+    @Override
+    public void setEnergyMode(int handle, int modeOrdinal) {
+        buffer.put(offset(handle) + R_ENERGY_MODE, (byte) modeOrdinal);
+    }
+
+    // ===== SIZE =====
+
+    /**
+     * @return The number of records in use.
+     */
+    public int size() {
+        return highWater - freeCount;
+    }
+
+    // ===== PERSISTENCE =====
+
+    /**
+     * Writes outstanding changes of a mapped store to disk. Does nothing for a
+     * direct buffer.
+     */
+    public void flush() {
+        if (buffer instanceof MappedByteBuffer mapped)
+            mapped.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (channel != null)
+            channel.close();
+    }
+}
@@ -0,0 +1,349 @@
+package smarthome.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import smarthome.devices.DeviceCommand;
+import smarthome.devices.SmartDevice;
+import smarthome.exceptions.InvalidDeviceOperationException;
+
+/**
+ * Single-writer execution mode: rooms are hashed into partitions, and each
+ * partition is owned by one event-loop thread that applies every change to
+ * its rooms and their devices, in the order received. Other threads never
+ * touch those rooms; they send messages through the partition's lock-free
+ * inbox and read the RoomSnapshots it publishes. Rooms in different
+ * partitions are changed in parallel without any locking.
+ *
+ * A message must not wait for another message of the same partition (e.g.
+ * by joining an ask), or the partition deadlocks.
+ */
+public class RoomActors implements AutoCloseable {
+
+    /** Under constant load, snapshots are still published this often. */
+    private static final long PUBLISH_INTERVAL_NANOS = 10_000_000;
+    private static final int CLOCK_CHECK_INTERVAL = 256; // messages between looks at the clock
+
+    private final Home home;
+    private final Partition[] partitions;
+
+    /**
+     * Starts the partition threads.
+     *
+     * @param home       The home whose rooms are served.
+     * @param partitions Number of partitions, typically up to the number of
+     *                   cores.
+     */
+    public RoomActors(Home home, int partitions) {
+        if (home == null)
+            throw new IllegalArgumentException("Home cannot be null.");
+        if (partitions < 1)
+            throw new IllegalArgumentException("At least one partition is needed.");
+        this.home = home;
+        this.partitions = new Partition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new Partition(i);
+            this.partitions[i].thread.start();
+        }
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * @return The partition owning a room; names are case-insensitive.
+     */
+    public int partitionOf(String roomName) {
+        return partition(key(roomName)).index;
+    }
+
+    private Partition partition(String key) {
+        return partitions[Math.floorMod(key.hashCode(), partitions.length)];
+    }
+
+    private static String key(String roomName) {
+        if (roomName == null)
+            throw new IllegalArgumentException("Room name cannot be null.");
+        return roomName.toLowerCase(Locale.ROOT);
+    }
+
+    // ===== MESSAGES =====
+
+    /**
+     * Sends a message to a room without waiting for it. A message that throws
+     * is counted as an error and reported on the console.
+     */
+    public void tell(String roomName, Consumer<Room> message) {
+        String key = key(roomName);
+        partition(key).send(new Message(key, room -> {
+            message.accept(room);
+            return null;
+        }, null, null, null));
+    }
+
+    /**
+     * Sends a message to a room.
+     *
+     * @return The message's result, once the room's partition has applied
+     *         it and published the room's snapshot; completed exceptionally
+     *         if it threw or the room does not exist.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> ask(String roomName, Function<Room, T> message) {
+        CompletableFuture<Object> reply = new CompletableFuture<>();
+        String key = key(roomName);
+        partition(key).send(new Message(key, message::apply, reply, null, null));
+        return (CompletableFuture<T>) reply;
+    }
+
+    /**
+     * Applies a command on the thread owning the device's room, without
+     * waiting.
+     */
+    public void tell(SmartDevice device, DeviceCommand command) {
+        String key = key(device.getRoomName());
+        partition(key).send(new Message(key, null, null, device, command));
+    }
+
+    /**
+     * Applies a command on the thread owning the device's room.
+     *
+     * @return Completed once applied; completed exceptionally with the
+     *         device's InvalidDeviceOperationException or
+     *         IllegalArgumentException if it refused.
+     */
+    public CompletableFuture<Void> ask(SmartDevice device, DeviceCommand command) {
+        return ask(device.getRoomName(), room -> {
+            apply(device, command);
+            return null;
+        });
+    }
+
+    /**
+     * Applies a command on the thread owning the device's room if the device
+     * is still at the given version.
+     *
+     * @return Whether it was applied; see SmartDevice.executeIfVersion.
+     */
+    public CompletableFuture<Boolean> ask(SmartDevice device, DeviceCommand command, long expectedVersion) {
+        return ask(device.getRoomName(), room -> {
+            try {
+                return device.executeIfVersion(command, expectedVersion);
+            } catch (InvalidDeviceOperationException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private static void apply(SmartDevice device, DeviceCommand command) {
+        try {
+            device.execute(command);
+        } catch (InvalidDeviceOperationException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    // ===== SNAPSHOTS =====
+
+    /**
+     * @return The latest published state of a room, or null if the room does
+     *         not exist.
+     */
+    public RoomSnapshot snapshot(String roomName) {
+        String key = key(roomName);
+        Partition partition = partition(key);
+        RoomSnapshot snapshot = partition.snapshots.get(key);
+        if (snapshot != null)
+            return snapshot;
+        // Not touched since start: have the owner publish it
+        ask(roomName, room -> room).exceptionally(e -> null).join();
+        return partition.snapshots.get(key);
+    }
+
+    /**
+     * @return The latest published state of every room, in home order.
+     */
+    public List<RoomSnapshot> snapshots() {
+        List<RoomSnapshot> result = new ArrayList<>();
+        for (Room r : new ArrayList<>(home.getRooms())) {
+            RoomSnapshot s = snapshot(r.getName());
+            if (s != null)
+                result.add(s);
+        }
+        return result;
+    }
+
+    // ===== STATISTICS =====
+
+    /** @return Messages applied by a partition. */
+    public long getProcessedCount(int partition) {
+        return partitions[partition].processed.sum();
+    }
+
+    /** @return Messages of a partition that threw. */
+    public long getErrorCount(int partition) {
+        return partitions[partition].errors.sum();
+    }
+
+    /**
+     * Stops the partition threads once they have applied the messages already
+     * sent.
+     */
+    @Override
+    public void close() {
+        for (Partition p : partitions) {
+            p.send(Message.STOP);
+        }
+        for (Partition p : partitions) {
+            try {
+                p.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // ===== EVENT LOOP =====
+
+    @FunctionalInterface
+    private interface Body {
+        Object apply(Room room);
+    }
+
+    /**
+     * Either a body to run on the room, or a command for one of its devices;
+     * reply is null for tell.
+     */
+    private record Message(String roomKey, Body body, CompletableFuture<Object> reply, SmartDevice device,
+            DeviceCommand command) {
+        static final Message STOP = new Message(null, null, null, null, null);
+    }
+
+    private final class Partition implements Runnable {
+        final int index;
+        final Thread thread;
+        final MpscQueue<Message> inbox = new MpscQueue<>();
+        final LongAdder processed = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        volatile boolean sleeping;
+        volatile Map<String, RoomSnapshot> snapshots = Map.of(); // published, replaced whole
+
+        // Owned by the partition thread
+        final Map<String, Room> rooms = new HashMap<>();
+        final Map<String, Long> versions = new HashMap<>();
+        final Set<String> dirty = new HashSet<>();
+        int sinceClockCheck;
+        long lastPublish = System.nanoTime();
+
+        Partition(int index) {
+            this.index = index;
+            this.thread = new Thread(this, "room-partition-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void send(Message message) {
+            inbox.offer(message);
+            if (sleeping)
+                LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Message message = inbox.poll();
+                if (message == null) {
+                    publish();
+                    sleeping = true;
+                    if (inbox.isEmpty()) // re-check: a sender may have missed the flag
+                        LockSupport.park(this);
+                    sleeping = false;
+                    continue;
+                }
+                if (message == Message.STOP) {
+                    publish();
+                    return;
+                }
+                process(message);
+                if (++sinceClockCheck >= CLOCK_CHECK_INTERVAL) {
+                    sinceClockCheck = 0;
+                    if (System.nanoTime() - lastPublish >= PUBLISH_INTERVAL_NANOS)
+                        publish();
+                }
+            }
+        }
+
+        private void process(Message message) {
+            try {
+                Room room = room(message.roomKey());
+                Object result = null;
+                if (message.body() != null)
+                    result = message.body().apply(room);
+                else
+                    apply(message.device(), message.command());
+                versions.merge(message.roomKey(), 1L, Long::sum);
+                dirty.add(message.roomKey());
+                if (message.reply() != null) {
+                    publish(); // the asker may read the snapshot next
+                    message.reply().complete(result);
+                }
+            } catch (Throwable e) {
+                errors.increment();
+                Throwable cause = e instanceof CompletionException && e.getCause() != null
+                        ? e.getCause()
+                        : e;
+                if (message.reply() != null)
+                    message.reply().completeExceptionally(cause);
+                else
+                    System.out.println("Error in room " + message.roomKey() + ": " + cause.getMessage());
+            }
+            processed.increment();
+        }
+
+        private Room room(String key) {
+            Room room = rooms.get(key);
+            if (room == null) {
+                for (Room r : new ArrayList<>(home.getRooms())) {
+                    if (key(r.getName()).equals(key))
+                        room = r;
+                }
+                if (room == null)
+                    throw new IllegalArgumentException("Room not found: " + key);
+                rooms.put(key, room);
+            }
+            return room;
+        }
+
+        /**
+         * Publishes fresh snapshots of the rooms changed since the last call.
+         */
+        private void publish() {
+            lastPublish = System.nanoTime();
+            if (dirty.isEmpty())
+                return;
+            Map<String, RoomSnapshot> next = new HashMap<>(snapshots);
+            for (String key : dirty) {
+                Room room = rooms.get(key);
+                List<RoomSnapshot.DeviceView> devices = new ArrayList<>(room.getDevices().size());
+                for (SmartDevice d : room.getDevices()) {
+                    devices.add(RoomSnapshot.DeviceView.of(d));
+                }
+                next.put(key, RoomSnapshot.of(room.getName(), devices, versions.getOrDefault(key, 0L)));
+            }
+            dirty.clear();
+            snapshots = Map.copyOf(next);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package smarthome.core;
+
+import java.util.List;
+
+import smarthome.devices.DeviceStatus;
+import smarthome.devices.SmartDevice;
+
+/**
+ * Immutable view of a room, published by its RoomActors partition or by a
+ * SnapshotPublisher. Reading it never blocks the writers and never sees a
+ * half-applied change.
+ *
+ * @param name    The room name.
+ * @param devices The devices, in room order.
+ * @param energy  Power drawn by the devices, in watts.
+ * @param version How many times the room was changed (RoomActors: messages
+ *                applied; SnapshotPublisher: rebuilds).
+ */
+public record RoomSnapshot(String name, List<DeviceView> devices, double energy, long version) {
+
+    /**
+     * State of one device at the time of the snapshot.
+     *
+     * @param status  The typed status fields.
+     * @param version The device version the view was read at.
+     */
+    public record DeviceView(String id, String name, String type, boolean on, double energy, DeviceStatus status,
+            long version) {
+
+        /**
+         * Reads a device. If the device changes while it is being read, it
+         * is read again, so the fields match the version.
+         */
+        public static DeviceView of(SmartDevice d) {
+            for (int attempt = 0;; attempt++) {
+                long version = d.getVersion();
+                DeviceView view = new DeviceView(d.getId(), d.getName(), d.getType(), d.isOn(),
+                        d.getEnergyConsumption(), DeviceStatus.of(d), version);
+                if (d.getVersion() == version || attempt == 2) // give up on a device that never settles
+                    return view;
+            }
+        }
+    }
+
+    public RoomSnapshot {
+        devices = List.copyOf(devices);
+    }
+
+    /**
+     * Builds a snapshot, summing the devices' power.
+     */
+    public static RoomSnapshot of(String name, List<DeviceView> devices, long version) {
+        double energy = 0;
+        for (DeviceView d : devices) {
+            energy += d.energy();
+        }
+        return new RoomSnapshot(name, devices, energy, version);
+    }
+}
@@ -0,0 +1,93 @@
+package smarthome.core;
+
+import smarthome.devices.EnergyMode;
+
+/**
+ * One-slot state store holding plain fields.
+ * Devices start on one of these and move to a shared store when they are
+ * added to a controller that has one. Its attributes may be set before the
+ * slot is allocated, to give a new device its initial state.
+ */
+public class SingleDeviceState implements DeviceStateStore {
+
+    private boolean allocated;
+    private boolean on;
+    private int brightness;
+    private double targetTemperature;
+    private double currentTemperature;
+    private int sensitivity;
+    private int energyMode = EnergyMode.NORMAL.ordinal();
+
+    @Override
+    public int allocate(String deviceId, String type) {
+        if (allocated)
+            throw new IllegalStateException("SingleDeviceState holds only one device.");
+        this.allocated = true;
+        return 0;
+    }
+
+    @Override
+    public void release(int handle) {
+        allocated = false;
+    }
+
+    @Override
+    public boolean isOn(int handle) {
+        return on;
+    }
+
+    @Override
+    public void setOn(int handle, boolean on) {
+        this.on = on;
+    }
+
+    @Override
+    public int getBrightness(int handle) {
+        return brightness;
+    }
+
+    @Override
+    public void setBrightness(int handle, int brightness) {
+        this.brightness = brightness;
+    }
+
+    @Override
+    public double getTargetTemperature(int handle) {
+        return targetTemperature;
+    }
+
+    @Override
+    public void setTargetTemperature(int handle, double temperature) {
+        this.targetTemperature = temperature;
+    }
+
+    @Override
+    public double getCurrentTemperature(int handle) {
+        return currentTemperature;
+    }
+
+    @Override
+    public void setCurrentTemperature(int handle, double temperature) {
+        this.currentTemperature = temperature;
+    }
+
+    @Override
+    public int getSensitivity(int handle) {
+        return sensitivity;
+    }
+
+    @Override
+    public void setSensitivity(int handle, int sensitivity) {
+        this.sensitivity = sensitivity;
+    }
+
+    @Override
+    public int getEnergyMode(int handle) {
+        return energyMode;
+    }
+
+    @Override
+    public void setEnergyMode(int handle, int modeOrdinal) {
+        this.energyMode = modeOrdinal;
+    }
+}
@@ -0,0 +1,331 @@
+package smarthome.core;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.DeviceStateListener;
+import smarthome.devices.SmartDevice;
+import smarthome.telemetry.MetricsRegistry;
+import smarthome.telemetry.MetricsWriter;
+
+/**
+ * Keeps an immutable HomeSnapshot of the rooms and devices of a controller
+ * up to date, so that readers such as the dashboard never walk the live
+ * rooms while commands and rules change them.
+ *
+ * Device changes only mark the device dirty; a publish runs once per batch
+ * window after the first change, or when a reader asks for one. A publish
+ * re-reads only the dirty devices and rebuilds only their rooms; the other
+ * rooms, and the unchanged devices of a rebuilt room, are shared with the
+ * previous snapshot. Only adding or removing devices or rooms makes it walk
+ * the whole home.
+ *
+ * While the controller runs room actors, the partitions are the only ones
+ * that build RoomSnapshots: the publisher then just gathers the snapshots
+ * they published into the HomeSnapshot, and never reads a live room.
+ */
+public final class SnapshotPublisher implements DeviceStateListener, AutoCloseable, MetricsRegistry.Collector {
+
+    private final CentralController controller;
+    private final long batchWindowNanos;
+    private final ScheduledExecutorService scheduler; // null: publish on demand only
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Set<String> dirtyDevices = ConcurrentHashMap.newKeySet();
+    private volatile boolean structureDirty = true; // rooms or devices added or removed
+    private volatile HomeSnapshot current = HomeSnapshot.EMPTY;
+
+    // Guarded by this
+    private final Map<String, Room> rooms = new HashMap<>(); // room key -> live room
+    private final Map<String, String> roomOf = new HashMap<>(); // device id -> room key
+    private long lastTopology = -1;
+
+    private volatile long publishes;
+    private volatile long roomsRebuilt;
+    private volatile long devicesRebuilt;
+
+    private SnapshotPublisher(CentralController controller, Duration batchWindow,
+            ScheduledExecutorService scheduler) {
+        this.controller = controller;
+        this.batchWindowNanos = batchWindow.toNanos();
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Creates a publisher, registers it with the controller and publishes the
+     * first snapshot.
+     *
+     * @param controller  The controller whose home is published.
+     * @param batchWindow How long after a change the snapshot is published;
+     *                    the changes made meanwhile share one publish.
+     * @return The publisher.
+     */
+    public static SnapshotPublisher batched(CentralController controller, Duration batchWindow) {
+        if (controller == null)
+            throw new IllegalArgumentException("Controller cannot be null");
+        if (batchWindow == null || batchWindow.isNegative())
+            throw new IllegalArgumentException("Batch window cannot be negative");
+        return register(new SnapshotPublisher(controller, batchWindow,
+                Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "snapshot-publisher");
+                    thread.setDaemon(true);
+                    return thread;
+                })));
+    }
+
+    /**
+     * Creates a publisher that only publishes when publish() is called, and
+     * so needs no thread; for hosting many homes in one process.
+     *
+     * @param controller The controller whose home is published.
+     * @return The publisher, registered with the controller.
+     */
+    public static SnapshotPublisher onDemand(CentralController controller) {
+        if (controller == null)
+            throw new IllegalArgumentException("Controller cannot be null");
+        return register(new SnapshotPublisher(controller, Duration.ZERO, null));
+    }
+
+    /**
+     * Registers a fully constructed publisher, so that no device event
+     * reaches it half-built.
+     */
+    private static SnapshotPublisher register(SnapshotPublisher publisher) {
+        publisher.controller.addStateListener(publisher);
+        publisher.publish();
+        return publisher;
+    }
+
+    // ===== READING =====
+
+    /**
+     * Wait-free: returns the last published snapshot, at most one batch
+     * window behind the devices.
+     */
+    public HomeSnapshot current() {
+        return current;
+    }
+
+    /**
+     * Publishes the changes made since the last publish, if any, so that the
+     * result reflects every change completed before the call.
+     *
+     * @return The new snapshot, or the current one if nothing changed.
+     */
+    public synchronized HomeSnapshot publish() {
+        RoomActors actors = controller.getRoomActors();
+        if (actors != null)
+            return publish(actors.snapshots());
+
+        HomeSnapshot previous = current;
+        if (!structureDirty && dirtyDevices.isEmpty())
+            return previous;
+
+        // Take the dirty marks before reading, so that changes made during
+        // the read mark their device again for the next publish
+        Set<String> dirty = new HashSet<>();
+        for (String id : dirtyDevices) {
+            if (dirtyDevices.remove(id))
+                dirty.add(id);
+        }
+        boolean structural = structureDirty || lastTopology != controller.getTopologyVersion()
+                || controller.getHome().getRooms().size() != previous.rooms().size();
+        if (!structural) {
+            for (String id : dirty) {
+                if (!roomOf.containsKey(id)) {
+                    structural = true;
+                    break;
+                }
+            }
+        }
+
+        Map<String, RoomSnapshot> previousRooms = new HashMap<>();
+        for (RoomSnapshot r : previous.rooms()) {
+            previousRooms.put(key(r.name()), r);
+        }
+        List<RoomSnapshot> next = new ArrayList<>(previous.rooms().size());
+        if (structural) {
+            structureDirty = false;
+            lastTopology = controller.getTopologyVersion();
+            rooms.clear();
+            roomOf.clear();
+            for (Room room : new ArrayList<>(controller.getHome().getRooms())) {
+                String key = key(room.getName());
+                rooms.put(key, room);
+                next.add(render(room, previousRooms.get(key)));
+            }
+        } else {
+            Set<String> dirtyRooms = new HashSet<>();
+            for (String id : dirty) {
+                dirtyRooms.add(roomOf.get(id));
+            }
+            for (RoomSnapshot r : previous.rooms()) {
+                String key = key(r.name());
+                next.add(dirtyRooms.contains(key) ? render(rooms.get(key), r) : r);
+            }
+        }
+
+        return commit(previous, next);
+    }
+
+    /**
+     * In single-writer mode the partitions publish the rooms themselves, and
+     * the home snapshot only gathers them: no room is read off its partition.
+     * The live rooms are walked again once the actors stop.
+     */
+    private HomeSnapshot publish(List<RoomSnapshot> next) {
+        structureDirty = true;
+        dirtyDevices.clear();
+        HomeSnapshot previous = current;
+        boolean changed = next.size() != previous.rooms().size();
+        for (int i = 0; !changed && i < next.size(); i++) {
+            changed = next.get(i) != previous.rooms().get(i);
+        }
+        return changed ? commit(previous, next) : previous;
+    }
+
+    private HomeSnapshot commit(HomeSnapshot previous, List<RoomSnapshot> next) {
+        double totalEnergy = 0;
+        for (RoomSnapshot r : next) {
+            totalEnergy += r.energy();
+        }
+        HomeSnapshot snapshot = new HomeSnapshot(previous.version() + 1, next, totalEnergy);
+        current = snapshot;
+        publishes++;
+        return snapshot;
+    }
+
+    /**
+     * Reads a room, reusing the views of its devices whose version did not
+     * change since the previous snapshot, and the previous snapshot itself if
+     * no view changed.
+     */
+    private RoomSnapshot render(Room room, RoomSnapshot previous) {
+        String key = key(room.getName());
+        Map<String, RoomSnapshot.DeviceView> previousViews = new HashMap<>();
+        if (previous != null) {
+            for (RoomSnapshot.DeviceView v : previous.devices()) {
+                previousViews.put(v.id(), v);
+            }
+        }
+        List<RoomSnapshot.DeviceView> views = new ArrayList<>();
+        boolean changed = previous == null || !previous.name().equals(room.getName());
+        for (SmartDevice d : new ArrayList<>(room.getDevices())) {
+            if (d == null) // removed while the list was copied
+                continue;
+            roomOf.put(d.getId(), key);
+            RoomSnapshot.DeviceView view = previousViews.get(d.getId());
+            if (view == null || view.version() != d.getVersion()) {
+                view = RoomSnapshot.DeviceView.of(d);
+                devicesRebuilt++;
+            }
+            changed |= previous == null || views.size() >= previous.devices().size()
+                    || previous.devices().get(views.size()) != view;
+            views.add(view);
+        }
+        if (!changed && views.size() == previous.devices().size())
+            return previous;
+        roomsRebuilt++;
+        return RoomSnapshot.of(room.getName(), views, previous == null ? 1 : previous.version() + 1);
+    }
+
+    private static String key(String roomName) {
+        return roomName.toLowerCase(Locale.ROOT);
+    }
+
+    // ===== CHANGES =====
+
+    @Override
+    public void onStateChanged(SmartDevice device, DeviceAttribute attribute) {
+        dirtyDevices.add(device.getId());
+        schedule();
+    }
+
+    @Override
+    public void onDeviceAdded(SmartDevice device) {
+        structureDirty = true;
+        schedule();
+    }
+
+    @Override
+    public void onDeviceRemoved(SmartDevice device) {
+        structureDirty = true;
+        schedule();
+    }
+
+    /**
+     * Publishes once the batch window after the first unpublished change has
+     * passed.
+     */
+    private void schedule() {
+        if (scheduler == null || !scheduled.compareAndSet(false, true))
+            return;
+        try {
+            scheduler.schedule(() -> {
+                scheduled.set(false);
+                try {
+                    publish();
+                } catch (RuntimeException e) { // a room changed shape under the read; try again next batch
+                    structureDirty = true;
+                    System.out.println("Snapshot publish failed: " + e.getMessage());
+                }
+            }, batchWindowNanos, TimeUnit.NANOSECONDS);
+        } catch (RuntimeException e) { // closed
+            scheduled.set(false);
+        }
+    }
+
+    // ===== STATISTICS =====
+
+    /**
+     * @return How many snapshots were published.
+     */
+    public long getPublishCount() {
+        return publishes;
+    }
+
+    /**
+     * @return How many room snapshots were built, over all publishes.
+     */
+    public long getRoomsRebuilt() {
+        return roomsRebuilt;
+    }
+
+    /**
+     * @return How many devices were read, over all publishes.
+     */
+    public long getDevicesRebuilt() {
+        return devicesRebuilt;
+    }
+
+    @Override
+    public void collect(MetricsWriter writer) {
+        writer.family("smarthome_snapshot_publishes_total", "counter", "Home snapshots published.")
+                .sample("smarthome_snapshot_publishes_total", publishes);
+        writer.family("smarthome_snapshot_rebuilds_total", "counter",
+                "Parts of the home snapshot rebuilt, by kind; the rest was shared with the previous snapshot.")
+                .sample("smarthome_snapshot_rebuilds_total", roomsRebuilt, "kind", "room")
+                .sample("smarthome_snapshot_rebuilds_total", devicesRebuilt, "kind", "device");
+    }
+
+    /**
+     * Stops publishing in the background and unregisters from the controller.
+     */
+    @Override
+    public void close() {
+        controller.removeStateListener(this);
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,61 @@
+package smarthome.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time-of-use tariff: maps each hour of the day to a named tariff bucket
+ * (e.g., "PEAK", "OFF_PEAK"). Hours not covered by a period use the default
+ * bucket.
+ */
+public class TariffSchedule {
+
+    private final List<String> buckets;
+    private final int[] bucketByHour;
+
+    /**
+     * Creates a schedule with a single tariff for the whole day.
+     *
+     * @param defaultBucket The name of the default tariff (e.g., "STANDARD").
+     */
+    public TariffSchedule(String defaultBucket) {
+        if (defaultBucket == null || defaultBucket.isEmpty())
+            throw new IllegalArgumentException("Tariff name cannot be empty.");
+        this.buckets = new ArrayList<>();
+        this.buckets.add(defaultBucket);
+        this.bucketByHour = new int[24];
+    }
+
+    /**
+     * Assigns the hours [fromHour, toHour) to a tariff. A period may wrap past
+     * midnight (e.g., 22 to 6).
+     *
+     * @param bucket   The tariff name.
+     * @param fromHour First hour of the period (0-23).
+     * @param toHour   Hour the period ends (0-24, exclusive).
+     * @return This schedule, for chaining.
+     */
+    public TariffSchedule addPeriod(String bucket, int fromHour, int toHour) {
+        if (fromHour < 0 || fromHour > 23 || toHour < 0 || toHour > 24 || fromHour == toHour)
+            throw new IllegalArgumentException("Invalid tariff period " + fromHour + "-" + toHour);
+        int index = buckets.indexOf(bucket);
+        if (index < 0) {
+            index = buckets.size();
+            buckets.add(bucket);
+        }
+        for (int h = fromHour; h != toHour; h = (h + 1) % 24) {
+            bucketByHour[h] = index;
+            if (toHour == 24 && h == 23)
+                break;
+        }
+        return this;
+    }
+
+    public List<String> getBuckets() {
+        return List.copyOf(buckets);
+    }
+
+    int bucketAtHour(int hour) {
+        return bucketByHour[hour];
+    }
+}
@@ -0,0 +1,106 @@
+package smarthome.devices;
+
+import java.nio.ByteBuffer;
+
+import smarthome.exceptions.InvalidDeviceOperationException;
+
+/**
+ * Fixed-size binary encoding of DeviceCommands for high-rate ingestion.
+ *
+ * A frame is FRAME_SIZE bytes: the command kind (1 byte), its main argument
+ * (8 bytes: an integer, the bits of a double or the index of a mode) and a
+ * second argument (4 bytes: the PIN of Arm and Disarm). execute applies a
+ * frame straight from the buffer without creating any objects.
+ */
+public final class CommandCodec {
+
+    public static final int FRAME_SIZE = 13;
+
+    private static final DeviceCommand.Kind[] KINDS = DeviceCommand.Kind.values();
+    private static final EnergyMode[] ENERGY_MODES = EnergyMode.values();
+
+    private CommandCodec() {
+    }
+
+    /**
+     * Writes a command at the buffer's position, advancing it.
+     *
+     * @param command The command.
+     * @param out     The buffer, with at least FRAME_SIZE bytes remaining.
+     */
+    public static void encode(DeviceCommand command, ByteBuffer out) {
+        out.put((byte) command.kind().ordinal());
+        out.putLong(CommandDispatch.value(command));
+        out.putInt(CommandDispatch.extra(command));
+    }
+
+    /**
+     * Reads the command at the buffer's position, advancing it.
+     *
+     * @throws IllegalArgumentException If the frame is not a valid command.
+     */
+    public static DeviceCommand decode(ByteBuffer in) {
+        DeviceCommand.Kind kind = kind(in.get());
+        long value = in.getLong();
+        int extra = in.getInt();
+        return switch (kind) {
+            case TURN_ON -> DeviceCommand.ON;
+            case TURN_OFF -> DeviceCommand.OFF;
+            case TOGGLE -> DeviceCommand.TOGGLE;
+            case SET_BRIGHTNESS -> new DeviceCommand.SetBrightness(checkedInt(value));
+            case SET_TARGET_TEMP -> new DeviceCommand.SetTargetTemp(Double.longBitsToDouble(value));
+            case SET_MODE -> new DeviceCommand.SetMode(DeviceCommand.THERMOSTAT_MODES.get(index(value,
+                    DeviceCommand.THERMOSTAT_MODES.size())));
+            case SET_SENSITIVITY -> new DeviceCommand.SetSensitivity(checkedInt(value));
+            case SET_VOLUME -> new DeviceCommand.SetVolume(checkedInt(value));
+            case SET_CHANNEL -> new DeviceCommand.SetChannel(checkedInt(value));
+            case ARM -> new DeviceCommand.Arm(extra,
+                    DeviceCommand.ALARM_MODES.get(index(value, DeviceCommand.ALARM_MODES.size())));
+            case DISARM -> new DeviceCommand.Disarm(extra);
+            case SET_ENERGY_MODE -> new DeviceCommand.SetEnergyMode(
+                    ENERGY_MODES[index(value, ENERGY_MODES.length)]);
+        };
+    }
+
+    /**
+     * Applies the command at the buffer's position to a device, advancing the
+     * buffer. Values are checked by the same rules as the DeviceCommand
+     * records before the device sees them, and the command runs on the
+     * device's monitor like SmartDevice.execute, so it cannot land between
+     * the version check and the write of an executeIfVersion.
+     *
+     * @throws IllegalArgumentException        If the frame is not a valid
+     *                                         command or a value is out of
+     *                                         range.
+     * @throws InvalidDeviceOperationException If the device does not support
+     *                                         the command or cannot apply it
+     *                                         now.
+     */
+    public static void execute(ByteBuffer in, SmartDevice device) throws InvalidDeviceOperationException {
+        DeviceCommand.Kind kind = kind(in.get());
+        long value = in.getLong();
+        int extra = in.getInt();
+        CommandDispatch.validate(kind, value);
+        synchronized (device) {
+            CommandDispatch.dispatch(device, kind, value, extra);
+        }
+    }
+
+    private static DeviceCommand.Kind kind(byte b) {
+        if (b < 0 || b >= KINDS.length)
+            throw new IllegalArgumentException("Unknown command kind: " + b);
+        return KINDS[b];
+    }
+
+    private static int index(long value, int size) {
+        if (value < 0 || value >= size)
+            throw new IllegalArgumentException("Invalid mode index: " + value);
+        return (int) value;
+    }
+
+    private static int checkedInt(long value) {
+        if (value != (int) value)
+            throw new IllegalArgumentException("Value out of range: " + value);
+        return (int) value;
+    }
+}
@@ -0,0 +1,157 @@
+package smarthome.devices;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import smarthome.exceptions.InvalidDeviceOperationException;
+
+/**
+ * Applies DeviceCommands to devices through a table per device class,
+ * indexed by command kind and built the first time a class is seen, so a
+ * command costs one array lookup rather than a chain of instanceof and
+ * string comparisons.
+ *
+ * Handlers take the command's arguments as primitives (see value and extra)
+ * so that CommandCodec can apply binary frames without creating command
+ * objects.
+ */
+final class CommandDispatch {
+
+    @FunctionalInterface
+    interface Handler<D extends SmartDevice> {
+        void apply(D device, long value, int extra) throws InvalidDeviceOperationException;
+    }
+
+    private static final int KINDS = DeviceCommand.Kind.values().length;
+    private static final EnergyMode[] ENERGY_MODES = EnergyMode.values();
+    private static final Map<Class<?>, Handler<?>[]> REGISTERED = new HashMap<>();
+
+    static {
+        register(SmartDevice.class, DeviceCommand.Kind.TURN_ON, (d, v, x) -> d.turnOn());
+        register(SmartDevice.class, DeviceCommand.Kind.TURN_OFF, (d, v, x) -> d.turnOff());
+        register(SmartDevice.class, DeviceCommand.Kind.TOGGLE, (d, v, x) -> {
+            if (d.isOn())
+                d.turnOff();
+            else
+                d.turnOn();
+        });
+        register(SmartDevice.class, DeviceCommand.Kind.SET_ENERGY_MODE,
+                (d, v, x) -> d.setEnergyMode(ENERGY_MODES[(int) v].name()));
+        register(Light2.class, DeviceCommand.Kind.SET_BRIGHTNESS, (d, v, x) -> d.setBrightness((int) v));
+        register(Thermostat.class, DeviceCommand.Kind.SET_TARGET_TEMP,
+                (d, v, x) -> d.setTargetTemperature(Double.longBitsToDouble(v)));
+        register(Thermostat.class, DeviceCommand.Kind.SET_MODE,
+                (d, v, x) -> d.setMode(DeviceCommand.THERMOSTAT_MODES.get((int) v)));
+        register(MotionSensor.class, DeviceCommand.Kind.SET_SENSITIVITY, (d, v, x) -> d.setSensitivity((int) v));
+        register(SmartTV.class, DeviceCommand.Kind.SET_VOLUME, (d, v, x) -> d.setVolume((int) v));
+        register(SmartTV.class, DeviceCommand.Kind.SET_CHANNEL, (d, v, x) -> d.setChannel((int) v));
+        register(SmartAlarm.class, DeviceCommand.Kind.ARM,
+                (d, v, x) -> d.arm(x, DeviceCommand.ALARM_MODES.get((int) v)));
+        register(SmartAlarm.class, DeviceCommand.Kind.DISARM, (d, v, x) -> d.disarm(x));
+    }
+
+    /** Handlers of each device class, inherited from superclasses unless overridden. */
+    private static final ClassValue<Handler<SmartDevice>[]> TABLES = new ClassValue<>() {
+        @Override
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        protected Handler<SmartDevice>[] computeValue(Class<?> type) {
+            Handler<SmartDevice>[] table = type == SmartDevice.class ? new Handler[KINDS]
+                    : get(type.getSuperclass()).clone();
+            Handler<?>[] own = REGISTERED.get(type);
+            if (own != null) {
+                for (int i = 0; i < KINDS; i++) {
+                    if (own[i] != null)
+                        table[i] = (Handler<SmartDevice>) own[i];
+                }
+            }
+            return table;
+        }
+    };
+
+    private CommandDispatch() {
+    }
+
+    private static <D extends SmartDevice> void register(Class<D> type, DeviceCommand.Kind kind,
+            Handler<D> handler) {
+        REGISTERED.computeIfAbsent(type, k -> new Handler<?>[KINDS])[kind.ordinal()] = handler;
+    }
+
+    static boolean supports(SmartDevice device, DeviceCommand.Kind kind) {
+        return TABLES.get(device.getClass())[kind.ordinal()] != null;
+    }
+
+    static void dispatch(SmartDevice device, DeviceCommand.Kind kind, long value, int extra)
+            throws InvalidDeviceOperationException {
+        Handler<SmartDevice> handler = TABLES.get(device.getClass())[kind.ordinal()];
+        if (handler == null)
+            throw new InvalidDeviceOperationException(device.getType() + " does not support " + kind);
+        handler.apply(device, value, extra);
+    }
+
+    /**
+     * Checks the main argument of a command, as encoded by value(), against
+     * the rules of its record, which check their own arguments through here.
+     *
+     * @throws IllegalArgumentException If the argument is out of range.
+     */
+    static void validate(DeviceCommand.Kind kind, long value) {
+        switch (kind) {
+            case SET_BRIGHTNESS -> range(value, 0, 100, "Brightness must be between 0 and 100.");
+            case SET_TARGET_TEMP -> {
+                double celsius = Double.longBitsToDouble(value);
+                if (!(celsius >= 10 && celsius <= 35)) // NaN too
+                    throw new IllegalArgumentException("Invalid temperature. Must be 10-35°C");
+            }
+            case SET_SENSITIVITY -> range(value, 1, 10, "Sensitivity must be between 1 and 10.");
+            case SET_VOLUME -> range(value, 0, 100, "Volume must be between 0 and 100.");
+            case SET_CHANNEL -> range(value, 1, 999, "Channel must be between 1 and 999.");
+            case SET_MODE -> index(value, DeviceCommand.THERMOSTAT_MODES.size());
+            case ARM -> index(value, DeviceCommand.ALARM_MODES.size());
+            case SET_ENERGY_MODE -> index(value, ENERGY_MODES.length);
+            default -> {
+            }
+        }
+    }
+
+    private static void range(long value, long min, long max, String message) {
+        if (value < min || value > max)
+            throw new IllegalArgumentException(message);
+    }
+
+    private static void index(long value, int size) {
+        if (value < 0 || value >= size)
+            throw new IllegalArgumentException("Invalid mode index: " + value);
+    }
+
+    /**
+     * @return The main argument of a command as a long: the integer, the bits
+     *         of the double, or the index of the mode.
+     */
+    static long value(DeviceCommand command) {
+        return switch (command) {
+            case DeviceCommand.TurnOn c -> 0;
+            case DeviceCommand.TurnOff c -> 0;
+            case DeviceCommand.Toggle c -> 0;
+            case DeviceCommand.SetBrightness c -> c.brightness();
+            case DeviceCommand.SetTargetTemp c -> Double.doubleToRawLongBits(c.celsius());
+            case DeviceCommand.SetMode c -> DeviceCommand.THERMOSTAT_MODES.indexOf(c.mode());
+            case DeviceCommand.SetSensitivity c -> c.sensitivity();
+            case DeviceCommand.SetVolume c -> c.volume();
+            case DeviceCommand.SetChannel c -> c.channel();
+            case DeviceCommand.Arm c -> DeviceCommand.ALARM_MODES.indexOf(c.mode());
+            case DeviceCommand.Disarm c -> 0;
+            case DeviceCommand.SetEnergyMode c -> c.mode().ordinal();
+        };
+    }
+
+    /**
+     * @return The second argument of a command: the PIN of Arm and Disarm.
+     */
+    static int extra(DeviceCommand command) {
+        return switch (command) {
+            case DeviceCommand.Arm c -> c.pin();
+            case DeviceCommand.Disarm c -> c.pin();
+            default -> 0;
+        };
+    }
+}
@@ -1,12 +1,22 @@
 package smarthome.devices;
 
-
+import smarthome.exceptions.InvalidDeviceOperationException;
 
 /**
  * Interface for devices that can be controlled remotely
  */
 public interface Controllable {
     void executeCommand(String command);
+
+    /**
+     * Applies a parsed command.
+     *
+     * @param command The command.
+     * @throws InvalidDeviceOperationException If the device does not support
+     *                                         the command or cannot apply it
+     *                                         now.
+     */
+    void execute(DeviceCommand command) throws InvalidDeviceOperationException;
     boolean isResponding();
 }
 
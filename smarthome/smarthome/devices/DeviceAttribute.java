@@ -0,0 +1,17 @@
+package smarthome.devices;
+
+/**
+ * Parts of a device's state reported to a DeviceStateListener.
+ */
+public enum DeviceAttribute {
+    POWER,
+    BRIGHTNESS,
+    TARGET_TEMPERATURE,
+    CURRENT_TEMPERATURE,
+    MODE,
+    SENSITIVITY,
+    ENERGY_MODE,
+    MOTION,
+    ALARM,
+    MEDIA
+}
@@ -0,0 +1,222 @@
+package smarthome.devices;
+
+import java.util.List;
+
+/**
+ * A command for a device, parsed once where it enters the system (the web
+ * API, a command string or a binary frame) and applied with
+ * SmartDevice.execute.
+ */
+public sealed interface DeviceCommand {
+
+    /** Command kinds; the ordinal is the first byte of a binary frame. */
+    enum Kind {
+        TURN_ON, TURN_OFF, TOGGLE, SET_BRIGHTNESS, SET_TARGET_TEMP, SET_MODE, SET_SENSITIVITY, SET_VOLUME,
+        SET_CHANNEL, ARM, DISARM, SET_ENERGY_MODE
+    }
+
+    /** Modes a thermostat accepts. */
+    List<String> THERMOSTAT_MODES = List.of("HEAT", "COOL", "AUTO");
+
+    /** Modes an alarm can be armed in. */
+    List<String> ALARM_MODES = List.of("HOME", "AWAY", "NIGHT");
+
+    Kind kind();
+
+    record TurnOn() implements DeviceCommand {
+        public Kind kind() {
+            return Kind.TURN_ON;
+        }
+    }
+
+    record TurnOff() implements DeviceCommand {
+        public Kind kind() {
+            return Kind.TURN_OFF;
+        }
+    }
+
+    record Toggle() implements DeviceCommand {
+        public Kind kind() {
+            return Kind.TOGGLE;
+        }
+    }
+
+    record SetBrightness(int brightness) implements DeviceCommand {
+        public SetBrightness {
+            CommandDispatch.validate(Kind.SET_BRIGHTNESS, brightness);
+        }
+
+        public Kind kind() {
+            return Kind.SET_BRIGHTNESS;
+        }
+    }
+
+    record SetTargetTemp(double celsius) implements DeviceCommand {
+        public SetTargetTemp {
+            CommandDispatch.validate(Kind.SET_TARGET_TEMP, Double.doubleToRawLongBits(celsius));
+        }
+
+        public Kind kind() {
+            return Kind.SET_TARGET_TEMP;
+        }
+    }
+
+    record SetMode(String mode) implements DeviceCommand {
+        public SetMode {
+            mode = canonical(mode, THERMOSTAT_MODES, "Mode");
+        }
+
+        public Kind kind() {
+            return Kind.SET_MODE;
+        }
+    }
+
+    record SetSensitivity(int sensitivity) implements DeviceCommand {
+        public SetSensitivity {
+            CommandDispatch.validate(Kind.SET_SENSITIVITY, sensitivity);
+        }
+
+        public Kind kind() {
+            return Kind.SET_SENSITIVITY;
+        }
+    }
+
+    record SetVolume(int volume) implements DeviceCommand {
+        public SetVolume {
+            CommandDispatch.validate(Kind.SET_VOLUME, volume);
+        }
+
+        public Kind kind() {
+            return Kind.SET_VOLUME;
+        }
+    }
+
+    record SetChannel(int channel) implements DeviceCommand {
+        public SetChannel {
+            CommandDispatch.validate(Kind.SET_CHANNEL, channel);
+        }
+
+        public Kind kind() {
+            return Kind.SET_CHANNEL;
+        }
+    }
+
+    record Arm(int pin, String mode) implements DeviceCommand {
+        public Arm {
+            mode = canonical(mode, ALARM_MODES, "Mode");
+        }
+
+        public Kind kind() {
+            return Kind.ARM;
+        }
+    }
+
+    record Disarm(int pin) implements DeviceCommand {
+        public Kind kind() {
+            return Kind.DISARM;
+        }
+    }
+
+    record SetEnergyMode(EnergyMode mode) implements DeviceCommand {
+        public SetEnergyMode {
+            if (mode == null)
+                throw new IllegalArgumentException("Energy mode cannot be null");
+        }
+
+        public Kind kind() {
+            return Kind.SET_ENERGY_MODE;
+        }
+    }
+
+    TurnOn ON = new TurnOn();
+    TurnOff OFF = new TurnOff();
+    Toggle TOGGLE = new Toggle();
+
+    // ===== PARSING =====
+
+    /**
+     * Parses a command string as accepted by Controllable.executeCommand:
+     * "ON", "OFF", "TOGGLE", "temp:22.5", "mode:COOL", "brightness:40",
+     * "sensitivity:7", "volume:30", "channel:12", "arm:1234:AWAY",
+     * "disarm:1234" or "energy:ECO". Names are case-insensitive.
+     *
+     * @param command The command string.
+     * @return The command.
+     * @throws IllegalArgumentException If the command is unknown or its value
+     *                                  is invalid.
+     */
+    static DeviceCommand parse(String command) {
+        if (command == null)
+            throw new IllegalArgumentException("Invalid command.");
+        int colon = command.indexOf(':');
+        if (colon < 0)
+            return parse(command, null);
+        return parse(command.substring(0, colon), command.substring(colon + 1));
+    }
+
+    /**
+     * Parses a command given as an action name and a value, as sent to
+     * /api/control (e.g. "setBrightness" and "40"). Names are
+     * case-insensitive, and the short forms of parse(String) are accepted too.
+     *
+     * @param action The action.
+     * @param value  Its value, or null for actions without one.
+     * @return The command.
+     * @throws IllegalArgumentException If the action is unknown or the value
+     *                                  is missing or invalid.
+     */
+    static DeviceCommand parse(String action, String value) {
+        if (action == null)
+            throw new IllegalArgumentException("Missing action");
+        try {
+            return switch (action.trim().toLowerCase()) {
+                case "on" -> ON;
+                case "off" -> OFF;
+                case "toggle" -> TOGGLE;
+                case "setbrightness", "brightness" -> new SetBrightness(Integer.parseInt(required(value)));
+                case "settargettemperature", "settargettemp", "temp" ->
+                    new SetTargetTemp(Double.parseDouble(required(value)));
+                case "setmode", "mode" -> new SetMode(required(value));
+                case "setsensitivity", "sensitivity" -> new SetSensitivity(Integer.parseInt(required(value)));
+                case "setvolume", "volume" -> new SetVolume(Integer.parseInt(required(value)));
+                case "setchannel", "channel" -> new SetChannel(Integer.parseInt(required(value)));
+                case "arm" -> {
+                    String[] parts = required(value).split(":", 2);
+                    if (parts.length != 2)
+                        throw new IllegalArgumentException("Arm needs a PIN and a mode, e.g. 1234:AWAY");
+                    yield new Arm(Integer.parseInt(parts[0].trim()), parts[1]);
+                }
+                case "disarm" -> new Disarm(Integer.parseInt(required(value)));
+                case "setenergymode", "energy" -> {
+                    EnergyMode mode = EnergyMode.parse(required(value));
+                    if (mode == null)
+                        throw new IllegalArgumentException("Unknown energy mode: " + value);
+                    yield new SetEnergyMode(mode);
+                }
+                default -> throw new IllegalArgumentException("Unknown command: " + action);
+            };
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + action + ": " + value);
+        }
+    }
+
+    private static String required(String value) {
+        if (value == null || value.isBlank())
+            throw new IllegalArgumentException("Missing value");
+        return value.trim();
+    }
+
+    /**
+     * @return The entry of allowed equal to mode ignoring case; the shared
+     *         constant, so that modes can be compared by identity.
+     */
+    private static String canonical(String mode, List<String> allowed, String what) {
+        if (mode != null) {
+            for (String m : allowed) {
+                if (m.equalsIgnoreCase(mode.trim()))
+                    return m;
+            }
+        }
+        throw new IllegalArgumentException(what + " must be one of " + allowed + ": " + mode);
+    }
+}
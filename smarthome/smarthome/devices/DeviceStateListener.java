@@ -0,0 +1,34 @@
+package smarthome.devices;
+
+/**
+ * Receives device state changes. A device reports to one listener, normally
+ * the CentralController it belongs to, which forwards to its own listeners
+ * and also reports devices joining and leaving the home.
+ */
+public interface DeviceStateListener {
+
+    /**
+     * Called after a device's state changed.
+     *
+     * @param device    The device that changed.
+     * @param attribute The part of its state that changed.
+     */
+    void onStateChanged(SmartDevice device, DeviceAttribute attribute);
+
+    /**
+     * Called when a device joins the home (or when the listener is registered,
+     * once per existing device).
+     *
+     * @param device The device.
+     */
+    default void onDeviceAdded(SmartDevice device) {
+    }
+
+    /**
+     * Called when a device leaves the home.
+     *
+     * @param device The device.
+     */
+    default void onDeviceRemoved(SmartDevice device) {
+    }
+}
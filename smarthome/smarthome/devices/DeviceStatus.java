@@ -0,0 +1,183 @@
+package smarthome.devices;
+
+import java.util.Arrays;
+
+/**
+ * Immutable, typed copy of a device's status: the fields written by
+ * SmartDevice.writeStatus, kept as primitives in parallel arrays. Reading a
+ * field never parses or formats anything.
+ */
+public final class DeviceStatus {
+
+    private static final byte BOOLEAN = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte STRING = 3;
+
+    private final String[] fields;
+    private final byte[] kinds;
+    private final long[] values; // booleans as 0/1, doubles as raw bits
+    private final String[] strings; // null unless the field is text
+
+    private DeviceStatus(Builder builder) {
+        this.fields = Arrays.copyOf(builder.fields, builder.size);
+        this.kinds = Arrays.copyOf(builder.kinds, builder.size);
+        this.values = Arrays.copyOf(builder.values, builder.size);
+        this.strings = builder.hasStrings ? Arrays.copyOf(builder.strings, builder.size) : null;
+    }
+
+    /**
+     * Reads the status of a device.
+     */
+    public static DeviceStatus of(SmartDevice device) {
+        Builder builder = new Builder();
+        device.writeStatus(builder);
+        return new DeviceStatus(builder);
+    }
+
+    /** Collects the fields in the order they are written. */
+    private static final class Builder implements StatusWriter {
+        String[] fields = new String[8];
+        byte[] kinds = new byte[8];
+        long[] values = new long[8];
+        String[] strings = new String[8];
+        boolean hasStrings;
+        int size;
+
+        private void add(String field, byte kind, long value, String string) {
+            if (size == fields.length) {
+                fields = Arrays.copyOf(fields, size * 2);
+                kinds = Arrays.copyOf(kinds, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                strings = Arrays.copyOf(strings, size * 2);
+            }
+            fields[size] = field;
+            kinds[size] = kind;
+            values[size] = value;
+            strings[size] = string;
+            size++;
+        }
+
+        @Override
+        public void write(String field, boolean value) {
+            add(field, BOOLEAN, value ? 1 : 0, null);
+        }
+
+        @Override
+        public void write(String field, long value) {
+            add(field, LONG, value, null);
+        }
+
+        @Override
+        public void write(String field, double value) {
+            add(field, DOUBLE, Double.doubleToRawLongBits(value), null);
+        }
+
+        @Override
+        public void write(String field, String value) {
+            hasStrings = true;
+            add(field, STRING, 0, value);
+        }
+    }
+
+    /**
+     * Replays the fields, in the order the device wrote them.
+     */
+    public void writeTo(StatusWriter out) {
+        for (int i = 0; i < fields.length; i++) {
+            switch (kinds[i]) {
+                case BOOLEAN -> out.write(fields[i], values[i] != 0);
+                case LONG -> out.write(fields[i], values[i]);
+                case DOUBLE -> out.write(fields[i], Double.longBitsToDouble(values[i]));
+                default -> out.write(fields[i], strings[i]);
+            }
+        }
+    }
+
+    /**
+     * @return Whether the device wrote this field.
+     */
+    public boolean has(String field) {
+        return indexOf(field) >= 0;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the field is missing or not a flag.
+     */
+    public boolean getBoolean(String field) {
+        return values[index(field, BOOLEAN)] != 0;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the field is missing or not a whole
+     *                                  number.
+     */
+    public long getLong(String field) {
+        return values[index(field, LONG)];
+    }
+
+    /**
+     * @throws IllegalArgumentException If the field is missing or not a
+     *                                  decimal number.
+     */
+    public double getDouble(String field) {
+        return Double.longBitsToDouble(values[index(field, DOUBLE)]);
+    }
+
+    /**
+     * @throws IllegalArgumentException If the field is missing or not text.
+     */
+    public String getString(String field) {
+        return strings[index(field, STRING)];
+    }
+
+    private int index(String field, byte kind) {
+        int i = indexOf(field);
+        if (i < 0 || kinds[i] != kind)
+            throw new IllegalArgumentException("No such status field: " + field);
+        return i;
+    }
+
+    private int indexOf(String field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].equals(field))
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        writeTo(new StatusWriter() {
+            private void name(String field) {
+                text.append(text.isEmpty() ? "" : ", ").append(field).append('=');
+            }
+
+            @Override
+            public void write(String field, boolean value) {
+                name(field);
+                text.append(value);
+            }
+
+            @Override
+            public void write(String field, long value) {
+                name(field);
+                text.append(value);
+            }
+
+            @Override
+            public void write(String field, double value) {
+                name(field);
+                text.append(value);
+            }
+
+            @Override
+            public void write(String field, String value) {
+                name(field);
+                text.append(value);
+            }
+        });
+        return text.toString();
+    }
+}
@@ -0,0 +1,26 @@
+package smarthome.devices;
+
+/**
+ * Energy profiles accepted by EnergyConsumer.setEnergyMode.
+ */
+public enum EnergyMode {
+    ECO,
+    NORMAL,
+    HIGH;
+
+    /**
+     * Parses a mode name, ignoring case.
+     *
+     * @param mode The mode name (e.g., "eco").
+     * @return The matching EnergyMode, or null if the name is unknown.
+     */
+    public static EnergyMode parse(String mode) {
+        if (mode == null)
+            return null;
+        for (EnergyMode m : values()) {
+            if (m.name().equalsIgnoreCase(mode.trim()))
+                return m;
+        }
+        return null;
+    }
+}
@@ -1,13 +1,24 @@
 package smarthome.devices;
 
+import smarthome.core.SingleDeviceState;
+
 public class Light2 extends SmartDevice {
 
-    private int brightness; // 0-100
     private static final double ENERGY_PER_BRIGHTNESS = 0.5; // watts per brightness unit
 
+    /** The brightness ECO mode caps a light at. */
+    public static final int ECO_MAX_BRIGHTNESS = 30;
+
     public Light2(String name) {
         super(name, "Light");
-        this.brightness = 0;
+    }
+
+    /**
+     * Recreates a light that already exists, keeping its ID, e.g. after a restart
+     * with a persistent state store.
+     */
+    public Light2(String id, String name) {
+        super(id, name, "Light", new SingleDeviceState());
     }
 
     public Light2(String name, int initialBrightness) {
@@ -16,14 +27,21 @@ public class Light2 extends SmartDevice {
     }
 
     public int getBrightness() {
-        return brightness;
+        return getStateStore().getBrightness(getStateHandle());
+    }
+
+    private void storeBrightness(int brightness) {
+        getStateStore().setBrightness(getStateHandle(), brightness);
     }
 
     public void setBrightness(int brightness) {
         if (brightness < 0 || brightness > 100) {
             throw new IllegalArgumentException("Brightness must be between 0 and 100.");
         }
-        this.brightness = brightness;
+        int previous = getBrightness();
+        storeBrightness(brightness);
+        if (previous != brightness)
+            fireStateChanged(DeviceAttribute.BRIGHTNESS);
 
         if (brightness > 0 && !isOn()) {
             setOn(true);
@@ -37,34 +55,37 @@ public class Light2 extends SmartDevice {
     }
 
     public void dim(int amount) {
-        setBrightness(Math.max(0, brightness - amount));
+        setBrightness(Math.max(0, getBrightness() - amount));
     }
 
     public void brighten(int amount) {
-        setBrightness(Math.min(100, brightness + amount));
+        setBrightness(Math.min(100, getBrightness() + amount));
     }
 
     @Override
     public void turnOn() {
-        if (brightness == 0) {
+        if (getBrightness() == 0) {
             setBrightness(50);
         } else {
             setOn(true);
-            System.out.println(getName() + " turned ON at " + brightness + "% brightness");
+            System.out.println(getName() + " turned ON at " + getBrightness() + "% brightness");
         }
     }
 
     @Override
     public void turnOff() {
         setOn(false);
-        brightness = 0;
+        if (getBrightness() != 0) {
+            storeBrightness(0);
+            fireStateChanged(DeviceAttribute.BRIGHTNESS);
+        }
         System.out.println(getName() + " turned OFF");
     }
 
     @Override
     public String getStatus() {
         if (isOn()) {
-            return getName() + " [Light] is ON - Brightness: " + brightness + "% - " +
+            return getName() + " [Light] is ON - Brightness: " + getBrightness() + "% - " +
                     "Energy: " + String.format("%.2f", getEnergyConsumption()) + "W - " +
                     "Room: " + getRoomName();
         } else {
@@ -72,21 +93,31 @@ public class Light2 extends SmartDevice {
         }
     }
 
+    @Override
+    public void writeStatus(StatusWriter out) {
+        super.writeStatus(out);
+        out.write("brightness", getBrightness());
+    }
+
     @Override
     public double getEnergyConsumption() {
-        return isOn() ? brightness * ENERGY_PER_BRIGHTNESS : 0.0;
+        return isOn() ? getBrightness() * ENERGY_PER_BRIGHTNESS : 0.0;
     }
 
     @Override
     public void setEnergyMode(String mode) {
-        if (mode == null)
+        EnergyMode energyMode = EnergyMode.parse(mode);
+        if (energyMode == null) {
+            if (mode != null)
+                System.out.println("Unknown energy mode: " + mode);
             return;
+        }
 
-        switch (mode.toUpperCase()) {
-            case "ECO" -> setBrightness(Math.min(brightness, 30));
-            case "NORMAL" -> setBrightness(Math.min(brightness, 60));
-            case "HIGH" -> setBrightness(100);
-            default -> System.out.println("Unknown energy mode: " + mode);
+        storeEnergyMode(energyMode);
+        switch (energyMode) {
+            case ECO -> setBrightness(Math.min(getBrightness(), ECO_MAX_BRIGHTNESS));
+            case NORMAL -> setBrightness(Math.min(getBrightness(), 60));
+            case HIGH -> setBrightness(100);
         }
     }
 
@@ -1,19 +1,36 @@
 package smarthome.devices;
 
+import smarthome.core.SingleDeviceState;
+
 public class MotionSensor extends SmartDevice {
 
     private boolean motionDetected;
-    private int sensitivity; // 1-10
     private long lastMotionTime;
     private static final double ENERGY_CONSUMPTION = 2.0;
 
+    /** The sensitivity ECO mode sets. */
+    public static final int ECO_SENSITIVITY = 3;
+
     public MotionSensor(String name) {
-        super(name, "MotionSensor");
+        this(newId(), name);
+    }
+
+    /**
+     * Recreates a sensor that already exists, keeping its ID, e.g. after a restart
+     * with a persistent state store.
+     */
+    public MotionSensor(String id, String name) {
+        super(id, name, "MotionSensor", initialState());
         this.motionDetected = false;
-        this.sensitivity = 5;
         this.lastMotionTime = 0;
     }
 
+    private static SingleDeviceState initialState() {
+        SingleDeviceState state = new SingleDeviceState();
+        state.setSensitivity(0, 5);
+        return state;
+    }
+
     public MotionSensor(String name, int sensitivity) {
         super(name, "MotionSensor");
         setSensitivity(sensitivity);
@@ -32,11 +49,15 @@ public class MotionSensor extends SmartDevice {
         }
         this.motionDetected = true;
         this.lastMotionTime = System.currentTimeMillis();
+        fireStateChanged(DeviceAttribute.MOTION);
         System.out.println("⚠ " + getName() + " DETECTED MOTION in " + getRoomName());
     }
 
     public void clearMotion() {
+        if (!motionDetected)
+            return;
         this.motionDetected = false;
+        fireStateChanged(DeviceAttribute.MOTION);
         System.out.println(getName() + " motion cleared");
     }
 
@@ -55,14 +76,17 @@ public class MotionSensor extends SmartDevice {
     }
 
     public int getSensitivity() {
-        return sensitivity;
+        return getStateStore().getSensitivity(getStateHandle());
     }
 
     public void setSensitivity(int sensitivity) {
         if (sensitivity < 1 || sensitivity > 10) {
             throw new IllegalArgumentException("Sensitivity must be between 1 and 10.");
         }
-        this.sensitivity = sensitivity;
+        if (sensitivity == getSensitivity())
+            return;
+        getStateStore().setSensitivity(getStateHandle(), sensitivity);
+        fireStateChanged(DeviceAttribute.SENSITIVITY);
         System.out.println(getName() + " sensitivity set to " + sensitivity);
     }
 
@@ -75,7 +99,10 @@ public class MotionSensor extends SmartDevice {
     @Override
     public void turnOff() {
         setOn(false);
-        motionDetected = false;
+        if (motionDetected) {
+            motionDetected = false;
+            fireStateChanged(DeviceAttribute.MOTION);
+        }
         System.out.println(getName() + " turned OFF - Motion monitoring stopped");
     }
 
@@ -84,7 +111,7 @@ public class MotionSensor extends SmartDevice {
         if (isOn()) {
             String motionStatus = motionDetected ? "MOTION DETECTED!" : "No motion";
             return getName() + " [MotionSensor] is ON - Status: " + motionStatus +
-                    " - Sensitivity: " + sensitivity + "/10" +
+                    " - Sensitivity: " + getSensitivity() + "/10" +
                     " - Last motion: " + getTimeSinceLastMotion() +
                     " - Energy: " + String.format("%.2f", getEnergyConsumption()) + "W" +
                     " - Room: " + getRoomName();
@@ -93,20 +120,33 @@ public class MotionSensor extends SmartDevice {
         }
     }
 
+    @Override
+    public void writeStatus(StatusWriter out) {
+        super.writeStatus(out);
+        out.write("motionDetected", motionDetected);
+        out.write("sensitivity", getSensitivity());
+        out.write("lastMotionTime", lastMotionTime); // epoch millis, 0 if never; readers work out "ago"
+    }
+
     @Override
     public double getEnergyConsumption() {
         return isOn() ? ENERGY_CONSUMPTION : 0.0;
     }
     @Override
-public void setEnergyMode(String mode) {
-    if (mode == null) return;
+    public void setEnergyMode(String mode) {
+        EnergyMode energyMode = EnergyMode.parse(mode);
+        if (energyMode == null) {
+            if (mode != null)
+                System.out.println("Unknown energy mode: " + mode);
+            return;
+        }
 
-    switch (mode.toUpperCase()) {
-        case "ECO" -> setSensitivity(3);
-        case "NORMAL" -> setSensitivity(5);
-        case "HIGH" -> setSensitivity(8);
-        default -> System.out.println("Unknown energy mode: " + mode);
+        storeEnergyMode(energyMode);
+        switch (energyMode) {
+            case ECO -> setSensitivity(ECO_SENSITIVITY);
+            case NORMAL -> setSensitivity(5);
+            case HIGH -> setSensitivity(8);
+        }
     }
-}
 
 }
@@ -1,5 +1,7 @@
 package smarthome.devices;
 
+import smarthome.core.SingleDeviceState;
+
 public class SmartAlarm extends SmartDevice implements Schedulable {
 
     private boolean isArmed;
@@ -10,7 +12,15 @@ public class SmartAlarm extends SmartDevice implements Schedulable {
     private String schedule; // Store schedule information
 
     public SmartAlarm(String name, int pinCode) {
-        super(name, "SmartAlarm");
+        this(newId(), name, pinCode);
+    }
+
+    /**
+     * Recreates a alarm that already exists, keeping its ID, e.g. after a restart
+     * with a persistent state store.
+     */
+    public SmartAlarm(String id, String name, int pinCode) {
+        super(id, name, "SmartAlarm", new SingleDeviceState());
         setPinCode(pinCode);
         this.isArmed = false;
         this.isTriggered = false;
@@ -47,9 +57,12 @@ public class SmartAlarm extends SmartDevice implements Schedulable {
             turnOn();
         }
 
+        boolean changed = !isArmed || isTriggered || !upperMode.equals(alarmMode);
         this.isArmed = true;
         this.alarmMode = upperMode;
         this.isTriggered = false;
+        if (changed)
+            fireStateChanged(DeviceAttribute.ALARM);
         System.out.println("🛡 " + getName() + " ARMED in " + upperMode + " mode");
     }
 
@@ -59,9 +72,12 @@ public class SmartAlarm extends SmartDevice implements Schedulable {
             return;
         }
 
+        boolean changed = isArmed || isTriggered || !alarmMode.equals("DISARMED");
         this.isArmed = false;
         this.isTriggered = false;
         this.alarmMode = "DISARMED";
+        if (changed)
+            fireStateChanged(DeviceAttribute.ALARM);
         System.out.println("✓ " + getName() + " DISARMED successfully");
     }
 
@@ -73,6 +89,7 @@ public class SmartAlarm extends SmartDevice implements Schedulable {
 
         if (isArmed && !isTriggered) {
             this.isTriggered = true;
+            fireStateChanged(DeviceAttribute.ALARM);
             System.out.println("🚨 ALARM TRIGGERED! " + getName() + " in " + getRoomName());
             System.out.println("🚨 Security breach detected! Please enter PIN to disarm.");
         }
@@ -103,8 +120,11 @@ public class SmartAlarm extends SmartDevice implements Schedulable {
             return;
         }
         setOn(false);
+        boolean changed = isTriggered || !alarmMode.equals("DISARMED");
         alarmMode = "DISARMED";
         isTriggered = false;
+        if (changed)
+            fireStateChanged(DeviceAttribute.ALARM);
         System.out.println(getName() + " system deactivated");
     }
 
@@ -121,6 +141,14 @@ public class SmartAlarm extends SmartDevice implements Schedulable {
         }
     }
 
+    @Override
+    public void writeStatus(StatusWriter out) {
+        super.writeStatus(out);
+        out.write("armed", isArmed);
+        out.write("triggered", isTriggered);
+        out.write("mode", alarmMode);
+    }
+
     @Override
     public double getEnergyConsumption() {
         if (!isOn())
@@ -145,8 +173,10 @@ public class SmartAlarm extends SmartDevice implements Schedulable {
 
     @Override
     public void setEnergyMode(String mode) {
-        if (mode == null)
+        EnergyMode energyMode = EnergyMode.parse(mode);
+        if (energyMode == null)
             return;
+        storeEnergyMode(energyMode);
         System.out.println(getName() + " energy mode set to " + mode + " (No specific logic for Alarm yet)");
     }
 }
\ No newline at end of file
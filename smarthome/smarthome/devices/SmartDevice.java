@@ -2,15 +2,39 @@ package smarthome.devices;
 
 import java.util.UUID;
 
+import smarthome.core.DeviceStateStore;
+import smarthome.core.SingleDeviceState;
+import smarthome.exceptions.InvalidDeviceOperationException;
+
 public abstract class SmartDevice implements Controllable, EnergyConsumer {
 
     private final String id;
     private String name;
-    private boolean isOn;
     private String roomName;
     private String type; // Device type for searching
+    private DeviceStateStore state; // hot attributes live here, see DeviceStateStore
+    private int handle;
+    private volatile DeviceStateListener stateListener;
+    private volatile long version; // bumped on every state change, under this device's monitor
 
     public SmartDevice(String name, String type) {
+        this(newId(), name, type, new SingleDeviceState());
+    }
+
+    /**
+     * Creates a device with a given ID whose attributes start from prepared
+     * state, so that a subclass need not write its defaults through the store
+     * before it is fully constructed. Passing the ID of a device that existed
+     * before a restart lets it pick up its state again when it is attached to
+     * a persistent store.
+     *
+     * @param id      The device ID, e.g. from newId().
+     * @param initial Not yet allocated state holding the initial attributes.
+     */
+    protected SmartDevice(String id, String name, String type, SingleDeviceState initial) {
+        if (id == null || id.trim().isEmpty()) {
+            throw new IllegalArgumentException("Device ID cannot be empty.");
+        }
         if (name == null || name.trim().isEmpty()) {
             throw new IllegalArgumentException("Device name cannot be empty.");
         }
@@ -18,11 +42,68 @@ public abstract class SmartDevice implements Controllable, EnergyConsumer {
             throw new IllegalArgumentException("Device type cannot be empty.");
         }
 
-        this.id = UUID.randomUUID().toString();
+        this.id = id;
         this.name = name;
         this.type = type;
-        this.isOn = false;
         this.roomName = "Unassigned";
+        this.state = initial;
+        this.handle = state.allocate(id, type);
+    }
+
+    /**
+     * @return A fresh ID for a new device.
+     */
+    protected static String newId() {
+        return UUID.randomUUID().toString();
+    }
+
+    // State storage
+    /**
+     * Moves this device's state into a shared store. The device keeps working
+     * as before but reads and writes its attributes from the store slot. If
+     * the store already holds a slot for this device's ID (e.g., a reopened
+     * state file), that stored state is adopted instead of overwritten.
+     *
+     * @param store The store to move into.
+     */
+    public void attachState(DeviceStateStore store) {
+        if (store == null)
+            throw new IllegalArgumentException("State store cannot be null.");
+        if (store == state)
+            return;
+        int newHandle = store.reattach(id);
+        if (newHandle < 0) {
+            newHandle = store.allocate(id, type);
+            store.copyFrom(newHandle, state, handle);
+        }
+        state.release(handle);
+        this.state = store;
+        this.handle = newHandle;
+        if (store.keepsPower())
+            store.setPower(newHandle, getEnergyConsumption());
+    }
+
+    /**
+     * Moves this device's state out of a shared store back into its own
+     * fields, freeing the store slot.
+     */
+    public void detachState() {
+        if (state instanceof SingleDeviceState)
+            return;
+        DeviceStateStore own = new SingleDeviceState();
+        int newHandle = own.allocate(id, type);
+        own.copyFrom(newHandle, state, handle);
+        state.release(handle);
+        this.state = own;
+        this.handle = newHandle;
+    }
+
+    public DeviceStateStore getStateStore() {
+        return state;
+    }
+
+    public int getStateHandle() {
+        return handle;
     }
 
     // Getters
@@ -39,16 +120,30 @@ public abstract class SmartDevice implements Controllable, EnergyConsumer {
     }
 
     public boolean isOn() {
-        return isOn;
+        return state.isOn(handle);
     }
 
     public String getRoomName() {
         return roomName;
     }
 
+    public EnergyMode getEnergyMode() {
+        return EnergyMode.values()[state.getEnergyMode(handle)];
+    }
+
     // Setters
     protected void setOn(boolean on) {
-        this.isOn = on;
+        boolean wasOn = state.isOn(handle);
+        state.setOn(handle, on);
+        if (wasOn != on)
+            fireStateChanged(DeviceAttribute.POWER);
+    }
+
+    protected void storeEnergyMode(EnergyMode mode) {
+        int previous = state.getEnergyMode(handle);
+        state.setEnergyMode(handle, mode.ordinal());
+        if (previous != mode.ordinal())
+            fireStateChanged(DeviceAttribute.ENERGY_MODE);
     }
 
     public void setRoomName(String roomName) {
@@ -58,21 +153,53 @@ public abstract class SmartDevice implements Controllable, EnergyConsumer {
         this.roomName = roomName;
     }
 
+    // State change notification
+    /**
+     * Sets the listener told about every change of this device's state.
+     *
+     * @param listener The listener, or null to stop reporting.
+     */
+    public void setStateListener(DeviceStateListener listener) {
+        this.stateListener = listener;
+    }
+
+    /**
+     * Tells the listener that an attribute changed and bumps the version.
+     * Call it only when the value really changed: rules react to every event.
+     * A store with a power column gets the device's new consumption first.
+     * The version moves under the device's monitor, which writers going
+     * through execute already hold; a setter called without it still bumps
+     * the version exactly once.
+     *
+     * @param attribute The attribute that changed.
+     */
+    protected void fireStateChanged(DeviceAttribute attribute) {
+        synchronized (this) {
+            version++;
+        }
+        DeviceStateStore store = state;
+        if (store.keepsPower())
+            store.setPower(handle, getEnergyConsumption());
+        DeviceStateListener listener = stateListener;
+        if (listener != null)
+            listener.onStateChanged(this, attribute);
+    }
+
     // Public methods for turning on/off (not overriding interface methods)
     public void turnOn() {
-        if (isOn) {
+        if (isOn()) {
             System.out.println(name + " is already ON.");
         } else {
-            isOn = true;
+            setOn(true);
             System.out.println(name + " has been turned ON.");
         }
     }
 
     public void turnOff() {
-        if (!isOn) {
+        if (!isOn()) {
             System.out.println(name + " is already OFF.");
         } else {
-            isOn = false;
+            setOn(false);
             System.out.println(name + " has been turned OFF.");
         }
     }
@@ -85,26 +212,90 @@ public abstract class SmartDevice implements Controllable, EnergyConsumer {
             return;
         }
 
-        switch (command.toUpperCase()) {
-            case "ON":
-                turnOn();
-                break;
-            case "OFF":
-                turnOff();
-                break;
-            default:
-                System.out.println("Unknown command: " + command);
+        try {
+            execute(DeviceCommand.parse(command));
+        } catch (IllegalArgumentException | InvalidDeviceOperationException e) {
+            System.out.println(e.getMessage());
         }
     }
 
+    /**
+     * Applies a command while holding this device's monitor, which
+     * executeIfVersion and code changing the device through its setters hold
+     * too, so that a conditional command never interleaves with another write.
+     */
+    @Override
+    public synchronized void execute(DeviceCommand command) throws InvalidDeviceOperationException {
+        CommandDispatch.dispatch(this, command.kind(), CommandDispatch.value(command),
+                CommandDispatch.extra(command));
+    }
+
+    /**
+     * @return A number that grows every time this device's state changes;
+     *         pass it to executeIfVersion to change the device only if no one
+     *         else did in between.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Applies a command only if the device is still at the given version.
+     * The check and the command run under the device's monitor, so no other
+     * write can slip in between them; of several callers holding the same
+     * version, the first whose command changes the device moves the version
+     * on and the others are refused. The version only moves when the command
+     * changes state, so a command that throws or changes nothing leaves it
+     * as it was.
+     *
+     * @param command         The command.
+     * @param expectedVersion The version the caller last saw.
+     * @return Whether the command was applied; false if the device changed
+     *         since expectedVersion.
+     * @throws InvalidDeviceOperationException If the device does not support
+     *                                         the command or cannot apply it
+     *                                         now.
+     */
+    public synchronized boolean executeIfVersion(DeviceCommand command, long expectedVersion)
+            throws InvalidDeviceOperationException {
+        if (!supports(command.kind()))
+            throw new InvalidDeviceOperationException(type + " does not support " + command.kind());
+        if (version != expectedVersion)
+            return false;
+        execute(command);
+        return true;
+    }
+
+    /**
+     * @return Whether this device accepts commands of the given kind.
+     */
+    public boolean supports(DeviceCommand.Kind kind) {
+        return CommandDispatch.supports(this, kind);
+    }
+
     @Override
     public boolean isResponding() {
         return true; // Default implementation - device is responding
     }
 
     // Abstract methods - must be implemented by subclasses
+    /**
+     * @return The status as a sentence for people; built on every call, so
+     *         encoders should use writeStatus instead.
+     */
     public abstract String getStatus();
 
+    /**
+     * Writes the status as typed fields, without formatting anything.
+     * Subclasses add their own fields after calling this.
+     *
+     * @param out The encoder.
+     */
+    public void writeStatus(StatusWriter out) {
+        out.write("on", isOn());
+        out.write("energyMode", getEnergyMode().name());
+    }
+
     // EnergyConsumer interface - concrete implementation in subclasses
     @Override
     public abstract double getEnergyConsumption();
@@ -115,6 +306,6 @@ public abstract class SmartDevice implements Controllable, EnergyConsumer {
     @Override
     public String toString() {
         return "[" + id.substring(0, 8) + "] " + name +
-                " (" + type + ") - " + (isOn ? "ON" : "OFF");
+                " (" + type + ") - " + (isOn() ? "ON" : "OFF");
     }
 }
\ No newline at end of file
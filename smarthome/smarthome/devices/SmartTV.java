@@ -1,5 +1,7 @@
 package smarthome.devices;
 
+import smarthome.core.SingleDeviceState;
+
 public class SmartTV extends SmartDevice {
 
     private int volume; // 0-100
@@ -9,7 +11,15 @@ public class SmartTV extends SmartDevice {
     private static final double BASE_ENERGY_CONSUMPTION = 80.0; // watts
 
     public SmartTV(String name) {
-        super(name, "SmartTV");
+        this(newId(), name);
+    }
+
+    /**
+     * Recreates a TV that already exists, keeping its ID, e.g. after a restart
+     * with a persistent state store.
+     */
+    public SmartTV(String id, String name) {
+        super(id, name, "SmartTV", new SingleDeviceState());
         this.volume = 30;
         this.channel = 1;
         this.currentApp = "None";
@@ -25,8 +35,11 @@ public class SmartTV extends SmartDevice {
         if (volume < 0 || volume > 100) {
             throw new IllegalArgumentException("Volume must be between 0 and 100.");
         }
+        boolean changed = this.volume != volume || isMuted;
         this.volume = volume;
         this.isMuted = false;
+        if (changed)
+            fireStateChanged(DeviceAttribute.MEDIA);
         System.out.println(getName() + " volume set to " + volume);
     }
 
@@ -34,6 +47,7 @@ public class SmartTV extends SmartDevice {
         if (volume < 100) {
             volume++;
             isMuted = false;
+            fireStateChanged(DeviceAttribute.MEDIA);
             System.out.println(getName() + " volume: " + volume);
         }
     }
@@ -41,17 +55,24 @@ public class SmartTV extends SmartDevice {
     public void volumeDown() {
         if (volume > 0) {
             volume--;
+            fireStateChanged(DeviceAttribute.MEDIA);
             System.out.println(getName() + " volume: " + volume);
         }
     }
 
     public void mute() {
-        isMuted = true;
+        if (!isMuted) {
+            isMuted = true;
+            fireStateChanged(DeviceAttribute.MEDIA);
+        }
         System.out.println(getName() + " muted");
     }
 
     public void unmute() {
-        isMuted = false;
+        if (isMuted) {
+            isMuted = false;
+            fireStateChanged(DeviceAttribute.MEDIA);
+        }
         System.out.println(getName() + " unmuted");
     }
 
@@ -71,7 +92,10 @@ public class SmartTV extends SmartDevice {
         if (channel < 1 || channel > 999) {
             throw new IllegalArgumentException("Channel must be between 1 and 999.");
         }
-        this.channel = channel;
+        if (this.channel != channel) {
+            this.channel = channel;
+            fireStateChanged(DeviceAttribute.MEDIA);
+        }
         System.out.println(getName() + " changed to channel " + channel);
     }
 
@@ -109,12 +133,18 @@ public class SmartTV extends SmartDevice {
             turnOn();
         }
 
-        this.currentApp = appName;
+        if (!appName.equals(currentApp)) {
+            this.currentApp = appName;
+            fireStateChanged(DeviceAttribute.MEDIA);
+        }
         System.out.println(getName() + " launched app: " + appName);
     }
 
     public void closeApp() {
-        this.currentApp = "None";
+        if (!currentApp.equals("None")) {
+            this.currentApp = "None";
+            fireStateChanged(DeviceAttribute.MEDIA);
+        }
         System.out.println(getName() + " closed current app");
     }
 
@@ -127,7 +157,10 @@ public class SmartTV extends SmartDevice {
     @Override
     public void turnOff() {
         setOn(false);
-        currentApp = "None";
+        if (!currentApp.equals("None")) {
+            currentApp = "None";
+            fireStateChanged(DeviceAttribute.MEDIA);
+        }
         System.out.println(getName() + " turned OFF");
     }
 
@@ -145,6 +178,15 @@ public class SmartTV extends SmartDevice {
         }
     }
 
+    @Override
+    public void writeStatus(StatusWriter out) {
+        super.writeStatus(out);
+        out.write("channel", channel);
+        out.write("volume", volume);
+        out.write("muted", isMuted);
+        out.write("app", currentApp);
+    }
+
     @Override
     public double getEnergyConsumption() {
         if (!isOn())
@@ -157,8 +199,10 @@ public class SmartTV extends SmartDevice {
 
     @Override
     public void setEnergyMode(String mode) {
-        if (mode == null)
+        EnergyMode energyMode = EnergyMode.parse(mode);
+        if (energyMode == null)
             return;
+        storeEnergyMode(energyMode);
         System.out.println(getName() + " energy mode set to " + mode + " (No specific logic for TV yet)");
     }
 }
\ No newline at end of file
@@ -0,0 +1,41 @@
+package smarthome.devices;
+
+/**
+ * Receives the fields of a device's status from SmartDevice.writeStatus, so
+ * that an encoder (JSON, binary, DeviceStatus) can write them as they come
+ * without the status being formatted into a string first.
+ */
+public interface StatusWriter {
+
+    /**
+     * Writes a flag.
+     *
+     * @param field The field name.
+     * @param value The value.
+     */
+    void write(String field, boolean value);
+
+    /**
+     * Writes a whole number.
+     *
+     * @param field The field name.
+     * @param value The value.
+     */
+    void write(String field, long value);
+
+    /**
+     * Writes a decimal number.
+     *
+     * @param field The field name.
+     * @param value The value.
+     */
+    void write(String field, double value);
+
+    /**
+     * Writes a text or enum value.
+     *
+     * @param field The field name.
+     * @param value The value, possibly null.
+     */
+    void write(String field, String value);
+}
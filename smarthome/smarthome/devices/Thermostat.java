@@ -1,28 +1,39 @@
 package smarthome.devices;
 
+import smarthome.core.SingleDeviceState;
+
 /**
  * Smart Thermostat with temperature control
  */
 public class Thermostat extends SmartDevice implements Schedulable {
-    private double currentTemperature;
-    private double targetTemperature;
     private String mode; // "HEAT", "COOL", "AUTO"
     private String schedule;
-    private String energyMode;
 
     public Thermostat(String name) {
-        super(name, "Thermostat");
-        this.currentTemperature = 20.0;
-        this.targetTemperature = 22.0;
+        this(newId(), name);
+    }
+
+    /**
+     * Recreates a thermostat that already exists, keeping its ID, e.g. after a restart
+     * with a persistent state store.
+     */
+    public Thermostat(String id, String name) {
+        super(id, name, "Thermostat", initialState());
         this.mode = "HEAT";
         this.schedule = "None";
-        this.energyMode = "NORMAL";
+    }
+
+    private static SingleDeviceState initialState() {
+        SingleDeviceState state = new SingleDeviceState();
+        state.setCurrentTemperature(0, 20.0);
+        state.setTargetTemperature(0, 22.0);
+        return state;
     }
 
     @Override
     public void turnOn() {
         setOn(true);
-        System.out.println(getName() + " turned ON | Mode: " + mode + " | Target: " + targetTemperature + "°C");
+        System.out.println(getName() + " turned ON | Mode: " + mode + " | Target: " + getTargetTemperature() + "°C");
     }
 
     @Override
@@ -36,19 +47,15 @@ public class Thermostat extends SmartDevice implements Schedulable {
         String baseStatus = "[" + getId().substring(0, 8) + "] " + getName() +
                 " (" + getType() + ") - " + (isOn() ? "ON" : "OFF");
         return baseStatus + String.format(" | Current: %.1f°C | Target: %.1f°C | Mode: %s",
-                currentTemperature, targetTemperature, mode);
+                getCurrentTemperature(), getTargetTemperature(), mode);
     }
 
     @Override
-    public void executeCommand(String command) {
-        if (command.startsWith("temp:")) {
-            double temp = Double.parseDouble(command.split(":")[1]);
-            setTargetTemperature(temp);
-        } else if (command.startsWith("mode:")) {
-            setMode(command.split(":")[1]);
-        } else {
-            super.executeCommand(command);
-        }
+    public void writeStatus(StatusWriter out) {
+        super.writeStatus(out);
+        out.write("currentTemperature", getCurrentTemperature());
+        out.write("targetTemperature", getTargetTemperature());
+        out.write("mode", mode);
     }
 
     @Override
@@ -61,14 +68,19 @@ public class Thermostat extends SmartDevice implements Schedulable {
         if (!isOn())
             return 0;
         double baseConsumption = 1500; // 1500W
-        double tempDiff = Math.abs(targetTemperature - currentTemperature);
+        double tempDiff = Math.abs(getTargetTemperature() - getCurrentTemperature());
         return baseConsumption * (1 + tempDiff * 0.1) *
-                (energyMode.equals("ECO") ? 0.8 : 1.0);
+                (getEnergyMode() == EnergyMode.ECO ? 0.8 : 1.0);
     }
 
     @Override
     public void setEnergyMode(String mode) {
-        this.energyMode = mode;
+        EnergyMode energyMode = EnergyMode.parse(mode);
+        if (energyMode == null) {
+            System.out.println("Unknown energy mode: " + mode);
+            return;
+        }
+        storeEnergyMode(energyMode);
         System.out.println(getName() + " energy mode set to " + mode);
     }
 
@@ -88,25 +100,34 @@ public class Thermostat extends SmartDevice implements Schedulable {
             System.out.println("Invalid temperature. Must be 10-35°C");
             return;
         }
-        this.targetTemperature = temp;
+        if (temp == getTargetTemperature())
+            return;
+        getStateStore().setTargetTemperature(getStateHandle(), temp);
+        fireStateChanged(DeviceAttribute.TARGET_TEMPERATURE);
         System.out.println(getName() + " target temperature set to " + temp + "°C");
     }
 
     public void setMode(String mode) {
+        if (mode.equals(this.mode))
+            return;
         this.mode = mode;
+        fireStateChanged(DeviceAttribute.MODE);
         System.out.println(getName() + " mode set to " + mode);
     }
 
     public void setCurrentTemperature(double temp) {
-        this.currentTemperature = temp;
+        if (Double.compare(temp, getCurrentTemperature()) == 0)
+            return;
+        getStateStore().setCurrentTemperature(getStateHandle(), temp);
+        fireStateChanged(DeviceAttribute.CURRENT_TEMPERATURE);
     }
 
     public double getCurrentTemperature() {
-        return currentTemperature;
+        return getStateStore().getCurrentTemperature(getStateHandle());
     }
 
     public double getTargetTemperature() {
-        return targetTemperature;
+        return getStateStore().getTargetTemperature(getStateHandle());
     }
 
     public String getMode() {
@@ -0,0 +1,47 @@
+package smarthome.telemetry;
+
+import java.util.Map;
+
+import smarthome.core.CentralController;
+import smarthome.core.GroupAggregates;
+import smarthome.devices.DeviceAttribute;
+
+/**
+ * Device counts by type and room, state changes and energy use of a
+ * controller, read from its group aggregates and counters.
+ */
+public class ControllerMetrics implements MetricsRegistry.Collector {
+
+    private final CentralController controller;
+
+    public ControllerMetrics(CentralController controller) {
+        if (controller == null)
+            throw new IllegalArgumentException("Controller cannot be null.");
+        this.controller = controller;
+    }
+
+    @Override
+    public void collect(MetricsWriter writer) {
+        GroupAggregates aggregates = controller.getGroupAggregates();
+        Map<String, int[]> types = aggregates.counts(GroupAggregates.Scope.TYPE);
+        Map<String, int[]> rooms = aggregates.counts(GroupAggregates.Scope.ROOM);
+
+        writer.family("smarthome_devices", "gauge", "Devices, by type.");
+        types.forEach((type, c) -> writer.sample("smarthome_devices", c[0], "type", type));
+        writer.family("smarthome_devices_on", "gauge", "Devices switched on, by type.");
+        types.forEach((type, c) -> writer.sample("smarthome_devices_on", c[1], "type", type));
+        writer.family("smarthome_room_devices", "gauge", "Devices, by room.");
+        rooms.forEach((room, c) -> writer.sample("smarthome_room_devices", c[0], "room", room));
+        writer.family("smarthome_room_devices_on", "gauge", "Devices switched on, by room.");
+        rooms.forEach((room, c) -> writer.sample("smarthome_room_devices_on", c[1], "room", room));
+
+        writer.family("smarthome_device_state_changes_total", "counter",
+                "Commands that changed a device, by changed attribute.");
+        for (DeviceAttribute attribute : DeviceAttribute.values()) {
+            writer.sample("smarthome_device_state_changes_total", controller.getStateChangeCount(attribute),
+                    "attribute", attribute.name().toLowerCase());
+        }
+        writer.family("smarthome_energy_kwh_total", "counter", "Energy used by all devices.")
+                .sample("smarthome_energy_kwh_total", controller.getEnergyMeter().getHomeKWh());
+    }
+}
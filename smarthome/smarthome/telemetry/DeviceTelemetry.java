@@ -0,0 +1,139 @@
+package smarthome.telemetry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import smarthome.devices.SmartDevice;
+
+/**
+ * Telemetry history of one device: for each metric the device has, a ring of
+ * raw samples plus per-minute, per-hour and per-day rollups. Recording a
+ * sample only writes into preallocated arrays.
+ */
+public class DeviceTelemetry {
+
+    private static final long MINUTE = 60_000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    private final TelemetryMetric[] metrics;
+    private final SampleRing[] raw;
+    private final RollupRing[][] rollups; // [metric][minute, hour, day]
+    private final TelemetryConfig config;
+
+    public DeviceTelemetry(SmartDevice device, TelemetryConfig config) {
+        this.config = config;
+        List<TelemetryMetric> applicable = new ArrayList<>();
+        for (TelemetryMetric m : TelemetryMetric.values()) {
+            if (m.appliesTo(device))
+                applicable.add(m);
+        }
+        this.metrics = applicable.toArray(new TelemetryMetric[0]);
+        this.raw = new SampleRing[metrics.length];
+        this.rollups = new RollupRing[metrics.length][];
+        for (int i = 0; i < metrics.length; i++) {
+            raw[i] = new SampleRing(config.rawSamples());
+            rollups[i] = new RollupRing[] {
+                    new RollupRing(MINUTE, config.minutes()),
+                    new RollupRing(HOUR, config.hours()),
+                    new RollupRing(DAY, config.days())
+            };
+        }
+    }
+
+    /**
+     * Samples every metric of the device.
+     *
+     * @param device The device this telemetry belongs to.
+     * @param time   The sample time (epoch millis).
+     */
+    public synchronized void record(SmartDevice device, long time) {
+        for (int i = 0; i < metrics.length; i++) {
+            double value = metrics[i].read(device);
+            raw[i].add(time, value);
+            for (RollupRing rollup : rollups[i]) {
+                rollup.add(time, value);
+            }
+        }
+    }
+
+    public TelemetryConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return The metrics recorded for this device.
+     */
+    public List<TelemetryMetric> getMetrics() {
+        return List.of(metrics);
+    }
+
+    /**
+     * Returns min/avg/max buckets of width step over [from, to). The coarsest
+     * stored resolution that divides the step and still reaches back to from
+     * is used, so a one-hour step over a week reads the hourly rollups rather
+     * than raw samples. If none reaches that far, the one holding the oldest
+     * data is used.
+     *
+     * @param metric The metric to read.
+     * @param from   Range start (epoch millis, inclusive).
+     * @param to     Range end (epoch millis, exclusive).
+     * @param step   Bucket width in millis.
+     * @return The non-empty buckets in time order; empty if the device does not
+     *         have this metric.
+     */
+    public synchronized List<TelemetryPoint> query(TelemetryMetric metric, long from, long to, long step) {
+        if (step <= 0)
+            throw new IllegalArgumentException("Step must be positive.");
+        List<TelemetryPoint> points = new ArrayList<>();
+        int m = indexOf(metric);
+        if (m < 0 || from >= to)
+            return points;
+
+        SeriesSource source = raw[m];
+        for (RollupRing rollup : rollups[m]) {
+            if (step % rollup.getStepMillis() != 0)
+                continue;
+            if (oldest(rollup) <= from || oldest(source) > from && oldest(rollup) < oldest(source))
+                source = rollup;
+        }
+
+        long bucket = Long.MIN_VALUE;
+        double min = 0, max = 0, sum = 0;
+        long count = 0;
+        for (int i = 0; i < source.size(); i++) {
+            long start = source.startAt(i);
+            if (start < from || start >= to)
+                continue;
+            long key = from + (start - from) / step * step;
+            if (key != bucket) {
+                if (count > 0)
+                    points.add(new TelemetryPoint(bucket, min, sum / count, max, count));
+                bucket = key;
+                min = Double.POSITIVE_INFINITY;
+                max = Double.NEGATIVE_INFINITY;
+                sum = 0;
+                count = 0;
+            }
+            min = Math.min(min, source.minAt(i));
+            max = Math.max(max, source.maxAt(i));
+            sum += source.sumAt(i);
+            count += source.countAt(i);
+        }
+        if (count > 0)
+            points.add(new TelemetryPoint(bucket, min, sum / count, max, count));
+        return points;
+    }
+
+    private static long oldest(SeriesSource source) {
+        return source.size() == 0 ? Long.MAX_VALUE : source.startAt(0);
+    }
+
+    private int indexOf(TelemetryMetric metric) {
+        for (int i = 0; i < metrics.length; i++) {
+            if (metrics[i] == metric)
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,45 @@
+package smarthome.telemetry;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Heap, garbage collection and thread metrics of the running JVM, read from
+ * its management beans.
+ */
+public class JvmMetrics implements MetricsRegistry.Collector {
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @Override
+    public void collect(MetricsWriter writer) {
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+        writer.family("jvm_memory_heap_used_bytes", "gauge", "Heap memory in use.")
+                .sample("jvm_memory_heap_used_bytes", heap.getUsed());
+        writer.family("jvm_memory_heap_committed_bytes", "gauge", "Heap memory committed by the JVM.")
+                .sample("jvm_memory_heap_committed_bytes", heap.getCommitted());
+        writer.family("jvm_memory_heap_max_bytes", "gauge", "Maximum heap size, -1 if undefined.")
+                .sample("jvm_memory_heap_max_bytes", heap.getMax());
+
+        writer.family("jvm_gc_collections_total", "counter", "Garbage collections, by collector.");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            writer.sample("jvm_gc_collections_total", Math.max(0, gc.getCollectionCount()), "gc", gc.getName());
+        }
+        writer.family("jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection, by collector.");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            writer.sample("jvm_gc_collection_seconds_total", Math.max(0, gc.getCollectionTime()) / 1000.0,
+                    "gc", gc.getName());
+        }
+
+        writer.family("jvm_threads_live", "gauge", "Live threads, daemon or not.")
+                .sample("jvm_threads_live", threads.getThreadCount());
+        writer.family("jvm_threads_daemon", "gauge", "Live daemon threads.")
+                .sample("jvm_threads_daemon", threads.getDaemonThreadCount());
+        writer.family("jvm_threads_peak", "gauge", "Most live threads since the JVM started.")
+                .sample("jvm_threads_peak", threads.getPeakThreadCount());
+    }
+}
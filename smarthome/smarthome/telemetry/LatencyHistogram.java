@@ -0,0 +1,113 @@
+package smarthome.telemetry;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds with power-of-two buckets: bucket i
+ * holds values in [2^(i-1), 2^i), bucket 0 holds 0. Recording is a bit count
+ * and two LongAdder increments, so concurrent writers do not contend.
+ * Percentiles are reported as the upper bound of their bucket, i.e. at most
+ * twice the true value. A bucket's adder is only created on its first
+ * value, as most histograms use a handful of buckets.
+ */
+public final class LatencyHistogram {
+
+    /** Buckets up to 2^40 ns (about 18 minutes); longer durations go to the last one. */
+    public static final int BUCKETS = 41;
+
+    private final AtomicReferenceArray<LongAdder> buckets = new AtomicReferenceArray<>(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Records one duration.
+     *
+     * @param nanos The duration in nanoseconds; negative values count as 0.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        int i = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+        LongAdder bucket = buckets.get(i);
+        if (bucket == null) {
+            buckets.compareAndSet(i, null, new LongAdder());
+            bucket = buckets.get(i);
+        }
+        bucket.increment();
+        sum.add(nanos);
+    }
+
+    private long count(int i) {
+        LongAdder bucket = buckets.get(i);
+        return bucket == null ? 0 : bucket.sum();
+    }
+
+    /**
+     * @return The largest value bucket i holds.
+     */
+    public static long bucketUpperBound(int i) {
+        return i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+    }
+
+    /**
+     * @return A copy of the bucket counts, taken bucket by bucket while
+     *         recording may continue.
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = count(i);
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += count(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return The total of all recorded durations, in nanoseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return The mean duration in nanoseconds, or 0 if nothing was recorded.
+     */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    /**
+     * Estimates a percentile.
+     *
+     * @param quantile The quantile, between 0 and 1 (e.g. 0.99).
+     * @return The upper bound of the bucket holding that quantile, in
+     *         nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double quantile) {
+        if (quantile < 0 || quantile > 1)
+            throw new IllegalArgumentException("Quantile must be between 0 and 1");
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return bucketUpperBound(i);
+        }
+        return bucketUpperBound(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,45 @@
+package smarthome.telemetry;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects metrics from the parts of the system that register with it and
+ * renders them in the Prometheus text exposition format.
+ *
+ * Collectors only read counters their component already maintains (LongAdders,
+ * histograms, group aggregates), so a scrape costs O(number of series) and
+ * takes no lock a request holds for long.
+ */
+public class MetricsRegistry {
+
+    /** Content type of the text exposition format. */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Writes the metrics of one component.
+     */
+    @FunctionalInterface
+    public interface Collector {
+        void collect(MetricsWriter writer);
+    }
+
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+
+    public void register(Collector collector) {
+        if (collector == null)
+            throw new IllegalArgumentException("Collector cannot be null");
+        collectors.add(collector);
+    }
+
+    /**
+     * @return All metrics, in the text exposition format.
+     */
+    public String scrape() {
+        MetricsWriter writer = new MetricsWriter();
+        for (Collector collector : collectors) {
+            collector.collect(writer);
+        }
+        return writer.toString();
+    }
+}
@@ -0,0 +1,121 @@
+package smarthome.telemetry;
+
+/**
+ * Builds a Prometheus text exposition: a HELP and TYPE header per metric
+ * family followed by its samples.
+ */
+public class MetricsWriter {
+
+    /** Histogram bucket bounds: powers of four from about 1 microsecond to 69 seconds. */
+    private static final int FIRST_BUCKET = 10;
+    private static final int LAST_BUCKET = 36;
+    private static final int BUCKET_STEP = 2;
+
+    private final StringBuilder out = new StringBuilder();
+
+    /**
+     * Starts a metric family.
+     *
+     * @param name The metric name.
+     * @param type counter, gauge or histogram.
+     * @param help One line describing the metric.
+     * @return This writer.
+     */
+    public MetricsWriter family(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * Writes one sample.
+     *
+     * @param name   The sample name.
+     * @param value  The value.
+     * @param labels Label names and values, alternating.
+     * @return This writer.
+     */
+    public MetricsWriter sample(String name, double value, String... labels) {
+        out.append(name);
+        appendLabels(labels, null);
+        out.append(' ');
+        appendValue(value);
+        out.append('\n');
+        return this;
+    }
+
+    /**
+     * Writes the cumulative buckets, sum and count of a latency histogram, in
+     * seconds. The family header must be written first.
+     *
+     * @param name      The family name.
+     * @param histogram The histogram, in nanoseconds.
+     * @param labels    Label names and values, alternating.
+     * @return This writer.
+     */
+    public MetricsWriter histogram(String name, LatencyHistogram histogram, String... labels) {
+        long[] counts = histogram.getBucketCounts();
+        long cumulative = 0;
+        int next = 0;
+        for (int bound = FIRST_BUCKET; bound <= LAST_BUCKET; bound += BUCKET_STEP) {
+            for (; next <= bound && next < counts.length; next++) {
+                cumulative += counts[next];
+            }
+            // bucket i holds values below 2^i ns
+            bucket(name, cumulative, formatSeconds(Math.pow(2, bound) / 1e9), labels);
+        }
+        for (; next < counts.length; next++) {
+            cumulative += counts[next];
+        }
+        bucket(name, cumulative, "+Inf", labels);
+        sample(name + "_sum", histogram.getSum() / 1e9, labels);
+        sample(name + "_count", cumulative, labels);
+        return this;
+    }
+
+    private void bucket(String name, long count, String le, String[] labels) {
+        out.append(name).append("_bucket");
+        appendLabels(labels, le);
+        out.append(' ').append(count).append('\n');
+    }
+
+    private void appendLabels(String[] labels, String le) {
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        if (labels.length == 0 && le == null)
+            return;
+        out.append('{');
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0)
+                out.append(',');
+            out.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        if (le != null)
+            out.append(labels.length > 0 ? "," : "").append("le=\"").append(le).append('"');
+        out.append('}');
+    }
+
+    private void appendValue(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+            out.append((long) value);
+        else if (Double.isNaN(value))
+            out.append("NaN");
+        else if (Double.isInfinite(value))
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        else
+            out.append(value);
+    }
+
+    private static String formatSeconds(double seconds) {
+        return String.format(java.util.Locale.ROOT, "%.10g", seconds).replaceAll("\\.?0+(e|$)", "$1");
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package smarthome.telemetry;
+
+/**
+ * Fixed-size ring of min/sum/max/count buckets of a fixed width (a minute, an
+ * hour, a day). Samples must arrive in time order; a sample older than the
+ * newest bucket is dropped.
+ */
+class RollupRing implements SeriesSource {
+
+    private final long stepMillis;
+    private final long[] starts;
+    private final double[] mins;
+    private final double[] maxs;
+    private final double[] sums;
+    private final long[] counts;
+    private int newest = -1;
+    private int size;
+
+    RollupRing(long stepMillis, int capacity) {
+        this.stepMillis = stepMillis;
+        this.starts = new long[capacity];
+        this.mins = new double[capacity];
+        this.maxs = new double[capacity];
+        this.sums = new double[capacity];
+        this.counts = new long[capacity];
+    }
+
+    long getStepMillis() {
+        return stepMillis;
+    }
+
+    void add(long time, double value) {
+        long start = time - Math.floorMod(time, stepMillis);
+        if (size > 0 && start == starts[newest]) {
+            mins[newest] = Math.min(mins[newest], value);
+            maxs[newest] = Math.max(maxs[newest], value);
+            sums[newest] += value;
+            counts[newest]++;
+            return;
+        }
+        if (size > 0 && start < starts[newest])
+            return;
+
+        newest = (newest + 1) % starts.length;
+        starts[newest] = start;
+        mins[newest] = value;
+        maxs[newest] = value;
+        sums[newest] = value;
+        counts[newest] = 1;
+        if (size < starts.length)
+            size++;
+    }
+
+    private int slot(int index) {
+        return (newest - size + 1 + index + starts.length) % starts.length;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long startAt(int index) {
+        return starts[slot(index)];
+    }
+
+    @Override
+    public double minAt(int index) {
+        return mins[slot(index)];
+    }
+
+    @Override
+    public double maxAt(int index) {
+        return maxs[slot(index)];
+    }
+
+    @Override
+    public double sumAt(int index) {
+        return sums[slot(index)];
+    }
+
+    @Override
+    public long countAt(int index) {
+        return counts[slot(index)];
+    }
+}
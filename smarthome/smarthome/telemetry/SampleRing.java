@@ -0,0 +1,60 @@
+package smarthome.telemetry;
+
+/**
+ * Fixed-size ring of raw (time, value) samples. Once full, each new sample
+ * overwrites the oldest one.
+ */
+class SampleRing implements SeriesSource {
+
+    private final long[] times;
+    private final double[] values;
+    private int next; // slot the next sample goes into
+    private int size;
+
+    SampleRing(int capacity) {
+        this.times = new long[capacity];
+        this.values = new double[capacity];
+    }
+
+    void add(long time, double value) {
+        times[next] = time;
+        values[next] = value;
+        next = (next + 1) % times.length;
+        if (size < times.length)
+            size++;
+    }
+
+    private int slot(int index) {
+        return (next - size + index + times.length) % times.length;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long startAt(int index) {
+        return times[slot(index)];
+    }
+
+    @Override
+    public double minAt(int index) {
+        return values[slot(index)];
+    }
+
+    @Override
+    public double maxAt(int index) {
+        return values[slot(index)];
+    }
+
+    @Override
+    public double sumAt(int index) {
+        return values[slot(index)];
+    }
+
+    @Override
+    public long countAt(int index) {
+        return 1;
+    }
+}
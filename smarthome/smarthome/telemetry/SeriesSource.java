@@ -0,0 +1,20 @@
+package smarthome.telemetry;
+
+/**
+ * Read access to a ring of time buckets, oldest first. A raw sample is a
+ * bucket of one value.
+ */
+interface SeriesSource {
+
+    int size();
+
+    long startAt(int index);
+
+    double minAt(int index);
+
+    double maxAt(int index);
+
+    double sumAt(int index);
+
+    long countAt(int index);
+}
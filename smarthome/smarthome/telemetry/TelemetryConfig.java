@@ -0,0 +1,22 @@
+package smarthome.telemetry;
+
+/**
+ * Ring buffer sizes for one device. Each metric of the device gets one buffer
+ * of raw samples and one buffer per rollup resolution, so memory per device is
+ * fixed once the config is chosen.
+ *
+ * @param rawSamples Number of raw samples kept.
+ * @param minutes    Number of per-minute rollups kept.
+ * @param hours      Number of per-hour rollups kept.
+ * @param days       Number of per-day rollups kept.
+ */
+public record TelemetryConfig(int rawSamples, int minutes, int hours, int days) {
+
+    /** 30 minutes of raw samples at 5 s, 3 hours of minutes, a week of hours, a month of days. */
+    public static final TelemetryConfig DEFAULT = new TelemetryConfig(360, 180, 168, 30);
+
+    public TelemetryConfig {
+        if (rawSamples <= 0 || minutes <= 0 || hours <= 0 || days <= 0)
+            throw new IllegalArgumentException("Telemetry buffer sizes must be positive.");
+    }
+}
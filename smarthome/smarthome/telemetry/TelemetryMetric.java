@@ -0,0 +1,63 @@
+package smarthome.telemetry;
+
+import smarthome.devices.Light2;
+import smarthome.devices.MotionSensor;
+import smarthome.devices.SmartDevice;
+import smarthome.devices.Thermostat;
+
+/**
+ * Values sampled from devices. POWER applies to every device, the others only
+ * to the device class that has them.
+ */
+public enum TelemetryMetric {
+    POWER,
+    TEMPERATURE,
+    BRIGHTNESS,
+    MOTION;
+
+    /**
+     * Checks whether this metric can be read from a device.
+     *
+     * @param device The device to check.
+     * @return true if the device has this metric.
+     */
+    public boolean appliesTo(SmartDevice device) {
+        return switch (this) {
+            case POWER -> true;
+            case TEMPERATURE -> device instanceof Thermostat;
+            case BRIGHTNESS -> device instanceof Light2;
+            case MOTION -> device instanceof MotionSensor;
+        };
+    }
+
+    /**
+     * Reads the current value of this metric. Motion is reported as 1 or 0.
+     *
+     * @param device A device this metric applies to.
+     * @return The current value.
+     */
+    public double read(SmartDevice device) {
+        return switch (this) {
+            case POWER -> device.getEnergyConsumption();
+            case TEMPERATURE -> ((Thermostat) device).getCurrentTemperature();
+            case BRIGHTNESS -> ((Light2) device).getBrightness();
+            case MOTION -> ((MotionSensor) device).isMotionDetected() ? 1.0 : 0.0;
+        };
+    }
+
+    /**
+     * Parses a metric name, ignoring case.
+     *
+     * @param name The metric name (e.g., "power").
+     * @return The matching metric, or null if the name is unknown.
+     */
+    public static TelemetryMetric parse(String name) {
+        if (name == null)
+            return null;
+        for (TelemetryMetric m : values()) {
+            if (m.name().equalsIgnoreCase(name.trim()))
+                return m;
+        }
+        return null;
+    }
+}
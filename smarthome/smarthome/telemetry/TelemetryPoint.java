@@ -0,0 +1,13 @@
+package smarthome.telemetry;
+
+/**
+ * One bucket of a telemetry query.
+ *
+ * @param time  Start of the bucket (epoch millis).
+ * @param min   Smallest value in the bucket.
+ * @param avg   Mean of the values in the bucket.
+ * @param max   Largest value in the bucket.
+ * @param count Number of raw samples that went into the bucket.
+ */
+public record TelemetryPoint(long time, double min, double avg, double max, long count) {
+}
@@ -0,0 +1,165 @@
+package smarthome.telemetry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import smarthome.core.CentralController;
+import smarthome.core.Room;
+import smarthome.core.RoomActors;
+import smarthome.devices.DeviceAttribute;
+import smarthome.devices.DeviceStateListener;
+import smarthome.devices.SmartDevice;
+
+/**
+ * Periodically samples every device of a home into its DeviceTelemetry.
+ * Devices get buffers sized by the default config unless one was set for
+ * them; history of removed devices is dropped when they are removed.
+ *
+ * The devices to sample are learned from the controller's device events, so
+ * a sampling pass never walks the rooms while commands change them. While
+ * the controller runs room actors, each room's devices are sampled on the
+ * room's partition instead.
+ */
+public final class TelemetryRecorder implements DeviceStateListener {
+
+    private final CentralController controller;
+    private final Map<String, SmartDevice> devices; // device ID -> device, from device events
+    private final Map<String, DeviceTelemetry> telemetry;
+    private final Map<String, TelemetryConfig> deviceConfigs;
+    private volatile TelemetryConfig defaultConfig;
+    private ScheduledExecutorService scheduler;
+
+    public TelemetryRecorder(CentralController controller) {
+        if (controller == null)
+            throw new IllegalArgumentException("Controller cannot be null.");
+        this.controller = controller;
+        this.devices = new ConcurrentHashMap<>();
+        this.telemetry = new ConcurrentHashMap<>();
+        this.deviceConfigs = new ConcurrentHashMap<>();
+        this.defaultConfig = TelemetryConfig.DEFAULT;
+        controller.addStateListener(this);
+    }
+
+    // ===== DEVICES =====
+
+    @Override
+    public void onDeviceAdded(SmartDevice device) {
+        devices.put(device.getId(), device);
+    }
+
+    @Override
+    public void onDeviceRemoved(SmartDevice device) {
+        devices.remove(device.getId());
+        telemetry.remove(device.getId());
+    }
+
+    @Override
+    public void onStateChanged(SmartDevice device, DeviceAttribute attribute) {
+        // Sampled periodically, not on change
+    }
+
+    /**
+     * Starts sampling on a background thread.
+     *
+     * @param periodMillis Time between two samples.
+     */
+    public synchronized void start(long periodMillis) {
+        if (scheduler != null)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "telemetry-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                sample(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                System.err.println("Telemetry sampling failed: " + e.getMessage());
+            }
+        }, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Takes one sample of every device.
+     *
+     * @param time The sample time (epoch millis).
+     */
+    public synchronized void sample(long time) {
+        RoomActors actors = controller.getRoomActors();
+        if (actors == null) {
+            for (SmartDevice d : devices.values()) {
+                record(d, time);
+            }
+        } else {
+            List<CompletableFuture<Object>> pending = new ArrayList<>();
+            for (Room r : new ArrayList<>(controller.getHome().getRooms())) {
+                pending.add(actors.ask(r.getName(), room -> {
+                    room.getDevices().forEach(d -> record(d, time));
+                    return null;
+                }));
+            }
+            pending.forEach(CompletableFuture::join);
+        }
+        // A device removed during the pass may have been recorded again
+        telemetry.keySet().retainAll(devices.keySet());
+    }
+
+    private void record(SmartDevice device, long time) {
+        telemetry.computeIfAbsent(device.getId(), id -> new DeviceTelemetry(device, configFor(id)))
+                .record(device, time);
+    }
+
+    private TelemetryConfig configFor(String deviceId) {
+        return deviceConfigs.getOrDefault(deviceId, defaultConfig);
+    }
+
+    /**
+     * Sets the buffer sizes for devices without their own config. Applies to
+     * devices seen for the first time from now on.
+     *
+     * @param config The new default.
+     */
+    public void setDefaultConfig(TelemetryConfig config) {
+        if (config == null)
+            throw new IllegalArgumentException("Config cannot be null.");
+        this.defaultConfig = config;
+    }
+
+    /**
+     * Sets the buffer sizes for one device. Its existing history is discarded
+     * and recording restarts with the new sizes.
+     *
+     * @param deviceId The device ID.
+     * @param config   The buffer sizes to use.
+     */
+    public void setDeviceConfig(String deviceId, TelemetryConfig config) {
+        if (config == null)
+            throw new IllegalArgumentException("Config cannot be null.");
+        deviceConfigs.put(deviceId, config);
+        telemetry.remove(deviceId);
+    }
+
+    /**
+     * Gets the recorded history of a device.
+     *
+     * @param deviceId The device ID.
+     * @return The device telemetry, or null if it has not been sampled yet.
+     */
+    public DeviceTelemetry getTelemetry(String deviceId) {
+        return telemetry.get(deviceId);
+    }
+}
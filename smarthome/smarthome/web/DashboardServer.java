@@ -3,9 +3,17 @@ package smarthome.web;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpContext;
+import smarthome.commands.CommandMailbox;
+import smarthome.commands.DirectDriver;
 import smarthome.core.CentralController;
 import smarthome.core.Home;
+import smarthome.core.HomeSnapshot;
 import smarthome.core.Room;
+import smarthome.core.RoomActors;
+import smarthome.core.RoomSnapshot;
+import smarthome.core.SnapshotPublisher;
+import smarthome.devices.DeviceCommand;
 import smarthome.devices.SmartDevice;
 import smarthome.devices.Light2;
 import smarthome.devices.Thermostat;
@@ -17,8 +25,22 @@ import smarthome.automation.AutomationEngine;
 import smarthome.automation.AutomationRule;
 import smarthome.automation.Condition;
 import smarthome.automation.Action;
+import smarthome.automation.AndCondition;
+import smarthome.automation.CronCondition;
 import smarthome.automation.DeviceAction;
+import smarthome.automation.FireMode;
 import smarthome.automation.GroupStateCondition;
+import smarthome.automation.RuleMetrics;
+import smarthome.automation.RuleSet;
+import smarthome.exceptions.InvalidDeviceOperationException;
+import smarthome.telemetry.DeviceTelemetry;
+import smarthome.telemetry.ControllerMetrics;
+import smarthome.telemetry.JvmMetrics;
+import smarthome.telemetry.LatencyHistogram;
+import smarthome.telemetry.MetricsRegistry;
+import smarthome.telemetry.TelemetryMetric;
+import smarthome.telemetry.TelemetryPoint;
+import smarthome.telemetry.TelemetryRecorder;
 import java.io.InputStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -29,49 +51,172 @@ import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.time.LocalTime;
 
 public class DashboardServer {
 
+    private static final long TELEMETRY_PERIOD_MILLIS = 5_000;
+    private static final Duration COALESCING_WINDOW = Duration.ofMillis(100);
+    private static final long ACTOR_TIMEOUT_MILLIS = 2_000;
+    private static final Duration SNAPSHOT_WINDOW = Duration.ofMillis(50);
+
     private final CentralController controller;
     private final AutomationEngine automationEngine;
+    private final TelemetryRecorder telemetryRecorder;
+    private final CommandMailbox mailbox;
+    private final SnapshotPublisher snapshots;
+    private final HomeRegistry homes;
+    private final DashboardView statsView = new DashboardView();
+    private final ScheduledExecutorService ruleTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rule-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> nextRuleTick; // guarded by ruleTimer
+    private final MetricsRegistry metrics;
+    private final HttpMetrics httpMetrics;
     private final int port;
     private final String webContentPath;
 
     public DashboardServer(CentralController controller, int port, String webContentPath) {
+        this(controller, new HomeRegistry(Runtime.getRuntime().availableProcessors()), port, webContentPath);
+    }
+
+    /**
+     * Creates a server for a home, which also serves the homes of a registry
+     * under /homes/{id}/api/...
+     *
+     * @param controller     The home served under /api/...
+     * @param homes          The hosted homes.
+     * @param port           The port to listen on.
+     * @param webContentPath The directory of the static dashboard files.
+     */
+    public DashboardServer(CentralController controller, HomeRegistry homes, int port, String webContentPath) {
+        if (homes == null)
+            throw new IllegalArgumentException("Home registry cannot be null");
         this.controller = controller;
+        this.homes = homes;
         this.automationEngine = new AutomationEngine(controller);
+        this.telemetryRecorder = new TelemetryRecorder(controller);
+        this.mailbox = new CommandMailbox(new PartitionDriver(controller), COALESCING_WINDOW);
+        controller.setRuleMailbox(mailbox); // rule bursts are coalesced like slider bursts
+        this.snapshots = SnapshotPublisher.batched(controller, SNAPSHOT_WINDOW);
+        this.httpMetrics = new HttpMetrics();
+        this.metrics = new MetricsRegistry();
+        metrics.register(httpMetrics);
+        metrics.register(new ControllerMetrics(controller));
+        metrics.register(automationEngine::collectMetrics);
+        metrics.register(mailbox);
+        metrics.register(snapshots);
+        metrics.register(homes);
+        metrics.register(new JvmMetrics());
         this.port = port;
         this.webContentPath = webContentPath;
     }
 
+    /**
+     * @return The homes served under /homes/{id}/api/...
+     */
+    public HomeRegistry getHomeRegistry() {
+        return homes;
+    }
+
     public void start() throws IOException {
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
 
         // API Endpoint
-        server.createContext("/api/stats", new StatsHandler());
-        server.createContext("/api/control", new ControlHandler());
-        server.createContext("/api/rooms/add", new AddRoomHandler());
-        server.createContext("/api/devices/add", new AddDeviceHandler());
-        server.createContext("/api/rules/add", new AddRuleHandler());
-        server.createContext("/api/rules/list", new ListRulesHandler());
-        server.createContext("/api/schedule/check", new ScheduleHandler());
-        server.createContext("/api/devices/search", new SearchHandler());
-        server.createContext("/api/devices/remove", new RemoveDeviceHandler());
-        server.createContext("/api/bulk/on", new BulkOnHandler());
-        server.createContext("/api/bulk/off", new BulkOffHandler());
+        createContext(server, "/api/stats", new StatsHandler());
+        createContext(server, "/api/control", new ControlHandler());
+        createContext(server, "/api/rooms/add", new AddRoomHandler());
+        createContext(server, "/api/devices/add", new AddDeviceHandler());
+        createContext(server, "/api/rules/add", new AddRuleHandler());
+        createContext(server, "/api/rules/list", new ListRulesHandler());
+        createContext(server, "/api/rules", new RulesHandler());
+        createContext(server, "/api/rules/metrics", new RuleMetricsHandler());
+        createContext(server, "/api/schedule/check", new ScheduleHandler());
+        createContext(server, "/api/devices/search", new SearchHandler());
+        createContext(server, "/api/devices/remove", new RemoveDeviceHandler());
+        createContext(server, "/api/bulk/on", new BulkOnHandler());
+        createContext(server, "/api/bulk/off", new BulkOffHandler());
+        createContext(server, "/api/telemetry", new TelemetryHandler());
+        createContext(server, "/metrics", new MetricsHandler());
+        createContext(server, "/homes", new HomesHandler());
 
         // Static File Handler
-        server.createContext("/", new StaticFileHandler());
+        createContext(server, "/", new StaticFileHandler());
 
         server.setExecutor(null); // creates a default executor
         server.start();
+        telemetryRecorder.start(TELEMETRY_PERIOD_MILLIS);
+        scheduleRules();
         System.out.println("Dashboard server started on http://localhost:" + port);
     }
 
+    /**
+     * Sleeps until the next scheduled rule is due and then runs a tick, so
+     * that schedules fire on time whether or not the dashboard is polled.
+     * Called again after every tick and every rule change.
+     */
+    private void scheduleRules() {
+        synchronized (ruleTimer) {
+            if (nextRuleTick != null)
+                nextRuleTick.cancel(false);
+            Instant next = automationEngine.getNextFireTime();
+            nextRuleTick = next == null ? null
+                    : ruleTimer.schedule(this::fireScheduledRules,
+                            Math.max(0, next.toEpochMilli() - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void fireScheduledRules() {
+        try {
+            automationEngine.evaluateRules();
+        } catch (RuntimeException e) {
+            System.err.println("Scheduled rule tick failed: " + e.getMessage());
+        }
+        scheduleRules();
+    }
+
+    /**
+     * Creates a context whose requests are counted and timed.
+     */
+    private HttpContext createContext(HttpServer server, String path, HttpHandler handler) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(httpMetrics);
+        return context;
+    }
+
+    /**
+     * Prometheus scrape endpoint. Every value is read from counters kept up to
+     * date by their component, so a scrape never walks the home.
+     */
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            byte[] bytes = metrics.scrape().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            t.getResponseHeaders().set("Content-Type", MetricsRegistry.CONTENT_TYPE);
+            t.sendResponseHeaders(200, bytes.length);
+            OutputStream os = t.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+    }
+
     private class StatsHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
@@ -79,13 +224,15 @@ public class DashboardServer {
                 // Trigger automation evaluation on stats refresh (simulation step)
                 automationEngine.evaluateRules();
 
-                String response = buildJsonStats();
-                byte[] bytes = response.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                // Rendered from the published snapshot, reusing the bytes of
+                // every room that did not change
+                DashboardView.Response response = statsView.render(snapshots.publish(),
+                        controller.getEnergyMeter().getHomeKWh(), automationEngine.getRuleSet().getRules());
                 t.getResponseHeaders().set("Content-Type", "application/json");
                 t.getResponseHeaders().set("Access-Control-Allow-Origin", "*"); // Allow CORS for dev
-                t.sendResponseHeaders(200, bytes.length);
+                t.sendResponseHeaders(200, response.length());
                 OutputStream os = t.getResponseBody();
-                os.write(bytes);
+                response.writeTo(os);
                 os.close();
             } catch (Exception e) {
                 e.printStackTrace();
@@ -98,7 +245,7 @@ public class DashboardServer {
     private class ControlHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
-            // Parse query params: /api/control?id=UUID&action=toggle&value=xxx
+            // Parse query params: /api/control?id=UUID&action=toggle&value=xxx[&coalesce=true][&ifVersion=N]
             String query = t.getRequestURI().getQuery();
             Map<String, String> params = queryToMap(query);
 
@@ -106,51 +253,33 @@ public class DashboardServer {
             String action = params.get("action");
             String value = params.get("value");
 
-            String response = "{}";
+            String response;
             int code = 400;
 
             if (id != null && action != null) {
                 SmartDevice device = controller.findDeviceById(id);
                 if (device != null) {
                     try {
-                        if ("toggle".equalsIgnoreCase(action)) {
-                            if (device.isOn())
-                                device.turnOff();
-                            else
-                                device.turnOn();
-                            response = "{\"status\":\"ok\", \"newState\":\"" + (device.isOn() ? "ON" : "OFF") + "\"}";
-                        } else if ("on".equalsIgnoreCase(action)) {
-                            device.turnOn();
-                            response = "{\"status\":\"ok\", \"newState\":\"ON\"}";
-                        } else if ("off".equalsIgnoreCase(action)) {
-                            device.turnOff();
-                            response = "{\"status\":\"ok\", \"newState\":\"OFF\"}";
-                        } else if ("setBrightness".equalsIgnoreCase(action) && device instanceof Light2 light) {
-                            if (value != null) {
-                                int b = Integer.parseInt(value);
-                                light.setBrightness(b);
-                                response = "{\"status\":\"ok\", \"message\":\"Brightness set to " + b + "\"}";
-                            }
-                        } else if ("setTargetTemperature".equalsIgnoreCase(action)
-                                && device instanceof Thermostat thermostat) {
-                            if (value != null) {
-                                double temp = Double.parseDouble(value);
-                                thermostat.setCurrentTemperature(temp);
-                                response = "{\"status\":\"ok\", \"message\":\"Target temp set to " + temp + "\"}";
-                            }
-                        } else if ("setSensitivity".equalsIgnoreCase(action)
-                                && device instanceof MotionSensor sensor) {
-                            if (value != null) {
-                                int sens = Integer.parseInt(value);
-                                sensor.setSensitivity(sens);
-                                response = "{\"status\":\"ok\", \"message\":\"Sensitivity set to " + sens + "\"}";
-                            }
-                        } else {
-                            response = "{\"error\":\"Invalid action or device type\"}";
-                            code = 400;
+                        DeviceCommand command = DeviceCommand.parse(action, value);
+                        Long expectedVersion = parseVersion(params.get("ifVersion"));
+                        if ("true".equalsIgnoreCase(params.get("coalesce"))) {
+                            if (expectedVersion != null)
+                                throw new IllegalArgumentException("ifVersion cannot be combined with coalesce");
+                            // Slider bursts: merged per device and applied when the window closes
+                            mailbox.offer(device, command);
+                            sendJson(t, 202, "{\"status\":\"queued\"}");
+                            return;
+                        }
+                        if (!apply(device, command, expectedVersion)) {
+                            // Someone else changed the device since the client read it
+                            sendJson(t, 409, "{\"error\":\"Version conflict\", \"device\":"
+                                    + DashboardView.deviceJson(RoomSnapshot.DeviceView.of(device)) + "}");
+                            return;
                         }
-                        if (code == 400 && response.contains("status"))
-                            code = 200; // Fix code if status ok
+                        code = 200;
+                        response = controlJson(device, command);
+                    } catch (IllegalArgumentException | InvalidDeviceOperationException e) {
+                        response = "{\"error\":\"" + e.getMessage() + "\"}";
                     } catch (Exception e) {
                         code = 500;
                         response = "{\"error\":\"" + e.getMessage() + "\"}";
@@ -165,6 +294,110 @@ public class DashboardServer {
 
             sendJson(t, code, response);
         }
+
+        /**
+         * Applies a command, on the device's room partition in single-writer
+         * mode.
+         *
+         * @param expectedVersion Apply only if the device is at this version,
+         *                        or null to apply unconditionally.
+         * @return Whether the command was applied.
+         */
+        private boolean apply(SmartDevice device, DeviceCommand command, Long expectedVersion) throws Exception {
+            RoomActors actors = controller.getRoomActors();
+            if (actors == null) {
+                if (expectedVersion != null)
+                    return device.executeIfVersion(command, expectedVersion);
+                device.execute(command);
+                return true;
+            }
+            CompletableFuture<Boolean> reply = expectedVersion != null
+                    ? actors.ask(device, command, expectedVersion)
+                    : actors.ask(device, command).thenApply(v -> true);
+            try {
+                return reply.get(ACTOR_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof InvalidDeviceOperationException invalid)
+                    throw invalid;
+                if (e.getCause() instanceof IllegalArgumentException invalid)
+                    throw invalid;
+                throw e;
+            }
+        }
+
+    }
+
+    /**
+     * Delivers the mailbox's batches on the device's room partition while
+     * room actors run, so that coalesced settings are applied by the single
+     * writer too; directly otherwise.
+     */
+    private static final class PartitionDriver extends DirectDriver {
+
+        private final CentralController controller;
+
+        PartitionDriver(CentralController controller) {
+            this.controller = controller;
+        }
+
+        @Override
+        public void send(SmartDevice device, DeviceCommand command)
+                throws InvalidDeviceOperationException {
+            sendBatch(device, List.of(command));
+        }
+
+        @Override
+        public void sendBatch(SmartDevice device, List<DeviceCommand> commands)
+                throws InvalidDeviceOperationException {
+            RoomActors actors = controller.getRoomActors();
+            if (actors == null) {
+                for (DeviceCommand command : commands) {
+                    device.execute(command);
+                }
+                return;
+            }
+            try {
+                actors.ask(device.getRoomName(), room -> {
+                    for (DeviceCommand command : commands) {
+                        try {
+                            device.execute(command);
+                        } catch (InvalidDeviceOperationException e) {
+                            throw new CompletionException(e);
+                        }
+                    }
+                    return null;
+                }).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof InvalidDeviceOperationException invalid)
+                    throw invalid;
+                throw e;
+            }
+        }
+    }
+
+    private static Long parseVersion(String version) {
+        if (version == null)
+            return null;
+        try {
+            return Long.parseLong(version.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid ifVersion: " + version);
+        }
+    }
+
+    /**
+     * @return The answer to a command that was applied.
+     */
+    private static String controlJson(SmartDevice device, DeviceCommand command) {
+        return "{\"status\":\"ok\", " + switch (command) {
+            case DeviceCommand.TurnOn c -> "\"newState\":\"" + (device.isOn() ? "ON" : "OFF") + "\"";
+            case DeviceCommand.TurnOff c -> "\"newState\":\"" + (device.isOn() ? "ON" : "OFF") + "\"";
+            case DeviceCommand.Toggle c -> "\"newState\":\"" + (device.isOn() ? "ON" : "OFF") + "\"";
+            case DeviceCommand.SetBrightness c -> "\"message\":\"Brightness set to " + c.brightness() + "\"";
+            case DeviceCommand.SetTargetTemp c -> "\"message\":\"Target temp set to " + c.celsius() + "\"";
+            case DeviceCommand.SetSensitivity c -> "\"message\":\"Sensitivity set to " + c.sensitivity() + "\"";
+            default -> "\"message\":\"" + command.kind() + " applied\"";
+        } + ", \"version\":" + device.getVersion() + "}";
     }
 
     private class ScheduleHandler implements HttpHandler {
@@ -278,48 +511,41 @@ public class DashboardServer {
                 String body = new BufferedReader(new InputStreamReader(is))
                         .lines().collect(Collectors.joining("\n"));
 
-                // Parse simple JSON manually (assuming format)
-                Map<String, String> json = parseSimpleJson(body);
+                Map<String, String> json;
+                try {
+                    json = parseSimpleJson(body);
+                } catch (IllegalArgumentException e) {
+                    sendJson(t, 400, "{\"error\":\"Invalid JSON: " + e.getMessage() + "\"}");
+                    return;
+                }
 
                 String name = json.get("name");
                 String triggerId = json.get("triggerDevice");
-                String triggerState = json.get("triggerState"); // ON/OFF
                 String targetId = json.get("targetDevice");
-                String actionStr = json.get("action"); // turnOn/turnOff
 
                 if (name != null && triggerId != null && targetId != null) {
+                    if (controller.findDeviceById(triggerId) == null) {
+                        sendJson(t, 404, "{\"error\":\"Trigger device not found\"}");
+                        return;
+                    }
                     try {
-                        // Create condition: Check if trigger device is in the required state
-                        // For simplicity, we'll use the device's type and check ANY device of that type
-                        SmartDevice triggerDevice = controller.findDeviceById(triggerId);
-                        if (triggerDevice == null) {
-                            sendJson(t, 404, "{\"error\":\"Trigger device not found\"}");
-                            return;
-                        }
-
-                        boolean state = "ON".equalsIgnoreCase(triggerState);
-                        String deviceType = triggerDevice.getClass().getSimpleName();
-                        Condition condition = new GroupStateCondition(deviceType, state, false); // ANY device of this
-                                                                                                 // type
-
-                        // Create Action - convert "turnOn"/"turnOff" to "ON"/"OFF"
-                        String command = actionStr.equalsIgnoreCase("turnOn") ? "ON" : "OFF";
-                        Action action = new DeviceAction(command, targetId, false); // false = target by ID
-
-                        // Create readability description
-                        SmartDevice targetDev = controller.findDeviceById(targetId);
-                        String targetName = targetDev != null ? targetDev.getName() : targetId;
-                        String description = "If " + triggerDevice.getName() + " is " + (state ? "ON" : "OFF") +
-                                " then " + (actionStr.equalsIgnoreCase("turnOn") ? "Turn ON" : "Turn OFF") +
-                                " " + targetName;
-
-                        AutomationRule rule = new AutomationRule(name, description, condition, action);
+                        AutomationRule rule = buildRule(json);
                         automationEngine.addRule(rule);
+                        scheduleRules();
 
-                        sendJson(t, 200, "{\"status\":\"ok\", \"message\":\"Rule created\"}");
+                        List<String> cycle = automationEngine.findCycle(name);
+                        if (cycle.isEmpty()) {
+                            sendJson(t, 200, "{\"status\":\"ok\", \"message\":\"Rule created\"}");
+                        } else {
+                            sendJson(t, 200, JsonStatusWriter.quote(new StringBuilder(
+                                    "{\"status\":\"ok\", \"message\":\"Rule created\", \"warning\":"),
+                                    "Rule cycle: " + String.join(" -> ", cycle)).append("}").toString());
+                        }
+                    } catch (IllegalArgumentException e) {
+                        sendJson(t, 400, errorJson(e.getMessage()));
                     } catch (Exception e) {
                         e.printStackTrace();
-                        sendJson(t, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+                        sendJson(t, 500, errorJson(e.getMessage()));
                     }
                 } else {
                     sendJson(t, 400, "{\"error\":\"Missing fields\"}");
@@ -330,6 +556,181 @@ public class DashboardServer {
         }
     }
 
+    /**
+     * Builds a rule from a flat JSON object: name, targetDevice, action
+     * (turnOn/turnOff), a trigger (triggerDevice and triggerState) and/or a
+     * schedule (cron expression), and optionally fireMode, cooldownMs and
+     * priority. With both a trigger and a schedule, the rule fires when the
+     * schedule is due and the trigger holds.
+     * 
+     * @throws IllegalArgumentException If a field is missing or invalid.
+     */
+    private AutomationRule buildRule(Map<String, String> json) {
+        String name = json.get("name");
+        String triggerId = json.get("triggerDevice");
+        String triggerState = json.get("triggerState"); // ON/OFF
+        String schedule = json.get("schedule");
+        String targetId = json.get("targetDevice");
+        String actionStr = json.get("action"); // turnOn/turnOff
+        if (name == null || targetId == null || (triggerId == null && schedule == null))
+            throw new IllegalArgumentException("Missing fields");
+
+        // Create condition: Check if ANY device of the trigger's type is in the required state
+        Condition condition = null;
+        String when = "";
+        if (triggerId != null) {
+            SmartDevice triggerDevice = controller.findDeviceById(triggerId);
+            if (triggerDevice == null)
+                throw new IllegalArgumentException("Trigger device not found: " + triggerId);
+            boolean state = "ON".equalsIgnoreCase(triggerState);
+            String deviceType = triggerDevice.getClass().getSimpleName();
+            condition = new GroupStateCondition(deviceType, state, false);
+            when = "If " + triggerDevice.getName() + " is " + (state ? "ON" : "OFF");
+        }
+        if (schedule != null) {
+            CronCondition cron = new CronCondition(schedule);
+            condition = condition == null ? cron : new AndCondition(cron, condition);
+            when = "At " + schedule + (when.isEmpty() ? "" : ", i" + when.substring(1));
+        }
+
+        // Create Action - convert "turnOn"/"turnOff" to "ON"/"OFF"
+        boolean turnOn = "turnOn".equalsIgnoreCase(actionStr);
+        if (!turnOn && !"turnOff".equalsIgnoreCase(actionStr))
+            throw new IllegalArgumentException("Unknown action: " + actionStr + " (expected turnOn or turnOff)");
+        Action action = new DeviceAction(turnOn ? "ON" : "OFF", targetId, false); // false = target by ID
+
+        // Create readability description
+        SmartDevice targetDev = controller.findDeviceById(targetId);
+        String targetName = targetDev != null ? targetDev.getName() : targetId;
+        String description = when + " then " + (turnOn ? "Turn ON" : "Turn OFF") + " " + targetName;
+
+        AutomationRule rule = new AutomationRule(name, description, condition, action);
+        // Fire once per change of the trigger rather than on every stats refresh
+        String fireMode = json.getOrDefault("fireMode", "RISING");
+        rule.setFireMode(FireMode.valueOf(fireMode.toUpperCase()));
+        if (json.containsKey("cooldownMs"))
+            rule.setCooldownMillis(Long.parseLong(json.get("cooldownMs")));
+        if (json.containsKey("priority"))
+            rule.setPriority(Integer.parseInt(json.get("priority")));
+        return rule;
+    }
+
+    /**
+     * GET lists the current rule set with its version. PUT uploads a JSON
+     * array of rule objects (see buildRule) that replaces all rules, or with
+     * ?mode=patch adds or replaces the given rules and removes those named in
+     * ?remove=a,b. The whole upload is validated before anything is published,
+     * so an invalid upload leaves the rules unchanged.
+     */
+    private class RulesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            if ("GET".equals(t.getRequestMethod())) {
+                RuleSet ruleSet = automationEngine.getRuleSet();
+                StringBuilder json = new StringBuilder("{\"version\":").append(ruleSet.getVersion())
+                        .append(",\"rules\":[");
+                List<AutomationRule> rules = ruleSet.getRules();
+                for (int i = 0; i < rules.size(); i++) {
+                    AutomationRule r = rules.get(i);
+                    JsonStatusWriter.quote(json.append("{\"name\":"), r.getName());
+                    JsonStatusWriter.quote(json.append(",\"description\":"), r.getDescription());
+                    json.append(",\"priority\":").append(r.getPriority()).append(",")
+                            .append("\"active\":").append(r.isActive())
+                            .append("}");
+                    if (i < rules.size() - 1)
+                        json.append(",");
+                }
+                json.append("]}");
+                sendJson(t, 200, json.toString());
+            } else if ("PUT".equals(t.getRequestMethod())) {
+                InputStream is = t.getRequestBody();
+                String body = new BufferedReader(new InputStreamReader(is))
+                        .lines().collect(Collectors.joining("\n"));
+                Map<String, String> params = queryToMap(t.getRequestURI().getQuery());
+                try {
+                    List<AutomationRule> batch = new ArrayList<>();
+                    for (String object : splitJsonObjects(body)) {
+                        batch.add(buildRule(parseSimpleJson(object)));
+                    }
+                    long version;
+                    if ("patch".equalsIgnoreCase(params.get("mode"))) {
+                        String remove = params.getOrDefault("remove", "");
+                        List<String> removals = remove.isEmpty() ? List.of() : Arrays.asList(remove.split(","));
+                        version = automationEngine.patchRules(batch, removals);
+                    } else {
+                        version = automationEngine.replaceRules(batch);
+                    }
+                    scheduleRules();
+                    sendJson(t, 200, "{\"status\":\"ok\", \"version\":" + version + ", \"rules\":"
+                            + automationEngine.getRuleSet().size() + "}");
+                } catch (IllegalArgumentException e) {
+                    sendJson(t, 400, errorJson(e.getMessage()));
+                }
+            } else {
+                sendJson(t, 405, "{\"error\":\"Method not allowed\"}");
+            }
+        }
+    }
+
+    /**
+     * Counters and latency percentiles of every rule, plus the top N
+     * (?top=N, 5 by default) rules by mean time spent per evaluation.
+     */
+    private class RuleMetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            Map<String, String> params = queryToMap(t.getRequestURI().getQuery());
+            int top;
+            try {
+                top = Integer.parseInt(params.getOrDefault("top", "5"));
+            } catch (NumberFormatException e) {
+                sendJson(t, 400, "{\"error\":\"Invalid top\"}");
+                return;
+            }
+            List<AutomationRule> rules = automationEngine.getRules();
+            StringBuilder json = new StringBuilder("{\"rules\":[");
+            for (int i = 0; i < rules.size(); i++) {
+                AutomationRule r = rules.get(i);
+                RuleMetrics m = r.getMetrics();
+                json.append("{")
+                        .append("\"name\":\"").append(r.getName()).append("\",")
+                        .append("\"evaluations\":").append(m.getEvaluations()).append(",")
+                        .append("\"conditionTrue\":").append(m.getConditionTrue()).append(",")
+                        .append("\"actions\":").append(m.getActions()).append(",")
+                        .append("\"errors\":").append(m.getErrors()).append(",")
+                        .append("\"condition\":");
+                appendLatency(json, m.getConditionLatency());
+                json.append(",\"action\":");
+                appendLatency(json, m.getActionLatency());
+                json.append("}");
+                if (i < rules.size() - 1)
+                    json.append(",");
+            }
+            json.append("],\"slowest\":[");
+            rules.sort(Comparator.comparingDouble((AutomationRule r) -> r.getMetrics().getMeanCostNanos()).reversed());
+            for (int i = 0; i < Math.min(top, rules.size()); i++) {
+                AutomationRule r = rules.get(i);
+                if (i > 0)
+                    json.append(",");
+                json.append("{\"name\":\"").append(r.getName()).append("\",")
+                        .append("\"meanCostNanos\":").append(Math.round(r.getMetrics().getMeanCostNanos())).append(",")
+                        .append("\"conditionP99Nanos\":").append(r.getMetrics().getConditionLatency().getPercentile(0.99))
+                        .append("}");
+            }
+            json.append("]}");
+            sendJson(t, 200, json.toString());
+        }
+
+        private void appendLatency(StringBuilder json, LatencyHistogram h) {
+            json.append("{\"count\":").append(h.getCount())
+                    .append(",\"meanNanos\":").append(Math.round(h.getMean()))
+                    .append(",\"p50Nanos\":").append(h.getPercentile(0.5))
+                    .append(",\"p99Nanos\":").append(h.getPercentile(0.99))
+                    .append(",\"p999Nanos\":").append(h.getPercentile(0.999))
+                    .append("}");
+        }
+    }
+
     private class ListRulesHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
@@ -359,41 +760,42 @@ public class DashboardServer {
             if (q != null && !q.trim().isEmpty()) {
                 q = q.toLowerCase();
                 // Search by ID or Type
-                List<SmartDevice> result = new java.util.ArrayList<>();
 
                 // 1. Try finding by ID directly
                 // 1. Try finding by ID directly (Logic integrated into loop below)
                 // SmartDevice byId = controller.findDeviceById(q);
 
-                // Better: iterate all rooms and find matches
-                for (Room r : controller.getHome().getRooms()) {
-                    for (SmartDevice d : r.getDevices()) {
-                        if (d.getId().toLowerCase().contains(q) || d.getType().toLowerCase().contains(q)
-                                || d.getName().toLowerCase().contains(q)) {
-                            result.add(d);
-                        }
-                    }
-                }
+                // Better: iterate all rooms and find matches, in the published
+                // snapshot so the search does not race with commands
+                sendJson(t, 200, searchJson(snapshots.current(), q));
+            } else {
+                sendJson(t, 400, "{\"error\":\"Missing query parameter 'q'\"}");
+            }
+        }
+    }
 
-                // Build JSON response
-                StringBuilder json = new StringBuilder("[");
-                for (int i = 0; i < result.size(); i++) {
-                    SmartDevice d = result.get(i);
+    /**
+     * @param q The lower-case search text.
+     * @return The devices whose id, type or name contains q, as a JSON array.
+     */
+    private static String searchJson(HomeSnapshot snapshot, String q) {
+        StringBuilder json = new StringBuilder("[");
+        for (RoomSnapshot r : snapshot.rooms()) {
+            for (RoomSnapshot.DeviceView d : r.devices()) {
+                if (d.id().toLowerCase().contains(q) || d.type().toLowerCase().contains(q)
+                        || d.name().toLowerCase().contains(q)) {
+                    if (json.length() > 1)
+                        json.append(",");
                     json.append("{");
-                    json.append("\"id\":\"").append(d.getId()).append("\",");
-                    json.append("\"name\":\"").append(d.getName()).append("\",");
-                    json.append("\"type\":\"").append(d.getType()).append("\",");
-                    json.append("\"room\":\"").append(d.getRoomName()).append("\"");
+                    JsonStatusWriter.quote(json.append("\"id\":"), d.id()).append(",");
+                    JsonStatusWriter.quote(json.append("\"name\":"), d.name()).append(",");
+                    JsonStatusWriter.quote(json.append("\"type\":"), d.type()).append(",");
+                    JsonStatusWriter.quote(json.append("\"room\":"), r.name());
                     json.append("}");
-                    if (i < result.size() - 1)
-                        json.append(",");
                 }
-                json.append("]");
-                sendJson(t, 200, json.toString());
-            } else {
-                sendJson(t, 400, "{\"error\":\"Missing query parameter 'q'\"}");
             }
         }
+        return json.append("]").toString();
     }
 
     private class RemoveDeviceHandler implements HttpHandler {
@@ -437,20 +839,318 @@ public class DashboardServer {
         }
     }
 
+    private class TelemetryHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            // /api/telemetry?id=UUID&metric=power&from=ms&to=ms&step=ms
+            Map<String, String> params = queryToMap(t.getRequestURI().getQuery());
+            String id = params.get("id");
+            if (id == null) {
+                sendJson(t, 400, "{\"error\":\"Missing id\"}");
+                return;
+            }
+            TelemetryMetric metric = TelemetryMetric.parse(params.getOrDefault("metric", "power"));
+            if (metric == null) {
+                sendJson(t, 400, "{\"error\":\"Unknown metric\"}");
+                return;
+            }
+            DeviceTelemetry telemetry = telemetryRecorder.getTelemetry(id);
+            if (telemetry == null) {
+                sendJson(t, 404, "{\"error\":\"No telemetry for device\"}");
+                return;
+            }
+
+            List<TelemetryPoint> points;
+            long from, to, step;
+            try {
+                to = params.containsKey("to") ? Long.parseLong(params.get("to")) : System.currentTimeMillis();
+                from = params.containsKey("from") ? Long.parseLong(params.get("from")) : to - 3_600_000L;
+                step = params.containsKey("step") ? Long.parseLong(params.get("step")) : 60_000L;
+                points = telemetry.query(metric, from, to, step);
+            } catch (IllegalArgumentException e) {
+                sendJson(t, 400, "{\"error\":\"Invalid from, to or step\"}");
+                return;
+            }
+
+            StringBuilder json = new StringBuilder("{");
+            json.append("\"id\":\"").append(id).append("\",");
+            json.append("\"metric\":\"").append(metric.name().toLowerCase()).append("\",");
+            json.append("\"from\":").append(from).append(",");
+            json.append("\"to\":").append(to).append(",");
+            json.append("\"step\":").append(step).append(",");
+            json.append("\"points\":[");
+            for (int i = 0; i < points.size(); i++) {
+                TelemetryPoint p = points.get(i);
+                json.append("{")
+                        .append("\"t\":").append(p.time()).append(",")
+                        .append("\"min\":").append(p.min()).append(",")
+                        .append("\"avg\":").append(p.avg()).append(",")
+                        .append("\"max\":").append(p.max()).append(",")
+                        .append("\"count\":").append(p.count())
+                        .append("}");
+                if (i < points.size() - 1)
+                    json.append(",");
+            }
+            json.append("]}");
+            sendJson(t, 200, json.toString());
+        }
+    }
+
+    /**
+     * Splits a JSON array of flat objects into the text of each object.
+     *
+     * @throws IllegalArgumentException If the body is not an array or its
+     *                                  braces do not balance.
+     */
+    private List<String> splitJsonObjects(String json) {
+        String trimmed = json.trim();
+        if (!trimmed.startsWith("[") || !trimmed.endsWith("]"))
+            throw new IllegalArgumentException("Expected a JSON array of rules");
+        List<String> objects = new ArrayList<>();
+        int depth = 0;
+        int start = -1;
+        boolean inString = false;
+        for (int i = 1; i < trimmed.length() - 1; i++) {
+            char c = trimmed.charAt(i);
+            if (c == '"' && trimmed.charAt(i - 1) != '\\') {
+                inString = !inString;
+            } else if (!inString && c == '{') {
+                if (depth++ == 0)
+                    start = i;
+            } else if (!inString && c == '}') {
+                if (--depth < 0)
+                    throw new IllegalArgumentException("Unbalanced braces in rule array");
+                if (depth == 0)
+                    objects.add(trimmed.substring(start, i + 1));
+            }
+        }
+        if (depth != 0 || inString)
+            throw new IllegalArgumentException("Unbalanced braces in rule array");
+        return objects;
+    }
+
+    /**
+     * Parses a flat JSON object into its keys and values as strings. Quoted
+     * values may contain commas, colons and escaped characters; numbers and
+     * booleans are kept as written, and null values are left out.
+     *
+     * @throws IllegalArgumentException If the text is not a flat JSON object.
+     */
     private Map<String, String> parseSimpleJson(String json) {
+        String text = json.trim();
+        if (!text.startsWith("{") || !text.endsWith("}"))
+            throw new IllegalArgumentException("Expected a JSON object");
         Map<String, String> map = new HashMap<>();
-        json = json.replace("{", "").replace("}", "").replace("\"", "");
-        String[] pairs = json.split(",");
-        for (String pair : pairs) {
-            String[] entry = pair.split(":");
-            if (entry.length == 2) {
-                map.put(entry[0].trim(), entry[1].trim());
+        int end = text.length() - 1;
+        int i = skipSpaces(text, 1);
+        while (i < end) {
+            StringBuilder key = new StringBuilder();
+            i = skipSpaces(text, readJsonString(text, i, key));
+            if (i >= end || text.charAt(i) != ':')
+                throw new IllegalArgumentException("Expected ':' after '" + key + "'");
+            i = skipSpaces(text, i + 1);
+            String value;
+            if (i < end && text.charAt(i) == '"') {
+                StringBuilder quoted = new StringBuilder();
+                i = readJsonString(text, i, quoted);
+                value = quoted.toString();
+            } else {
+                int start = i;
+                while (i < end && text.charAt(i) != ',')
+                    i++;
+                value = text.substring(start, i).trim();
+                if (value.isEmpty() || value.startsWith("{") || value.startsWith("["))
+                    throw new IllegalArgumentException("Invalid value for '" + key + "'");
+            }
+            if (!value.equals("null"))
+                map.put(key.toString(), value);
+            i = skipSpaces(text, i);
+            if (i < end) {
+                if (text.charAt(i) != ',')
+                    throw new IllegalArgumentException("Expected ',' after '" + key + "'");
+                i = skipSpaces(text, i + 1);
             }
         }
         return map;
     }
 
-    private void sendJson(HttpExchange t, int code, String response) throws IOException {
+    /**
+     * Reads the quoted string starting at i into out.
+     *
+     * @return The index after the closing quote.
+     */
+    private static int readJsonString(String text, int i, StringBuilder out) {
+        if (i >= text.length() || text.charAt(i) != '"')
+            throw new IllegalArgumentException("Expected a quoted string at " + i);
+        for (i++; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"')
+                return i + 1;
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+            if (++i == text.length())
+                break;
+            char escaped = text.charAt(i);
+            switch (escaped) {
+                case 'n' -> out.append('\n');
+                case 't' -> out.append('\t');
+                case 'r' -> out.append('\r');
+                case 'b' -> out.append('\b');
+                case 'f' -> out.append('\f');
+                case 'u' -> {
+                    if (i + 4 >= text.length())
+                        throw new IllegalArgumentException("Invalid escape at " + i);
+                    out.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+                    i += 4;
+                }
+                default -> out.append(escaped); // \" \\ \/
+            }
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    private static int skipSpaces(String text, int i) {
+        while (i < text.length() && Character.isWhitespace(text.charAt(i)))
+            i++;
+        return i;
+    }
+
+    /**
+     * Serves the homes of the HomeRegistry: /homes lists them with their
+     * usage, and /homes/{id}/api/{stats, control, devices/search, bulk/on,
+     * bulk/off, usage} is answered on the home's partition thread, so this
+     * dispatcher thread never waits for a busy home.
+     */
+    private class HomesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            String[] parts = t.getRequestURI().getPath().split("/", 5); // "", "homes", id, "api", endpoint
+            if (parts.length <= 2 || parts[2].isEmpty()) {
+                sendJson(t, 200, homes.usageJson());
+                return;
+            }
+            int homeId;
+            try {
+                homeId = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                sendJson(t, 400, errorJson("Invalid home id: " + parts[2]));
+                return;
+            }
+            if (parts.length < 5 || !parts[3].equals("api")) {
+                sendJson(t, 404, "{\"error\":\"Unknown endpoint\"}");
+                return;
+            }
+            String endpoint = parts[4];
+            Map<String, String> params = queryToMap(t.getRequestURI().getQuery());
+            CompletableFuture<?> answered = homes.submit(homeId, hosted -> {
+                try {
+                    serve(t, hosted, endpoint, params);
+                } catch (IOException e) {
+                    t.close(); // the client went away
+                }
+                return null;
+            }).exceptionally(e -> {
+                try {
+                    HostedHome hosted = homes.get(homeId);
+                    if (hosted == null)
+                        sendJson(t, 404, "{\"error\":\"Home not found\"}");
+                    else
+                        hosted.recordResponse(sendJson(t, 500,
+                                errorJson((e.getCause() != null ? e.getCause() : e).getMessage())), true);
+                } catch (IOException | RuntimeException sendFailed) { // a response was sent already
+                    t.close();
+                }
+                return null;
+            });
+            // Answered on the home's partition: measured once it is, not now
+            httpMetrics.completeLater(t, answered);
+        }
+
+        private void serve(HttpExchange t, HostedHome hosted, String endpoint, Map<String, String> params)
+                throws IOException {
+            CentralController home = hosted.getController();
+            int code = 200;
+            String body;
+            switch (endpoint) {
+                case "stats" -> {
+                    hosted.getEngine().evaluateRules();
+                    DashboardView.Response response = hosted.getView().render(hosted.getSnapshots().publish(),
+                            home.getEnergyMeter().getHomeKWh(), hosted.getEngine().getRuleSet().getRules());
+                    t.getResponseHeaders().set("Content-Type", "application/json");
+                    t.sendResponseHeaders(200, response.length());
+                    OutputStream os = t.getResponseBody();
+                    response.writeTo(os);
+                    os.close();
+                    hosted.recordResponse(response.length(), false);
+                    return;
+                }
+                case "control" -> {
+                    SmartDevice device = params.get("id") == null ? null : home.findDeviceById(params.get("id"));
+                    if (device == null || params.get("action") == null) {
+                        code = device == null && params.get("id") != null ? 404 : 400;
+                        body = code == 404 ? "{\"error\":\"Device not found\"}"
+                                : "{\"error\":\"Missing id or action\"}";
+                    } else {
+                        try {
+                            // The partition is the only writer of the home: no actors needed
+                            DeviceCommand command = DeviceCommand.parse(params.get("action"), params.get("value"));
+                            Long expectedVersion = parseVersion(params.get("ifVersion"));
+                            if (expectedVersion == null) {
+                                device.execute(command);
+                                body = controlJson(device, command);
+                            } else if (device.executeIfVersion(command, expectedVersion)) {
+                                body = controlJson(device, command);
+                            } else {
+                                code = 409;
+                                body = "{\"error\":\"Version conflict\", \"device\":"
+                                        + DashboardView.deviceJson(RoomSnapshot.DeviceView.of(device)) + "}";
+                            }
+                        } catch (IllegalArgumentException | InvalidDeviceOperationException e) {
+                            code = 400;
+                            body = errorJson(e.getMessage());
+                        }
+                    }
+                }
+                case "devices/search" -> {
+                    String q = params.get("q");
+                    if (q == null || q.trim().isEmpty()) {
+                        code = 400;
+                        body = "{\"error\":\"Missing query parameter 'q'\"}";
+                    } else {
+                        body = searchJson(hosted.getSnapshots().publish(), q.toLowerCase());
+                    }
+                }
+                case "bulk/on" -> {
+                    home.turnOnAllDevices();
+                    body = "{\"status\":\"ok\", \"message\":\"All devices turned ON\"}";
+                }
+                case "bulk/off" -> {
+                    home.turnOffAllDevices();
+                    body = "{\"status\":\"ok\", \"message\":\"All devices turned OFF\"}";
+                }
+                case "usage" -> body = hosted.usageJson();
+                default -> {
+                    code = 404;
+                    body = "{\"error\":\"Unknown endpoint\"}";
+                }
+            }
+            hosted.recordResponse(sendJson(t, code, body), code >= 400);
+        }
+    }
+
+    /**
+     * @return An error response carrying a message, escaped.
+     */
+    private static String errorJson(String message) {
+        return JsonStatusWriter.quote(new StringBuilder("{\"error\":"), message).append("}").toString();
+    }
+
+    /**
+     * @return The number of body bytes sent.
+     */
+    private int sendJson(HttpExchange t, int code, String response) throws IOException {
         t.getResponseHeaders().set("Content-Type", "application/json");
         t.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
         t.getResponseHeaders().set("Cache-Control", "no-cache, no-store, must-revalidate");
@@ -461,6 +1161,7 @@ public class DashboardServer {
         OutputStream os = t.getResponseBody();
         os.write(bytes);
         os.close();
+        return bytes.length;
     }
 
     private class StaticFileHandler implements HttpHandler {
@@ -517,65 +1218,4 @@ public class DashboardServer {
         }
         return result;
     }
-
-    private String buildJsonStats() {
-        // ... (existing implementation) ...
-        // Manual JSON construction to avoid external dependencies
-        StringBuilder json = new StringBuilder();
-        json.append("{");
-
-        // Total Energy
-        double totalEnergy = controller.getTotalEnergyConsumption();
-        json.append("\"totalEnergy\": ").append(totalEnergy).append(",");
-
-        // Rooms
-        json.append("\"rooms\": [");
-        List<Room> rooms = controller.getHome().getRooms();
-
-        for (int i = 0; i < rooms.size(); i++) {
-            Room r = rooms.get(i);
-            json.append("{");
-            json.append("\"name\": \"").append(r.getName()).append("\",");
-            json.append("\"devices\": [");
-
-            List<SmartDevice> devices = r.getDevices();
-            for (int j = 0; j < devices.size(); j++) {
-                SmartDevice d = devices.get(j);
-                json.append("{");
-                json.append("\"id\": \"").append(d.getId()).append("\",");
-                json.append("\"name\": \"").append(d.getName()).append("\",");
-                json.append("\"type\": \"").append(d.getType()).append("\",");
-                json.append("\"status\": \"").append(d.getStatus()).append("\",");
-                json.append("\"energy\": ").append(d.getEnergyConsumption());
-
-                json.append("}");
-                if (j < devices.size() - 1)
-                    json.append(",");
-            }
-            json.append("]");
-            json.append("}");
-            if (i < rooms.size() - 1)
-                json.append(",");
-        }
-        json.append("],");
-
-        // Rules
-        json.append("\"rules\": [");
-        List<AutomationRule> rules = automationEngine.getRules();
-        for (int i = 0; i < rules.size(); i++) {
-            AutomationRule r = rules.get(i);
-            json.append("{")
-                    .append("\"name\":\"").append(r.getName()).append("\",")
-                    .append("\"description\":\"")
-                    .append(r.getDescription() != null ? r.getDescription() : "No description").append("\",")
-                    .append("\"active\":").append(r.isActive())
-                    .append("}");
-            if (i < rules.size() - 1)
-                json.append(",");
-        }
-        json.append("]");
-
-        json.append("}");
-        return json.toString();
-    }
 }
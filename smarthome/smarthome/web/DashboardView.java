@@ -0,0 +1,196 @@
+package smarthome.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import smarthome.automation.AutomationRule;
+import smarthome.core.HomeSnapshot;
+import smarthome.core.RoomSnapshot;
+
+/**
+ * Materialized /api/stats response. Every device view is rendered to JSON
+ * once, and every room once from the fragments of its devices; both are
+ * kept as bytes until the SnapshotPublisher replaces the view or room, which
+ * it only does when a device of it changed. A response is the cached room
+ * slices between a small header and the rules, so serving it costs the same
+ * however expensive the devices' status is to compute.
+ *
+ * Devices are listed with their typed status as a "state" object; the
+ * dashboard words it for people itself.
+ */
+public class DashboardView {
+
+    private static final byte[] ROOMS_START = bytes(",\"rooms\": [");
+    private static final byte[] COMMA = bytes(",");
+    private static final byte[] RULES_START = bytes("],\"rules\": [");
+    private static final byte[] END = bytes("]}");
+
+    /** A rendered room, valid as long as the snapshot's room is the same object. */
+    private record RoomFragment(RoomSnapshot room, byte[][] devices, byte[] bytes) {
+    }
+
+    private final Map<String, RoomFragment> rooms = new ConcurrentHashMap<>(); // room name -> fragment
+    private final LongAdder devicesRendered = new LongAdder();
+    private final LongAdder roomsRendered = new LongAdder();
+
+    /**
+     * A response as the slices to write, in order.
+     *
+     * @param slices The byte slices; shared with the view, never modify them.
+     * @param length Their total length.
+     */
+    public record Response(List<byte[]> slices, int length) {
+
+        /**
+         * Writes the slices one after the other, without joining them.
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            for (byte[] slice : slices) {
+                out.write(slice);
+            }
+        }
+
+        /**
+         * @return The whole response as one string, for tests and logs.
+         */
+        public String asString() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+            for (byte[] slice : slices) {
+                out.writeBytes(slice);
+            }
+            return out.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Builds the stats response of a snapshot, re-rendering only the rooms
+     * that are not the ones rendered last time.
+     *
+     * @param snapshot The published home.
+     * @param totalKWh Energy used so far, from the EnergyMeter.
+     * @param rules    The rules, in execution order.
+     * @return The response.
+     */
+    public Response render(HomeSnapshot snapshot, double totalKWh, List<AutomationRule> rules) {
+        List<RoomSnapshot> homeRooms = snapshot.rooms();
+        if (rooms.size() > homeRooms.size()) // a room was removed or renamed
+            rooms.keySet().retainAll(homeRooms.stream().map(RoomSnapshot::name).toList());
+
+        List<byte[]> slices = new ArrayList<>(homeRooms.size() * 2 + 6);
+        slices.add(bytes("{\"totalEnergy\": " + snapshot.totalEnergy() + ",\"totalKWh\": " + totalKWh));
+        slices.add(ROOMS_START);
+        for (int i = 0; i < homeRooms.size(); i++) {
+            if (i > 0)
+                slices.add(COMMA);
+            slices.add(fragment(homeRooms.get(i)).bytes());
+        }
+        slices.add(RULES_START);
+        // Rules can be switched on and off in place, and there are few of
+        // them: render them every time
+        slices.add(bytes(rulesJson(rules)));
+        slices.add(END);
+
+        int length = 0;
+        for (byte[] slice : slices) {
+            length += slice.length;
+        }
+        return new Response(slices, length);
+    }
+
+    private RoomFragment fragment(RoomSnapshot room) {
+        RoomFragment cached = rooms.get(room.name());
+        if (cached != null && cached.room() == room)
+            return cached;
+
+        // Device views the publisher did not replace keep their fragment
+        Map<RoomSnapshot.DeviceView, byte[]> previous = new IdentityHashMap<>();
+        if (cached != null) {
+            for (int i = 0; i < cached.devices().length; i++) {
+                previous.put(cached.room().devices().get(i), cached.devices()[i]);
+            }
+        }
+        List<RoomSnapshot.DeviceView> views = room.devices();
+        byte[][] devices = new byte[views.size()][];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(bytes(JsonStatusWriter.quote(new StringBuilder("{\"name\": "), room.name())
+                .append(",\"devices\": [").toString()));
+        for (int i = 0; i < devices.length; i++) {
+            byte[] device = previous.get(views.get(i));
+            if (device == null) {
+                device = bytes(deviceJson(views.get(i)));
+                devicesRendered.increment();
+            }
+            devices[i] = device;
+            if (i > 0)
+                out.writeBytes(COMMA);
+            out.writeBytes(device);
+        }
+        out.writeBytes(bytes("]}"));
+        RoomFragment fragment = new RoomFragment(room, devices, out.toByteArray());
+        rooms.put(room.name(), fragment);
+        roomsRendered.increment();
+        return fragment;
+    }
+
+    /**
+     * @return A device view as listed by /api/stats, with the version clients
+     *         pass back as ifVersion.
+     */
+    static String deviceJson(RoomSnapshot.DeviceView d) {
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+        JsonStatusWriter.quote(json.append("\"id\": "), d.id()).append(",");
+        JsonStatusWriter.quote(json.append("\"name\": "), d.name()).append(",");
+        JsonStatusWriter.quote(json.append("\"type\": "), d.type()).append(",");
+        json.append("\"state\": ");
+        JsonStatusWriter state = new JsonStatusWriter(json);
+        d.status().writeTo(state);
+        state.end();
+        json.append(",");
+        json.append("\"energy\": ").append(d.energy()).append(",");
+        json.append("\"version\": ").append(d.version());
+        json.append("}");
+        return json.toString();
+    }
+
+    private static String rulesJson(List<AutomationRule> rules) {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < rules.size(); i++) {
+            AutomationRule r = rules.get(i);
+            json.append("{\"name\":");
+            JsonStatusWriter.quote(json, r.getName()).append(",\"description\":");
+            JsonStatusWriter.quote(json, r.getDescription() != null ? r.getDescription() : "No description")
+                    .append(",\"active\":").append(r.isActive())
+                    .append("}");
+            if (i < rules.size() - 1)
+                json.append(",");
+        }
+        return json.toString();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return How many device fragments were rendered.
+     */
+    public long getDevicesRendered() {
+        return devicesRendered.sum();
+    }
+
+    /**
+     * @return How many room fragments were rendered.
+     */
+    public long getRoomsRendered() {
+        return roomsRendered.sum();
+    }
+}
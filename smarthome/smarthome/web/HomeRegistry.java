@@ -0,0 +1,298 @@
+package smarthome.web;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import smarthome.core.Home;
+import smarthome.telemetry.MetricsRegistry;
+import smarthome.telemetry.MetricsWriter;
+
+/**
+ * Hosts many homes in one process, each with its own controller and rule
+ * engine, served under /homes/{id}/api/... by the DashboardServer.
+ *
+ * Homes are spread over a fixed number of partition threads by id. All
+ * work on a home runs on its partition, one task at a time, so homes need
+ * no locks and a busy home only delays the homes of its partition. A hosted
+ * home owns no thread or timer of its own, so its cost is mostly the size
+ * of its rooms and devices.
+ *
+ * Scheduled rules are run by one timer wheel per partition, turned by the
+ * partition thread every TICK_MILLIS. A home is filed in its partition's
+ * wheel under the time its next scheduled rule is due, and filed again
+ * after each tick and each piece of submitted work, since that work may
+ * have changed its rules. A turn only visits the slots of the ticks that
+ * passed, so homes without schedules cost the wheel nothing.
+ */
+public class HomeRegistry implements AutoCloseable, MetricsRegistry.Collector {
+
+    /** Resolution of the timer wheels: rules fire at most this late. */
+    public static final long TICK_MILLIS = 1000;
+    static final long NOT_DUE = Long.MAX_VALUE;
+    private static final int WHEEL_SLOTS = 512; // ticks per turn
+
+    private final Map<Integer, HostedHome> homes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService[] partitions;
+    private final TimerWheel[] wheels; // each used only by its partition thread
+    private final Clock clock;
+
+    /**
+     * Creates a registry whose homes run on the system clock.
+     *
+     * @param partitions Number of partition threads.
+     */
+    public HomeRegistry(int partitions) {
+        this(partitions, Clock.systemDefaultZone());
+    }
+
+    /**
+     * Creates a registry.
+     *
+     * @param partitions Number of partition threads.
+     * @param clock      Time source for the rule engines of the homes and
+     *                   the timer wheels.
+     */
+    public HomeRegistry(int partitions, Clock clock) {
+        if (partitions <= 0)
+            throw new IllegalArgumentException("Partitions must be positive");
+        if (clock == null)
+            throw new IllegalArgumentException("Clock cannot be null");
+        this.clock = clock;
+        this.partitions = new ScheduledExecutorService[partitions];
+        this.wheels = new TimerWheel[partitions];
+        for (int i = 0; i < partitions; i++) {
+            String name = "home-partition-" + i;
+            this.partitions[i] = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            TimerWheel wheel = new TimerWheel(clock.millis());
+            this.wheels[i] = wheel;
+            this.partitions[i].scheduleAtFixedRate(() -> wheel.turn(clock.millis()), TICK_MILLIS, TICK_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // ===== HOMES =====
+
+    /**
+     * Starts hosting a home.
+     *
+     * @param home The home, with its rooms and devices, if any.
+     * @return The hosted home.
+     * @throws IllegalArgumentException If a home with this id is hosted
+     *                                  already.
+     */
+    public HostedHome host(Home home) {
+        if (home == null)
+            throw new IllegalArgumentException("Home cannot be null");
+        int partition = Math.floorMod(home.getHomeId(), partitions.length);
+        HostedHome hosted = new HostedHome(home, partition, clock);
+        if (homes.putIfAbsent(home.getHomeId(), hosted) != null)
+            throw new IllegalArgumentException("Home " + home.getHomeId() + " is already hosted");
+        partitions[partition].execute(() -> wheels[partition].file(hosted));
+        return hosted;
+    }
+
+    /**
+     * @return The hosted home with this id, or null.
+     */
+    public HostedHome get(int homeId) {
+        return homes.get(homeId);
+    }
+
+    /**
+     * Stops hosting a home and closes its rule engine and snapshots. Work
+     * already submitted for it still runs.
+     *
+     * @return Whether the home was hosted.
+     */
+    public boolean remove(int homeId) {
+        HostedHome hosted = homes.remove(homeId);
+        if (hosted == null)
+            return false;
+        hosted.getEngine().close();
+        hosted.getSnapshots().close();
+        return true;
+    }
+
+    /**
+     * @return The hosted homes, in no particular order.
+     */
+    public Collection<HostedHome> getHomes() {
+        return List.copyOf(homes.values());
+    }
+
+    public int size() {
+        return homes.size();
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    // ===== WORK =====
+
+    /**
+     * Runs work on a home's partition thread; the time it takes is charged
+     * to the home. The home is filed again in the timer wheel afterwards.
+     *
+     * @param homeId The home.
+     * @param work   The work; it may use the home freely.
+     * @return Its result. Fails with IllegalArgumentException if the home is
+     *         not hosted, or with what the work threw.
+     */
+    public <T> CompletableFuture<T> submit(int homeId, Function<HostedHome, T> work) {
+        HostedHome hosted = homes.get(homeId);
+        if (hosted == null)
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Home " + homeId + " not found"));
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                return work.apply(hosted);
+            } finally {
+                wheels[hosted.getPartition()].file(hosted);
+                hosted.recordWork(System.nanoTime() - start);
+            }
+        }, partitions[hosted.getPartition()]);
+    }
+
+    /**
+     * The homes of one partition with a scheduled rule, each in the slot of
+     * the tick its rule is due at, modulo the number of slots. A turn visits
+     * the slots of the ticks passed since the last one and runs the homes
+     * due; homes filed for a later turn stay. A home filed again leaves its
+     * old entry behind, dropped when its slot is next visited.
+     */
+    private final class TimerWheel {
+        private final List<Set<HostedHome>> slots = new ArrayList<>(WHEEL_SLOTS);
+        private long lastTick;
+
+        TimerWheel(long now) {
+            for (int i = 0; i < WHEEL_SLOTS; i++) {
+                slots.add(new LinkedHashSet<>());
+            }
+            this.lastTick = Math.floorDiv(now, TICK_MILLIS);
+        }
+
+        /**
+         * Files a home under the next fire time of its rules, or takes it
+         * out of the wheel if none is scheduled.
+         */
+        void file(HostedHome hosted) {
+            Instant next = hosted.getEngine().getNextFireTime();
+            long tick = next == null ? NOT_DUE
+                    : Math.max(lastTick + 1, Math.floorDiv(next.toEpochMilli() + TICK_MILLIS - 1, TICK_MILLIS));
+            if (tick == hosted.dueTick)
+                return;
+            hosted.dueTick = tick;
+            if (tick != NOT_DUE)
+                slots.get(slotOf(tick)).add(hosted);
+        }
+
+        /**
+         * Runs the rules of the homes due by now. After a long pause, one
+         * full turn visits every slot.
+         */
+        void turn(long now) {
+            long nowTick = Math.floorDiv(now, TICK_MILLIS);
+            for (long tick = Math.max(lastTick + 1, nowTick - WHEEL_SLOTS + 1); tick <= nowTick; tick++) {
+                lastTick = tick;
+                int slot = slotOf(tick);
+                List<HostedHome> due = new ArrayList<>();
+                for (Iterator<HostedHome> it = slots.get(slot).iterator(); it.hasNext();) {
+                    HostedHome hosted = it.next();
+                    if (hosted.dueTick == NOT_DUE || slotOf(hosted.dueTick) != slot) {
+                        it.remove(); // filed again elsewhere
+                    } else if (hosted.dueTick <= nowTick) {
+                        it.remove();
+                        if (homes.get(hosted.getId()) == hosted)
+                            due.add(hosted);
+                    }
+                }
+                due.forEach(this::fire);
+            }
+        }
+
+        private void fire(HostedHome hosted) {
+            hosted.dueTick = NOT_DUE;
+            long start = System.nanoTime();
+            try {
+                hosted.getEngine().evaluateRules();
+            } catch (RuntimeException e) {
+                System.err.println("Scheduled rule tick of home " + hosted.getId() + " failed: " + e.getMessage());
+            }
+            file(hosted);
+            hosted.recordWork(System.nanoTime() - start);
+        }
+
+        private int slotOf(long tick) {
+            return (int) Math.floorMod(tick, (long) WHEEL_SLOTS);
+        }
+    }
+
+    /**
+     * @return The usage of every home, as a JSON array ordered by id.
+     */
+    String usageJson() {
+        List<HostedHome> sorted = new ArrayList<>(homes.values());
+        sorted.sort((a, b) -> Integer.compare(a.getId(), b.getId()));
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i > 0)
+                json.append(",");
+            json.append(sorted.get(i).usageJson());
+        }
+        return json.append("]").toString();
+    }
+
+    @Override
+    public void collect(MetricsWriter writer) {
+        long[] homeCounts = new long[partitions.length];
+        long[] requests = new long[partitions.length];
+        double[] busySeconds = new double[partitions.length];
+        for (HostedHome hosted : homes.values()) {
+            homeCounts[hosted.getPartition()]++;
+            requests[hosted.getPartition()] += hosted.getRequests();
+            busySeconds[hosted.getPartition()] += hosted.getBusyNanos() / 1e9;
+        }
+        writer.family("smarthome_hosted_homes", "gauge", "Homes hosted, by partition.");
+        for (int i = 0; i < partitions.length; i++) {
+            writer.sample("smarthome_hosted_homes", homeCounts[i], "partition", String.valueOf(i));
+        }
+        writer.family("smarthome_hosted_requests_total", "counter", "Requests served for hosted homes, by partition.");
+        for (int i = 0; i < partitions.length; i++) {
+            writer.sample("smarthome_hosted_requests_total", requests[i], "partition", String.valueOf(i));
+        }
+        writer.family("smarthome_hosted_busy_seconds_total", "counter",
+                "Time partition threads spent on hosted homes, by partition.");
+        for (int i = 0; i < partitions.length; i++) {
+            writer.sample("smarthome_hosted_busy_seconds_total", busySeconds[i], "partition", String.valueOf(i));
+        }
+    }
+
+    /**
+     * Stops the partition threads and their timer wheels. Work still queued
+     * is not run.
+     */
+    @Override
+    public void close() {
+        for (ScheduledExecutorService partition : partitions) {
+            partition.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package smarthome.web;
+
+import java.time.Clock;
+
+import smarthome.automation.AutomationEngine;
+import smarthome.core.CentralController;
+import smarthome.core.Home;
+import smarthome.core.HomeSnapshot;
+import smarthome.core.SnapshotPublisher;
+
+/**
+ * One home hosted by a HomeRegistry: its controller, rule engine, published
+ * snapshot and dashboard view, and what serving it has cost so far.
+ *
+ * Everything is touched only by the thread of the home's partition, so the
+ * home needs no locks of its own and its usage counters have a single
+ * writer. Scheduled rules are ticked by the partition's timer wheel.
+ */
+public final class HostedHome {
+
+    private final Home home;
+    private final CentralController controller;
+    private final AutomationEngine engine;
+    private final SnapshotPublisher snapshots;
+    private final DashboardView view = new DashboardView();
+    private final int partition;
+
+    long dueTick = HomeRegistry.NOT_DUE; // the partition's timer wheel tick the home is filed under
+
+    // Written only by the partition thread
+    private volatile long requests;
+    private volatile long errors;
+    private volatile long busyNanos;
+    private volatile long bytesSent;
+
+    HostedHome(Home home, int partition, Clock clock) {
+        this.home = home;
+        this.controller = new CentralController(home);
+        this.engine = new AutomationEngine(controller, clock);
+        this.snapshots = SnapshotPublisher.onDemand(controller); // publishes on demand: no thread per home
+        this.partition = partition;
+    }
+
+    public int getId() {
+        return home.getHomeId();
+    }
+
+    public Home getHome() {
+        return home;
+    }
+
+    public CentralController getController() {
+        return controller;
+    }
+
+    public AutomationEngine getEngine() {
+        return engine;
+    }
+
+    public SnapshotPublisher getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * @return The materialized /api/stats response of this home.
+     */
+    public DashboardView getView() {
+        return view;
+    }
+
+    /**
+     * @return The index of the partition thread that runs this home.
+     */
+    public int getPartition() {
+        return partition;
+    }
+
+    // ===== USAGE =====
+
+    void recordWork(long nanos) {
+        busyNanos += nanos;
+    }
+
+    void recordResponse(int bytes, boolean failed) {
+        requests++;
+        bytesSent += bytes;
+        if (failed)
+            errors++;
+    }
+
+    /**
+     * @return Requests served for this home.
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return Requests answered with a status of 400 or more.
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return Time the partition thread spent on this home's requests and
+     *         submitted work.
+     */
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * @return Response body bytes sent for this home.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return The usage of this home as a JSON object.
+     */
+    String usageJson() {
+        // Read from the published snapshot: this also runs on the thread
+        // listing every home, not only on this home's partition
+        HomeSnapshot snapshot = snapshots.current();
+        return "{\"id\": " + getId() + ",\"owner\": " + JsonStatusWriter.quote(new StringBuilder(), home.getOwner())
+                + ",\"partition\": " + partition + ",\"rooms\": " + snapshot.rooms().size() + ",\"devices\": "
+                + snapshot.deviceCount() + ",\"rules\": " + engine.getRuleSet().getRules().size() + ",\"requests\": " + requests
+                + ",\"errors\": " + errors + ",\"busyMillis\": " + busyNanos / 1_000_000 + ",\"bytesSent\": "
+                + bytesSent + "}";
+    }
+}
@@ -0,0 +1,37 @@
+package smarthome.web;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one request handled by the DashboardServer.
+ */
+@Name("smarthome.HttpExchange")
+@Label("HTTP Exchange")
+@Category({ "Smart Home", "HTTP" })
+@Description("A request handled by the dashboard server")
+@StackTrace(false)
+final class HttpExchangeEvent extends Event {
+
+    @Label("Method")
+    String method;
+
+    @Label("Context")
+    @Description("The server context that handled the request")
+    String context;
+
+    @Label("Path")
+    String path;
+
+    @Label("Status")
+    int status;
+
+    @Label("Response Bytes")
+    @DataAmount
+    long bytes;
+}
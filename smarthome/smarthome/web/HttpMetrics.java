@@ -0,0 +1,133 @@
+package smarthome.web;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import smarthome.telemetry.LatencyHistogram;
+import smarthome.telemetry.MetricsRegistry;
+import smarthome.telemetry.MetricsWriter;
+
+/**
+ * Filter added to every server context that counts requests by status code,
+ * response bytes and in-flight requests, and records request latency. Each
+ * request is also reported to Flight Recorder as an HttpExchangeEvent.
+ *
+ * A handler that answers on another thread tells the filter so through
+ * completeLater; the request is then measured when it is answered, not when
+ * the handler returns.
+ */
+class HttpMetrics extends Filter implements MetricsRegistry.Collector {
+
+    private final Map<String, ContextStats> contexts = new ConcurrentHashMap<>();
+    private final LongAdder inFlight = new LongAdder();
+    private final Map<HttpExchange, CompletableFuture<?>> deferred = new ConcurrentHashMap<>();
+
+    private static class ContextStats {
+        final Map<Integer, LongAdder> requests = new ConcurrentHashMap<>(); // status code -> count
+        final LongAdder responseBytes = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    @Override
+    public String description() {
+        return "Request metrics";
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        String context = exchange.getHttpContext().getPath();
+        ContextStats stats = contexts.computeIfAbsent(context, k -> new ContextStats());
+        HttpExchangeEvent event = new HttpExchangeEvent();
+        event.begin();
+        long start = System.nanoTime();
+        inFlight.increment();
+        CountingStream body = new CountingStream(exchange.getResponseBody());
+        exchange.setStreams(null, body);
+        boolean handled = false;
+        try {
+            chain.doFilter(exchange);
+            handled = true;
+        } finally {
+            CompletableFuture<?> answered = deferred.remove(exchange);
+            if (handled && answered != null)
+                answered.whenComplete((result, error) -> finish(exchange, context, stats, event, start, body));
+            else
+                finish(exchange, context, stats, event, start, body);
+        }
+    }
+
+    /**
+     * Has the filter measure an exchange when done completes instead of when
+     * its handler returns; for handlers that answer on another thread.
+     *
+     * @param exchange The exchange being handled.
+     * @param done     Completes once the response was sent.
+     */
+    void completeLater(HttpExchange exchange, CompletableFuture<?> done) {
+        deferred.put(exchange, done);
+    }
+
+    private void finish(HttpExchange exchange, String context, ContextStats stats, HttpExchangeEvent event,
+            long start, CountingStream body) {
+        inFlight.decrement();
+        stats.latency.record(System.nanoTime() - start);
+        stats.responseBytes.add(body.count);
+        // -1 when the handler failed before sending a response
+        int code = exchange.getResponseCode() < 0 ? 500 : exchange.getResponseCode();
+        stats.requests.computeIfAbsent(code, k -> new LongAdder()).increment();
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = exchange.getRequestMethod();
+            event.context = context;
+            event.path = exchange.getRequestURI().getPath();
+            event.status = code;
+            event.bytes = body.count;
+            event.commit();
+        }
+    }
+
+    private static class CountingStream extends FilterOutputStream {
+        long count; // only touched by the thread answering the request, read once it has
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    @Override
+    public void collect(MetricsWriter writer) {
+        Map<String, ContextStats> sorted = new TreeMap<>(contexts);
+        writer.family("http_requests_total", "counter", "HTTP requests, by context and status code.");
+        sorted.forEach((context, stats) -> new TreeMap<>(stats.requests).forEach((code, count) -> writer
+                .sample("http_requests_total", count.sum(), "context", context, "code", String.valueOf(code))));
+        writer.family("http_request_duration_seconds", "histogram", "HTTP request latency, by context.");
+        sorted.forEach((context, stats) -> writer.histogram("http_request_duration_seconds", stats.latency,
+                "context", context));
+        writer.family("http_response_bytes_total", "counter", "HTTP response body bytes, by context.");
+        sorted.forEach((context, stats) -> writer.sample("http_response_bytes_total", stats.responseBytes.sum(),
+                "context", context));
+        writer.family("http_requests_in_flight", "gauge", "HTTP requests being handled.")
+                .sample("http_requests_in_flight", inFlight.sum());
+    }
+}
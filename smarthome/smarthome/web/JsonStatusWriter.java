@@ -0,0 +1,86 @@
+package smarthome.web;
+
+import smarthome.devices.StatusWriter;
+
+/**
+ * Writes a device status straight into a JSON object, field by field.
+ */
+class JsonStatusWriter implements StatusWriter {
+
+    private final StringBuilder json;
+    private boolean first = true;
+
+    /**
+     * @param json Receives the object; call end() after the last field.
+     */
+    JsonStatusWriter(StringBuilder json) {
+        this.json = json;
+        json.append('{');
+    }
+
+    private StringBuilder name(String field) {
+        if (!first)
+            json.append(',');
+        first = false;
+        return json.append('"').append(field).append("\": ");
+    }
+
+    @Override
+    public void write(String field, boolean value) {
+        name(field).append(value);
+    }
+
+    @Override
+    public void write(String field, long value) {
+        name(field).append(value);
+    }
+
+    @Override
+    public void write(String field, double value) {
+        if (Double.isFinite(value))
+            name(field).append(value);
+        else
+            name(field).append("null");
+    }
+
+    @Override
+    public void write(String field, String value) {
+        quote(name(field), value);
+    }
+
+    /**
+     * Appends a string as a quoted JSON string, escaping quotes, backslashes
+     * and control characters; null is written as null.
+     *
+     * @return The builder.
+     */
+    static StringBuilder quote(StringBuilder json, String value) {
+        if (value == null)
+            return json.append("null");
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20)
+                        json.append(String.format("\\u%04x", (int) c));
+                    else
+                        json.append(c);
+                }
+            }
+        }
+        return json.append('"');
+    }
+
+    /**
+     * Closes the object.
+     */
+    void end() {
+        json.append('}');
+    }
+}
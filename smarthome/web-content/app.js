@@ -26,6 +26,30 @@ function updateStatus(connected) {
     }
 }
 
+// Words a device's typed state for the dashboard; the server only sends the fields
+function describeState(device) {
+    const st = device.state;
+    if (!st.on) return 'OFF';
+    const parts = ['ON'];
+    if ('brightness' in st) parts.push(`Brightness: ${st.brightness}%`);
+    if ('targetTemperature' in st) {
+        parts.push(`Current: ${st.currentTemperature.toFixed(1)}°C`);
+        parts.push(`Target: ${st.targetTemperature.toFixed(1)}°C`);
+    }
+    if ('motionDetected' in st) {
+        parts.push(st.motionDetected ? 'MOTION DETECTED!' : 'No motion');
+        parts.push(`Sensitivity: ${st.sensitivity}/10`);
+        if (st.lastMotionTime > 0) {
+            const seconds = Math.max(0, Math.floor((Date.now() - st.lastMotionTime) / 1000));
+            parts.push(`Last motion: ${seconds < 60 ? seconds + ' seconds' : Math.floor(seconds / 60) + ' minutes'} ago`);
+        }
+    }
+    if ('armed' in st) parts.push(st.triggered ? 'TRIGGERED!' : (st.armed ? 'Armed' : 'Disarmed'));
+    if ('channel' in st) parts.push(`Channel: ${st.channel} - Volume: ${st.volume}${st.muted ? ' (MUTED)' : ''}`);
+    if ('mode' in st) parts.push(`Mode: ${st.mode}`);
+    return parts.join(' - ');
+}
+
 function updateDashboard(data) {
     // Update Total Energy
     const totalEnergyEl = document.getElementById('total-energy-value');
@@ -61,19 +85,16 @@ function updateDashboard(data) {
             deviceItem.className = "device-item";
 
             // Determine status style
-            const isOn = device.status.toUpperCase().includes("ON");
+            const isOn = device.state.on;
             const statusClass = isOn ? "status-on" : "status-off";
 
-            // Extract attributes from status string for sliders (fragile parsing but simulation works)
+            // Slider values come straight from the typed state
             let extraControls = '';
             console.log("device: " + device.type);
 
             // Light Brightness Slider
             if (device.type === 'Light' || device.name.includes('[Light]')) {
-                // Try parsing brightness
-                console.log("device: " + device.status);
-                const match = device.status.match(/Brightness: (\d+)%/);
-                const brightness = match ? parseInt(match[1]) : 0;
+                const brightness = device.state.brightness ?? 0;
                 extraControls += `
                     <div class="slider-container">
                         <span class="slider-value">🔆</span>
@@ -88,11 +109,7 @@ function updateDashboard(data) {
             console.log("device: " + device.type);
             console.log("device: " + device.name);
             if (device.type === 'Thermostat' || device.name.includes('[Thermostat]')) {
-                // Update regex to match exact status format from Thermostat.java: 
-                // " | Current: %.1f°C | Target: %.1f°C | Mode: %s"
-                // Or simple match
-                const match = device.status.match(/Current: ([\d.]+)°C/);
-                const target = match ? parseFloat(match[1]) : 2.0; // Default if not found
+                const target = device.state.targetTemperature ?? 20.0;
                 console.log("target: " + target);
                 extraControls += `
                     <div class="slider-container">
@@ -107,7 +124,7 @@ function updateDashboard(data) {
             deviceItem.innerHTML = `
                 <div class="device-info">
                     <span class="device-name">${device.name}</span>
-                    <span class="device-status ${statusClass}">${device.status}</span>
+                    <span class="device-status ${statusClass}">${describeState(device)}</span>
                     ${extraControls}
                 </div>
                 <div class="device-controls">
@@ -207,13 +224,13 @@ async function handleAddDevice() {
 
 
 
-async function handleControl(id, action, value) {
-    console.log('handleControl called:', { id, action, value });
+async function handleControl(id, action, value, coalesce = false) {
+    console.log('handleControl called:', { id, action, value, coalesce });
     try {
-        const response = await fetch(`/api/control?id=${id}&action=${action}&value=${value}`, { method: 'POST' });
+        const response = await fetch(`/api/control?id=${id}&action=${action}&value=${value}${coalesce ? '&coalesce=true' : ''}`, { method: 'POST' });
         const data = await response.json();
         console.log('handleControl response:', data);
-        if (data.status === 'ok') {
+        if (data.status === 'ok' || data.status === 'queued') {
             fetchStats(); // Update UI
         }
     } catch (e) {
@@ -473,7 +490,7 @@ updateDashboard = function (data) {
         room.devices.forEach((device) => {
             const deviceItem = document.createElement("div");
             deviceItem.className = "device-item";
-            const isOn = device.status.toUpperCase().includes("ON");
+            const isOn = device.state.on;
             const statusClass = isOn ? "status-on" : "status-off";
 
             // Build slider controls based on device type
@@ -481,8 +498,7 @@ updateDashboard = function (data) {
 
             // Light Brightness Slider
             if (device.type === 'Light') {
-                const match = device.status.match(/Brightness: (\d+)%/);
-                const brightness = match ? parseInt(match[1]) : 0;
+                const brightness = device.state.brightness ?? 0;
                 extraControls += `
                     <div class="slider-container">
                         <span class="slider-value">🔆</span>
@@ -493,14 +509,10 @@ updateDashboard = function (data) {
                 `;
             }
             console.log("device: " + device.type);
-            console.log("device: " + device.status);
 
             // Thermostat Temperature Slider
             if (device.type === 'Thermostat' || device.name.includes('Heater')) {
-                console.log("device status: " + device.status);
-                const match = device.status.match(/Current: ([\d.,]+)°C/);
-                console.log("match: " + match);
-                const targetTemperature = match ? parseFloat(match[1]) : 2.0;
+                const targetTemperature = device.state.targetTemperature ?? 20.0;
                 extraControls += `
                     <div class="slider-container">
                         <span class="slider-value">🌡️</span>
@@ -513,8 +525,7 @@ updateDashboard = function (data) {
 
             // MotionSensor Sensitivity Slider
             if (device.type === 'MotionSensor') {
-                const match = device.status.match(/Sensitivity: (\d+)\/10/);
-                const sensitivity = match ? parseInt(match[1]) : 5;
+                const sensitivity = device.state.sensitivity ?? 5;
                 extraControls += `
                     <div class="slider-container">
                         <span class="slider-value">📡</span>
@@ -528,7 +539,7 @@ updateDashboard = function (data) {
             deviceItem.innerHTML = `
                 <div class="device-info">
                     <span class="device-name">${device.name}</span>
-                    <span class="device-status ${statusClass}">${device.status}</span>
+                    <span class="device-status ${statusClass}">${describeState(device)}</span>
                     ${extraControls}
                 </div>
                 <div class="device-controls">
@@ -910,13 +921,13 @@ document.addEventListener('input', function (e) {
             else if (action === 'setSensitivity') valueSpan.textContent = slider.value + '/10';
         }
 
-        // Debounce the API call - only send after 300ms of no input
+        // Debounce the API call lightly; the server coalesces what gets through
         if (deviceId && action) {
             clearTimeout(sliderDebounceTimer);
             sliderDebounceTimer = setTimeout(function () {
                 console.log('Slider input (debounced):', { deviceId, action, value: slider.value });
-                handleControl(deviceId, action, slider.value);
-            }, 300);
+                handleControl(deviceId, action, slider.value, true);
+            }, 100);
         }
     }
 });